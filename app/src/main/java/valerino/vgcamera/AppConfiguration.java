@@ -32,6 +32,63 @@ public class AppConfiguration {
 
     private QUALITY _quality;
 
+    private boolean _burstMode;
+
+    private int _burstCount;
+
+    private boolean _zslMode;
+
+    private long _locationMaxAge;
+
+    private float _locationMaxAccuracy;
+
+    private String _cameraCapabilities;
+
+    private boolean _segmentedRecording;
+
+    private long _segmentDuration;
+
+    private long _segmentMaxSize;
+
+    private boolean _recordReady;
+
+    private boolean _preRecord;
+
+    private int _preRecordSeconds;
+
+    private int _preRecordBudget;
+
+    private ENGINE _engine;
+
+    private int _encoderWidth;
+
+    private int _encoderHeight;
+
+    private int _encoderFps;
+
+    private int _encoderBitrate;
+
+    private int _encoderGop;
+
+    private boolean _encoderAudio;
+
+    private boolean _governor;
+
+    private QualityGovernor.TIER _governorFloor;
+
+    private boolean _qrScan;
+
+    private MOTION_TRIGGER _motionTrigger;
+
+    private boolean _hdrMode;
+    private boolean _hdrKeepOriginals;
+
+    private boolean _nightShot;
+
+    private MediaWriter.FSYNC _fsync;
+
+    private String _cameraCapabilitiesFingerprint;
+
     private File _storageFolder;
     private File _tmpFolder;
 
@@ -45,12 +102,52 @@ public class AppConfiguration {
     private final static String PREFS_SMOOTH_ZOOM = "smooth_zoom";
     private final static String PREFS_MAX_ZOOM = "max_zoom_mode";
     private final static String PREFS_QUALITY = "quality";
+    private final static String PREFS_BURST = "burst";
+    private final static String PREFS_BURST_COUNT = "burst_count";
+    private final static String PREFS_ZSL = "zsl";
+    private final static String PREFS_LOCATION_MAX_AGE = "location_max_age";
+    private final static String PREFS_LOCATION_MAX_ACCURACY = "location_max_accuracy";
+    private final static String PREFS_CAMERA_CAPS = "camera_caps";
+    private final static String PREFS_CAMERA_CAPS_FINGERPRINT = "camera_caps_fingerprint";
+    private final static String PREFS_SEGMENTED = "segmented";
+    private final static String PREFS_SEGMENT_DURATION = "segment_duration";
+    private final static String PREFS_SEGMENT_MAX_SIZE = "segment_max_size";
+    private final static String PREFS_RECORD_READY = "record_ready";
+    private final static String PREFS_PRERECORD = "prerecord";
+    private final static String PREFS_PRERECORD_SECONDS = "prerecord_seconds";
+    private final static String PREFS_PRERECORD_BUDGET = "prerecord_budget";
+    private final static String PREFS_ENGINE = "engine";
+    private final static String PREFS_ENCODER_WIDTH = "encoder_width";
+    private final static String PREFS_ENCODER_HEIGHT = "encoder_height";
+    private final static String PREFS_ENCODER_FPS = "encoder_fps";
+    private final static String PREFS_ENCODER_BITRATE = "encoder_bitrate";
+    private final static String PREFS_ENCODER_GOP = "encoder_gop";
+    private final static String PREFS_ENCODER_AUDIO = "encoder_audio";
+    private final static String PREFS_GOVERNOR = "governor";
+    private final static String PREFS_GOVERNOR_FLOOR = "governor_floor";
+    private final static String PREFS_QR_SCAN = "qr_scan";
+    private final static String PREFS_MOTION_TRIGGER = "motion_trigger";
+    private final static String PREFS_HDR = "hdr";
+    private final static String PREFS_HDR_ORIGINALS = "hdr_originals";
+    private final static String PREFS_NIGHT_SHOT = "night_shot";
+    private final static String PREFS_FSYNC = "fsync";
 
     public enum QUALITY {
         HIGH,
         LOW
     }
 
+    public enum ENGINE {
+        MEDIA_RECORDER, // CamcorderProfile by quality
+        MEDIA_CODEC // MediaCodec/MediaMuxer with the encoder settings
+    }
+
+    public enum MOTION_TRIGGER {
+        OFF,
+        PHOTO, // a picture when motion starts
+        VIDEO // recording while there's motion
+    }
+
     /**
      * constructor (use instance())
      * Context ctx a Context
@@ -67,6 +164,35 @@ public class AppConfiguration {
         _smoothZoom = _sharedPrefs.getBoolean(PREFS_SMOOTH_ZOOM, false);
         _maxZoomMode = _sharedPrefs.getBoolean(PREFS_MAX_ZOOM, false);
         _quality = QUALITY.valueOf(_sharedPrefs.getString(PREFS_QUALITY, QUALITY.HIGH.toString()));
+        _burstMode = _sharedPrefs.getBoolean(PREFS_BURST, false);
+        _burstCount = _sharedPrefs.getInt(PREFS_BURST_COUNT, 5);
+        _zslMode = _sharedPrefs.getBoolean(PREFS_ZSL, false);
+        _locationMaxAge = _sharedPrefs.getLong(PREFS_LOCATION_MAX_AGE, 5 * 60 * 1000);
+        _locationMaxAccuracy = _sharedPrefs.getFloat(PREFS_LOCATION_MAX_ACCURACY, 500);
+        _cameraCapabilities = _sharedPrefs.getString(PREFS_CAMERA_CAPS, null);
+        _cameraCapabilitiesFingerprint = _sharedPrefs.getString(PREFS_CAMERA_CAPS_FINGERPRINT, null);
+        _segmentedRecording = _sharedPrefs.getBoolean(PREFS_SEGMENTED, false);
+        _segmentDuration = _sharedPrefs.getLong(PREFS_SEGMENT_DURATION, 5 * 60 * 1000);
+        _segmentMaxSize = _sharedPrefs.getLong(PREFS_SEGMENT_MAX_SIZE, 256 * 1024 * 1024);
+        _recordReady = _sharedPrefs.getBoolean(PREFS_RECORD_READY, false);
+        _preRecord = _sharedPrefs.getBoolean(PREFS_PRERECORD, false);
+        _preRecordSeconds = _sharedPrefs.getInt(PREFS_PRERECORD_SECONDS, 10);
+        _preRecordBudget = _sharedPrefs.getInt(PREFS_PRERECORD_BUDGET, 8 * 1024 * 1024);
+        _engine = ENGINE.valueOf(_sharedPrefs.getString(PREFS_ENGINE, ENGINE.MEDIA_RECORDER.toString()));
+        _encoderWidth = _sharedPrefs.getInt(PREFS_ENCODER_WIDTH, 1280);
+        _encoderHeight = _sharedPrefs.getInt(PREFS_ENCODER_HEIGHT, 720);
+        _encoderFps = _sharedPrefs.getInt(PREFS_ENCODER_FPS, 30);
+        _encoderBitrate = _sharedPrefs.getInt(PREFS_ENCODER_BITRATE, 0);
+        _encoderGop = _sharedPrefs.getInt(PREFS_ENCODER_GOP, 1);
+        _encoderAudio = _sharedPrefs.getBoolean(PREFS_ENCODER_AUDIO, true);
+        _governor = _sharedPrefs.getBoolean(PREFS_GOVERNOR, false);
+        _governorFloor = QualityGovernor.TIER.valueOf(_sharedPrefs.getString(PREFS_GOVERNOR_FLOOR, QualityGovernor.TIER.LOW.toString()));
+        _qrScan = _sharedPrefs.getBoolean(PREFS_QR_SCAN, false);
+        _motionTrigger = MOTION_TRIGGER.valueOf(_sharedPrefs.getString(PREFS_MOTION_TRIGGER, MOTION_TRIGGER.OFF.toString()));
+        _hdrMode = _sharedPrefs.getBoolean(PREFS_HDR, false);
+        _hdrKeepOriginals = _sharedPrefs.getBoolean(PREFS_HDR_ORIGINALS, false);
+        _nightShot = _sharedPrefs.getBoolean(PREFS_NIGHT_SHOT, false);
+        _fsync = MediaWriter.FSYNC.valueOf(_sharedPrefs.getString(PREFS_FSYNC, MediaWriter.FSYNC.EACH.toString()));
 
         // this is the storage folder (hardcoded)
         _storageFolder = new File (Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM), "VGCamera");
@@ -215,4 +341,562 @@ public class AppConfiguration {
     boolean autoSave() {
         return _autoSave;
     }
+
+    /**
+     * sets whether taking a picture shoots a burst
+     * @param enable true to enable
+     */
+    public void setBurstMode(boolean enable) {
+        _burstMode = enable;
+
+        // update prefs
+        _editor.putBoolean(PREFS_BURST, enable);
+        _editor.commit();
+    }
+
+    /**
+     * returns whether taking a picture shoots a burst
+     * @return
+     */
+    boolean burstMode() {
+        return _burstMode;
+    }
+
+    /**
+     * sets how many pictures a burst takes
+     * @param count number of pictures
+     */
+    public void setBurstCount(int count) {
+        _burstCount = count;
+
+        // update prefs
+        _editor.putInt(PREFS_BURST_COUNT, count);
+        _editor.commit();
+    }
+
+    /**
+     * returns how many pictures a burst takes
+     * @return
+     */
+    public int burstCount() {
+        return _burstCount;
+    }
+
+    /**
+     * sets whether pictures are taken from the preview frames (zero shutter lag, preview resolution)
+     * @param enable true to enable
+     */
+    public void setZslMode(boolean enable) {
+        _zslMode = enable;
+
+        // update prefs
+        _editor.putBoolean(PREFS_ZSL, enable);
+        _editor.commit();
+    }
+
+    /**
+     * returns whether pictures are taken from the preview frames
+     * @return
+     */
+    boolean zslMode() {
+        return _zslMode;
+    }
+
+    /**
+     * sets the max age of a location fix to be used for geotagging
+     * @param millis max age, in milliseconds
+     */
+    public void setLocationMaxAge(long millis) {
+        _locationMaxAge = millis;
+
+        // update prefs
+        _editor.putLong(PREFS_LOCATION_MAX_AGE, millis);
+        _editor.commit();
+    }
+
+    /**
+     * returns the max age of a location fix to be used for geotagging, in milliseconds
+     * @return
+     */
+    public long locationMaxAge() {
+        return _locationMaxAge;
+    }
+
+    /**
+     * sets the max accuracy radius of a location fix to be used for geotagging
+     * @param meters accuracy radius, in meters
+     */
+    public void setLocationMaxAccuracy(float meters) {
+        _locationMaxAccuracy = meters;
+
+        // update prefs
+        _editor.putFloat(PREFS_LOCATION_MAX_ACCURACY, meters);
+        _editor.commit();
+    }
+
+    /**
+     * returns the max accuracy radius of a location fix to be used for geotagging, in meters
+     * @return
+     */
+    public float locationMaxAccuracy() {
+        return _locationMaxAccuracy;
+    }
+
+    /**
+     * sets whether videos are recorded as a sequence of bounded segments
+     * @param enable true to enable
+     */
+    public void setSegmentedRecording(boolean enable) {
+        _segmentedRecording = enable;
+
+        // update prefs
+        _editor.putBoolean(PREFS_SEGMENTED, enable);
+        _editor.commit();
+    }
+
+    /**
+     * returns whether videos are recorded as a sequence of bounded segments
+     * @return
+     */
+    boolean segmentedRecording() {
+        return _segmentedRecording;
+    }
+
+    /**
+     * sets the max duration of a video segment
+     * @param millis max duration, in milliseconds
+     */
+    public void setSegmentDuration(long millis) {
+        _segmentDuration = millis;
+
+        // update prefs
+        _editor.putLong(PREFS_SEGMENT_DURATION, millis);
+        _editor.commit();
+    }
+
+    /**
+     * returns the max duration of a video segment, in milliseconds
+     * @return
+     */
+    public long segmentDuration() {
+        return _segmentDuration;
+    }
+
+    /**
+     * sets the max size of a video segment
+     * @param bytes max size, in bytes
+     */
+    public void setSegmentMaxSize(long bytes) {
+        _segmentMaxSize = bytes;
+
+        // update prefs
+        _editor.putLong(PREFS_SEGMENT_MAX_SIZE, bytes);
+        _editor.commit();
+    }
+
+    /**
+     * returns the max size of a video segment, in bytes
+     * @return
+     */
+    public long segmentMaxSize() {
+        return _segmentMaxSize;
+    }
+
+    /**
+     * sets whether a recorder is kept prepared while in preview, so videos start faster
+     * @param enable true to enable
+     */
+    public void setRecordReady(boolean enable) {
+        _recordReady = enable;
+
+        // update prefs
+        _editor.putBoolean(PREFS_RECORD_READY, enable);
+        _editor.commit();
+    }
+
+    /**
+     * returns whether a recorder is kept prepared while in preview
+     * @return
+     */
+    boolean recordReady() {
+        return _recordReady;
+    }
+
+    /**
+     * sets whether the preview is continuously encoded, so recordings start with the last seconds before the trigger
+     * @param enable true to enable
+     */
+    public void setPreRecord(boolean enable) {
+        _preRecord = enable;
+
+        // update prefs
+        _editor.putBoolean(PREFS_PRERECORD, enable);
+        _editor.commit();
+    }
+
+    /**
+     * returns whether the preview is continuously encoded for pre-recording
+     * @return
+     */
+    boolean preRecord() {
+        return _preRecord;
+    }
+
+    /**
+     * sets how many seconds before the trigger are kept when pre-recording
+     * @param seconds the seconds
+     */
+    public void setPreRecordSeconds(int seconds) {
+        _preRecordSeconds = seconds;
+
+        // update prefs
+        _editor.putInt(PREFS_PRERECORD_SECONDS, seconds);
+        _editor.commit();
+    }
+
+    /**
+     * returns how many seconds before the trigger are kept when pre-recording
+     * @return
+     */
+    public int preRecordSeconds() {
+        return _preRecordSeconds;
+    }
+
+    /**
+     * sets the memory budget of the pre-record buffer
+     * @param bytes max bytes of encoded video kept
+     */
+    public void setPreRecordBudget(int bytes) {
+        _preRecordBudget = bytes;
+
+        // update prefs
+        _editor.putInt(PREFS_PRERECORD_BUDGET, bytes);
+        _editor.commit();
+    }
+
+    /**
+     * returns the memory budget of the pre-record buffer, in bytes
+     * @return
+     */
+    public int preRecordBudget() {
+        return _preRecordBudget;
+    }
+
+    /**
+     * sets the video recording engine
+     * @param engine MEDIA_RECORDER or MEDIA_CODEC
+     */
+    public void setEngine(ENGINE engine) {
+        _engine = engine;
+
+        // update prefs
+        _editor.putString(PREFS_ENGINE, engine.toString());
+        _editor.commit();
+    }
+
+    /**
+     * returns the video recording engine
+     * @return
+     */
+    public ENGINE engine() {
+        return _engine;
+    }
+
+    /**
+     * sets the video resolution for the MEDIA_CODEC engine (the nearest supported preview size is used)
+     * @param width the width
+     * @param height the height
+     */
+    public void setEncoderResolution(int width, int height) {
+        _encoderWidth = width;
+        _encoderHeight = height;
+
+        // update prefs
+        _editor.putInt(PREFS_ENCODER_WIDTH, width);
+        _editor.putInt(PREFS_ENCODER_HEIGHT, height);
+        _editor.commit();
+    }
+
+    /**
+     * returns the video width for the MEDIA_CODEC engine
+     * @return
+     */
+    public int encoderWidth() {
+        return _encoderWidth;
+    }
+
+    /**
+     * returns the video height for the MEDIA_CODEC engine
+     * @return
+     */
+    public int encoderHeight() {
+        return _encoderHeight;
+    }
+
+    /**
+     * sets the video frame rate for the MEDIA_CODEC engine
+     * @param fps the frame rate (up to the preview one)
+     */
+    public void setEncoderFps(int fps) {
+        _encoderFps = fps;
+
+        // update prefs
+        _editor.putInt(PREFS_ENCODER_FPS, fps);
+        _editor.commit();
+    }
+
+    /**
+     * returns the video frame rate for the MEDIA_CODEC engine
+     * @return
+     */
+    public int encoderFps() {
+        return _encoderFps;
+    }
+
+    /**
+     * sets the video bitrate for the MEDIA_CODEC engine
+     * @param bitrate bits/s, 0 to derive it from resolution and frame rate
+     */
+    public void setEncoderBitrate(int bitrate) {
+        _encoderBitrate = bitrate;
+
+        // update prefs
+        _editor.putInt(PREFS_ENCODER_BITRATE, bitrate);
+        _editor.commit();
+    }
+
+    /**
+     * returns the video bitrate for the MEDIA_CODEC engine
+     * @return bits/s, 0 if derived from resolution and frame rate
+     */
+    public int encoderBitrate() {
+        return _encoderBitrate;
+    }
+
+    /**
+     * sets the keyframe interval for the MEDIA_CODEC engine
+     * @param seconds the interval, in seconds
+     */
+    public void setEncoderGop(int seconds) {
+        _encoderGop = seconds;
+
+        // update prefs
+        _editor.putInt(PREFS_ENCODER_GOP, seconds);
+        _editor.commit();
+    }
+
+    /**
+     * returns the keyframe interval for the MEDIA_CODEC engine, in seconds
+     * @return
+     */
+    public int encoderGop() {
+        return _encoderGop;
+    }
+
+    /**
+     * sets whether the MEDIA_CODEC engine records audio
+     * @param enable true to enable
+     */
+    public void setEncoderAudio(boolean enable) {
+        _encoderAudio = enable;
+
+        // update prefs
+        _editor.putBoolean(PREFS_ENCODER_AUDIO, enable);
+        _editor.commit();
+    }
+
+    /**
+     * returns whether the MEDIA_CODEC engine records audio
+     * @return
+     */
+    public boolean encoderAudio() {
+        return _encoderAudio;
+    }
+
+    /**
+     * sets whether the capture quality is governed by battery, temperature and storage speed
+     * @param enable true to enable
+     */
+    public void setGovernor(boolean enable) {
+        _governor = enable;
+
+        // update prefs
+        _editor.putBoolean(PREFS_GOVERNOR, enable);
+        _editor.commit();
+    }
+
+    /**
+     * returns whether the capture quality is governed
+     * @return
+     */
+    boolean governor() {
+        return _governor;
+    }
+
+    /**
+     * sets the cheapest tier the governor may go down to
+     * @param floor the tier
+     */
+    public void setGovernorFloor(QualityGovernor.TIER floor) {
+        _governorFloor = floor;
+
+        // update prefs
+        _editor.putString(PREFS_GOVERNOR_FLOOR, floor.toString());
+        _editor.commit();
+    }
+
+    /**
+     * returns the cheapest tier the governor may go down to
+     * @return
+     */
+    public QualityGovernor.TIER governorFloor() {
+        return _governorFloor;
+    }
+
+    /**
+     * sets whether the preview is scanned for QR codes
+     * @param enable true to enable
+     */
+    public void setQrScan(boolean enable) {
+        _qrScan = enable;
+
+        // update prefs
+        _editor.putBoolean(PREFS_QR_SCAN, enable);
+        _editor.commit();
+    }
+
+    /**
+     * returns whether the preview is scanned for QR codes
+     * @return
+     */
+    boolean qrScan() {
+        return _qrScan;
+    }
+
+    /**
+     * sets what motion in the preview triggers
+     * @param trigger the MOTION_TRIGGER
+     */
+    public void setMotionTrigger(MOTION_TRIGGER trigger) {
+        _motionTrigger = trigger;
+
+        // update prefs
+        _editor.putString(PREFS_MOTION_TRIGGER, trigger.toString());
+        _editor.commit();
+    }
+
+    /**
+     * returns what motion in the preview triggers
+     * @return
+     */
+    MOTION_TRIGGER motionTrigger() {
+        return _motionTrigger;
+    }
+
+    /**
+     * sets whether pictures are taken as an exposure bracketed burst merged into one (hdr)
+     * @param enable true to enable
+     */
+    public void setHdrMode(boolean enable) {
+        _hdrMode = enable;
+
+        // update prefs
+        _editor.putBoolean(PREFS_HDR, enable);
+        _editor.commit();
+    }
+
+    /**
+     * returns whether pictures are taken in hdr
+     * @return
+     */
+    boolean hdrMode() {
+        return _hdrMode;
+    }
+
+    /**
+     * sets whether the single shots of an hdr picture are saved too
+     * @param enable true to save them
+     */
+    public void setHdrKeepOriginals(boolean enable) {
+        _hdrKeepOriginals = enable;
+
+        // update prefs
+        _editor.putBoolean(PREFS_HDR_ORIGINALS, enable);
+        _editor.commit();
+    }
+
+    /**
+     * returns whether the single shots of an hdr picture are saved too
+     * @return
+     */
+    boolean hdrKeepOriginals() {
+        return _hdrKeepOriginals;
+    }
+
+    /**
+     * sets whether pictures are taken as several shots averaged into one (low light)
+     * @param enable true to enable
+     */
+    public void setNightShot(boolean enable) {
+        _nightShot = enable;
+
+        // update prefs
+        _editor.putBoolean(PREFS_NIGHT_SHOT, enable);
+        _editor.commit();
+    }
+
+    /**
+     * returns whether pictures are taken as night shots
+     * @return
+     */
+    boolean nightShot() {
+        return _nightShot;
+    }
+
+    /**
+     * sets when the pictures written by the MediaWriter are forced to flash
+     * @param fsync the MediaWriter.FSYNC policy
+     */
+    public void setFsync(MediaWriter.FSYNC fsync) {
+        _fsync = fsync;
+
+        // update prefs
+        _editor.putString(PREFS_FSYNC, fsync.toString());
+        _editor.commit();
+    }
+
+    /**
+     * returns when the pictures written by the MediaWriter are forced to flash
+     * @return
+     */
+    MediaWriter.FSYNC fsync() {
+        return _fsync;
+    }
+
+    /**
+     * saves the probed camera capabilities
+     * @param fingerprint the firmware the capabilities have been probed on
+     * @param caps the serialized CameraCapabilities
+     */
+    public void setCameraCapabilities(String fingerprint, String caps) {
+        _cameraCapabilities = caps;
+        _cameraCapabilitiesFingerprint = fingerprint;
+
+        // update prefs
+        _editor.putString(PREFS_CAMERA_CAPS, caps);
+        _editor.putString(PREFS_CAMERA_CAPS_FINGERPRINT, fingerprint);
+        _editor.commit();
+    }
+
+    /**
+     * returns the saved camera capabilities
+     * @param fingerprint the current firmware
+     * @return the serialized CameraCapabilities, or null if they've not been probed on this firmware
+     */
+    public String cameraCapabilities(String fingerprint) {
+        if (_cameraCapabilities == null || !fingerprint.equals(_cameraCapabilitiesFingerprint)) {
+            return null;
+        }
+        return _cameraCapabilities;
+    }
 }
@@ -0,0 +1,97 @@
+package valerino.vgcamera;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * AAC encoder pulling mono PCM from the camcorder microphone. timestamps are on the same clock as the preview frames
+ * (SystemClock.uptimeMillis()), so they line up with VideoEncoder's
+ */
+public class AudioEncoder extends MediaEncoder {
+    private static final String MIME = "audio/mp4a-latm";
+    private static final int SAMPLE_RATE = 44100;
+    private static final int BITRATE = 64000;
+
+    /**
+     * PCM read per input buffer, in bytes (1024 16 bit samples, one AAC frame)
+     */
+    private static final int CHUNK_SIZE = 2048;
+
+    private AudioRecord _record = null;
+    private ByteBuffer[] _inputs = null;
+    private long _startUs = 0;
+    private long _samples = 0;
+
+    /**
+     * constructor
+     * @param listener receives the output
+     */
+    public AudioEncoder(OnEncodedFrameListener listener) {
+        super("VGCamera-audio-encoder", listener);
+    }
+
+    @Override
+    protected MediaCodec createCodec() throws Exception {
+        MediaFormat format = MediaFormat.createAudioFormat(MIME, SAMPLE_RATE, 1);
+        format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BITRATE);
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, CHUNK_SIZE);
+        MediaCodec codec = MediaCodec.createEncoderByType(MIME);
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        return codec;
+    }
+
+    @Override
+    protected boolean onStarted(MediaCodec codec) {
+        int size = Math.max(AudioRecord.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT), CHUNK_SIZE * 4);
+        _record = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, SAMPLE_RATE, AudioFormat.CHANNEL_IN_MONO,
+                AudioFormat.ENCODING_PCM_16BIT, size);
+        if (_record.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.e(this.getClass().getName(), "can't open the microphone");
+            _record.release();
+            _record = null;
+            return false;
+        }
+        _inputs = codec.getInputBuffers();
+        _samples = 0;
+        _startUs = SystemClock.uptimeMillis() * 1000;
+        _record.startRecording();
+        return true;
+    }
+
+    @Override
+    protected void onStopped() {
+        _record.stop();
+        _record.release();
+        _record = null;
+    }
+
+    @Override
+    protected long feed() {
+        int idx = _codec.dequeueInputBuffer(DRAIN_TIMEOUT_US);
+        if (idx < 0) {
+            return 0;
+        }
+        ByteBuffer in = _inputs[idx];
+        in.clear();
+        int n = _record.read(in, Math.min(in.capacity(), CHUNK_SIZE));
+        if (n < 0) {
+            Log.e(this.getClass().getName(), "AudioRecord.read() error " + n);
+            n = 0;
+        }
+
+        // timestamp from the samples read so far, mic reads are bursty
+        long pts = _startUs + _samples * 1000000 / SAMPLE_RATE;
+        _samples += n / 2;
+        _codec.queueInputBuffer(idx, 0, n, pts, 0);
+        return 0;
+    }
+}
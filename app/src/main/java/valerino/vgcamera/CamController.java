@@ -1,39 +1,156 @@
 package valerino.vgcamera;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.hardware.Camera;
-import android.location.Criteria;
 import android.location.Location;
-import android.location.LocationManager;
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
-import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 import java.io.File;
-import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * controls the camera, singleton
+ * controls the camera, singleton.
+ * the Camera and the MediaRecorder are owned by the CameraThread: public methods just queue commands there
+ * (results come back on the UI thread), so they can be called from the UI thread without blocking it
  * Created by valerino on 13/09/15.
  */
 public class CamController implements SurfaceHolder.Callback {
-    private Camera _camera = null;
-    private SurfaceView _surfaceView = null;
+    // owned by the camera thread, everything touching them runs there
+    private volatile Camera _camera = null;
+    private final CameraSession _session = new CameraSession(new CameraSession.Configurator() {
+        @Override
+        public void configure(Camera camera, boolean reopened) {
+            configureCamera(camera, reopened);
+        }
+    });
+    private volatile SurfaceView _surfaceView = null;
     private Context _context = null;
     private static CamController _instance = null;
-    private int _savedZoom = 0;
+    private static final int BURST_RING_SLOTS = 3;
+    private static final int ZSL_FRAMES = 8;
+    private static final int ZSL_JPEG_QUALITY = 95;
+    private static final long SURFACE_DESTROYED_TIMEOUT = 3000;
+    private static final long RECORDER_ARM_DELAY = 1000;
+    private static final int[] HDR_EV = {0, -2, 2};
+    private static final long HDR_SETTLE_DELAY = 500;
+    private static final int NIGHT_FRAMES = 4;
+    private static final int START_PATH_COLD = 0;
+    private static final int START_PATH_ARMED = 1;
+    private static final int START_PATH_PRERECORD = 2;
+    private static final int START_PATH_CODEC = 3;
+    private static final String[] START_PATH_NAMES = {"cold", "armed", "pre-record", "codec"};
+    private volatile int _savedZoom = 0;
     private MediaRecorder _mediaRecorder = null;
     private File _tmpVideo = null;
-    private CAM_MODE _mode = CAM_MODE.MODE_PHOTO;
-    private Camera.OnZoomChangeListener _zoomListener = null;
+    private int _segmentIndex = 0;
+    private boolean _recorderArmed = false;
+    private String _armedConfig = null;
+    private int _lastStartPath = START_PATH_COLD;
+    private final int[] _startCount = new int[START_PATH_NAMES.length];
+    private final long[] _startTotal = new long[START_PATH_NAMES.length];
+    private final long[] _startMax = new long[START_PATH_NAMES.length];
+    private PreRecorder _preRecorder = null;
+    private boolean _preRecording = false;
+    private CodecRecorder _codecRecorder = null;
+    private volatile MediaEncoder.OnEncodedFrameListener _encodedFrameListener = null;
+    private volatile OnSegmentListener _segmentListener = null;
+    private volatile CAM_MODE _mode = CAM_MODE.MODE_PHOTO;
+    private final CameraThread _cameraThread;
+    private final ZoomWorker _zoomWorker;
+    private volatile CameraParameters _params = null;
+    private final Handler _handler;
+    private final AtomicInteger _pendingCaptures = new AtomicInteger(0);
+    private final ArrayDeque<CaptureRequest> _captureQueue = new ArrayDeque<>();
+    private CaptureRequest _currentCapture = null;
+    private final NightShot _nightShot = new NightShot();
+    private CaptureRequest _nightRequest = null;
+    private boolean _writerWaiting = false;
+    private byte[][] _nightShots = null;
+    private int _nightIndex = 0;
+    private JpegRing _burstRing = null;
+    private OnBurstListener _burstListener = null;
+    private List<File> _burstFiles = null;
+    private Date _burstStart = null;
+    private int _burstRequested = 0;
+    private int _burstTaken = 0;
+    private int _burstWritesPending = 0;
+    private boolean _burstShooting = false;
+    private boolean _burstWaitingSlot = false;
+    private final HdrMerger _hdrMerger = new HdrMerger();
+    private OnHdrListener _hdrListener = null;
+    private int[] _hdrSteps = null;
+    private byte[][] _hdrShots = null;
+    private int _hdrIndex = 0;
+    private Date _hdrStart = null;
+    private PreviewFrameRing _frameRing = null;
+    private final FramePipeline _pipeline = new FramePipeline();
 
     public enum CAM_MODE {
         MODE_VIDEO,
-        MODE_PHOTO
+        MODE_PHOTO,
+        MODE_BURST,
+        MODE_HDR
+    }
+
+    /**
+     * receives the result of a burst, on the UI thread
+     */
+    public interface OnBurstListener {
+        /**
+         * the burst is over and all its pictures have been written
+         * @param files the pictures saved in the storage folder
+         * @param requested how many pictures were requested
+         */
+        void onBurstCompleted(List<File> files, int requested);
+    }
+
+    /**
+     * receives the result of an hdr capture, on the UI thread
+     */
+    public interface OnHdrListener {
+        /**
+         * the reference shot has been taken (the others are being taken, or merged)
+         * @param thumbnail a thumbnail of the reference shot
+         */
+        void onHdrPreview(Bitmap thumbnail);
+
+        /**
+         * the shots have been merged
+         * @param merged the merged picture in the storage folder, or null on error
+         * @param originals the shots, if saved too
+         */
+        void onHdrCompleted(File merged, List<File> originals);
+    }
+
+    /**
+     * receives the segments of a segmented recording, on the UI thread
+     */
+    public interface OnSegmentListener {
+        /**
+         * a segment has been finalized, recording goes on in the next one
+         * @param segment the segment (temporary file)
+         * @param index index of the segment in the recording
+         */
+        void onSegmentCompleted(File segment, int index);
+
+        /**
+         * the next segment couldn't be started, recording is over (camStopRecord() has nothing to return then)
+         * @param lastSegment the last segment (temporary file)
+         */
+        void onRecordingInterrupted(File lastSegment);
     }
 
     /**
@@ -43,6 +160,11 @@ public class CamController implements SurfaceHolder.Callback {
      */
     protected CamController(Context ctx) {
         _context = ctx;
+
+        // all the camera work (zoom changes included) is serialized on the camera thread
+        _cameraThread = new CameraThread("VGCamera-camera");
+        _handler = _cameraThread.handler();
+        _zoomWorker = new ZoomWorker(_handler);
     }
 
     /**
@@ -73,7 +195,15 @@ public class CamController implements SurfaceHolder.Callback {
      * @param listener an OnZoomChangeListener
      */
     public void setOnZoomChangeListener (Camera.OnZoomChangeListener listener) {
-        _zoomListener = listener;
+        _zoomWorker.setListener(listener);
+    }
+
+    /**
+     * set the listener for the segments of segmented recordings
+     * @param listener an OnSegmentListener
+     */
+    public void setOnSegmentListener(OnSegmentListener listener) {
+        _segmentListener = listener;
     }
 
     /**
@@ -86,7 +216,7 @@ public class CamController implements SurfaceHolder.Callback {
     }
 
     /**
-     * get the camera object
+     * get the camera object (to be used on the camera thread only)
      *
      * @return
      */
@@ -102,382 +232,1925 @@ public class CamController implements SurfaceHolder.Callback {
     }
 
     /**
-     * start the preview
+     * start the preview. the camera stays opened across restarts, it's opened and configured only the first time
+     * (or after a release)
      */
-    synchronized public void startPreview() {
-        Log.d(this.getClass().getName(), "start previewing");
+    public void startPreview() {
+        _cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                doStartPreview();
+            }
+        });
+    }
 
-        // release camera if it's already
-        if (_camera != null) {
-            _camera.release();
+    /**
+     * start the preview, on the camera thread (opening the camera here binds its callbacks to this thread)
+     */
+    private void doStartPreview() {
+        Log.d(this.getClass().getName(), "start previewing");
+        if (_surfaceView == null) {
+            Log.e(this.getClass().getName(), "startPreview(), no surface yet");
+            return;
         }
-        try {
-            _camera = Camera.open();
-            _camera.setPreviewDisplay(_surfaceView.getHolder());
-        } catch (Throwable e) {
-            // error!
-            Log.e(this.getClass().getName(), "Camera.open() / setPreviewDisplay(), _surfaceView=" + _surfaceView, e);
+        boolean reopened = !_session.isOpen();
+        boolean ok = _session.startPreview(_surfaceView.getHolder());
+        _camera = _session.camera();
+        if (!ok) {
             return;
         }
+        doApplyZslMode();
+        doApplyGeoTagging(true);
 
-        // configure camera
-        Camera.Parameters params = _camera.getParameters();
-        params.setPreviewFpsRange(30000, 30000);
-        params.setPreviewSize(640, 360);
-        _camera.setZoomChangeListener(_zoomListener);
-        _camera.setParameters(params);
+        if (reopened) {
+            // restore any previous zoom set
+            if (AppConfiguration.instance(_context).maxZoomMode()) {
+                // zoom to max
+                doSetZoom(_params.maxZoom());
+            }
+            else {
+                // restore
+                doSetZoom(_savedZoom);
+            }
+        }
 
-        // start preview
-        _camera.startPreview();
+        // get ready to record, once the camera settles
+        scheduleArmRecorder();
+    }
 
-        // restore any previous zoom set
-        if (AppConfiguration.instance(_context).maxZoomMode()) {
-            // zoom to max
-            setMaxZoom();
+    /**
+     * configure the camera, called by the session before starting the preview
+     * @param camera the Camera
+     * @param reopened true if the camera has just been opened
+     */
+    private void configureCamera(Camera camera, boolean reopened) {
+        if (reopened || _params == null) {
+            Log.d(this.getClass().getName(), "new camera" + (_params != null ? ", previous parameters " + _params.stats() : ""));
+            _params = new CameraParameters(camera);
+            _zoomWorker.bind(camera, _params);
         }
         else {
-            // restore
-            setZoom(_savedZoom);
+            // someone else (MediaRecorder) touched the parameters
+            _params.invalidate();
         }
+        // negotiated once, then served from the persisted capabilities
+        CameraCapabilities.Config cfg = CameraCapabilities.probe(_context, _params.parameters()).config(AppConfiguration.instance(_context).quality());
+        int[] fps = previewFpsRange();
+        _params.setPreviewFpsRange(fps[0], fps[1]);
+        _params.setPreviewSize(cfg.previewWidth, cfg.previewHeight);
+        _params.commit();
+        camera.setZoomChangeListener(_cameraZoomListener);
     }
 
     /**
-     * stop previewing
+     * the preview fps range for the configured quality, capped by the QualityGovernor tier
+     * @return {min, max}
      */
-    synchronized public void stopPreview() {
-        Log.d(this.getClass().getName(), "stop previewing");
-        if (_camera == null) {
-            return;
-        }
+    private int[] previewFpsRange() {
+        return CameraCapabilities.probe(_context, _params.parameters()).fpsRange(AppConfiguration.instance(_context).quality(),
+                QualityGovernor.instance(_context).tier().maxFps * 1000);
+    }
 
-        // stop the preview
-        _camera.stopPreview();
-        try {
-            _camera.setPreviewDisplay(null);
-        } catch (IOException e) {
-            // error!
-            Log.e(this.getClass().getName(), "setPreviewDisplay/setPreviewTexture()", e);
-        }
+    /**
+     * apply a QualityGovernor tier change: the preview fps now, bitrate and picture size from the next capture
+     */
+    public void applyGovernor() {
+        _cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                if (_camera == null || _mode != CAM_MODE.MODE_PHOTO) {
+                    // the next preview/recording picks it up
+                    return;
+                }
 
-        // release the camera
-        _camera.release();
-        _camera = null;
+                // the armed recorder holds the camera, and its bitrate is stale anyway
+                disarmRecorder();
+                int[] fps = previewFpsRange();
+                _params.setPreviewFpsRange(fps[0], fps[1]);
+                _params.commit();
+                scheduleArmRecorder();
+            }
+        });
     }
 
     /**
-     * reset zoom to 0
+     * installed on the camera: keeps the cached zoom in sync, then lets the zoom worker notify the UI
      */
-    public void resetZoom() {
-        // maxzoom mode disabled
-        AppConfiguration.instance(_context).setMaxZoomMode(false);
+    private final Camera.OnZoomChangeListener _cameraZoomListener = new Camera.OnZoomChangeListener() {
+        @Override
+        public void onZoomChange(int zoomValue, boolean stopped, Camera camera) {
+            if (_params != null) {
+                _params.syncZoom(zoomValue);
+            }
+            _zoomWorker.onCameraZoomChange(zoomValue, stopped);
+        }
+    };
 
-        // reset zoom to 0
-        setZoom(0);
+    /**
+     * get the current zoom level (cached, no binder round-trip)
+     * @return the zoom level, or the saved one if the camera is not opened
+     */
+    public int zoom() {
+        if (_camera == null || _params == null) {
+            return _savedZoom;
+        }
+        return _params.zoom();
     }
 
     /**
-     * set the camera zoom
-     * @param zoomLevel a zoom factor (must be <= camera.zoomMax())
+     * stop previewing (i.e. the surface is going away), the camera stays opened.
+     * waits for the camera thread, the display must be detached before the surface is destroyed
      */
-    synchronized public void setZoom(final int zoomLevel) {
-        // use an async task
-        AsyncTask<Void, Void, Void> t = new AsyncTask<Void, Void, Void>() {
+    public void stopPreview() {
+        _cameraThread.await(new Runnable() {
             @Override
-            protected Void doInBackground(Void... params) {
-                if (_camera == null) {
-                    Log.w(this.getClass().getName(), "camera not yet initialized");
-                    // will be set on surfaceCreated()
-                    saveCurrentZoom(zoomLevel);
-                    return null;
-                }
-                if (zoomLevel == _camera.getParameters().getZoom()) {
-                    // we're already at the desired zoom level
-                    return null;
-                }
-
-                // get parameters and current zoom level
-                Camera.Parameters par = _camera.getParameters();
-                if (zoomLevel <= par.getMaxZoom() && zoomLevel >= 0) {
-                    // set the new zoom factor
-                    if (AppConfiguration.instance(_context).smoothZoom()) {
-                        // zoom smoothly
-                        try {
-                            _camera.startSmoothZoom(zoomLevel);
-                        }
-                        catch (Throwable ex) {
-                            Log.e(this.getClass().getName(), "can't smooth-zoom");
-                        }
-                    }
-                    else {
-                        // zoom normally
-                        par.setZoom(zoomLevel);
-                        _camera.setParameters(par);
-                    }
-                }
-                return null;
+            public void run() {
+                doStopPreview();
             }
+        }, SURFACE_DESTROYED_TIMEOUT);
+    }
+
+    /**
+     * stop previewing, on the camera thread
+     */
+    private void doStopPreview() {
+        Log.d(this.getClass().getName(), "stop previewing");
+        if (_camera == null) {
+            return;
+        }
 
+        // stop the preview
+        disarmRecorder();
+        if (_frameRing != null) {
+            _frameRing.detach();
+        }
+        if (!_preRecording) {
+            // the buffered video would be stale anyway
+            stopPreRecorder();
+        }
+        doApplyGeoTagging(false);
+        _session.detachDisplay();
+    }
+
+    /**
+     * release the camera, on lifecycle exits
+     */
+    public void release() {
+        _cameraThread.post(new Runnable() {
             @Override
-            protected void onPostExecute(Void params) {
-                if (!AppConfiguration.instance(_context).smoothZoom()) {
-                    // manually call the callback if smoothzoom is not enabled
-                    Camera.Parameters par = _camera.getParameters();
-                    _zoomListener.onZoomChange(par.getZoom(), false, _camera);
-                }
+            public void run() {
+                doRelease();
             }
-        };
-
-        // run the task
-        t.execute();
+        });
     }
 
     /**
-     * set zoom to max
+     * release the camera, on the camera thread
      */
-    public void setMaxZoom() {
+    private void doRelease() {
+        Log.d(this.getClass().getName(), "release camera");
         if (_camera == null) {
-            Log.w(this.getClass().getName(), "camera not yet initialized");
             return;
         }
 
-        Camera.Parameters params = _camera.getParameters();
-        setZoom(params.getMaxZoom());
+        // the camera is going away, pending pictures will never come
+        failPendingCaptures(CaptureRequest.STATUS.CANCELED);
+        if (_burstShooting) {
+            burstStopShooting();
+        }
+        if (_mode == CAM_MODE.MODE_HDR) {
+            hdrFailed();
+        }
+        disarmRecorder();
+        if (_frameRing != null) {
+            _frameRing.detach();
+        }
+        if (_preRecording) {
+            // the output is finalized, but nobody will pick it up
+            _preRecording = false;
+            _mode = CAM_MODE.MODE_PHOTO;
+        }
+        if (_codecRecorder != null) {
+            stopCodecRecorder();
+            _mode = CAM_MODE.MODE_PHOTO;
+        }
+        stopPreRecorder();
+        doApplyGeoTagging(false);
+        _zoomWorker.unbind();
+        _session.release();
+        _camera = null;
+        if (_params != null) {
+            Log.d(this.getClass().getName(), "camera parameters " + _params.stats());
+            _params = null;
+        }
+        Log.d(this.getClass().getName(), "recording start latency: " + startStats());
+        Log.d(this.getClass().getName(), "frame analyzers: " + _pipeline.stats());
+        Log.d(this.getClass().getName(), "media writer: " + MediaWriter.instance().stats());
+        Log.d(this.getClass().getName(), "buffer pool: " + BufferPool.instance().stats());
+        for (Throwable t : BufferPool.instance().checkLeaks()) {
+            Log.w(this.getClass().getName(), t.getMessage(), t);
+        }
+    }
+
+    /**
+     * react to memory pressure: drop the capture buffers and release the camera if it's idle
+     * @param level the level from ComponentCallbacks2.onTrimMemory()
+     */
+    public void onTrimMemory(final int level) {
+        _cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                doTrimMemory(level);
+            }
+        });
     }
 
     /**
-     * zoom the image IN
+     * react to memory pressure, on the camera thread
+     * @param level the level from ComponentCallbacks2.onTrimMemory()
      */
-    public void zoomIn() {
-        if (_camera == null) {
-            Log.w(this.getClass().getName(), "camera not yet initialized");
+    private void doTrimMemory(int level) {
+        if (_session.isPreviewing() || pendingCaptures() > 0 || _mode != CAM_MODE.MODE_PHOTO) {
+            // busy
             return;
         }
+        disarmRecorder();
+        if (_session.onTrimMemory(level)) {
+            _zoomWorker.unbind();
+            _camera = null;
+            _params = null;
+            if (_frameRing != null) {
+                _frameRing.detach();
+                _frameRing = null;
+            }
+            stopPreRecorder();
+        }
 
-        // maxzoom mode disabled
-        AppConfiguration.instance(_context).setMaxZoomMode(false);
-
-        // get parameters and current cam_menu factor
-        Camera.Parameters params = _camera.getParameters();
-        int zoom = params.getZoom();
+        // kept buffers are just a cache
+        BufferPool.instance().trim();
+    }
 
-        // set new zoom factor
-        zoom += 10;
-        setZoom(zoom);
+    /**
+     * start/stop collecting preview frames for zero shutter lag pictures, pre-recording and the analyzers, as configured
+     */
+    public void applyZslMode() {
+        _cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                doApplyZslMode();
+            }
+        });
     }
 
     /**
-     * zoom the image OUT
+     * start/stop collecting preview frames, on the camera thread
      */
-    public void zoomOut() {
+    private void doApplyZslMode() {
         if (_camera == null) {
-            Log.w(this.getClass().getName(), "camera not yet initialized");
             return;
         }
 
-        // maxzoom mode disabled
-        AppConfiguration.instance(_context).setMaxZoomMode(false);
+        if (_preRecording || _codecRecorder != null) {
+            // an encoder is feeding a recording, changes apply from the next preview
+            return;
+        }
+
+        // an armed recorder holds the camera, and doesn't mix with preview callbacks
+        disarmRecorder();
+        AppConfiguration cfg = AppConfiguration.instance(_context);
+        boolean zsl = cfg.zslMode();
+        boolean preRecord = cfg.preRecord();
+        if (!zsl && !preRecord && _pipeline.isEmpty()) {
+            if (_frameRing != null) {
+                _frameRing.detach();
+                _frameRing = null;
+            }
+            return;
+        }
 
-        // get parameters and current cam_menu factor
-        Camera.Parameters params = _camera.getParameters();
-        int zoom = params.getZoom();
+        // the pre-recorder and the analyzers just look at the frames, the ring keeps them only for zsl
+        Camera.Size size = _params.previewSize();
+        int frames = zsl ? ZSL_FRAMES : 0;
+        if (_frameRing == null || _frameRing.width() != size.width || _frameRing.height() != size.height ||
+                _frameRing.frames() != frames) {
+            if (_frameRing != null) {
+                _frameRing.detach();
+            }
+            _frameRing = new PreviewFrameRing(frames, size.width, size.height);
+        }
+        if (!preRecord || (_preRecorder != null && (_preRecorder.width() != size.width || _preRecorder.height() != size.height))) {
+            stopPreRecorder();
+        }
+        if (preRecord && _preRecorder == null) {
+            startPreRecorder(size);
+        }
+        updateFrameListeners();
+        _frameRing.attach(_camera);
+    }
 
-        // set new zoom factor
-        zoom -= 10;
-        setZoom(zoom);
+    /**
+     * hand the preview frames to the running encoder (if any) first, then to the analyzers
+     */
+    private void updateFrameListeners() {
+        if (_frameRing == null) {
+            return;
+        }
+        PreviewFrameRing.OnFrameListener encoder = (_codecRecorder != null ? _codecRecorder.frameListener() : _preRecorder);
+        _pipeline.setFrameSize(_frameRing.width(), _frameRing.height());
+        _frameRing.setOnFrameListeners(encoder, _pipeline.isEmpty() ? null : _pipeline);
     }
 
     /**
-     * get location (uses paired device)
-     * @return Location or null if it's not able to get a fix
+     * register a FrameAnalyzer, fed with preview frames in background while previewing
+     * @param analyzer the FrameAnalyzer
+     * @param fps how many frames per second it wants, at most (frames are dropped, never queued, when it's late)
      */
-    private Location getLocation() {
-        Location result = null;
-        LocationManager locationManager;
-        Criteria locationCriteria;
-        List<String> providers;
-
-        locationManager = (LocationManager)_context.getSystemService(Context.LOCATION_SERVICE);
-        locationCriteria = new Criteria();
-        locationCriteria.setAccuracy(Criteria.NO_REQUIREMENT);
-        providers = locationManager.getProviders(locationCriteria, true);
-
-        // get location with best accuracy
-        for (String provider : providers) {
-            Location location = locationManager.getLastKnownLocation(provider);
-            if (result == null) {
-                result = location;
-            }
-            else if (result.getAccuracy() == 0.0) {
-                if (location.getAccuracy() != 0.0) {
-                    result = location;
-                    break;
+    public void addFrameAnalyzer(final FrameAnalyzer analyzer, final int fps) {
+        _cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                _pipeline.add(analyzer, fps);
+                if (_frameRing != null) {
+                    updateFrameListeners();
                 } else {
-                    if (result.getAccuracy() > location.getAccuracy()) {
-                        result = location;
-                    }
+                    doApplyZslMode();
                 }
             }
-        }
+        });
+    }
 
-        return result;
+    /**
+     * unregister a FrameAnalyzer
+     * @param analyzer the FrameAnalyzer
+     */
+    public void removeFrameAnalyzer(final FrameAnalyzer analyzer) {
+        _cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                _pipeline.remove(analyzer);
+                updateFrameListeners();
+                if (_pipeline.isEmpty()) {
+                    // the ring may not be needed anymore
+                    doApplyZslMode();
+                }
+            }
+        });
     }
 
     /**
-     * starts the videorecorder
-     * @return boolean true if start is successful
+     * start encoding the preview into the pre-record buffer
+     * @param size the preview size
      */
-    public boolean camStartRecord() {
-        if (_camera == null) {
-            Log.w(this.getClass().getName(), "camera not yet initialized");
-            return false;
+    private void startPreRecorder(Camera.Size size) {
+        AppConfiguration cfg = AppConfiguration.instance(_context);
+        int fps = previewFpsRange()[1] / 1000;
+        fps = Math.max(fps, 1);
+        PreRecorder pr = new PreRecorder(new EncoderConfig(size.width, size.height, fps, 0, 1, false), cfg.preRecordSeconds(), cfg.preRecordBudget());
+        if (!pr.start()) {
+            Log.e(this.getClass().getName(), "can't start pre-recording");
+            return;
         }
-        // initialize a mediarecorder
-        _mediaRecorder = new MediaRecorder();
+        _preRecorder = pr;
+    }
 
-        // set quality
-        CamcorderProfile profile;
-        if (AppConfiguration.instance(_context).quality() == AppConfiguration.QUALITY.HIGH) {
-            profile = CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
-        }
-        else {
-            profile = CamcorderProfile.get(CamcorderProfile.QUALITY_LOW);
+    /**
+     * stop encoding the preview, dropping the pre-record buffer
+     */
+    private void stopPreRecorder() {
+        if (_preRecorder == null) {
+            return;
         }
+        PreRecorder pr = _preRecorder;
+        _preRecorder = null;
+        updateFrameListeners();
+        pr.stop();
+    }
 
-        /// setup source
-        _mediaRecorder.setCamera(_camera);
-        _camera.stopPreview();
-        _camera.unlock();
-        _mediaRecorder.setAudioSource(MediaRecorder.AudioSource.DEFAULT);
-        _mediaRecorder.setVideoSource(MediaRecorder.VideoSource.DEFAULT);
-        _mediaRecorder.setProfile(profile);
-
-        // set display
-        _mediaRecorder.setPreviewDisplay(_surfaceView.getHolder().getSurface());
-        if (AppConfiguration.instance(_context).geoTagging()) {
-            // get the last location first
-            Location loc = getLocation();
-            if (loc != null) {
-                _mediaRecorder.setLocation((float) loc.getLatitude(), (float) loc.getLongitude());
+    /**
+     * serve a picture request with a preview frame, encoding it in background
+     * @param req the request
+     * @param frame the frame nearest to the shutter press
+     */
+    private void zslCapture(final CaptureRequest req, final PreviewFrameRing.Frame frame) {
+        final PreviewFrameRing ring = _frameRing;
+        Log.d(this.getClass().getName(), "zsl picture, frame is " + (frame.timestamp - req.timestamp()) + "ms from the shutter");
+        Future<Void> task = TaskScheduler.instance().submit(TaskScheduler.LANE.CAPTURE, new Runnable() {
+            @Override
+            public void run() {
+                final File f = Utils.getTempMediaFile(_context, CAM_MODE.MODE_PHOTO);
+                final boolean ok = Utils.nv21ToJpegFile(frame.data, ring.width(), ring.height(), ZSL_JPEG_QUALITY, f);
+                ring.release(frame);
+                _handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!ok) {
+                            req.fail(CaptureRequest.STATUS.FAILED);
+                        }
+                        else if (!req.complete(f)) {
+                            // canceled meanwhile
+                            f.delete();
+                        }
+                        req.released();
+                    }
+                });
             }
+        });
+        if (task == null) {
+            // encoder lane full
+            ring.release(frame);
+            req.fail(CaptureRequest.STATUS.FAILED);
+            req.released();
         }
+    }
 
-        // set temp file
-        _tmpVideo = Utils.getTempMediaFile(_context, CAM_MODE.MODE_VIDEO);
-        _mediaRecorder.setOutputFile(_tmpVideo.getAbsolutePath());
-        try {
-            _mediaRecorder.prepare();
-        } catch (IOException e) {
-            Log.d(this.getClass().getName(), "mediaRecorder.prepare()", e);
-            camStopRecord(true);
-            return false;
-        }
+    /**
+     * reset zoom to 0
+     */
+    public void resetZoom() {
+        // maxzoom mode disabled
+        AppConfiguration.instance(_context).setMaxZoomMode(false);
 
-        // start
-        _mediaRecorder.start();
-        _mode = CAM_MODE.MODE_VIDEO;
-        return true;
+        // reset zoom to 0
+        setZoom(0);
     }
 
     /**
-     * stops the videorecorder
-     * @param deleteFile true to delete the captured file
-     * @return path to the temporary file
+     * set the camera zoom. requests are coalesced, only the latest one not yet applied is kept
+     * @param zoomLevel a zoom factor (must be <= camera.zoomMax())
      */
-    public File camStopRecord(boolean deleteFile) {
-        if (_mediaRecorder == null) {
-            return null;
-        }
-        // release the recorder's resources and restart the normal preview
-        _mediaRecorder.stop();
-        _mediaRecorder.reset();
-        _mediaRecorder.release();
-        _mediaRecorder = null;
-
-        if (_tmpVideo != null) {
-            if (deleteFile) {
-                // just delete the captured file
-                _tmpVideo.delete();
-                _tmpVideo = null;
+    public void setZoom(final int zoomLevel) {
+        _cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                doSetZoom(zoomLevel);
             }
-        }
-
-        // and return the captured media
-        File f = _tmpVideo;
-        _tmpVideo = null;
-        _mode = CAM_MODE.MODE_PHOTO;
-        return f;
+        });
     }
 
     /**
-     * takes a picture
-     * @return path to the temporary file created (the taken picture)
+     * set the camera zoom, on the camera thread
+     * @param zoomLevel a zoom factor
      */
-    public File camTakePicture() {
+    private void doSetZoom(int zoomLevel) {
         if (_camera == null) {
             Log.w(this.getClass().getName(), "camera not yet initialized");
-            return null;
-        }
-
-        // prepare the camera
-        Camera.Parameters params = _camera.getParameters();
-        if (AppConfiguration.instance(_context).quality() == AppConfiguration.QUALITY.HIGH) {
-            // high quality
-            params.setPictureSize(2592, 1944);
-        }
-        else {
-            // low quality
-            params.setPictureSize(1296, 972);
+            // will be set on surfaceCreated()
+            saveCurrentZoom(zoomLevel);
+            return;
         }
 
-        if (AppConfiguration.instance(_context).geoTagging()) {
-            // get the last location first
-            Location loc = getLocation();
-            if (loc != null) {
-                // update camera parameters
-                params.setGpsAltitude(loc.getAltitude());
-                params.setGpsLongitude(loc.getLongitude());
-                params.setGpsLatitude(loc.getLatitude());
-                params.setGpsTimestamp(loc.getTime());
-                params.setGpsProcessingMethod(loc.getProvider());
-            }
-            else {
-                Log.w(this.getClass().getName(), "can't get location");
-            }
-        }
-        _camera.setParameters(params);
+        // the camera must be ours to zoom, rearm once the zoom settles
+        disarmRecorder();
+        _zoomWorker.setZoom(zoomLevel, AppConfiguration.instance(_context).smoothZoom());
+        scheduleArmRecorder();
+    }
 
-        // take the picture
-        final Object obj = new Object();
-        final File[] tmpImage = {null};
-        _camera.takePicture(null, null, new Camera.PictureCallback() {
+    /**
+     * set zoom to max
+     */
+    public void setMaxZoom() {
+        _cameraThread.post(new Runnable() {
             @Override
-            public void onPictureTaken(byte[] bytes, Camera camera) {
-                // save a temporary image
-                File f = Utils.getTempMediaFile(_context, CAM_MODE.MODE_PHOTO);
-                f = Utils.bufferToFile(bytes, f.getAbsolutePath());
-                tmpImage[0] = f;
-                if (f == null) {
-                    Log.e(this.getClass().getName(), "can't create temporary file for picture");
-                }
-                // notify
-                synchronized (obj) {
-                    obj.notify();
+            public void run() {
+                if (_camera == null) {
+                    Log.w(CamController.class.getName(), "camera not yet initialized");
+                    return;
                 }
+                doSetZoom(_params.maxZoom());
             }
         });
+    }
 
-        // wait for the callback
-        synchronized (obj) {
-            try {
-                obj.wait();
-            } catch (InterruptedException e) {
+    /**
+     * zoom the image IN
+     */
+    public void zoomIn() {
+        zoomStep(10);
+    }
 
-            }
+    /**
+     * zoom the image OUT
+     */
+    public void zoomOut() {
+        zoomStep(-10);
+    }
+
+    /**
+     * zoom in or out by a step
+     * @param step zoom levels to add (negative to zoom out)
+     */
+    private void zoomStep(final int step) {
+        // maxzoom mode disabled
+        AppConfiguration.instance(_context).setMaxZoomMode(false);
+
+        _cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                if (_camera == null) {
+                    Log.w(CamController.class.getName(), "camera not yet initialized");
+                    return;
+                }
+
+                // step from the last requested zoom factor, so rapid swipes add up
+                int zoom = _zoomWorker.lastRequested(_params.zoom()) + step;
+
+                // set new zoom factor
+                zoom = Math.max(0, Math.min(zoom, _params.maxZoom()));
+                doSetZoom(zoom);
+            }
+        });
+    }
+
+    /**
+     * start/stop the location subscription, as configured. it runs only while the preview is active
+     */
+    public void applyGeoTagging() {
+        _cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                doApplyGeoTagging(_camera != null && _session.hasDisplay());
+            }
+        });
+    }
+
+    /**
+     * start/stop the location subscription, on the camera thread
+     * @param active true if the preview is active
+     */
+    private void doApplyGeoTagging(boolean active) {
+        if (active && AppConfiguration.instance(_context).geoTagging()) {
+            LocationCache.instance(_context).start();
+        }
+        else {
+            LocationCache.instance(_context).stop();
+        }
+    }
+
+    /**
+     * get the cached location (no provider query)
+     * @return Location or null if there's no fix recent/accurate enough
+     */
+    private Location getLocation() {
+        Location loc = LocationCache.instance(_context).get(_context);
+        if (loc == null) {
+            Log.w(this.getClass().getName(), "no location fix satisfying the staleness policy");
+        }
+        return loc;
+    }
+
+    /**
+     * starts the videorecorder
+     * @param callback receives true if start is successful, may be null
+     */
+    public void camStartRecord(CameraThread.Callback<Boolean> callback) {
+        camStartRecord(false, callback);
+    }
+
+    /**
+     * starts the videorecorder
+     * @param keepFrames true if the frame analyzers must keep seeing the preview while recording (i.e. to stop on
+     *                   them): the MediaRecorder engine takes the camera away, so the codec engine is used then
+     * @param callback receives true if start is successful, may be null
+     */
+    public void camStartRecord(final boolean keepFrames, CameraThread.Callback<Boolean> callback) {
+        final long requested = SystemClock.uptimeMillis();
+        _cameraThread.submit(new CameraThread.Command<Boolean>() {
+            @Override
+            public Boolean run() {
+                long begin = SystemClock.uptimeMillis();
+                boolean ok = doStartRecord(keepFrames);
+                if (ok) {
+                    long end = SystemClock.uptimeMillis();
+                    trackStartLatency(_lastStartPath, end - requested);
+                    Log.d(CamController.class.getName(), "recording started (" + START_PATH_NAMES[_lastStartPath] +
+                            " path): " + (end - begin) + "ms on the camera thread, " + (end - requested) + "ms since the request");
+                }
+                return ok;
+            }
+        }, callback);
+    }
+
+    /**
+     * account a recording start
+     * @param path one of the START_PATH_* constants
+     * @param millis time from the request to the recorder running
+     */
+    private void trackStartLatency(int path, long millis) {
+        _startCount[path]++;
+        _startTotal[path] += millis;
+        _startMax[path] = Math.max(_startMax[path], millis);
+    }
+
+    /**
+     * recording start latency counters, for logging
+     * @return
+     */
+    private String startStats() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < START_PATH_NAMES.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(START_PATH_NAMES[i]).append("=").append(_startCount[i]);
+            if (_startCount[i] > 0) {
+                sb.append(" (avg ").append(_startTotal[i] / _startCount[i]).append("ms, max ").append(_startMax[i]).append("ms)");
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * starts the videorecorder, on the camera thread
+     * @param keepFrames true to use only the engines which keep feeding the frame analyzers
+     * @return boolean true if start is successful
+     */
+    private boolean doStartRecord(boolean keepFrames) {
+        if (_camera == null) {
+            Log.w(this.getClass().getName(), "camera not yet initialized");
+            return false;
+        }
+        if (_mode != CAM_MODE.MODE_PHOTO) {
+            Log.w(this.getClass().getName(), "can't record now, mode=" + _mode);
+            return false;
+        }
+
+        if (startPreRecordOutput()) {
+            // the buffered seconds plus the live preview stream, the camera is untouched
+            _lastStartPath = START_PATH_PRERECORD;
+            _mode = CAM_MODE.MODE_VIDEO;
+            return true;
+        }
+        if (keepFrames || AppConfiguration.instance(_context).engine() == AppConfiguration.ENGINE.MEDIA_CODEC) {
+            disarmRecorder();
+            if (startCodecRecorder()) {
+                _lastStartPath = START_PATH_CODEC;
+                _mode = CAM_MODE.MODE_VIDEO;
+                return true;
+            }
+            if (keepFrames) {
+                // the MediaRecorder would blind the analyzers
+                Log.w(this.getClass().getName(), "codec engine failed, can't record keeping the frames");
+                return false;
+            }
+            Log.w(this.getClass().getName(), "codec engine failed, falling back to MediaRecorder");
+        }
+
+        // the recorder changes the camera configuration, redo it on the next preview
+        _session.invalidate();
+        _segmentIndex = 0;
+        if (startArmedRecorder()) {
+            // just start() was needed
+            _lastStartPath = START_PATH_ARMED;
+            _session.markPreviewStopped();
+            _mode = CAM_MODE.MODE_VIDEO;
+            return true;
+        }
+
+        /// setup source
+        _lastStartPath = START_PATH_COLD;
+        _session.stopPreview();
+        if (!startRecorder()) {
+            relockCamera();
+            return false;
+        }
+        _mode = CAM_MODE.MODE_VIDEO;
+        return true;
+    }
+
+    /**
+     * start recording from the pre-recorder, if it's running
+     * @return false if there's no pre-recorder
+     */
+    private boolean startPreRecordOutput() {
+        if (_preRecorder == null) {
+            return false;
+        }
+        File f = Utils.getTempMediaFile(_context, CAM_MODE.MODE_VIDEO);
+        if (!_preRecorder.startOutput(f)) {
+            return false;
+        }
+        _preRecording = true;
+        return true;
+    }
+
+    /**
+     * start recording the preview frames with the MediaCodec engine, the preview is switched to the video size
+     * @return false on error
+     */
+    private boolean startCodecRecorder() {
+        AppConfiguration cfg = AppConfiguration.instance(_context);
+        int[] size = CameraCapabilities.probe(_context, _params.parameters()).nearestPreviewSize(cfg.encoderWidth(), cfg.encoderHeight());
+        stopPreRecorder();
+        Camera.Size cur = _params.previewSize();
+        if (cur.width != size[0] || cur.height != size[1]) {
+            // the frames are encoded as they come, so the preview must be at the video size
+            if (_frameRing != null) {
+                _frameRing.detach();
+                _frameRing = null;
+            }
+            _session.stopPreview();
+            try {
+                _params.setPreviewSize(size[0], size[1]);
+                _params.commit();
+            }
+            catch (Throwable e) {
+                Log.e(this.getClass().getName(), "setParameters() for the codec recorder", e);
+                return false;
+            }
+            finally {
+                _session.resumePreview();
+            }
+        }
+
+        // back to the configured preview on the next startPreview()
+        _session.invalidate();
+        if (_frameRing == null) {
+            _frameRing = new PreviewFrameRing(0, size[0], size[1]);
+        }
+
+        CodecRecorder rec = new CodecRecorder(EncoderConfig.fromConfiguration(_context, size[0], size[1]));
+        rec.setOnEncodedFrameListener(_encodedFrameListener);
+        File f = Utils.getTempMediaFile(_context, CAM_MODE.MODE_VIDEO);
+        if (!rec.start(f, cfg.geoTagging() ? getLocation() : null)) {
+            return false;
+        }
+        _codecRecorder = rec;
+        updateFrameListeners();
+        _frameRing.attach(_camera);
+        return true;
+    }
+
+    /**
+     * stop the MediaCodec engine recording
+     * @return the video, or null
+     */
+    private File stopCodecRecorder() {
+        CodecRecorder rec = _codecRecorder;
+        _codecRecorder = null;
+        updateFrameListeners();
+        return rec.stop();
+    }
+
+    /**
+     * set a listener which sees the encoded frames (video and audio) of the recordings made with the MEDIA_CODEC
+     * engine, i.e. for other pipeline stages. called on the encoder threads, applies from the next recording
+     * @param listener a MediaEncoder.OnEncodedFrameListener, or null
+     */
+    public void setOnEncodedFrameListener(MediaEncoder.OnEncodedFrameListener listener) {
+        _encodedFrameListener = listener;
+    }
+
+    /**
+     * the recorder settings, to check if an armed recorder is still good
+     * @return
+     */
+    private String recorderConfig() {
+        AppConfiguration cfg = AppConfiguration.instance(_context);
+        return cfg.quality() + "," + QualityGovernor.instance(_context).tier() + "," + cfg.segmentedRecording() + "," + cfg.segmentDuration() + "," +
+                cfg.segmentMaxSize() + "," + cfg.geoTagging();
+    }
+
+    /**
+     * start the armed recorder, if any
+     * @return false if there's no armed recorder (or it's stale, or it failed), the camera is ours again then
+     */
+    private boolean startArmedRecorder() {
+        _handler.removeCallbacks(_armRecorder);
+        if (!_recorderArmed) {
+            return false;
+        }
+        _recorderArmed = false;
+        if (!recorderConfig().equals(_armedConfig)) {
+            Log.d(this.getClass().getName(), "settings changed since arming, rebuilding the recorder");
+            discardRecorder();
+            relockCamera();
+            return false;
+        }
+        try {
+            _mediaRecorder.start();
+        } catch (Throwable e) {
+            Log.e(this.getClass().getName(), "armed mediaRecorder.start()", e);
+            discardRecorder();
+            relockCamera();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * arm the recorder after a while, if the recording-ready mode is on (any pending arm is postponed)
+     */
+    private void scheduleArmRecorder() {
+        _handler.removeCallbacks(_armRecorder);
+        if (AppConfiguration.instance(_context).recordReady()) {
+            _handler.postDelayed(_armRecorder, RECORDER_ARM_DELAY);
+        }
+    }
+
+    /**
+     * prepares the recorder in advance, so starting a recording is just start()
+     */
+    private final Runnable _armRecorder = new Runnable() {
+        @Override
+        public void run() {
+            armRecorder();
+        }
+    };
+
+    /**
+     * prepare the next recorder while idle in preview. the prepared recorder holds the (unlocked) camera, so
+     * anything else needing the camera disarms it first
+     */
+    private void armRecorder() {
+        AppConfiguration cfg = AppConfiguration.instance(_context);
+        if (_recorderArmed || !cfg.recordReady() || cfg.engine() != AppConfiguration.ENGINE.MEDIA_RECORDER) {
+            return;
+        }
+        if (_camera == null || _mode != CAM_MODE.MODE_PHOTO || !_session.isPreviewing() || _frameRing != null ||
+                pendingCaptures() > 0) {
+            // not idle, or collecting preview frames
+            return;
+        }
+        if (!_zoomWorker.isIdle()) {
+            // wait for the zoom to settle
+            scheduleArmRecorder();
+            return;
+        }
+        if (!prepareRecorder()) {
+            relockCamera();
+            return;
+        }
+        _recorderArmed = true;
+        _armedConfig = recorderConfig();
+        Log.d(this.getClass().getName(), "recorder armed: " + _tmpVideo.getAbsolutePath());
+    }
+
+    /**
+     * drop the armed recorder (if any) and take back the camera
+     */
+    private void disarmRecorder() {
+        _handler.removeCallbacks(_armRecorder);
+        if (!_recorderArmed) {
+            return;
+        }
+        Log.d(this.getClass().getName(), "disarming recorder");
+        _recorderArmed = false;
+        discardRecorder();
+        relockCamera();
+    }
+
+    /**
+     * start/stop keeping a prepared recorder, as configured
+     */
+    public void applyRecordReady() {
+        _cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                AppConfiguration cfg = AppConfiguration.instance(_context);
+                if (cfg.recordReady() && cfg.engine() == AppConfiguration.ENGINE.MEDIA_RECORDER) {
+                    scheduleArmRecorder();
+                }
+                else {
+                    disarmRecorder();
+                }
+            }
+        });
+    }
+
+    /**
+     * hand the camera to a new recorder and start recording to a new temporary file
+     * @return true on success
+     */
+    private boolean startRecorder() {
+        if (!prepareRecorder()) {
+            return false;
+        }
+        try {
+            _mediaRecorder.start();
+        } catch (Throwable e) {
+            Log.e(this.getClass().getName(), "mediaRecorder.start()", e);
+            discardRecorder();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * hand the camera to a new recorder, ready to record to a new temporary file
+     * @return true on success
+     */
+    private boolean prepareRecorder() {
+        // set quality
+        CamcorderProfile profile;
+        if (AppConfiguration.instance(_context).quality() == AppConfiguration.QUALITY.HIGH) {
+            profile = CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
+        }
+        else {
+            profile = CamcorderProfile.get(CamcorderProfile.QUALITY_LOW);
+        }
+
+        // scaled down to the governed tier
+        QualityGovernor.TIER tier = QualityGovernor.instance(_context).tier();
+        profile.videoBitRate = (int)(profile.videoBitRate * tier.bitrateScale);
+        profile.videoFrameRate = Math.min(profile.videoFrameRate, tier.maxFps);
+
+        // initialize a mediarecorder
+        _tmpVideo = Utils.getTempMediaFile(_context, CAM_MODE.MODE_VIDEO);
+        _mediaRecorder = new MediaRecorder();
+        try {
+            _camera.unlock();
+            _mediaRecorder.setCamera(_camera);
+            _mediaRecorder.setAudioSource(MediaRecorder.AudioSource.DEFAULT);
+            _mediaRecorder.setVideoSource(MediaRecorder.VideoSource.DEFAULT);
+            _mediaRecorder.setProfile(profile);
+
+            // set display
+            _mediaRecorder.setPreviewDisplay(_surfaceView.getHolder().getSurface());
+            if (AppConfiguration.instance(_context).geoTagging()) {
+                // get the cached location
+                Location loc = getLocation();
+                if (loc != null) {
+                    _mediaRecorder.setLocation((float) loc.getLatitude(), (float) loc.getLongitude());
+                }
+            }
+
+            if (AppConfiguration.instance(_context).segmentedRecording()) {
+                // the recorder stops by itself at the limits, then we roll over to the next segment
+                _mediaRecorder.setMaxDuration((int)AppConfiguration.instance(_context).segmentDuration());
+                _mediaRecorder.setMaxFileSize(AppConfiguration.instance(_context).segmentMaxSize());
+                _mediaRecorder.setOnInfoListener(_recorderInfoListener);
+            }
+
+            // set temp file
+            _mediaRecorder.setOutputFile(_tmpVideo.getAbsolutePath());
+            _mediaRecorder.prepare();
+        } catch (Throwable e) {
+            Log.e(this.getClass().getName(), "can't prepare the mediaRecorder", e);
+            discardRecorder();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * release a recorder which is not recording, deleting its file
+     */
+    private void discardRecorder() {
+        if (_mediaRecorder != null) {
+            _mediaRecorder.reset();
+            _mediaRecorder.release();
+            _mediaRecorder = null;
+        }
+        if (_tmpVideo != null) {
+            _tmpVideo.delete();
+            _tmpVideo = null;
+        }
+    }
+
+    /**
+     * take back the camera from the recorder
+     */
+    private void relockCamera() {
+        if (_camera != null) {
+            try {
+                _camera.lock();
+            }
+            catch (Throwable e) {
+                Log.e(this.getClass().getName(), "camera.lock()", e);
+            }
+        }
+    }
+
+    /**
+     * receives the recorder limits events (segmented recording), on the camera thread
+     */
+    private final MediaRecorder.OnInfoListener _recorderInfoListener = new MediaRecorder.OnInfoListener() {
+        @Override
+        public void onInfo(MediaRecorder mr, int what, int extra) {
+            if (mr != _mediaRecorder) {
+                return;
+            }
+            if (what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_DURATION_REACHED ||
+                    what == MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED) {
+                rollover();
+            }
+        }
+    };
+
+    /**
+     * the current segment reached its limit (the recorder already stopped): hand it over and start the next one.
+     * MediaRecorder on API 19 can't switch output file while running, so there's a short gap between segments
+     */
+    private void rollover() {
+        // finalize the segment
+        final File segment = _tmpVideo;
+        final int index = _segmentIndex;
+        _mediaRecorder.reset();
+        _mediaRecorder.release();
+        _mediaRecorder = null;
+        _tmpVideo = null;
+        Log.d(this.getClass().getName(), "segment " + index + " completed: " + segment.getAbsolutePath());
+
+        final OnSegmentListener l = _segmentListener;
+        if (_camera != null && startRecorder()) {
+            _segmentIndex++;
+            if (l != null) {
+                _cameraThread.postToUi(new Runnable() {
+                    @Override
+                    public void run() {
+                        l.onSegmentCompleted(segment, index);
+                    }
+                });
+            }
+            return;
+        }
+
+        // can't go on, the segment is the last one
+        Log.e(this.getClass().getName(), "can't start segment " + (index + 1) + ", recording interrupted");
+        relockCamera();
+        _mode = CAM_MODE.MODE_PHOTO;
+        if (l != null) {
+            _cameraThread.postToUi(new Runnable() {
+                @Override
+                public void run() {
+                    l.onRecordingInterrupted(segment);
+                }
+            });
+        }
+    }
+
+    /**
+     * stops the videorecorder
+     * @param deleteFile true to delete the captured file
+     * @param callback receives the path to the temporary file (or null), may be null
+     */
+    public void camStopRecord(final boolean deleteFile, CameraThread.Callback<File> callback) {
+        _cameraThread.submit(new CameraThread.Command<File>() {
+            @Override
+            public File run() {
+                return doStopRecord(deleteFile);
+            }
+        }, callback);
+    }
+
+    /**
+     * stops the videorecorder, on the camera thread
+     * @param deleteFile true to delete the captured file
+     * @return path to the temporary file
+     */
+    private File doStopRecord(boolean deleteFile) {
+        if (_codecRecorder != null) {
+            _mode = CAM_MODE.MODE_PHOTO;
+            File f = stopCodecRecorder();
+            if (f != null && deleteFile) {
+                f.delete();
+                f = null;
+            }
+            return f;
+        }
+        if (_preRecording) {
+            // the encoder keeps buffering for the next one
+            _preRecording = false;
+            _mode = CAM_MODE.MODE_PHOTO;
+            File f = _preRecorder.stopOutput();
+            Log.d(this.getClass().getName(), "pre-recorder " + _preRecorder.stats());
+            if (f != null && deleteFile) {
+                f.delete();
+                f = null;
+            }
+            return f;
+        }
+        if (_recorderArmed) {
+            // prepared, never started
+            disarmRecorder();
+            return null;
+        }
+        if (_mediaRecorder == null) {
+            return null;
+        }
+        // release the recorder's resources and restart the normal preview
+        boolean ok = true;
+        try {
+            _mediaRecorder.stop();
+        }
+        catch (RuntimeException e) {
+            // stopped right after start, no valid data
+            Log.e(this.getClass().getName(), "mediaRecorder.stop()", e);
+            ok = false;
+        }
+        _mediaRecorder.reset();
+        _mediaRecorder.release();
+        _mediaRecorder = null;
+        relockCamera();
+
+        if (_tmpVideo != null) {
+            if (deleteFile || !ok) {
+                // just delete the captured file
+                _tmpVideo.delete();
+                _tmpVideo = null;
+            }
+        }
+
+        // and return the captured media
+        File f = _tmpVideo;
+        _tmpVideo = null;
+        _mode = CAM_MODE.MODE_PHOTO;
+        return f;
+    }
+
+    /**
+     * set the camera parameters for taking pictures (size by quality, geotag), pushing only what changed
+     */
+    private void commitPictureParameters() {
+        // size by quality (as governed), among the supported ones
+        CameraCapabilities.Config cfg = CameraCapabilities.probe(_context, _params.parameters()).config(QualityGovernor.instance(_context).pictureQuality());
+        _params.setPictureSize(cfg.pictureWidth, cfg.pictureHeight);
+
+        Location loc = null;
+        if (AppConfiguration.instance(_context).geoTagging()) {
+            // get the cached location
+            loc = getLocation();
+        }
+        _params.setGps(loc);
+        _params.commit();
+    }
+
+    /**
+     * queue a request to take a picture. requests are served in order, one at a time, and the result
+     * is delivered to the listener on the UI thread
+     * @param timeout time to wait for the camera to deliver each picture, in milliseconds
+     * @param listener an OnCaptureListener, may be null
+     * @return the CaptureRequest handle (can be canceled or waited for)
+     */
+    public CaptureRequest camTakePicture(long timeout, CaptureRequest.OnCaptureListener listener) {
+        return queueCapture(new CaptureRequest(this, timeout, listener));
+    }
+
+    /**
+     * queue a request to take a low light picture: several shots are taken back to back, then aligned and averaged
+     * in background into one picture with less noise. served in order with the other requests, and delivered the
+     * same way as camTakePicture() (the camera is free again once the shots are taken)
+     * @param listener an OnCaptureListener, may be null
+     * @return the CaptureRequest handle (can be canceled or waited for)
+     */
+    public CaptureRequest camTakeNightShot(CaptureRequest.OnCaptureListener listener) {
+        return queueCapture(new CaptureRequest(this, CaptureRequest.DEFAULT_TIMEOUT, NIGHT_FRAMES, listener));
+    }
+
+    /**
+     * keep the shots of each night picture as they are too (to feed NightBenchmark)
+     * @param folder where to save them, or null to stop
+     */
+    public void dumpNightShots(File folder) {
+        _nightShot.dumpShots(folder);
+    }
+
+    /**
+     * queue a picture request on the camera thread
+     * @param req the request
+     * @return req
+     */
+    private CaptureRequest queueCapture(final CaptureRequest req) {
+        _pendingCaptures.incrementAndGet();
+        _cameraThread.post(new Runnable() {
+            @Override
+            public void run() {
+                _captureQueue.add(req);
+                processCaptureQueue();
+            }
+        });
+        return req;
+    }
+
+    /**
+     * queue a request to take a picture, with the default timeout
+     * @param listener an OnCaptureListener, may be null
+     * @return the CaptureRequest handle
+     */
+    public CaptureRequest camTakePicture(CaptureRequest.OnCaptureListener listener) {
+        return camTakePicture(CaptureRequest.DEFAULT_TIMEOUT, listener);
+    }
+
+    /**
+     * number of picture requests queued or in progress
+     * @return
+     */
+    public int pendingCaptures() {
+        return _pendingCaptures.get();
+    }
+
+    /**
+     * called by CaptureRequest once it's done (completed, failed or canceled)
+     * @param req the request
+     */
+    void onCaptureDone(CaptureRequest req) {
+        _pendingCaptures.decrementAndGet();
+    }
+
+    /**
+     * called by CaptureRequest.cancel()
+     * @param req the canceled request
+     */
+    void onCaptureCanceled(final CaptureRequest req) {
+        _handler.post(new Runnable() {
+            @Override
+            public void run() {
+                // a running request keeps the camera (and the timeout) until its picture arrives and is discarded,
+                // the queue is served from there
+                _captureQueue.remove(req);
+            }
+        });
+    }
+
+    /**
+     * fail all the queued/running picture requests (i.e. the camera is going away)
+     * @param status the status to fail the requests with
+     */
+    private void failPendingCaptures(CaptureRequest.STATUS status) {
+        _handler.removeCallbacks(_captureTimeout);
+        _nightRequest = null;
+        _nightShots = null;
+        if (_currentCapture != null) {
+            _currentCapture.fail(status);
+            _currentCapture.released();
+            _currentCapture = null;
+        }
+        while (!_captureQueue.isEmpty()) {
+            _captureQueue.poll().fail(status);
+        }
+    }
+
+    /**
+     * serve the next queued picture request, if the camera is not busy with another one
+     */
+    private void processCaptureQueue() {
+        if (_mode == CAM_MODE.MODE_BURST || _mode == CAM_MODE.MODE_HDR) {
+            // served once the burst is over
+            return;
+        }
+        while (_currentCapture == null && !_captureQueue.isEmpty()) {
+            if (MediaWriter.instance().full()) {
+                // flash is behind, don't pile up more pictures in memory
+                waitForWriter();
+                return;
+            }
+            CaptureRequest req = _captureQueue.poll();
+            if (!req.start()) {
+                // canceled while queued
+                continue;
+            }
+            if (_camera == null) {
+                Log.w(this.getClass().getName(), "camera not yet initialized");
+                req.fail(CaptureRequest.STATUS.FAILED);
+                continue;
+            }
+
+            if (_frameRing != null && _frameRing.frames() > 0 && req.frames() == 1) {
+                // zero shutter lag, use the preview frame nearest to the shutter press (the camera stays free)
+                PreviewFrameRing.Frame frame = _frameRing.acquireNearest(req.timestamp());
+                if (frame != null) {
+                    zslCapture(req, frame);
+                    continue;
+                }
+                Log.w(this.getClass().getName(), "no preview frame available, taking a full picture");
+            }
+
+            // take the picture, the result comes in _pictureCallback
+            disarmRecorder();
+            _currentCapture = req;
+            try {
+                // prepare the camera
+                commitPictureParameters();
+                if (req.frames() > 1) {
+                    _nightRequest = req;
+                    _nightShots = new byte[req.frames()][];
+                    _nightIndex = 0;
+                    _camera.takePicture(null, null, _nightCallback);
+                }
+                else {
+                    _camera.takePicture(null, null, _pictureCallback);
+                }
+                _session.markPreviewStopped();
+            }
+            catch (Throwable e) {
+                Log.e(this.getClass().getName(), "takePicture()", e);
+                _currentCapture = null;
+                _nightRequest = null;
+                _nightShots = null;
+                req.fail(CaptureRequest.STATUS.FAILED);
+                req.released();
+                continue;
+            }
+            _handler.postDelayed(_captureTimeout, req.timeout());
+        }
+    }
+
+    /**
+     * receives the taken pictures for the current request
+     */
+    private final Camera.PictureCallback _pictureCallback = new Camera.PictureCallback() {
+        @Override
+        public void onPictureTaken(byte[] bytes, Camera camera) {
+            _handler.removeCallbacks(_captureTimeout);
+            CaptureRequest req = _currentCapture;
+            _currentCapture = null;
+            boolean dropped = (req == null || req.isDone());
+
+            if (dropped) {
+                // canceled or timed out meanwhile, drop the picture
+                Log.w(CamController.class.getName(), "dropping picture for a canceled/timed out request");
+                if (req != null) {
+                    req.released();
+                }
+            }
+            else if (bytes == null) {
+                Log.e(CamController.class.getName(), "no picture data");
+                req.fail(CaptureRequest.STATUS.FAILED);
+            }
+            else {
+                // written in background, straight to the storage folder if it will end there anyway
+                final CaptureRequest r = req;
+                File dest = AppConfiguration.instance(_context).autoSave() ? Utils.getStorageMediaFile(_context, CAM_MODE.MODE_PHOTO) :
+                        Utils.getTempMediaFile(_context, CAM_MODE.MODE_PHOTO);
+                MediaWriter.instance().write(bytes, bytes.length, dest, new MediaWriter.OnWrittenListener() {
+                    @Override
+                    public void onWritten(File f, boolean ok) {
+                        if (!ok) {
+                            Log.e(CamController.class.getName(), "can't write picture " + f.getAbsolutePath());
+                            r.fail(CaptureRequest.STATUS.FAILED);
+                            return;
+                        }
+                        Log.d(CamController.class.getName(), "camTakePicture() returned " + f.getAbsolutePath());
+                        if (!r.complete(f)) {
+                            f.delete();
+                        }
+                    }
+                });
+            }
+
+            if ((dropped || !_captureQueue.isEmpty()) && _camera != null) {
+                // taking a picture stops the preview, restart it for the next request (or since nobody will)
+                try {
+                    _session.resumePreview();
+                }
+                catch (Throwable e) {
+                    Log.e(CamController.class.getName(), "startPreview() after picture", e);
+                }
+                processCaptureQueue();
+            }
+        }
+    };
+
+    /**
+     * serve the capture queue again once the MediaWriter has room
+     */
+    private void waitForWriter() {
+        if (_writerWaiting) {
+            return;
+        }
+        _writerWaiting = true;
+        Log.w(this.getClass().getName(), "media writer full, capture waits (" + MediaWriter.instance().stats() + ")");
+        MediaWriter.instance().runWhenRoom(new Runnable() {
+            @Override
+            public void run() {
+                _cameraThread.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        _writerWaiting = false;
+                        processCaptureQueue();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * receives the shots of a night picture
+     */
+    private final Camera.PictureCallback _nightCallback = new Camera.PictureCallback() {
+        @Override
+        public void onPictureTaken(byte[] bytes, Camera camera) {
+            _handler.removeCallbacks(_captureTimeout);
+            final CaptureRequest req = _nightRequest;
+            if (req == null || req.isDone() || bytes == null) {
+                // canceled or timed out meanwhile, drop the shots
+                Log.w(CamController.class.getName(), "dropping night shots, request " + (req != null ? req.status() : "gone"));
+                if (req != null && !req.isDone()) {
+                    req.fail(CaptureRequest.STATUS.FAILED);
+                }
+                if (req != null && req == _currentCapture) {
+                    _currentCapture = null;
+                }
+                if (req != null) {
+                    req.released();
+                }
+                _nightRequest = null;
+                _nightShots = null;
+                if ((req != null || !_captureQueue.isEmpty()) && _camera != null) {
+                    try {
+                        _session.resumePreview();
+                    }
+                    catch (Throwable e) {
+                        Log.e(CamController.class.getName(), "startPreview() after dropping night shots", e);
+                    }
+                    processCaptureQueue();
+                }
+                return;
+            }
+
+            _nightShots[_nightIndex++] = bytes;
+            if (_nightIndex < _nightShots.length) {
+                // next shot
+                try {
+                    _session.resumePreview();
+                    _camera.takePicture(null, null, _nightCallback);
+                    _session.markPreviewStopped();
+                }
+                catch (Throwable e) {
+                    Log.e(CamController.class.getName(), "takePicture() during night shot", e);
+                    _nightRequest = null;
+                    _nightShots = null;
+                    _currentCapture = null;
+                    req.fail(CaptureRequest.STATUS.FAILED);
+                    req.released();
+                    processCaptureQueue();
+                    return;
+                }
+                _handler.postDelayed(_captureTimeout, req.timeout());
+                return;
+            }
+
+            // all in, the camera is free while the shots are merged
+            byte[][] shots = _nightShots;
+            _nightRequest = null;
+            _nightShots = null;
+            _currentCapture = null;
+            req.released();
+            File dest = Utils.getTempMediaFile(_context, CAM_MODE.MODE_PHOTO);
+            _nightShot.stack(shots, dest, ZSL_JPEG_QUALITY, new NightShot.OnStackedListener() {
+                @Override
+                public void onStacked(File merged) {
+                    if (merged == null) {
+                        req.fail(CaptureRequest.STATUS.FAILED);
+                        return;
+                    }
+                    Log.d(CamController.class.getName(), "camTakeNightShot() returned " + merged.getAbsolutePath());
+                    if (!req.complete(merged)) {
+                        merged.delete();
+                    }
+                }
+            });
+            if (_camera != null) {
+                try {
+                    _session.resumePreview();
+                }
+                catch (Throwable e) {
+                    Log.e(CamController.class.getName(), "startPreview() after night shot", e);
+                }
+                processCaptureQueue();
+            }
+        }
+    };
+
+    /**
+     * fires when the camera didn't deliver the picture in time
+     */
+    private final Runnable _captureTimeout = new Runnable() {
+        @Override
+        public void run() {
+            CaptureRequest req = _currentCapture;
+            _currentCapture = null;
+            _nightRequest = null;
+            _nightShots = null;
+            if (req != null) {
+                Log.e(CamController.class.getName(), "camTakePicture() timed out");
+                req.fail(CaptureRequest.STATUS.TIMED_OUT);
+                req.released();
+            }
+
+            if (!_captureQueue.isEmpty() && _camera != null) {
+                // try to recover the preview for the next request
+                try {
+                    _session.resumePreview();
+                }
+                catch (Throwable e) {
+                    Log.e(CamController.class.getName(), "startPreview() after timeout", e);
+                }
+                processCaptureQueue();
+            }
+        }
+    };
+
+    /**
+     * shoot a burst of pictures back to back, as fast as the camera allows. pictures are kept in a bounded
+     * ring of in-flight buffers and written straight to the storage folder in background
+     * @param count number of pictures to take
+     * @param started receives false if the camera is busy (recording, another burst or pictures pending), may be null
+     * @param listener an OnBurstListener, called once all the pictures have been written (only if started)
+     */
+    public void camTakeBurst(final int count, CameraThread.Callback<Boolean> started, final OnBurstListener listener) {
+        _cameraThread.submit(new CameraThread.Command<Boolean>() {
+            @Override
+            public Boolean run() {
+                return doTakeBurst(count, listener);
+            }
+        }, started);
+    }
+
+    /**
+     * start a burst, on the camera thread
+     * @param count number of pictures to take
+     * @param listener an OnBurstListener
+     * @return false if the camera is busy
+     */
+    private boolean doTakeBurst(int count, OnBurstListener listener) {
+        if (_camera == null) {
+            Log.w(this.getClass().getName(), "camera not yet initialized");
+            return false;
+        }
+        if (_mode != CAM_MODE.MODE_PHOTO || pendingCaptures() > 0 || count <= 0) {
+            Log.w(this.getClass().getName(), "can't start a burst now, mode=" + _mode);
+            return false;
+        }
+
+        // set the parameters once for the whole burst
+        disarmRecorder();
+        try {
+            commitPictureParameters();
+        }
+        catch (Throwable e) {
+            Log.e(this.getClass().getName(), "setParameters() for burst", e);
+            return false;
+        }
+
+        // released once the burst completes
+        _burstRing = new JpegRing(BURST_RING_SLOTS);
+        _mode = CAM_MODE.MODE_BURST;
+        _burstListener = listener;
+        _burstFiles = new ArrayList<>();
+        _burstStart = new Date();
+        _burstRequested = count;
+        _burstTaken = 0;
+        _burstWritesPending = 0;
+        _burstShooting = true;
+        _burstWaitingSlot = false;
+        Log.d(this.getClass().getName(), "starting burst of " + count + " pictures");
+        burstShoot();
+        return true;
+    }
+
+    /**
+     * take the next burst picture
+     */
+    private void burstShoot() {
+        try {
+            _camera.takePicture(null, null, _burstCallback);
+            _session.markPreviewStopped();
+        }
+        catch (Throwable e) {
+            Log.e(this.getClass().getName(), "takePicture() during burst", e);
+            burstStopShooting();
+            return;
+        }
+        _handler.postDelayed(_burstTimeout, CaptureRequest.DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * stop taking burst pictures, the burst completes once the pending writes are done
+     */
+    private void burstStopShooting() {
+        _handler.removeCallbacks(_burstTimeout);
+        _burstShooting = false;
+        _burstWaitingSlot = false;
+        burstCheckCompleted();
+    }
+
+    /**
+     * complete the burst if it's over and all its pictures have been written
+     */
+    private void burstCheckCompleted() {
+        if (_mode != CAM_MODE.MODE_BURST || _burstShooting || _burstWritesPending > 0) {
+            return;
+        }
+        Log.d(this.getClass().getName(), "burst completed, " + _burstFiles.size() + "/" + _burstRequested + " pictures");
+        _mode = CAM_MODE.MODE_PHOTO;
+        final OnBurstListener l = _burstListener;
+        final List<File> files = _burstFiles;
+        final int requested = _burstRequested;
+        _burstListener = null;
+        _burstFiles = null;
+        _burstRing = null;
+        if (l != null) {
+            _cameraThread.postToUi(new Runnable() {
+                @Override
+                public void run() {
+                    l.onBurstCompleted(files, requested);
+                }
+            });
+        }
+
+        // serve any picture request queued meanwhile
+        if (!_captureQueue.isEmpty() && _camera != null) {
+            _session.resumePreview();
+            processCaptureQueue();
+        }
+    }
+
+    /**
+     * receives the burst pictures
+     */
+    private final Camera.PictureCallback _burstCallback = new Camera.PictureCallback() {
+        @Override
+        public void onPictureTaken(byte[] bytes, Camera camera) {
+            _handler.removeCallbacks(_burstTimeout);
+            if (!_burstShooting) {
+                return;
+            }
+            if (bytes != null) {
+                // hand the picture to the writer
+                File f = Utils.getBurstMediaFile(_context, _burstStart, _burstTaken);
+                if (_burstRing.offer(bytes, f, _burstWritten)) {
+                    _burstWritesPending++;
+                }
+                else {
+                    // can't happen, we never shoot without a free slot
+                    Log.e(CamController.class.getName(), "burst ring full, dropping picture");
+                }
+            }
+            _burstTaken++;
+            if (_burstTaken >= _burstRequested || _camera == null) {
+                burstStopShooting();
+                return;
+            }
+
+            // next one, as soon as a slot is free
+            _session.resumePreview();
+            if (_burstRing.freeSlots() == 0) {
+                Log.w(CamController.class.getName(), "burst waiting for the writer");
+                _burstWaitingSlot = true;
+                return;
+            }
+            burstShoot();
+        }
+    };
+
+    /**
+     * notified by the burst writer thread
+     */
+    private final MediaWriter.OnWrittenListener _burstWritten = new MediaWriter.OnWrittenListener() {
+        @Override
+        public void onWritten(final File f, final boolean ok) {
+            _handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    _burstWritesPending--;
+                    if (ok && _burstFiles != null) {
+                        _burstFiles.add(f);
+                    }
+                    if (_burstWaitingSlot && _burstShooting && _camera != null) {
+                        // a slot is free again
+                        _burstWaitingSlot = false;
+                        burstShoot();
+                        return;
+                    }
+                    burstCheckCompleted();
+                }
+            });
+        }
+    };
+
+    /**
+     * fires when the camera didn't deliver a burst picture in time
+     */
+    private final Runnable _burstTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.e(CamController.class.getName(), "burst picture timed out");
+            burstStopShooting();
+        }
+    };
+
+    /**
+     * take an exposure bracketed burst (reference exposure, then darker and brighter) and merge it in background
+     * into one picture, saved in the storage folder (with the single shots, if configured)
+     * @param started receives false if the camera is busy or can't bracket, may be null
+     * @param listener an OnHdrListener (only if started)
+     */
+    public void camTakeHdr(CameraThread.Callback<Boolean> started, final OnHdrListener listener) {
+        _cameraThread.submit(new CameraThread.Command<Boolean>() {
+            @Override
+            public Boolean run() {
+                return doTakeHdr(listener);
+            }
+        }, started);
+    }
+
+    /**
+     * start an hdr capture, on the camera thread
+     * @param listener an OnHdrListener
+     * @return false if the camera is busy or can't bracket
+     */
+    private boolean doTakeHdr(OnHdrListener listener) {
+        if (_camera == null) {
+            Log.w(this.getClass().getName(), "camera not yet initialized");
+            return false;
+        }
+        if (_mode != CAM_MODE.MODE_PHOTO || pendingCaptures() > 0 || _hdrMerger.pending() > 1) {
+            // one merge running and one queued at most, each holds its shots in memory
+            Log.w(this.getClass().getName(), "can't start hdr now, mode=" + _mode + ", merges pending=" + _hdrMerger.pending());
+            return false;
+        }
+
+        // exposure steps, clamped to what the camera supports
+        Camera.Parameters p = _params.parameters();
+        float step = p.getExposureCompensationStep();
+        int min = p.getMinExposureCompensation();
+        int max = p.getMaxExposureCompensation();
+        if (step <= 0 || min == max) {
+            Log.w(this.getClass().getName(), "exposure compensation not supported");
+            return false;
+        }
+        _hdrSteps = new int[HDR_EV.length];
+        for (int i = 0; i < HDR_EV.length; i++) {
+            _hdrSteps[i] = Math.max(min, Math.min(max, Math.round(HDR_EV[i] / step)));
+        }
+
+        disarmRecorder();
+        try {
+            commitPictureParameters();
+        }
+        catch (Throwable e) {
+            Log.e(this.getClass().getName(), "setParameters() for hdr", e);
+            return false;
+        }
+        _mode = CAM_MODE.MODE_HDR;
+        _hdrListener = listener;
+        _hdrShots = new byte[HDR_EV.length][];
+        _hdrIndex = 0;
+        _hdrStart = new Date();
+        Log.d(this.getClass().getName(), "starting hdr, steps=" + Arrays.toString(_hdrSteps) + " (" + step + "EV each)");
+        hdrShoot();
+        return true;
+    }
+
+    /**
+     * set the exposure of the next hdr shot, and take it once the auto exposure settled
+     */
+    private void hdrShoot() {
+        try {
+            _params.setExposureCompensation(_hdrSteps[_hdrIndex]);
+            if (!_params.commit()) {
+                // same exposure as now
+                _hdrTake.run();
+                return;
+            }
+            _session.resumePreview();
+        }
+        catch (Throwable e) {
+            Log.e(this.getClass().getName(), "setParameters() during hdr", e);
+            hdrFailed();
+            return;
+        }
+        _handler.postDelayed(_hdrTake, HDR_SETTLE_DELAY);
+    }
+
+    /**
+     * takes the next hdr shot
+     */
+    private final Runnable _hdrTake = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                _camera.takePicture(null, null, _hdrCallback);
+                _session.markPreviewStopped();
+            }
+            catch (Throwable e) {
+                Log.e(CamController.class.getName(), "takePicture() during hdr", e);
+                hdrFailed();
+                return;
+            }
+            _handler.postDelayed(_hdrTimeout, CaptureRequest.DEFAULT_TIMEOUT);
+        }
+    };
+
+    /**
+     * receives the hdr shots
+     */
+    private final Camera.PictureCallback _hdrCallback = new Camera.PictureCallback() {
+        @Override
+        public void onPictureTaken(final byte[] bytes, Camera camera) {
+            _handler.removeCallbacks(_hdrTimeout);
+            if (_mode != CAM_MODE.MODE_HDR) {
+                return;
+            }
+            if (bytes == null) {
+                hdrFailed();
+                return;
+            }
+            _hdrShots[_hdrIndex] = bytes;
+            final OnHdrListener l = _hdrListener;
+            if (_hdrIndex == 0 && l != null) {
+                // show the reference shot while the others are taken and merged
+                TaskScheduler.instance().submit(TaskScheduler.LANE.UI_FEEDBACK, new TaskScheduler.Task<Bitmap>() {
+                    @Override
+                    public Bitmap run() {
+                        return Utils.jpegToThumbnail(bytes);
+                    }
+                }, new TaskScheduler.Callback<Bitmap>() {
+                    @Override
+                    public void onCompleted(Bitmap thumbnail) {
+                        if (thumbnail != null) {
+                            l.onHdrPreview(thumbnail);
+                        }
+                    }
+                });
+            }
+            _hdrIndex++;
+            if (_hdrIndex < _hdrShots.length && _camera != null) {
+                hdrShoot();
+                return;
+            }
+            hdrMerge();
+        }
+    };
+
+    /**
+     * fires when the camera didn't deliver an hdr shot in time
+     */
+    private final Runnable _hdrTimeout = new Runnable() {
+        @Override
+        public void run() {
+            Log.e(CamController.class.getName(), "hdr shot timed out");
+            hdrFailed();
+        }
+    };
+
+    /**
+     * all the shots are in: back to the normal exposure and preview, and queue the merge
+     */
+    private void hdrMerge() {
+        final OnHdrListener l = _hdrListener;
+        byte[][] shots = _hdrShots;
+        hdrRestore();
+
+        File[] originals = null;
+        if (AppConfiguration.instance(_context).hdrKeepOriginals()) {
+            originals = new File[shots.length];
+            for (int i = 0; i < shots.length; i++) {
+                originals[i] = Utils.getHdrMediaFile(_context, _hdrStart, String.format("ev%+d", HDR_EV[i]));
+            }
+        }
+        File dest = Utils.getHdrMediaFile(_context, _hdrStart, "hdr");
+        _hdrMerger.merge(shots, 0, dest, originals, ZSL_JPEG_QUALITY, new HdrMerger.OnMergedListener() {
+            @Override
+            public void onMerged(File merged, List<File> saved) {
+                if (l != null) {
+                    l.onHdrCompleted(merged, saved);
+                }
+            }
+        });
+    }
+
+    /**
+     * the capture failed, report and get back to normal
+     */
+    private void hdrFailed() {
+        final OnHdrListener l = _hdrListener;
+        hdrRestore();
+        if (l == null) {
+            return;
+        }
+        _cameraThread.postToUi(new Runnable() {
+            @Override
+            public void run() {
+                l.onHdrCompleted(null, new ArrayList<File>());
+            }
+        });
+    }
+
+    /**
+     * back to the normal exposure, preview and mode after an hdr capture
+     */
+    private void hdrRestore() {
+        _handler.removeCallbacks(_hdrTake);
+        _handler.removeCallbacks(_hdrTimeout);
+        _mode = CAM_MODE.MODE_PHOTO;
+        _hdrListener = null;
+        _hdrShots = null;
+        if (_camera == null) {
+            return;
+        }
+        try {
+            _params.setExposureCompensation(0);
+            _params.commit();
+            _session.resumePreview();
+        }
+        catch (Throwable e) {
+            Log.e(this.getClass().getName(), "restoring exposure after hdr", e);
         }
 
-        // and return path to the captured image
-        Log.d(this.getClass().getName(), "camTakePicture() returned " + tmpImage[0].getAbsolutePath());
-        return tmpImage[0];
+        // serve any picture request queued meanwhile
+        processCaptureQueue();
     }
 
     /**
@@ -502,7 +2175,7 @@ public class CamController implements SurfaceHolder.Callback {
 
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
-        // stop the preview once the surface is destroyed (on close)
+        // stop the preview before the surface is destroyed (on close)
         Log.d(this.getClass().getName(), "surfaceDestroyed()");
         stopPreview();
     }
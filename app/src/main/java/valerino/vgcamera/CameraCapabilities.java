@@ -0,0 +1,330 @@
+package valerino.vgcamera;
+
+import android.content.Context;
+import android.hardware.Camera;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * supported preview sizes, picture sizes and preview fps ranges of the camera. they're probed once and persisted
+ * in AppConfiguration (keyed by the firmware fingerprint), so later launches skip the probe. picks the best
+ * fitting configuration for each quality level, so we never ask the camera for something it doesn't support
+ */
+public class CameraCapabilities {
+    /**
+     * preview size we aim for (the glass display)
+     */
+    private static final int PREVIEW_WIDTH = 640;
+    private static final int PREVIEW_HEIGHT = 360;
+
+    /**
+     * preview fps we aim for (* 1000)
+     */
+    private static final int PREVIEW_FPS = 30000;
+
+    /**
+     * low quality pictures aim at this fraction of the max picture area
+     */
+    private static final int LOW_QUALITY_AREA_DIVISOR = 4;
+
+    /**
+     * the configuration chosen for a quality level
+     */
+    public static class Config {
+        public final int previewWidth;
+        public final int previewHeight;
+        public final int pictureWidth;
+        public final int pictureHeight;
+        public final int fpsMin;
+        public final int fpsMax;
+
+        Config(int[] preview, int[] picture, int[] fps) {
+            previewWidth = preview[0];
+            previewHeight = preview[1];
+            pictureWidth = picture[0];
+            pictureHeight = picture[1];
+            fpsMin = fps[0];
+            fpsMax = fps[1];
+        }
+
+        @Override
+        public String toString() {
+            return "preview=" + previewWidth + "x" + previewHeight + "@" + fpsMin + "-" + fpsMax +
+                    ", picture=" + pictureWidth + "x" + pictureHeight;
+        }
+    }
+
+    private static CameraCapabilities _instance = null;
+    private final List<int[]> _previewSizes;
+    private final List<int[]> _pictureSizes;
+    private final List<int[]> _fpsRanges;
+    private final Config[] _configs = new Config[AppConfiguration.QUALITY.values().length];
+
+    /**
+     * constructor
+     * @param previewSizes supported preview sizes, {width, height}
+     * @param pictureSizes supported picture sizes, {width, height}
+     * @param fpsRanges supported preview fps ranges, {min, max}
+     */
+    private CameraCapabilities(List<int[]> previewSizes, List<int[]> pictureSizes, List<int[]> fpsRanges) {
+        _previewSizes = previewSizes;
+        _pictureSizes = pictureSizes;
+        _fpsRanges = fpsRanges;
+    }
+
+    /**
+     * get the persisted capabilities, if they've been probed on this firmware
+     * @param ctx a Context
+     * @return the capabilities, or null if probe() is needed
+     */
+    public static synchronized CameraCapabilities instance(Context ctx) {
+        if (_instance == null) {
+            String s = AppConfiguration.instance(ctx).cameraCapabilities(Build.FINGERPRINT);
+            if (s != null) {
+                _instance = fromString(s);
+            }
+        }
+        return _instance;
+    }
+
+    /**
+     * get the capabilities, probing the camera (and persisting the result) only if needed
+     * @param ctx a Context
+     * @param params the camera parameters, as returned by getParameters()
+     * @return
+     */
+    public static synchronized CameraCapabilities probe(Context ctx, Camera.Parameters params) {
+        CameraCapabilities caps = instance(ctx);
+        if (caps != null) {
+            return caps;
+        }
+
+        List<int[]> preview = fromSizes(params.getSupportedPreviewSizes());
+        List<int[]> picture = fromSizes(params.getSupportedPictureSizes());
+        List<int[]> fps = new ArrayList<>();
+        List<int[]> ranges = params.getSupportedPreviewFpsRange();
+        if (ranges != null) {
+            for (int[] r : ranges) {
+                fps.add(new int[] {r[Camera.Parameters.PREVIEW_FPS_MIN_INDEX], r[Camera.Parameters.PREVIEW_FPS_MAX_INDEX]});
+            }
+        }
+        _instance = new CameraCapabilities(preview, picture, fps);
+        Log.d(CameraCapabilities.class.getName(), "probed capabilities: " + _instance.toString());
+        if (!preview.isEmpty() && !picture.isEmpty()) {
+            // incomplete probes are retried on the next launch
+            AppConfiguration.instance(ctx).setCameraCapabilities(Build.FINGERPRINT, _instance.toString());
+        }
+        return _instance;
+    }
+
+    /**
+     * get the configuration to use for a quality level
+     * @param quality the quality
+     * @return
+     */
+    public synchronized Config config(AppConfiguration.QUALITY quality) {
+        Config c = _configs[quality.ordinal()];
+        if (c == null) {
+            c = new Config(nearestPreviewSize(PREVIEW_WIDTH, PREVIEW_HEIGHT), choosePictureSize(quality), chooseFpsRange());
+            _configs[quality.ordinal()] = c;
+            Log.d(this.getClass().getName(), "quality " + quality + ": " + c.toString());
+        }
+        return c;
+    }
+
+    /**
+     * the fps range to use when the preview fps is capped
+     * @param quality the quality
+     * @param maxFps the cap (* 1000)
+     * @return {min, max}: the configured range if within the cap, else the fastest supported range within it
+     */
+    public synchronized int[] fpsRange(AppConfiguration.QUALITY quality, int maxFps) {
+        Config c = config(quality);
+        if (c.fpsMax <= maxFps) {
+            return new int[] {c.fpsMin, c.fpsMax};
+        }
+        int[] best = null;
+        for (int[] r : _fpsRanges) {
+            if (r[1] > maxFps) {
+                continue;
+            }
+            if (best == null || r[1] > best[1] || (r[1] == best[1] && r[0] > best[0])) {
+                best = r;
+            }
+        }
+        return best != null ? best : new int[] {c.fpsMin, c.fpsMax};
+    }
+
+    /**
+     * the supported preview size with the aspect ratio nearest to the wanted one, then the area nearest to it
+     * @param width wanted width
+     * @param height wanted height
+     * @return {width, height}
+     */
+    public int[] nearestPreviewSize(int width, int height) {
+        int[] best = null;
+        double bestAspect = Double.MAX_VALUE;
+        long bestArea = Long.MAX_VALUE;
+        double aspect = (double)width / height;
+        for (int[] s : _previewSizes) {
+            double da = Math.abs((double)s[0] / s[1] - aspect);
+            long dArea = Math.abs((long)s[0] * s[1] - (long)width * height);
+            if (da < bestAspect - 0.01 || (Math.abs(da - bestAspect) <= 0.01 && dArea < bestArea)) {
+                best = s;
+                bestAspect = da;
+                bestArea = dArea;
+            }
+        }
+        return best != null ? best : new int[] {width, height};
+    }
+
+    /**
+     * the largest picture size for high quality, the one nearest to a fraction of its area for low quality
+     * @param quality the quality
+     * @return {width, height}
+     */
+    private int[] choosePictureSize(AppConfiguration.QUALITY quality) {
+        int[] largest = null;
+        for (int[] s : _pictureSizes) {
+            if (largest == null || (long)s[0] * s[1] > (long)largest[0] * largest[1]) {
+                largest = s;
+            }
+        }
+        if (largest == null) {
+            // nothing probed, use the known glass sizes
+            return quality == AppConfiguration.QUALITY.HIGH ? new int[] {2592, 1944} : new int[] {1296, 972};
+        }
+        if (quality == AppConfiguration.QUALITY.HIGH) {
+            return largest;
+        }
+
+        // same aspect ratio as the largest one, area nearest to the target
+        long target = (long)largest[0] * largest[1] / LOW_QUALITY_AREA_DIVISOR;
+        double aspect = (double)largest[0] / largest[1];
+        int[] best = largest;
+        long bestDelta = Long.MAX_VALUE;
+        for (int[] s : _pictureSizes) {
+            if (Math.abs((double)s[0] / s[1] - aspect) > 0.01) {
+                continue;
+            }
+            long delta = Math.abs((long)s[0] * s[1] - target);
+            if (delta < bestDelta) {
+                best = s;
+                bestDelta = delta;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * a fixed PREVIEW_FPS range if supported, else the range reaching it with the highest min, else the fastest
+     * @return {min, max}
+     */
+    private int[] chooseFpsRange() {
+        int[] best = null;
+        for (int[] r : _fpsRanges) {
+            if (best == null) {
+                best = r;
+                continue;
+            }
+            boolean reaches = (r[1] >= PREVIEW_FPS);
+            boolean bestReaches = (best[1] >= PREVIEW_FPS);
+            if (reaches != bestReaches) {
+                if (reaches) {
+                    best = r;
+                }
+                continue;
+            }
+            if (reaches) {
+                // nearest to a fixed PREVIEW_FPS
+                if (r[1] < best[1] || (r[1] == best[1] && r[0] > best[0])) {
+                    best = r;
+                }
+            }
+            else if (r[1] > best[1] || (r[1] == best[1] && r[0] > best[0])) {
+                best = r;
+            }
+        }
+        return best != null ? best : new int[] {PREVIEW_FPS, PREVIEW_FPS};
+    }
+
+    /**
+     * convert a list of Camera.Size
+     * @param sizes the sizes, may be null
+     * @return list of {width, height}
+     */
+    private static List<int[]> fromSizes(List<Camera.Size> sizes) {
+        List<int[]> l = new ArrayList<>();
+        if (sizes != null) {
+            for (Camera.Size s : sizes) {
+                l.add(new int[] {s.width, s.height});
+            }
+        }
+        return l;
+    }
+
+    /**
+     * serialize a list of pairs
+     * @param l the list
+     * @param sep separator between the two values
+     * @return i.e. "640x360,1280x720"
+     */
+    private static String pairsToString(List<int[]> l, char sep) {
+        StringBuilder sb = new StringBuilder();
+        for (int[] p : l) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(p[0]).append(sep).append(p[1]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * parse a list of pairs
+     * @param s the string, as from pairsToString()
+     * @param sep separator between the two values
+     * @return
+     */
+    private static List<int[]> pairsFromString(String s, char sep) {
+        List<int[]> l = new ArrayList<>();
+        for (String p : s.split(",")) {
+            int idx = p.indexOf(sep);
+            if (idx <= 0) {
+                continue;
+            }
+            l.add(new int[] {Integer.parseInt(p.substring(0, idx)), Integer.parseInt(p.substring(idx + 1))});
+        }
+        return l;
+    }
+
+    /**
+     * serialize, for persisting
+     * @return "previewSizes;pictureSizes;fpsRanges"
+     */
+    @Override
+    public String toString() {
+        return pairsToString(_previewSizes, 'x') + ";" + pairsToString(_pictureSizes, 'x') + ";" + pairsToString(_fpsRanges, '-');
+    }
+
+    /**
+     * deserialize
+     * @param s as returned by toString()
+     * @return the capabilities, or null if s is malformed
+     */
+    private static CameraCapabilities fromString(String s) {
+        String[] parts = s.split(";", -1);
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            return new CameraCapabilities(pairsFromString(parts[0], 'x'), pairsFromString(parts[1], 'x'), pairsFromString(parts[2], '-'));
+        } catch (NumberFormatException e) {
+            Log.e(CameraCapabilities.class.getName(), "malformed capabilities: " + s, e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package valerino.vgcamera;
+
+import android.hardware.Camera;
+import android.location.Location;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * local snapshot of the Camera.Parameters: reads are served from the snapshot, writes only mark the changed keys
+ * dirty and are pushed to the camera in one setParameters() on commit(). getParameters()/setParameters() flatten
+ * and parse the whole parameters string over binder, so they're kept off the hot paths
+ */
+public class CameraParameters {
+    private static final String KEY_ZOOM = "zoom";
+    private static final String KEY_PICTURE_SIZE = "picture-size";
+    private static final String KEY_PREVIEW_SIZE = "preview-size";
+    private static final String KEY_PREVIEW_FPS_RANGE = "preview-fps-range";
+    private static final String KEY_GPS = "gps";
+    private static final String KEY_EXPOSURE_COMPENSATION = "exposure-compensation";
+
+    private final Camera _camera;
+    private Camera.Parameters _snapshot = null;
+    private final Set<String> _dirty = new HashSet<>();
+
+    // counters
+    private int _fetches = 0;
+    private int _cachedReads = 0;
+    private int _commits = 0;
+    private int _writes = 0;
+    private int _unchangedWrites = 0;
+
+    /**
+     * constructor
+     * @param camera the Camera
+     */
+    public CameraParameters(Camera camera) {
+        _camera = camera;
+    }
+
+    /**
+     * the camera these parameters belong to
+     * @return
+     */
+    public Camera camera() {
+        return _camera;
+    }
+
+    /**
+     * get the snapshot, fetching it from the camera if needed
+     * @return
+     */
+    private Camera.Parameters snapshot() {
+        if (_snapshot == null) {
+            _snapshot = _camera.getParameters();
+            _fetches++;
+        }
+        else {
+            _cachedReads++;
+        }
+        return _snapshot;
+    }
+
+    /**
+     * the snapshot itself, to read what the camera supports. must not be modified, use the setters
+     * @return
+     */
+    public synchronized Camera.Parameters parameters() {
+        return snapshot();
+    }
+
+    /**
+     * drop the snapshot (the camera changed its parameters behind us), pending changes are lost
+     */
+    public synchronized void invalidate() {
+        _snapshot = null;
+        _dirty.clear();
+    }
+
+    /**
+     * get the current zoom level
+     * @return
+     */
+    public synchronized int zoom() {
+        return snapshot().getZoom();
+    }
+
+    /**
+     * get the max zoom level
+     * @return
+     */
+    public synchronized int maxZoom() {
+        return snapshot().getMaxZoom();
+    }
+
+    /**
+     * get the preview size
+     * @return
+     */
+    public synchronized Camera.Size previewSize() {
+        return snapshot().getPreviewSize();
+    }
+
+    /**
+     * get the picture size
+     * @return
+     */
+    public synchronized Camera.Size pictureSize() {
+        return snapshot().getPictureSize();
+    }
+
+    /**
+     * the camera changed zoom by itself (smooth zoom), update the snapshot without pushing it back
+     * @param zoom the new zoom level
+     */
+    public synchronized void syncZoom(int zoom) {
+        if (_snapshot != null) {
+            _snapshot.setZoom(zoom);
+        }
+    }
+
+    /**
+     * set the zoom level (pending until commit())
+     * @param zoom the zoom level
+     */
+    public synchronized void setZoom(int zoom) {
+        Camera.Parameters p = snapshot();
+        if (p.getZoom() == zoom) {
+            _unchangedWrites++;
+            return;
+        }
+        p.setZoom(zoom);
+        markDirty(KEY_ZOOM);
+    }
+
+    /**
+     * set the picture size (pending until commit())
+     * @param width picture width
+     * @param height picture height
+     */
+    public synchronized void setPictureSize(int width, int height) {
+        Camera.Parameters p = snapshot();
+        Camera.Size cur = p.getPictureSize();
+        if (cur != null && cur.width == width && cur.height == height) {
+            _unchangedWrites++;
+            return;
+        }
+        p.setPictureSize(width, height);
+        markDirty(KEY_PICTURE_SIZE);
+    }
+
+    /**
+     * set the preview size (pending until commit())
+     * @param width preview width
+     * @param height preview height
+     */
+    public synchronized void setPreviewSize(int width, int height) {
+        Camera.Parameters p = snapshot();
+        Camera.Size cur = p.getPreviewSize();
+        if (cur != null && cur.width == width && cur.height == height) {
+            _unchangedWrites++;
+            return;
+        }
+        p.setPreviewSize(width, height);
+        markDirty(KEY_PREVIEW_SIZE);
+    }
+
+    /**
+     * set the preview fps range (pending until commit())
+     * @param min min fps * 1000
+     * @param max max fps * 1000
+     */
+    public synchronized void setPreviewFpsRange(int min, int max) {
+        Camera.Parameters p = snapshot();
+        int[] cur = new int[2];
+        p.getPreviewFpsRange(cur);
+        if (cur[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] == min && cur[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] == max) {
+            _unchangedWrites++;
+            return;
+        }
+        p.setPreviewFpsRange(min, max);
+        markDirty(KEY_PREVIEW_FPS_RANGE);
+    }
+
+    /**
+     * set the exposure compensation (pending until commit())
+     * @param index the compensation index, in steps of getExposureCompensationStep() EV
+     */
+    public synchronized void setExposureCompensation(int index) {
+        Camera.Parameters p = snapshot();
+        if (p.getExposureCompensation() == index) {
+            _unchangedWrites++;
+            return;
+        }
+        p.setExposureCompensation(index);
+        markDirty(KEY_EXPOSURE_COMPENSATION);
+    }
+
+    /**
+     * set the GPS tags for the next pictures (pending until commit())
+     * @param loc a Location, or null to remove the tags
+     */
+    public synchronized void setGps(Location loc) {
+        Camera.Parameters p = snapshot();
+        if (loc == null) {
+            if (!_dirty.contains(KEY_GPS) && p.get("gps-timestamp") == null) {
+                _unchangedWrites++;
+                return;
+            }
+            p.removeGpsData();
+        }
+        else {
+            if (String.valueOf(loc.getTime() / 1000).equals(p.get("gps-timestamp"))) {
+                // same fix already set
+                _unchangedWrites++;
+                return;
+            }
+            p.setGpsAltitude(loc.getAltitude());
+            p.setGpsLongitude(loc.getLongitude());
+            p.setGpsLatitude(loc.getLatitude());
+            p.setGpsTimestamp(loc.getTime() / 1000);
+            p.setGpsProcessingMethod(loc.getProvider());
+        }
+        markDirty(KEY_GPS);
+    }
+
+    /**
+     * mark a key as changed
+     * @param key the key
+     */
+    private void markDirty(String key) {
+        _writes++;
+        _dirty.add(key);
+    }
+
+    /**
+     * whether there are changes not yet pushed to the camera
+     * @return
+     */
+    public synchronized boolean isDirty() {
+        return !_dirty.isEmpty();
+    }
+
+    /**
+     * push the pending changes to the camera, in one setParameters()
+     * @return true if something has been pushed, false if there was nothing to push
+     * @throws RuntimeException if the camera rejects the values: the snapshot is dropped then (and refetched on the
+     * next read), so it never serves values the camera doesn't have. pending changes are lost
+     */
+    public synchronized boolean commit() {
+        if (_dirty.isEmpty()) {
+            return false;
+        }
+        Log.d(this.getClass().getName(), "commit(), dirty=" + _dirty);
+        _commits++;
+        try {
+            _camera.setParameters(_snapshot);
+        }
+        catch (RuntimeException e) {
+            invalidate();
+            throw e;
+        }
+        _dirty.clear();
+        return true;
+    }
+
+    /**
+     * binder round-trips saved so far: reads served locally, plus writes merged into a commit or dropped as no-ops
+     * @return
+     */
+    public synchronized int savedRoundTrips() {
+        return _cachedReads + (_writes - _commits) + _unchangedWrites;
+    }
+
+    /**
+     * counters, for logging
+     * @return
+     */
+    public synchronized String stats() {
+        return "getParameters=" + _fetches + ", setParameters=" + _commits + ", cached reads=" + _cachedReads +
+                ", writes=" + _writes + ", no-op writes=" + _unchangedWrites + ", saved round-trips=" + savedRoundTrips();
+    }
+}
@@ -0,0 +1,211 @@
+package valerino.vgcamera;
+
+import android.content.ComponentCallbacks2;
+import android.hardware.Camera;
+import android.util.Log;
+import android.view.SurfaceHolder;
+
+/**
+ * keeps the opened Camera (and its configuration) warm across photo/preview transitions, so restarting the
+ * preview is just a startPreview(). the camera is released only on lifecycle exits or memory pressure
+ */
+public class CameraSession {
+    /**
+     * configures a freshly opened (or invalidated) camera
+     */
+    public interface Configurator {
+        /**
+         * called before the preview starts, whenever the camera needs to be (re)configured
+         * @param camera the Camera
+         * @param reopened true if the camera has just been opened
+         */
+        void configure(Camera camera, boolean reopened);
+    }
+
+    private final Configurator _configurator;
+    private Camera _camera = null;
+    private SurfaceHolder _display = null;
+    private boolean _configured = false;
+    private boolean _previewing = false;
+    private int _opens = 0;
+    private int _warmStarts = 0;
+
+    /**
+     * constructor
+     * @param configurator a Configurator
+     */
+    public CameraSession(Configurator configurator) {
+        _configurator = configurator;
+    }
+
+    /**
+     * get the camera
+     * @return the Camera, or null if not opened
+     */
+    public Camera camera() {
+        return _camera;
+    }
+
+    /**
+     * whether the camera is opened
+     * @return
+     */
+    public boolean isOpen() {
+        return _camera != null;
+    }
+
+    /**
+     * whether the preview is running (as far as we know, taking pictures and recording stop it)
+     * @return
+     */
+    public boolean isPreviewing() {
+        return _previewing;
+    }
+
+    /**
+     * whether a display is attached (the preview is shown, or will be on resumePreview())
+     * @return
+     */
+    public boolean hasDisplay() {
+        return _display != null;
+    }
+
+    /**
+     * start the preview, opening and configuring the camera only if needed
+     * @param holder the SurfaceHolder to blit on
+     * @return true on success
+     */
+    public boolean startPreview(SurfaceHolder holder) {
+        boolean reopened = false;
+        if (_camera == null) {
+            try {
+                _camera = Camera.open();
+            } catch (Throwable e) {
+                Log.e(this.getClass().getName(), "Camera.open()", e);
+                _camera = null;
+                return false;
+            }
+            reopened = true;
+            _configured = false;
+            _display = null;
+            _opens++;
+        }
+        else {
+            _warmStarts++;
+        }
+
+        try {
+            if (_display != holder) {
+                _camera.setPreviewDisplay(holder);
+                _display = holder;
+            }
+            if (!_configured) {
+                _configurator.configure(_camera, reopened);
+                _configured = true;
+            }
+            _camera.startPreview();
+        } catch (Throwable e) {
+            // error!
+            Log.e(this.getClass().getName(), "setPreviewDisplay() / startPreview(), holder=" + holder, e);
+            release();
+            return false;
+        }
+        _previewing = true;
+        Log.d(this.getClass().getName(), "preview started, " + (reopened ? "camera opened" : "warm") +
+                " (opens=" + _opens + ", warm starts=" + _warmStarts + ")");
+        return true;
+    }
+
+    /**
+     * stop the preview, keeping the camera opened
+     */
+    public void stopPreview() {
+        if (_camera == null) {
+            return;
+        }
+        _camera.stopPreview();
+        _previewing = false;
+    }
+
+    /**
+     * restart the preview on the current display and configuration (i.e. after takePicture())
+     */
+    public void resumePreview() {
+        if (_camera == null) {
+            return;
+        }
+        _camera.startPreview();
+        _previewing = true;
+    }
+
+    /**
+     * the preview has been stopped by someone else (takePicture(), MediaRecorder)
+     */
+    public void markPreviewStopped() {
+        _previewing = false;
+    }
+
+    /**
+     * stop the preview and detach the display (i.e. the surface is going away), keeping the camera opened
+     */
+    public void detachDisplay() {
+        if (_camera == null) {
+            return;
+        }
+        stopPreview();
+        try {
+            _camera.setPreviewDisplay(null);
+        } catch (Throwable e) {
+            // error!
+            Log.e(this.getClass().getName(), "setPreviewDisplay(null)", e);
+        }
+        _display = null;
+    }
+
+    /**
+     * force reconfiguration and display reattach on the next startPreview() (i.e. after MediaRecorder used the camera)
+     */
+    public void invalidate() {
+        _configured = false;
+        _display = null;
+    }
+
+    /**
+     * release the camera (lifecycle exit)
+     */
+    public void release() {
+        if (_camera == null) {
+            return;
+        }
+        Log.d(this.getClass().getName(), "releasing camera");
+        try {
+            _camera.stopPreview();
+            _camera.setPreviewDisplay(null);
+        } catch (Throwable e) {
+            // error!
+            Log.e(this.getClass().getName(), "stopPreview() / setPreviewDisplay(null)", e);
+        }
+        _camera.release();
+        _camera = null;
+        _display = null;
+        _configured = false;
+        _previewing = false;
+    }
+
+    /**
+     * react to memory pressure, releasing the camera if it's idle (not previewing)
+     * @param level the level from ComponentCallbacks2.onTrimMemory()
+     * @return true if the camera has been released
+     */
+    public boolean onTrimMemory(int level) {
+        if (_camera == null || _previewing) {
+            return false;
+        }
+        if (level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return false;
+        }
+        Log.w(this.getClass().getName(), "memory pressure (level=" + level + "), releasing idle camera");
+        release();
+        return true;
+    }
+}
@@ -0,0 +1,164 @@
+package valerino.vgcamera;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the thread owning the Camera and the MediaRecorder. every camera operation is submitted here as a command and
+ * runs in submission order, the completion callback is posted back to the UI thread. the camera is opened on this
+ * thread too, so its callbacks (pictures, preview frames, zoom, errors) are delivered here and not on the UI thread
+ */
+public class CameraThread {
+    /**
+     * a camera operation, runs on the camera thread
+     * @param <T> the result type
+     */
+    public interface Command<T> {
+        /**
+         * run the operation
+         * @return the result, handed to the Callback
+         */
+        T run();
+    }
+
+    /**
+     * receives the result of a Command, on the UI thread
+     * @param <T> the result type
+     */
+    public interface Callback<T> {
+        /**
+         * the command has been executed
+         * @param result the command result (null if the command threw)
+         */
+        void onCompleted(T result);
+    }
+
+    private final HandlerThread _thread;
+    private final Handler _handler;
+    private final Handler _ui = new Handler(Looper.getMainLooper());
+
+    /**
+     * constructor, starts the thread
+     * @param name the thread name
+     */
+    public CameraThread(String name) {
+        _thread = new HandlerThread(name);
+        _thread.start();
+        _handler = new Handler(_thread.getLooper());
+    }
+
+    /**
+     * the Handler of the camera thread (for timeouts and callbacks which must run there)
+     * @return
+     */
+    public Handler handler() {
+        return _handler;
+    }
+
+    /**
+     * whether the caller is running on the camera thread
+     * @return
+     */
+    public boolean isCurrent() {
+        return Looper.myLooper() == _thread.getLooper();
+    }
+
+    /**
+     * queue a command, its result is delivered to the callback on the UI thread
+     * @param command the Command
+     * @param callback a Callback, may be null
+     */
+    public <T> void submit(final Command<T> command, final Callback<T> callback) {
+        _handler.post(new Runnable() {
+            @Override
+            public void run() {
+                final T result = execute(command);
+                if (callback == null) {
+                    return;
+                }
+                _ui.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onCompleted(result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * queue a command without result
+     * @param r the command
+     */
+    public void post(final Runnable r) {
+        submit(new Command<Void>() {
+            @Override
+            public Void run() {
+                r.run();
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * run a command and wait for it. only for the few callers which must not return before the camera is done
+     * (i.e. surfaceDestroyed(), the surface is gone once it returns)
+     * @param r the command
+     * @param timeout max time to wait, in milliseconds
+     * @return false on timeout
+     */
+    public boolean await(final Runnable r, long timeout) {
+        if (isCurrent()) {
+            r.run();
+            return true;
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    r.run();
+                }
+                finally {
+                    done.countDown();
+                }
+            }
+        });
+        try {
+            if (done.await(timeout, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.e(this.getClass().getName(), "await() timed out after " + timeout + "ms");
+        return false;
+    }
+
+    /**
+     * post to the UI thread
+     * @param r the Runnable
+     */
+    public void postToUi(Runnable r) {
+        _ui.post(r);
+    }
+
+    /**
+     * run a command, logging (and swallowing) any error so the thread survives it
+     * @param command the Command
+     * @return the result, or null on error
+     */
+    private <T> T execute(Command<T> command) {
+        try {
+            return command.run();
+        } catch (Throwable e) {
+            Log.e(this.getClass().getName(), "camera command failed", e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package valerino.vgcamera;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * a picture request queued on the CamController (returned by camTakePicture()).
+ * the result is delivered to the OnCaptureListener on the UI thread, or can be waited for with get()
+ */
+public class CaptureRequest implements Future<File> {
+    /**
+     * default time to wait for the camera to deliver the picture
+     */
+    public static final long DEFAULT_TIMEOUT = 10000;
+
+    /**
+     * status of the request
+     */
+    public enum STATUS {
+        PENDING, // queued, waiting for the camera
+        RUNNING, // the camera is taking the picture
+        COMPLETED, // picture taken
+        CANCELED, // canceled by the caller or by the controller (camera released)
+        TIMED_OUT, // the camera didn't deliver the picture in time
+        FAILED // error taking or saving the picture
+    }
+
+    /**
+     * receives the request result, on the UI thread
+     */
+    public interface OnCaptureListener {
+        /**
+         * the picture has been taken
+         * @param request the request
+         * @param f the temporary file holding the picture
+         */
+        void onCaptureCompleted(CaptureRequest request, File f);
+
+        /**
+         * the picture couldn't be taken (not called if the caller itself cancels the request)
+         * @param request the request
+         * @param status one of CANCELED, TIMED_OUT, FAILED
+         */
+        void onCaptureFailed(CaptureRequest request, STATUS status);
+    }
+
+    private final long _timeout;
+    private final int _frames;
+    private final OnCaptureListener _listener;
+    private STATUS _status = STATUS.PENDING;
+    private File _result = null;
+    private boolean _held = false;
+    private final CamController _controller;
+    private final long _timestamp = SystemClock.uptimeMillis();
+    private final Handler _ui = new Handler(Looper.getMainLooper());
+
+    /**
+     * constructor (use CamController.camTakePicture())
+     * @param controller the owning CamController
+     * @param timeout time to wait for the picture, in milliseconds
+     * @param listener an OnCaptureListener, may be null
+     */
+    CaptureRequest(CamController controller, long timeout, OnCaptureListener listener) {
+        this(controller, timeout, 1, listener);
+    }
+
+    /**
+     * constructor (use CamController.camTakeNightShot())
+     * @param controller the owning CamController
+     * @param timeout time to wait for each shot, in milliseconds
+     * @param frames how many shots to merge into the picture
+     * @param listener an OnCaptureListener, may be null
+     */
+    CaptureRequest(CamController controller, long timeout, int frames, OnCaptureListener listener) {
+        _controller = controller;
+        _timeout = timeout;
+        _frames = frames;
+        _listener = listener;
+    }
+
+    /**
+     * the time to wait for the picture, in milliseconds
+     * @return
+     */
+    public long timeout() {
+        return _timeout;
+    }
+
+    /**
+     * how many shots are merged into the picture (1 for a plain picture)
+     * @return
+     */
+    public int frames() {
+        return _frames;
+    }
+
+    /**
+     * when the request was made (SystemClock.uptimeMillis()), i.e. the shutter press
+     * @return
+     */
+    public long timestamp() {
+        return _timestamp;
+    }
+
+    /**
+     * get the request status
+     * @return
+     */
+    public synchronized STATUS status() {
+        return _status;
+    }
+
+    /**
+     * mark the request as being served by the camera
+     * @return false if the request is not pending anymore (i.e. canceled)
+     */
+    synchronized boolean start() {
+        if (_status != STATUS.PENDING) {
+            return false;
+        }
+        _status = STATUS.RUNNING;
+        return true;
+    }
+
+    /**
+     * complete the request and notify the listener (on the UI thread)
+     * @param f the taken picture
+     * @return false if the request was already done (the caller owns f then)
+     */
+    boolean complete(final File f) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            _status = STATUS.COMPLETED;
+            _result = f;
+            notifyAll();
+        }
+        _controller.onCaptureDone(this);
+        if (_listener != null) {
+            _ui.post(new Runnable() {
+                @Override
+                public void run() {
+                    _listener.onCaptureCompleted(CaptureRequest.this, f);
+                }
+            });
+        }
+        return true;
+    }
+
+    /**
+     * fail the request and notify the listener (on the UI thread)
+     * @param status one of CANCELED, TIMED_OUT, FAILED
+     * @return false if the request was already done
+     */
+    boolean fail(final STATUS status) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            _status = status;
+            notifyAll();
+        }
+        _controller.onCaptureDone(this);
+        if (_listener != null) {
+            _ui.post(new Runnable() {
+                @Override
+                public void run() {
+                    _listener.onCaptureFailed(CaptureRequest.this, status);
+                }
+            });
+        }
+        return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean running;
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            if (_status == STATUS.RUNNING && !mayInterruptIfRunning) {
+                return false;
+            }
+
+            // the listener is not called when the caller cancels
+            running = (_status == STATUS.RUNNING);
+            _held = running;
+            _status = STATUS.CANCELED;
+            notifyAll();
+        }
+
+        // let the controller drop it from the queue. a running shot keeps the camera busy until it arrives (and is
+        // discarded), so it counts as pending until released()
+        if (!running) {
+            _controller.onCaptureDone(this);
+        }
+        _controller.onCaptureCanceled(this);
+        return true;
+    }
+
+    /**
+     * the camera is done with the request (picture arrived, timed out or camera gone). a request canceled while
+     * running stops being pending only now
+     */
+    void released() {
+        synchronized (this) {
+            if (!_held) {
+                return;
+            }
+            _held = false;
+        }
+        _controller.onCaptureDone(this);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return _status == STATUS.CANCELED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return _status != STATUS.PENDING && _status != STATUS.RUNNING;
+    }
+
+    @Override
+    public File get() throws InterruptedException, ExecutionException {
+        synchronized (this) {
+            while (!isDone()) {
+                wait();
+            }
+            return result();
+        }
+    }
+
+    @Override
+    public synchronized File get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (!isDone()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                throw new TimeoutException();
+            }
+            wait(left);
+        }
+        return result();
+    }
+
+    /**
+     * get the result of a done request
+     * @return the taken picture
+     * @throws ExecutionException if the request failed
+     */
+    private File result() throws ExecutionException {
+        switch (_status) {
+            case COMPLETED:
+                return _result;
+            case CANCELED:
+                throw new CancellationException();
+            default:
+                throw new ExecutionException(new Exception("capture " + _status.toString()));
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package valerino.vgcamera;
+
+import android.location.Location;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * records the preview frames (plus the microphone, optionally) to an MP4 with MediaCodec and MediaMuxer, with the
+ * bitrate, keyframe interval, resolution and frame rate from an EncoderConfig. the encoded frames can also be tapped
+ * by other pipeline stages
+ */
+public class CodecRecorder implements MediaEncoder.OnEncodedFrameListener {
+    private final EncoderConfig _config;
+    private final VideoEncoder _video;
+    private final AudioEncoder _audio;
+    private volatile MediaEncoder.OnEncodedFrameListener _tap = null;
+    private MediaMuxer _muxer = null;
+    private File _output = null;
+    private MediaFormat _videoFormat = null;
+    private MediaFormat _audioFormat = null;
+    private int _videoTrack = -1;
+    private int _audioTrack = -1;
+    private boolean _muxing = false;
+    private boolean _gotKeyFrame = false;
+    private int _muxed = 0;
+    private int _skipped = 0;
+
+    /**
+     * constructor
+     * @param config the encoder settings, width and height must match the preview
+     */
+    public CodecRecorder(EncoderConfig config) {
+        _config = config;
+        _video = new VideoEncoder(config, this);
+        _audio = config.audio ? new AudioEncoder(this) : null;
+    }
+
+    /**
+     * feeds the video encoder, to be set on the PreviewFrameRing
+     * @return
+     */
+    public PreviewFrameRing.OnFrameListener frameListener() {
+        return _video;
+    }
+
+    /**
+     * the encoder settings
+     * @return
+     */
+    public EncoderConfig config() {
+        return _config;
+    }
+
+    /**
+     * set a listener which sees every encoded frame (video and audio), on the encoder threads
+     * @param listener an OnEncodedFrameListener, or null
+     */
+    public void setOnEncodedFrameListener(MediaEncoder.OnEncodedFrameListener listener) {
+        _tap = listener;
+    }
+
+    /**
+     * start recording
+     * @param f the output file
+     * @param location the location to tag the video with, may be null
+     * @return false on error
+     */
+    public boolean start(File f, Location location) {
+        synchronized (this) {
+            try {
+                _muxer = new MediaMuxer(f.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+                if (location != null) {
+                    _muxer.setLocation((float)location.getLatitude(), (float)location.getLongitude());
+                }
+            } catch (Throwable e) {
+                Log.e(this.getClass().getName(), "can't create the muxer", e);
+                _muxer = null;
+                return false;
+            }
+            _output = f;
+        }
+
+        // the muxer starts once all the tracks formats are known
+        if (!_video.start() || (_audio != null && !_audio.start())) {
+            stop();
+            return false;
+        }
+        Log.d(this.getClass().getName(), "recording " + _config.toString() + " to " + f.getAbsolutePath());
+        return true;
+    }
+
+    /**
+     * stop recording
+     * @return the MP4, or null if nothing could be written
+     */
+    public File stop() {
+        // drain and stop the encoders first
+        _video.stop();
+        if (_audio != null) {
+            _audio.stop();
+        }
+
+        synchronized (this) {
+            if (_muxer == null) {
+                return null;
+            }
+            boolean ok = (_muxed > 0);
+            if (_muxing) {
+                try {
+                    _muxer.stop();
+                } catch (Throwable e) {
+                    Log.e(this.getClass().getName(), "muxer.stop()", e);
+                    ok = false;
+                }
+            }
+            _muxer.release();
+            _muxer = null;
+            _muxing = false;
+            Log.d(this.getClass().getName(), "stopped, muxed=" + _muxed + ", skipped=" + _skipped + ", video: " +
+                    _video.stats() + (_audio != null ? ", audio: " + _audio.stats() : ""));
+            File f = _output;
+            _output = null;
+            if (!ok) {
+                f.delete();
+                return null;
+            }
+            return f;
+        }
+    }
+
+    @Override
+    public void onFormatChanged(MediaEncoder encoder, MediaFormat format) {
+        MediaEncoder.OnEncodedFrameListener tap = _tap;
+        if (tap != null) {
+            tap.onFormatChanged(encoder, format);
+        }
+        synchronized (this) {
+            if (_muxer == null || _muxing) {
+                return;
+            }
+            if (encoder == _video) {
+                _videoFormat = format;
+            }
+            else {
+                _audioFormat = format;
+            }
+            if (_videoFormat == null || (_audio != null && _audioFormat == null)) {
+                return;
+            }
+
+            // all the tracks are known
+            try {
+                _videoTrack = _muxer.addTrack(_videoFormat);
+                if (_audio != null) {
+                    _audioTrack = _muxer.addTrack(_audioFormat);
+                }
+                _muxer.start();
+            } catch (Throwable e) {
+                Log.e(this.getClass().getName(), "can't start the muxer", e);
+                return;
+            }
+            _muxing = true;
+            _video.requestKeyFrame();
+        }
+    }
+
+    @Override
+    public void onEncodedFrame(MediaEncoder encoder, ByteBuffer data, MediaCodec.BufferInfo info) {
+        MediaEncoder.OnEncodedFrameListener tap = _tap;
+        if (tap != null) {
+            // the tap gets its own view of the buffer
+            tap.onEncodedFrame(encoder, data.duplicate(), info);
+        }
+        synchronized (this) {
+            if (!_muxing) {
+                // waiting for the other track
+                _skipped++;
+                return;
+            }
+            if (encoder == _video && !_gotKeyFrame) {
+                if ((info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) == 0) {
+                    // the video must start with a keyframe
+                    _skipped++;
+                    return;
+                }
+                _gotKeyFrame = true;
+            }
+            try {
+                _muxer.writeSampleData(encoder == _video ? _videoTrack : _audioTrack, data, info);
+                _muxed++;
+            } catch (Throwable e) {
+                Log.e(this.getClass().getName(), "writeSampleData()", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package valerino.vgcamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * keeps the last N seconds of an encoded video stream in a fixed, preallocated byte arena. the oldest samples are
+ * evicted a whole GOP at a time, so the ring always starts with a keyframe and can be muxed as is.
+ * the memory used never exceeds the budget given at construction, not thread safe
+ */
+public class EncodedSampleRing {
+    /**
+     * receives the samples when draining the ring, oldest first
+     */
+    public interface SampleSink {
+        /**
+         * @param data the arena holding the sample
+         * @param offset sample offset in data
+         * @param size sample size
+         * @param ptsUs presentation time, in microseconds
+         * @param keyFrame true if the sample is a keyframe
+         */
+        void onSample(byte[] data, int offset, int size, long ptsUs, boolean keyFrame);
+    }
+
+    private final byte[] _arena;
+    private final long _windowUs;
+    private final int[] _offset;
+    private final int[] _size;
+    private final long[] _pts;
+    private final boolean[] _key;
+    private int _head = 0;
+    private int _count = 0;
+    private int _writePos = 0;
+    private int _bytes = 0;
+    private int _dropped = 0;
+    private int _evicted = 0;
+
+    /**
+     * constructor, allocates the whole budget
+     * @param budget max bytes of encoded data to keep
+     * @param maxSamples max number of samples to keep (i.e. window seconds * fps, plus a GOP)
+     * @param windowMillis how much of the stream to keep, in milliseconds
+     */
+    public EncodedSampleRing(int budget, int maxSamples, long windowMillis) {
+        _arena = new byte[budget];
+        _windowUs = windowMillis * 1000;
+        _offset = new int[maxSamples];
+        _size = new int[maxSamples];
+        _pts = new long[maxSamples];
+        _key = new boolean[maxSamples];
+    }
+
+    /**
+     * append a sample, evicting the oldest GOPs to make room
+     * @param src the sample, from position() to limit() (consumed)
+     * @param ptsUs presentation time, in microseconds
+     * @param keyFrame true if the sample is a keyframe
+     * @return false if the sample was dropped (too big for the budget, or not starting from a keyframe)
+     */
+    public boolean add(ByteBuffer src, long ptsUs, boolean keyFrame) {
+        int size = src.remaining();
+        if (size > _arena.length) {
+            // can't ever fit, and the stream is broken from here until the next keyframe
+            clear();
+            _dropped++;
+            return false;
+        }
+
+        // keep at most the window (but no less), and room for the sample metadata
+        evictOlderThan(ptsUs - _windowUs);
+        if (_count == _offset.length) {
+            evictGop();
+        }
+
+        // samples are contiguous, wrap to the start of the arena if this one doesn't fit at the end
+        int pos = _writePos;
+        if (pos + size > _arena.length) {
+            while (_count > 0 && _offset[_head] >= _writePos) {
+                evictGop();
+            }
+            pos = 0;
+        }
+        while (_count > 0 && overlaps(pos, size, _offset[_head], _size[_head])) {
+            evictGop();
+        }
+
+        if (_count == 0 && !keyFrame) {
+            // the ring must start with a keyframe
+            _dropped++;
+            return false;
+        }
+
+        int idx = (_head + _count) % _offset.length;
+        src.get(_arena, pos, size);
+        _offset[idx] = pos;
+        _size[idx] = size;
+        _pts[idx] = ptsUs;
+        _key[idx] = keyFrame;
+        _count++;
+        _bytes += size;
+        _writePos = pos + size;
+        return true;
+    }
+
+    /**
+     * whether two arena ranges overlap
+     * @return
+     */
+    private static boolean overlaps(int pos, int size, int otherPos, int otherSize) {
+        return pos < otherPos + otherSize && otherPos < pos + size;
+    }
+
+    /**
+     * evict the oldest GOPs as long as the next one still starts before the given time
+     * @param ptsUs the oldest time to keep, in microseconds
+     */
+    private void evictOlderThan(long ptsUs) {
+        while (_count > 0) {
+            int next = nextKeyFrame();
+            if (next == -1 || _pts[(_head + next) % _offset.length] > ptsUs) {
+                return;
+            }
+            evictGop();
+        }
+    }
+
+    /**
+     * position (from the oldest) of the first keyframe after the oldest sample
+     * @return -1 if there's none
+     */
+    private int nextKeyFrame() {
+        for (int n = 1; n < _count; n++) {
+            if (_key[(_head + n) % _offset.length]) {
+                return n;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * evict the oldest sample and the rest of its GOP
+     */
+    private void evictGop() {
+        do {
+            _bytes -= _size[_head];
+            _head = (_head + 1) % _offset.length;
+            _count--;
+            _evicted++;
+        } while (_count > 0 && !_key[_head]);
+        if (_count == 0) {
+            _head = 0;
+            _writePos = 0;
+        }
+    }
+
+    /**
+     * empty the ring
+     */
+    public void clear() {
+        _head = 0;
+        _count = 0;
+        _writePos = 0;
+        _bytes = 0;
+    }
+
+    /**
+     * hand all the samples to a sink, oldest first, and empty the ring
+     * @param sink a SampleSink
+     * @return number of samples drained
+     */
+    public int drainTo(SampleSink sink) {
+        int n = _count;
+        for (int i = 0; i < n; i++) {
+            int idx = (_head + i) % _offset.length;
+            sink.onSample(_arena, _offset[idx], _size[idx], _pts[idx], _key[idx]);
+        }
+        clear();
+        return n;
+    }
+
+    /**
+     * number of samples in the ring
+     * @return
+     */
+    public int count() {
+        return _count;
+    }
+
+    /**
+     * bytes used in the arena
+     * @return
+     */
+    public int bytes() {
+        return _bytes;
+    }
+
+    /**
+     * time spanned by the ring
+     * @return in microseconds
+     */
+    public long durationUs() {
+        if (_count < 2) {
+            return 0;
+        }
+        return _pts[(_head + _count - 1) % _offset.length] - _pts[_head];
+    }
+
+    /**
+     * counters, for logging
+     * @return
+     */
+    public String stats() {
+        return "samples=" + _count + ", bytes=" + _bytes + "/" + _arena.length + ", duration=" + durationUs() / 1000 +
+                "ms, evicted=" + _evicted + ", dropped=" + _dropped;
+    }
+}
@@ -0,0 +1,69 @@
+package valerino.vgcamera;
+
+import android.content.Context;
+
+/**
+ * settings of the MediaCodec recording engine: resolution, frame rate, bitrate, keyframe interval and audio
+ */
+public class EncoderConfig {
+    /**
+     * bitrate used when none is set, as bits per pixel per frame
+     */
+    private static final float BITS_PER_PIXEL = 0.2f;
+
+    public final int width;
+    public final int height;
+    public final int fps;
+    public final int bitrate;
+    public final int gopSeconds;
+    public final boolean audio;
+
+    /**
+     * constructor
+     * @param width video width
+     * @param height video height
+     * @param fps frame rate (the preview frames are decimated down to it)
+     * @param bitrate video bitrate in bits/s, 0 to derive it from the resolution and frame rate
+     * @param gopSeconds keyframe interval, in seconds
+     * @param audio true to record audio too
+     */
+    public EncoderConfig(int width, int height, int fps, int bitrate, int gopSeconds, boolean audio) {
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.bitrate = (bitrate > 0 ? bitrate : defaultBitrate(width, height, fps));
+        this.gopSeconds = gopSeconds;
+        this.audio = audio;
+    }
+
+    /**
+     * the bitrate used when none is set
+     * @param width video width
+     * @param height video height
+     * @param fps frame rate
+     * @return bits/s
+     */
+    public static int defaultBitrate(int width, int height, int fps) {
+        return (int)(width * height * fps * BITS_PER_PIXEL);
+    }
+
+    /**
+     * the configured settings at the given resolution, scaled down to the current QualityGovernor tier
+     * @param ctx a Context
+     * @param width the video width (the preview size actually used)
+     * @param height the video height
+     * @return
+     */
+    public static EncoderConfig fromConfiguration(Context ctx, int width, int height) {
+        AppConfiguration cfg = AppConfiguration.instance(ctx);
+        QualityGovernor.TIER tier = QualityGovernor.instance(ctx).tier();
+        int fps = Math.min(cfg.encoderFps(), tier.maxFps);
+        int bitrate = (cfg.encoderBitrate() > 0 ? cfg.encoderBitrate() : defaultBitrate(width, height, fps));
+        return new EncoderConfig(width, height, fps, (int)(bitrate * tier.bitrateScale), cfg.encoderGop(), cfg.encoderAudio());
+    }
+
+    @Override
+    public String toString() {
+        return width + "x" + height + "@" + fps + ", " + bitrate / 1000 + "kbps, gop=" + gopSeconds + "s" + (audio ? ", audio" : "");
+    }
+}
@@ -0,0 +1,19 @@
+package valerino.vgcamera;
+
+/**
+ * analyzes preview frames (i.e. face recognition, QR scanning), registered with CamController.addFrameAnalyzer().
+ * runs on the FramePipeline workers, one frame at a time: frames arriving while it's busy are dropped
+ */
+public interface FrameAnalyzer {
+    /**
+     * name, for logging
+     * @return
+     */
+    String name();
+
+    /**
+     * analyze a frame, on a worker thread
+     * @param frame the frame, valid only during the call
+     */
+    void analyze(FramePipeline.Frame frame);
+}
@@ -0,0 +1,276 @@
+package valerino.vgcamera;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * hands the preview frames to the registered FrameAnalyzers, each at its own rate, on a pool of low priority workers.
+ * frames are copied (on the camera thread) into a small pool of preallocated NV21 buffers shared by the analyzers
+ * due for that frame. nothing is ever queued: a frame due to a busy analyzer, or arriving with no free buffer, is
+ * dropped, so slow analyzers never hold the preview back
+ */
+public class FramePipeline implements PreviewFrameRing.OnFrameListener {
+    /**
+     * a pooled NV21 frame
+     */
+    public static class Frame {
+        /**
+         * NV21 data (may be larger than width * height * 3 / 2)
+         */
+        public final byte[] data;
+        public int width;
+        public int height;
+
+        /**
+         * when the frame arrived (SystemClock.uptimeMillis())
+         */
+        public long timestamp;
+
+        private int _refs = 0;
+
+        Frame(int size) {
+            data = new byte[size];
+        }
+    }
+
+    /**
+     * a registered analyzer, with its schedule and counters
+     */
+    private static class Slot {
+        final FrameAnalyzer analyzer;
+        final long interval;
+        long lastDue = 0;
+        volatile boolean busy = false;
+        int analyzed = 0;
+        int droppedBusy = 0;
+        int droppedNoBuffer = 0;
+        long totalLatency = 0;
+        long maxLatency = 0;
+        long totalRun = 0;
+
+        Slot(FrameAnalyzer analyzer, int fps) {
+            this.analyzer = analyzer;
+            this.interval = 1000 / Math.max(fps, 1);
+        }
+    }
+
+    /**
+     * buffers on top of one per analyzer
+     */
+    private static final int SPARE_BUFFERS = 1;
+
+    private final List<Slot> _slots = new CopyOnWriteArrayList<>();
+    private final ArrayDeque<Frame> _pool = new ArrayDeque<>();
+    private final Slot[] _due = new Slot[16];
+    private final ThreadPoolExecutor _workers;
+    private int _buffers = 0;
+    private int _bufferSize = 0;
+    private int _width = 0;
+    private int _height = 0;
+
+    /**
+     * constructor
+     */
+    public FramePipeline() {
+        // leave a core to the camera and the ui
+        int threads = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+        _workers = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "VGCamera-analyzer");
+            }
+        });
+        _workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * register an analyzer
+     * @param analyzer the FrameAnalyzer
+     * @param fps how many frames per second it wants, at most
+     */
+    public void add(FrameAnalyzer analyzer, int fps) {
+        if (_slots.size() >= _due.length) {
+            Log.e(this.getClass().getName(), "too many analyzers, can't add " + analyzer.name());
+            return;
+        }
+        remove(analyzer);
+        _slots.add(new Slot(analyzer, fps));
+        Log.d(this.getClass().getName(), "added " + analyzer.name() + " @" + fps + "fps");
+    }
+
+    /**
+     * unregister an analyzer (a frame being analyzed completes anyway)
+     * @param analyzer the FrameAnalyzer
+     */
+    public void remove(FrameAnalyzer analyzer) {
+        for (Slot s : _slots) {
+            if (s.analyzer == analyzer) {
+                _slots.remove(s);
+                Log.d(this.getClass().getName(), "removed " + stats(s));
+            }
+        }
+    }
+
+    /**
+     * whether there are no analyzers
+     * @return
+     */
+    public boolean isEmpty() {
+        return _slots.isEmpty();
+    }
+
+    /**
+     * set the size of the incoming frames
+     * @param width preview width
+     * @param height preview height
+     */
+    public synchronized void setFrameSize(int width, int height) {
+        _width = width;
+        _height = height;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, long timestamp) {
+        // who wants this frame
+        int n = 0;
+        for (Slot s : _slots) {
+            if (timestamp - s.lastDue < s.interval) {
+                continue;
+            }
+            s.lastDue = timestamp;
+            if (s.busy) {
+                // still on a previous frame
+                s.droppedBusy++;
+                continue;
+            }
+            _due[n++] = s;
+        }
+        if (n == 0) {
+            return;
+        }
+
+        Frame f = obtain(data.length, n);
+        if (f == null) {
+            for (int i = 0; i < n; i++) {
+                _due[i].droppedNoBuffer++;
+                _due[i] = null;
+            }
+            return;
+        }
+        System.arraycopy(data, 0, f.data, 0, data.length);
+        f.timestamp = timestamp;
+        for (int i = 0; i < n; i++) {
+            final Slot s = _due[i];
+            _due[i] = null;
+            s.busy = true;
+            run(s, f);
+        }
+    }
+
+    /**
+     * analyze a frame on a worker
+     * @param s the analyzer
+     * @param f the frame
+     */
+    private void run(final Slot s, final Frame f) {
+        _workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.uptimeMillis();
+                try {
+                    s.analyzer.analyze(f);
+                } catch (Throwable e) {
+                    Log.e(FramePipeline.class.getName(), s.analyzer.name() + " failed", e);
+                }
+                long end = SystemClock.uptimeMillis();
+                long latency = end - f.timestamp;
+                s.analyzed++;
+                s.totalRun += (end - start);
+                s.totalLatency += latency;
+                s.maxLatency = Math.max(s.maxLatency, latency);
+                release(f);
+                s.busy = false;
+            }
+        });
+    }
+
+    /**
+     * get a free buffer, growing the pool up to one per analyzer plus SPARE_BUFFERS
+     * @param size the frame size
+     * @param refs how many analyzers will get it
+     * @return the Frame, or null if all the buffers are in use
+     */
+    private synchronized Frame obtain(int size, int refs) {
+        if (size != _bufferSize) {
+            // preview size changed, buffers in use are dropped on release
+            _pool.clear();
+            _buffers = 0;
+            _bufferSize = size;
+        }
+        Frame f = _pool.poll();
+        if (f == null) {
+            if (_buffers >= _slots.size() + SPARE_BUFFERS) {
+                return null;
+            }
+            f = new Frame(size);
+            _buffers++;
+        }
+        f.width = _width;
+        f.height = _height;
+        f._refs = refs;
+        return f;
+    }
+
+    /**
+     * an analyzer is done with a frame
+     * @param f the frame
+     */
+    private synchronized void release(Frame f) {
+        f._refs--;
+        if (f._refs == 0 && f.data.length == _bufferSize) {
+            _pool.push(f);
+        }
+    }
+
+    /**
+     * counters for an analyzer
+     * @param s the analyzer
+     * @return
+     */
+    private static String stats(Slot s) {
+        return s.analyzer.name() + ": analyzed=" + s.analyzed + ", dropped (busy)=" + s.droppedBusy + ", dropped (no buffer)=" +
+                s.droppedNoBuffer + (s.analyzed > 0 ? ", avg latency=" + s.totalLatency / s.analyzed + "ms, max latency=" +
+                s.maxLatency + "ms, avg run=" + s.totalRun / s.analyzed + "ms" : "");
+    }
+
+    /**
+     * counters for all the analyzers, for logging
+     * @return
+     */
+    public String stats() {
+        StringBuilder sb = new StringBuilder();
+        for (Slot s : _slots) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(stats(s));
+        }
+        return sb.length() > 0 ? sb.toString() : "no analyzers";
+    }
+}
@@ -0,0 +1,507 @@
+package valerino.vgcamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * merges an exposure bracketed burst into one picture, in background. the shots are aligned on the reference one
+ * (FrameAligner, coarse to fine on downscaled decodes), then decoded and fused (ExposureFusion) in horizontal stripes
+ * on all the cores (TileExecutor), each worker with its own region decoders and reused buffers, so the full
+ * resolution shots are never decoded whole. merges are queued and run one at a time
+ */
+public class HdrMerger {
+    /**
+     * receives the result of a merge
+     */
+    public interface OnMergedListener {
+        /**
+         * the merge is over, on the UI thread
+         * @param merged the merged picture, or null on error
+         * @param originals the shots saved as they are (if requested)
+         */
+        void onMerged(File merged, List<File> originals);
+    }
+
+    /**
+     * height of the stripes merged by each worker at once
+     */
+    private static final int TILE_ROWS = 64;
+
+    /**
+     * alignment passes, coarse to fine: decode scale and search radius (in pixels at that scale)
+     */
+    private static final int[] ALIGN_SAMPLE_SIZES = { 16, 4, 2 };
+    private static final int[] ALIGN_RADIUS = { 4, 3, 2 };
+
+    /**
+     * alignment giving less overlap than this (fraction of each side) is considered failed
+     */
+    private static final float MIN_OVERLAP = 0.8f;
+
+    /**
+     * pixels converted to luma at once, not to hold a whole ARGB copy of the decoded shot
+     */
+    private static final int LUMA_CHUNK = 64 * 1024;
+
+    /**
+     * per worker state
+     */
+    private static class Worker {
+        BitmapRegionDecoder[] decoders;
+        BitmapFactory.Options[] options;
+        Bitmap[] tiles;
+        int[][] pixels;
+        int[] out;
+    }
+
+    private final TileExecutor _tiles = new TileExecutor("VGCamera-hdr-tile", Runtime.getRuntime().availableProcessors());
+    private final ThreadPoolExecutor _jobs;
+    private final Handler _ui = new Handler(Looper.getMainLooper());
+    private final AtomicInteger _pending = new AtomicInteger(0);
+
+    /**
+     * constructor
+     */
+    public HdrMerger() {
+        _jobs = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "VGCamera-hdr");
+            }
+        });
+        _jobs.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * merges queued or running
+     * @return
+     */
+    public int pending() {
+        return _pending.get();
+    }
+
+    /**
+     * queue a merge
+     * @param shots the JPEGs
+     * @param reference index of the shot the others are aligned on
+     * @param dest the merged picture
+     * @param originals where to save each shot as it is, or null to not save them
+     * @param quality JPEG quality of the merged picture
+     * @param listener an OnMergedListener
+     */
+    public void merge(final byte[][] shots, final int reference, final File dest, final File[] originals, final int quality,
+                      final OnMergedListener listener) {
+        _pending.incrementAndGet();
+        _jobs.execute(new Runnable() {
+            @Override
+            public void run() {
+                // the shots are saved by the media writer while merging (it only reads them)
+                final List<File> saved = new ArrayList<>();
+                final CountDownLatch written = new CountDownLatch(originals != null ? shots.length : 0);
+                if (originals != null) {
+                    for (int i = 0; i < shots.length; i++) {
+                        MediaWriter.instance().write(shots[i], shots[i].length, originals[i], new MediaWriter.OnWrittenListener() {
+                            @Override
+                            public void onWritten(File f, boolean ok) {
+                                if (ok) {
+                                    synchronized (saved) {
+                                        saved.add(f);
+                                    }
+                                }
+                                written.countDown();
+                            }
+                        });
+                    }
+                }
+
+                File merged = null;
+                long start = SystemClock.uptimeMillis();
+                try {
+                    merged = doMerge(shots, reference, dest, quality);
+                    Log.d(HdrMerger.class.getName(), "merged " + shots.length + " shots in " + (SystemClock.uptimeMillis() - start) +
+                            "ms on " + _tiles.threads() + " workers, " + dest.getAbsolutePath());
+                } catch (Throwable e) {
+                    Log.e(HdrMerger.class.getName(), "merge failed", e);
+                    dest.delete();
+                    merged = null;
+                }
+                try {
+                    written.await();
+                } catch (InterruptedException e) {
+                    Log.w(HdrMerger.class.getName(), "interrupted waiting for the shots to be saved");
+                }
+                if (merged != null) {
+                    File ref = null;
+                    synchronized (saved) {
+                        if (originals != null && saved.contains(originals[reference])) {
+                            ref = originals[reference];
+                        }
+                    }
+                    copyExif(shots[reference], ref, merged);
+                }
+                _pending.decrementAndGet();
+
+                final File res = merged;
+                _ui.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onMerged(res, saved);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * align and fuse the shots
+     * @return the merged picture
+     */
+    private File doMerge(final byte[][] shots, int reference, File dest, int quality) throws Exception {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(shots[reference], 0, shots[reference].length, bounds);
+        int width = bounds.outWidth;
+        int height = bounds.outHeight;
+        if (width <= 0 || height <= 0) {
+            throw new IOException("can't decode the reference shot");
+        }
+
+        // where each shot is, relative to the reference
+        byte[][] refLuma = new byte[ALIGN_SAMPLE_SIZES.length][];
+        int[][] refSize = new int[ALIGN_SAMPLE_SIZES.length][2];
+        final int[][] offsets = new int[shots.length][2];
+        try {
+            for (int pass = 0; pass < ALIGN_SAMPLE_SIZES.length; pass++) {
+                refLuma[pass] = decodeLuma(shots[reference], ALIGN_SAMPLE_SIZES[pass], refSize[pass]);
+            }
+            for (int i = 0; i < shots.length; i++) {
+                if (i != reference) {
+                    offsets[i] = align(refLuma, refSize, shots[i]);
+                }
+            }
+        } finally {
+            // not needed anymore, before allocating the output
+            for (byte[] l : refLuma) {
+                BufferPool.instance().release(l);
+            }
+        }
+
+        // merge only the area covered by all the shots
+        int left = 0;
+        int top = 0;
+        int right = width;
+        int bottom = height;
+        for (int[] o : offsets) {
+            left = Math.max(left, -o[0]);
+            top = Math.max(top, -o[1]);
+            right = Math.min(right, width - o[0]);
+            bottom = Math.min(bottom, height - o[1]);
+        }
+        if (right - left < width * MIN_OVERLAP || bottom - top < height * MIN_OVERLAP) {
+            Log.w(this.getClass().getName(), "alignment failed, merging unaligned");
+            for (int[] o : offsets) {
+                o[0] = 0;
+                o[1] = 0;
+            }
+            left = 0;
+            top = 0;
+            right = width;
+            bottom = height;
+        }
+        final int outWidth = right - left;
+        final int outHeight = bottom - top;
+        final int x0 = left;
+        final int y0 = top;
+
+        final Bitmap output = Bitmap.createBitmap(outWidth, outHeight, Bitmap.Config.ARGB_8888);
+        final Worker[] workers = new Worker[_tiles.threads()];
+        int tiles = (outHeight + TILE_ROWS - 1) / TILE_ROWS;
+        try {
+            _tiles.run(tiles, new TileExecutor.TileTask() {
+                @Override
+                public void run(int tile, int worker) throws Exception {
+                    Worker w = workers[worker];
+                    if (w == null) {
+                        w = newWorker(shots, outWidth);
+                        workers[worker] = w;
+                    }
+                    int y = tile * TILE_ROWS;
+                    int rows = Math.min(TILE_ROWS, outHeight - y);
+                    for (int i = 0; i < shots.length; i++) {
+                        int sx = x0 + offsets[i][0];
+                        int sy = y0 + offsets[i][1] + y;
+                        Bitmap reuse = w.tiles[i];
+                        w.options[i].inBitmap = (reuse != null && reuse.getHeight() == rows ? reuse : null);
+                        Bitmap b = w.decoders[i].decodeRegion(new Rect(sx, sy, sx + outWidth, sy + rows), w.options[i]);
+                        if (b == null) {
+                            throw new IOException("decodeRegion() failed, shot " + i);
+                        }
+                        if (b != reuse) {
+                            if (reuse != null) {
+                                reuse.recycle();
+                            }
+                            w.tiles[i] = b;
+                        }
+                        b.getPixels(w.pixels[i], 0, outWidth, 0, 0, outWidth, rows);
+                    }
+                    ExposureFusion.fuse(w.pixels, shots.length, w.out, outWidth * rows);
+                    output.setPixels(w.out, 0, outWidth, 0, y, outWidth, rows);
+                }
+            });
+        } finally {
+            for (Worker w : workers) {
+                releaseWorker(w);
+            }
+        }
+
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(dest), 64 * 1024);
+            if (!output.compress(Bitmap.CompressFormat.JPEG, quality, out)) {
+                throw new IOException("compress() failed");
+            }
+        } finally {
+            Utils.closeNoEx(out);
+            output.recycle();
+        }
+        return dest;
+    }
+
+    /**
+     * allocate a worker state
+     * @param shots the JPEGs
+     * @param width stripe width
+     * @return
+     */
+    private static Worker newWorker(byte[][] shots, int width) throws IOException {
+        Worker w = new Worker();
+        w.decoders = new BitmapRegionDecoder[shots.length];
+        w.options = new BitmapFactory.Options[shots.length];
+        w.tiles = new Bitmap[shots.length];
+        for (int i = 0; i < shots.length; i++) {
+            // shareable, the decoders don't copy the JPEGs
+            w.decoders[i] = BitmapRegionDecoder.newInstance(shots[i], 0, shots[i].length, true);
+            w.options[i] = new BitmapFactory.Options();
+            w.options[i].inMutable = true;
+            w.options[i].inPreferredConfig = Bitmap.Config.ARGB_8888;
+        }
+        w.pixels = new int[shots.length][];
+        for (int i = 0; i < shots.length; i++) {
+            w.pixels[i] = BufferPool.instance().acquireInts(width * TILE_ROWS);
+        }
+        w.out = BufferPool.instance().acquireInts(width * TILE_ROWS);
+        return w;
+    }
+
+    /**
+     * release a worker state
+     * @param w the worker, may be null
+     */
+    private static void releaseWorker(Worker w) {
+        if (w == null) {
+            return;
+        }
+        for (int i = 0; i < w.decoders.length; i++) {
+            if (w.decoders[i] != null) {
+                w.decoders[i].recycle();
+            }
+            if (w.tiles[i] != null) {
+                w.tiles[i].recycle();
+            }
+        }
+        if (w.pixels != null) {
+            for (int[] p : w.pixels) {
+                BufferPool.instance().releaseInts(p);
+            }
+        }
+        BufferPool.instance().releaseInts(w.out);
+    }
+
+    /**
+     * find the offset of a shot relative to the reference, coarse to fine
+     * @param refLuma the reference luma, for each pass
+     * @param refSize the reference luma size, for each pass
+     * @param shot the JPEG to align
+     * @return {dx, dy} in full resolution pixels
+     */
+    private static int[] align(byte[][] refLuma, int[][] refSize, byte[] shot) throws IOException {
+        int dx = 0;
+        int dy = 0;
+        int previous = 0;
+        int[] size = new int[2];
+        for (int pass = 0; pass < ALIGN_SAMPLE_SIZES.length; pass++) {
+            int sample = ALIGN_SAMPLE_SIZES[pass];
+            if (previous != 0) {
+                // carry the offset to this scale
+                dx = dx * previous / sample;
+                dy = dy * previous / sample;
+            }
+            byte[] img = decodeLuma(shot, sample, size);
+            try {
+                if (size[0] != refSize[pass][0] || size[1] != refSize[pass][1]) {
+                    throw new IOException("shots of different sizes");
+                }
+                int[] o = FrameAligner.align(refLuma[pass], img, size[0], size[1], dx, dy, ALIGN_RADIUS[pass]);
+                dx = o[0];
+                dy = o[1];
+            } finally {
+                BufferPool.instance().release(img);
+            }
+            previous = sample;
+        }
+        return new int[] { dx * previous, dy * previous };
+    }
+
+    /**
+     * decode a downscaled luma, converted a few rows at a time
+     * @param jpeg the JPEG
+     * @param sample the inSampleSize
+     * @param size receives width and height
+     * @return the luma, from the BufferPool (give it back once used), may be longer than width * height
+     */
+    static byte[] decodeLuma(byte[] jpeg, int sample, int[] size) throws IOException {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inSampleSize = sample;
+        Bitmap bmp = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, opts);
+        if (bmp == null) {
+            throw new IOException("can't decode shot");
+        }
+        int w = bmp.getWidth();
+        int h = bmp.getHeight();
+        int rows = Math.max(1, LUMA_CHUNK / w);
+        int[] argb = BufferPool.instance().acquireInts(w * rows);
+        byte[] luma = BufferPool.instance().acquire(w * h);
+        try {
+            for (int y = 0; y < h; y += rows) {
+                int n = Math.min(rows, h - y);
+                bmp.getPixels(argb, 0, w, 0, y, w, n);
+                FrameAligner.toLuma(argb, luma, y * w, w * n);
+            }
+        } finally {
+            BufferPool.instance().releaseInts(argb);
+            bmp.recycle();
+        }
+        size[0] = w;
+        size[1] = h;
+        return luma;
+    }
+
+    /**
+     * copy date, camera and GPS tags from the reference shot to the merged picture. never throws: the tags are just
+     * metadata, a failure leaves the merged picture as it is
+     * @param reference the reference JPEG
+     * @param saved the reference saved as it is, or null
+     * @param merged the merged picture
+     */
+    static void copyExif(byte[] reference, File saved, File merged) {
+        final String[] tags = { ExifInterface.TAG_DATETIME, ExifInterface.TAG_MAKE, ExifInterface.TAG_MODEL,
+                ExifInterface.TAG_GPS_LATITUDE, ExifInterface.TAG_GPS_LATITUDE_REF, ExifInterface.TAG_GPS_LONGITUDE,
+                ExifInterface.TAG_GPS_LONGITUDE_REF, ExifInterface.TAG_GPS_ALTITUDE, ExifInterface.TAG_GPS_ALTITUDE_REF,
+                ExifInterface.TAG_GPS_TIMESTAMP, ExifInterface.TAG_GPS_DATESTAMP, ExifInterface.TAG_GPS_PROCESSING_METHOD };
+
+        File src = saved;
+        try {
+            // ExifInterface reads files only, the temporary one goes next to the merged picture
+            if (src == null) {
+                src = headerToTempFile(reference, merged.getParentFile());
+            }
+            if (src == null) {
+                return;
+            }
+            ExifInterface from = new ExifInterface(src.getAbsolutePath());
+            ExifInterface to = new ExifInterface(merged.getAbsolutePath());
+            for (String t : tags) {
+                String v = from.getAttribute(t);
+                if (v != null) {
+                    to.setAttribute(t, v);
+                }
+            }
+            to.saveAttributes();
+        } catch (Throwable e) {
+            Log.e(HdrMerger.class.getName(), "can't copy exif to " + merged.getAbsolutePath(), e);
+        } finally {
+            if (saved == null && src != null) {
+                src.delete();
+            }
+        }
+    }
+
+    /**
+     * write the header of a JPEG (up to the scan data, where the EXIF is) to a temporary file, closed by an EOI marker:
+     * the header and the marker are gathered in one write, the compressed picture is skipped
+     * @param jpeg the JPEG
+     * @param dir where to create the temporary file
+     * @return the temporary file, or null on error
+     */
+    static File headerToTempFile(byte[] jpeg, File dir) {
+        // walk the segments up to the start of scan
+        int len = -1;
+        int pos = 2;
+        while (pos + 4 <= jpeg.length && (jpeg[pos] & 0xff) == 0xff) {
+            int marker = jpeg[pos + 1] & 0xff;
+            if (marker == 0xff) {
+                // fill byte
+                pos++;
+                continue;
+            }
+            if ((marker >= 0xd0 && marker <= 0xd7) || marker == 0x01) {
+                // standalone
+                pos += 2;
+                continue;
+            }
+            int seg = ((jpeg[pos + 2] & 0xff) << 8) | (jpeg[pos + 3] & 0xff);
+            pos += 2 + seg;
+            if (marker == 0xda) {
+                len = pos;
+                break;
+            }
+        }
+        if (len < 0 || len > jpeg.length) {
+            // not parsed, whole file
+            return Utils.bufferToTempFile(jpeg, dir);
+        }
+
+        File tmp;
+        try {
+            tmp = File.createTempFile(".exif", ".tmp", dir);
+        } catch (IOException e) {
+            return null;
+        }
+        try {
+            FileIO.write(tmp, ByteBuffer.wrap(jpeg, 0, len), ByteBuffer.wrap(new byte[] { (byte)0xff, (byte)0xd9 }));
+        } catch (IOException e) {
+            tmp.delete();
+            return null;
+        }
+        return tmp;
+    }
+}
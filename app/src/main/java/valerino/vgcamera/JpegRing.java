@@ -0,0 +1,83 @@
+package valerino.vgcamera;
+
+import java.io.File;
+
+/**
+ * bounded ring of in-flight JPEGs, drained to files by the MediaWriter.
+ * used by burst mode so capture never waits on flash I/O, and the memory held by in-flight shots is bounded.
+ * the slots hold the camera's own buffers until written (no copies), a ring lives for one burst
+ */
+public class JpegRing {
+    private final byte[][] _slots;
+    private final boolean[] _busy;
+
+    /**
+     * constructor
+     * @param count number of slots (max in-flight shots)
+     */
+    public JpegRing(int count) {
+        _slots = new byte[count][];
+        _busy = new boolean[count];
+    }
+
+    /**
+     * number of free slots
+     * @return
+     */
+    public synchronized int freeSlots() {
+        int free = 0;
+        for (boolean b : _busy) {
+            if (!b) {
+                free++;
+            }
+        }
+        return free;
+    }
+
+    /**
+     * take a JPEG into a free slot and queue it for writing
+     * @param jpeg the JPEG data, retained until written (must not be modified meanwhile)
+     * @param dest the destination file
+     * @param listener a MediaWriter.OnWrittenListener, called once the slot is released, may be null
+     * @return false if the ring is full (nothing is queued then)
+     */
+    public boolean offer(byte[] jpeg, final File dest, final MediaWriter.OnWrittenListener listener) {
+        final int slot;
+        synchronized (this) {
+            slot = freeSlot();
+            if (slot == -1) {
+                return false;
+            }
+            _busy[slot] = true;
+        }
+
+        // the slot is ours until released by the writer
+        _slots[slot] = jpeg;
+        MediaWriter.instance().write(jpeg, jpeg.length, dest, new MediaWriter.OnWrittenListener() {
+            @Override
+            public void onWritten(File f, boolean ok) {
+                synchronized (JpegRing.this) {
+                    _slots[slot] = null;
+                    _busy[slot] = false;
+                }
+                if (listener != null) {
+                    listener.onWritten(f, ok);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * find a free slot
+     * @return slot index, or -1
+     */
+    private int freeSlot() {
+        for (int i = 0; i < _busy.length; i++) {
+            if (!_busy[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
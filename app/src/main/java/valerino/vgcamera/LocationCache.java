@@ -0,0 +1,201 @@
+package valerino.vgcamera;
+
+import android.content.Context;
+import android.location.Criteria;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * keeps the best location fix in memory, fed by a location subscription (uses paired device) running while the
+ * preview is active. captures just read the cached fix, provider enumeration stays off the shutter path, singleton
+ */
+public class LocationCache implements LocationListener {
+    /**
+     * a fix this much newer than the cached one always replaces it, whatever its accuracy
+     */
+    private static final long SIGNIFICANTLY_NEWER = 2 * 60 * 1000;
+
+    /**
+     * min time/distance between updates requested to the providers
+     */
+    private static final long MIN_UPDATE_TIME = 5000;
+    private static final float MIN_UPDATE_DISTANCE = 5;
+
+    private static LocationCache _instance = null;
+    private final LocationManager _locationManager;
+    private HandlerThread _thread = null;
+    private volatile Location _best = null;
+    private boolean _subscribed = false;
+    private int _updates = 0;
+
+    /**
+     * constructor (use instance())
+     * @param ctx a Context
+     */
+    protected LocationCache(Context ctx) {
+        _locationManager = (LocationManager)ctx.getSystemService(Context.LOCATION_SERVICE);
+    }
+
+    /**
+     * get the singleton
+     * @param ctx a Context
+     * @return
+     */
+    public static synchronized LocationCache instance(Context ctx) {
+        if (_instance == null) {
+            _instance = new LocationCache(ctx.getApplicationContext());
+        }
+        return _instance;
+    }
+
+    /**
+     * subscribe to all the enabled providers (no-op if already subscribed). the cache is seeded with the last
+     * known fixes, updates are received on a background thread
+     */
+    public synchronized void start() {
+        if (_subscribed) {
+            return;
+        }
+        if (_thread == null) {
+            _thread = new HandlerThread("VGCamera-location");
+            _thread.start();
+        }
+
+        Criteria locationCriteria = new Criteria();
+        locationCriteria.setAccuracy(Criteria.NO_REQUIREMENT);
+        List<String> providers = _locationManager.getProviders(locationCriteria, true);
+        if (providers == null || providers.isEmpty()) {
+            Log.w(this.getClass().getName(), "no location providers enabled");
+            return;
+        }
+        for (String provider : providers) {
+            // the last known fix may be null
+            offer(_locationManager.getLastKnownLocation(provider));
+            try {
+                _locationManager.requestLocationUpdates(provider, MIN_UPDATE_TIME, MIN_UPDATE_DISTANCE, this, _thread.getLooper());
+            } catch (Throwable e) {
+                Log.e(this.getClass().getName(), "requestLocationUpdates(), provider=" + provider, e);
+            }
+        }
+        _subscribed = true;
+        Log.d(this.getClass().getName(), "subscribed to " + providers);
+    }
+
+    /**
+     * unsubscribe, the cached fix is kept (and will age)
+     */
+    public synchronized void stop() {
+        if (!_subscribed) {
+            return;
+        }
+        _locationManager.removeUpdates(this);
+        _subscribed = false;
+        Log.d(this.getClass().getName(), "unsubscribed, " + _updates + " updates received");
+    }
+
+    /**
+     * get the cached fix, if it's good enough
+     * @param maxAge max age of the fix, in milliseconds
+     * @param maxAccuracy max accuracy radius, in meters (fixes with no accuracy are accepted)
+     * @return Location or null if there's no fix satisfying the policy
+     */
+    public Location get(long maxAge, float maxAccuracy) {
+        Location loc = _best;
+        if (loc == null) {
+            return null;
+        }
+        if (age(loc) > maxAge) {
+            return null;
+        }
+        if (loc.hasAccuracy() && loc.getAccuracy() > maxAccuracy) {
+            return null;
+        }
+        return loc;
+    }
+
+    /**
+     * get the cached fix with the configured policy
+     * @param ctx a Context
+     * @return Location or null
+     */
+    public Location get(Context ctx) {
+        AppConfiguration cfg = AppConfiguration.instance(ctx);
+        return get(cfg.locationMaxAge(), cfg.locationMaxAccuracy());
+    }
+
+    /**
+     * age of a fix
+     * @param loc a Location
+     * @return age in milliseconds
+     */
+    private static long age(Location loc) {
+        return (SystemClock.elapsedRealtimeNanos() - loc.getElapsedRealtimeNanos()) / 1000000;
+    }
+
+    /**
+     * keep a fix if it's better than the cached one
+     * @param loc a Location, may be null
+     */
+    private synchronized void offer(Location loc) {
+        if (loc == null) {
+            return;
+        }
+        if (isBetter(loc, _best)) {
+            _best = loc;
+        }
+    }
+
+    /**
+     * whether a new fix is better than the current one: much newer wins, then more accurate, then newer
+     * @param loc the new fix
+     * @param current the current fix, may be null
+     * @return
+     */
+    private static boolean isBetter(Location loc, Location current) {
+        if (current == null) {
+            return true;
+        }
+        long delta = loc.getElapsedRealtimeNanos() / 1000000 - current.getElapsedRealtimeNanos() / 1000000;
+        if (delta > SIGNIFICANTLY_NEWER) {
+            return true;
+        }
+        if (delta < -SIGNIFICANTLY_NEWER) {
+            return false;
+        }
+
+        float acc = loc.hasAccuracy() ? loc.getAccuracy() : Float.MAX_VALUE;
+        float curAcc = current.hasAccuracy() ? current.getAccuracy() : Float.MAX_VALUE;
+        if (acc < curAcc) {
+            return true;
+        }
+        return acc == curAcc && delta > 0;
+    }
+
+    @Override
+    public void onLocationChanged(Location location) {
+        _updates++;
+        offer(location);
+    }
+
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {
+
+    }
+
+    @Override
+    public void onProviderEnabled(String provider) {
+
+    }
+
+    @Override
+    public void onProviderDisabled(String provider) {
+
+    }
+}
@@ -3,12 +3,13 @@ package valerino.vgcamera;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.hardware.Camera;
 import android.media.MediaScannerConnection;
-import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.CountDownTimer;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -27,6 +28,9 @@ import com.google.android.glass.touchpad.GestureDetector;
 import com.google.android.glass.view.WindowUtils;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * valerino glass camera
@@ -39,7 +43,42 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
     private boolean _isShortPress = false;
     private int _timerCount = 0;
     private CountDownTimer _timer = null;
-    private File _tmpThumbnail = null;
+    private Bitmap _takenThumbnail = null;
+    private boolean _showingCards = false;
+    private Future<Bitmap> _thumbnailTask = null;
+    private final Handler _handler = new Handler();
+    private Runnable _backToPreview = null;
+    private final QrAnalyzer _qrAnalyzer = new QrAnalyzer();
+    private Runnable _hideScanResult = null;
+
+    /**
+     * max rate the preview is scanned for QR codes at (the scanner slows down by itself while nothing is in sight)
+     */
+    private static final int QR_SCAN_FPS = 10;
+
+    /**
+     * scan result shown for (ms)
+     */
+    private static final long SCAN_RESULT_TIMEOUT = 5000;
+
+    /**
+     * preview frames dumped when scanning starts on debug builds, to benchmark the scanner with QrBenchmark
+     */
+    private static final int QR_DUMP_FRAMES = 10;
+
+    /**
+     * max rate the preview is watched for motion at
+     */
+    private static final int MOTION_FPS = 5;
+
+    /**
+     * min time between pictures taken on motion (ms)
+     */
+    private static final long MOTION_PICTURE_COOLDOWN = 3000;
+
+    private final MotionAnalyzer _motionAnalyzer = new MotionAnalyzer(MOTION_FPS);
+    private boolean _motionRecording = false;
+    private long _lastMotionPicture = 0;
 
     /**
      * this is the operation mode in which the app is working
@@ -67,11 +106,10 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
     /**
      * update the zoom label, called by the OnZoomChangeListener
      *
-     * @param cam a Camera
+     * @param zoom the current zoom level
      */
-    private void updateZoomLabel(Camera cam) {
+    private void updateZoomLabel(int zoom) {
         TextView tv = (TextView) findViewById(R.id.zoomText);
-        int zoom = cam.getParameters().getZoom();
         if (zoom == 0) {
             // no zoom
             tv.setText("");
@@ -121,6 +159,22 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
         smoothImg.setVisibility(AppConfiguration.instance(this).smoothZoom() ? View.VISIBLE : View.INVISIBLE);
         saveImg.setVisibility(AppConfiguration.instance(this).autoSave() ? View.VISIBLE : View.INVISIBLE);
         qualityImg.setVisibility(AppConfiguration.instance(this).quality() == AppConfiguration.QUALITY.HIGH ? View.VISIBLE : View.INVISIBLE);
+        showTier();
+    }
+
+    /**
+     * show the governed quality tier in the overlay (only if the governor is enabled)
+     */
+    private void showTier() {
+        TextView tierText = (TextView) findViewById(R.id.tierText);
+        boolean show = (AppConfiguration.instance(this).overlayMode() == AppConfiguration.OVERLAY_MODE.SHOW_OVERLAY) &&
+                AppConfiguration.instance(this).governor();
+        if (!show) {
+            tierText.setVisibility(View.GONE);
+            return;
+        }
+        tierText.setText("Q:" + QualityGovernor.instance(this).tier().toString());
+        tierText.setVisibility(View.VISIBLE);
     }
 
     /**
@@ -152,6 +206,11 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
         s = getResources().getString(R.string.toggle_autosave);
         menu.findItem(R.id.toggle_autosave).setTitle(s + (enabled ? off : on));
 
+        // burst
+        enabled = AppConfiguration.instance(this).burstMode();
+        s = getResources().getString(R.string.toggle_burst);
+        menu.findItem(R.id.toggle_burst).setTitle(s + (enabled ? off : on));
+
         // overlay
         enabled = (AppConfiguration.instance(this).overlayMode() == AppConfiguration.OVERLAY_MODE.SHOW_OVERLAY);
         s = getResources().getString(R.string.toggle_overlay);
@@ -245,6 +304,285 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
         setupOverlay();
     }
 
+    /**
+     * toggle burst mode on/off
+     */
+    void toggleBurst() {
+        // toggle configuration param
+        AppConfiguration config = AppConfiguration.instance(this);
+        boolean enabled = config.burstMode();
+        config.setBurstMode(!enabled);
+    }
+
+    /**
+     * toggle zero shutter lag pictures on/off
+     */
+    void toggleZsl() {
+        // toggle configuration param
+        AppConfiguration config = AppConfiguration.instance(this);
+        boolean enabled = config.zslMode();
+        config.setZslMode(!enabled);
+
+        // start/stop collecting preview frames
+        CamController.instance(this).applyZslMode();
+    }
+
+    /**
+     * toggle segmented video recording on/off (applies from the next recording)
+     */
+    void toggleSegmented() {
+        // toggle configuration param
+        AppConfiguration config = AppConfiguration.instance(this);
+        boolean enabled = config.segmentedRecording();
+        config.setSegmentedRecording(!enabled);
+    }
+
+    /**
+     * toggle keeping a prepared recorder while in preview on/off
+     */
+    void toggleRecordReady() {
+        // toggle configuration param
+        AppConfiguration config = AppConfiguration.instance(this);
+        boolean enabled = config.recordReady();
+        config.setRecordReady(!enabled);
+
+        // prepare/drop the recorder
+        CamController.instance(this).applyRecordReady();
+    }
+
+    /**
+     * toggle pre-recording (recordings start with the last seconds before the trigger) on/off
+     */
+    void togglePreRecord() {
+        // toggle configuration param
+        AppConfiguration config = AppConfiguration.instance(this);
+        boolean enabled = config.preRecord();
+        config.setPreRecord(!enabled);
+
+        // start/stop encoding the preview frames
+        CamController.instance(this).applyZslMode();
+    }
+
+    /**
+     * toggle the quality governor on/off
+     */
+    void toggleGovernor() {
+        // toggle configuration param
+        AppConfiguration config = AppConfiguration.instance(this);
+        boolean enabled = config.governor();
+        config.setGovernor(!enabled);
+
+        // start/stop watching, the camera picks up the tier
+        if (enabled) {
+            QualityGovernor.instance(this).stop();
+        }
+        else {
+            QualityGovernor.instance(this).start();
+        }
+        CamController.instance(this).applyGovernor();
+        setupOverlay();
+    }
+
+    /**
+     * toggle scanning the preview for QR codes on/off
+     */
+    void toggleQrScan() {
+        // toggle configuration param
+        AppConfiguration config = AppConfiguration.instance(this);
+        boolean enabled = config.qrScan();
+        config.setQrScan(!enabled);
+
+        // start/stop feeding the scanner
+        applyQrScan();
+    }
+
+    /**
+     * register/unregister the QR scanner with the camera, as configured
+     */
+    private void applyQrScan() {
+        if (!AppConfiguration.instance(this).qrScan()) {
+            CamController.instance(this).removeFrameAnalyzer(_qrAnalyzer);
+            _qrAnalyzer.setOnScanListener(null);
+            showScanResult(null);
+            Log.d(this.getClass().getName(), "qr scanner: " + _qrAnalyzer.stats());
+            return;
+        }
+        _qrAnalyzer.setOnScanListener(new QrAnalyzer.OnScanListener() {
+            @Override
+            public void onScanned(String text) {
+                Utils.playSound(MainActivity.this, Sounds.SUCCESS);
+                showScanResult(text);
+            }
+        });
+        if (BuildConfig.DEBUG) {
+            _qrAnalyzer.dumpFrames(AppConfiguration.instance(this).tmpFolder(), QR_DUMP_FRAMES);
+        }
+        CamController.instance(this).addFrameAnalyzer(_qrAnalyzer, QR_SCAN_FPS);
+    }
+
+    /**
+     * show a scanned code as a card over the preview, for a while
+     * @param text the decoded text, or null to hide the card
+     */
+    private void showScanResult(String text) {
+        TextView scanText = (TextView) findViewById(R.id.scanText);
+        if (_hideScanResult != null) {
+            _handler.removeCallbacks(_hideScanResult);
+            _hideScanResult = null;
+        }
+        if (text == null) {
+            scanText.setVisibility(View.GONE);
+            return;
+        }
+        scanText.setText(text);
+        scanText.setVisibility(View.VISIBLE);
+        _hideScanResult = new Runnable() {
+            @Override
+            public void run() {
+                _hideScanResult = null;
+                findViewById(R.id.scanText).setVisibility(View.GONE);
+            }
+        };
+        _handler.postDelayed(_hideScanResult, SCAN_RESULT_TIMEOUT);
+    }
+
+    /**
+     * cycle the motion trigger between off, picture and video
+     */
+    void toggleMotionTrigger() {
+        // toggle configuration param
+        AppConfiguration config = AppConfiguration.instance(this);
+        AppConfiguration.MOTION_TRIGGER[] triggers = AppConfiguration.MOTION_TRIGGER.values();
+        config.setMotionTrigger(triggers[(config.motionTrigger().ordinal() + 1) % triggers.length]);
+
+        // start/stop watching
+        applyMotionTrigger();
+    }
+
+    /**
+     * cycle hdr pictures between on, on keeping the single shots, and off
+     */
+    void toggleHdr() {
+        // toggle configuration param
+        AppConfiguration config = AppConfiguration.instance(this);
+        if (!config.hdrMode()) {
+            config.setHdrMode(true);
+            config.setHdrKeepOriginals(false);
+        }
+        else if (!config.hdrKeepOriginals()) {
+            config.setHdrKeepOriginals(true);
+        }
+        else {
+            config.setHdrMode(false);
+            config.setHdrKeepOriginals(false);
+        }
+    }
+
+    /**
+     * toggle night shots on/off
+     */
+    void toggleNightShot() {
+        // toggle configuration param
+        AppConfiguration config = AppConfiguration.instance(this);
+        boolean enabled = config.nightShot();
+        config.setNightShot(!enabled);
+    }
+
+    /**
+     * cycle the media writer fsync policy
+     */
+    void toggleFsync() {
+        // toggle configuration param
+        AppConfiguration config = AppConfiguration.instance(this);
+        MediaWriter.FSYNC[] policies = MediaWriter.FSYNC.values();
+        config.setFsync(policies[(config.fsync().ordinal() + 1) % policies.length]);
+        MediaWriter.instance().setFsync(config.fsync());
+    }
+
+    /**
+     * register/unregister the motion detector with the camera, as configured
+     */
+    private void applyMotionTrigger() {
+        _motionRecording = false;
+        if (AppConfiguration.instance(this).motionTrigger() == AppConfiguration.MOTION_TRIGGER.OFF) {
+            CamController.instance(this).removeFrameAnalyzer(_motionAnalyzer);
+            _motionAnalyzer.setOnMotionListener(null);
+            Log.d(this.getClass().getName(), "motion detector: " + _motionAnalyzer.stats());
+            return;
+        }
+        _motionAnalyzer.setOnMotionListener(new MotionAnalyzer.OnMotionListener() {
+            @Override
+            public void onMotionStarted() {
+                onMotion(true);
+            }
+
+            @Override
+            public void onMotionStopped() {
+                onMotion(false);
+            }
+        });
+        _motionAnalyzer.reset();
+        CamController.instance(this).addFrameAnalyzer(_motionAnalyzer, MOTION_FPS);
+    }
+
+    /**
+     * take a picture or start/stop recording on motion, as configured (in preview mode only)
+     * @param started true if motion started, false if it stopped
+     */
+    private void onMotion(boolean started) {
+        CamController cam = CamController.instance(this);
+        AppConfiguration.MOTION_TRIGGER trigger = AppConfiguration.instance(this).motionTrigger();
+        if (_mode != OPERATION_MODE.MODE_PREVIEW || _showingCards) {
+            return;
+        }
+
+        if (trigger == AppConfiguration.MOTION_TRIGGER.PHOTO) {
+            long now = SystemClock.uptimeMillis();
+            if (!started || cam.mode() != CamController.CAM_MODE.MODE_PHOTO || cam.pendingCaptures() > 0 ||
+                    now - _lastMotionPicture < MOTION_PICTURE_COOLDOWN) {
+                return;
+            }
+            Log.d(this.getClass().getName(), "motion, taking a picture");
+            _lastMotionPicture = now;
+            takePicture(this);
+
+            // the preview restarts, and the scene may be different when it does
+            _motionAnalyzer.reset();
+        }
+        else if (trigger == AppConfiguration.MOTION_TRIGGER.VIDEO) {
+            boolean recording = (cam.mode() == CamController.CAM_MODE.MODE_VIDEO);
+            if (started && !recording) {
+                // the motion detector must keep seeing the frames to stop it, so not on the MediaRecorder engine
+                Log.d(this.getClass().getName(), "motion, start recording");
+                _motionRecording = true;
+                startRecording(true);
+            }
+            else if (!started && recording && _motionRecording) {
+                // only recordings started by motion are stopped
+                Log.d(this.getClass().getName(), "no more motion, stop recording");
+                _motionRecording = false;
+                stopRecording(this);
+            }
+        }
+    }
+
+    /**
+     * toggle the video recording engine between MediaRecorder and MediaCodec (applies from the next recording)
+     */
+    void toggleEngine() {
+        // toggle configuration param
+        AppConfiguration config = AppConfiguration.instance(this);
+        if (config.engine() == AppConfiguration.ENGINE.MEDIA_CODEC) {
+            config.setEngine(AppConfiguration.ENGINE.MEDIA_RECORDER);
+        }
+        else {
+            config.setEngine(AppConfiguration.ENGINE.MEDIA_CODEC);
+        }
+
+        // a ready recorder is for the MediaRecorder engine only
+        CamController.instance(this).applyRecordReady();
+    }
+
     /**
      * toggle geotagging on/off
      */
@@ -254,6 +592,9 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
         boolean enabled = config.geoTagging();
         config.setGeotagging(!enabled);
 
+        // start/stop the location subscription
+        CamController.instance(this).applyGeoTagging();
+
         // update overlay
         setupOverlay();
     }
@@ -280,60 +621,85 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
     }
 
     /**
-     * move media to the given storage folder
+     * move media to the given storage folder, in background (rename, or copy if not on the same filesystem).
+     * the move owns the source from now on: it's gone once moved, and left where it is if the move fails
      *
      * @param ctx a Context
      * @param src the source media
-     * @return File in the media storage folder, or null
+     * @param callback called on the UI thread once the move is done, with the File in the media storage folder or null
      */
-    private File moveMediaToStorage(final Context ctx, File src) {
+    private void moveMediaToStorage(final Context ctx, final File src, final TaskScheduler.Callback<File> callback) {
         if (src == null) {
             Log.e(this.getClass().getName(), "moveMediaToStorage(), src=null");
-            return null;
+            callback.onCompleted(null);
+            return;
         }
         // get file in the storage folder
         final File f = new File(AppConfiguration.instance(this).storageFolder(), src.getName());
-        if (!src.renameTo(f)) {
-            Log.e(this.getClass().getName(), "can't rename " + src.getAbsolutePath() + " to " + f.getAbsolutePath());
-            return null;
-        }
-
-        AsyncTask t = new AsyncTask() {
+        if (TaskScheduler.instance().submit(TaskScheduler.LANE.BACKGROUND, new TaskScheduler.Task<File>() {
             @Override
-            protected Object doInBackground(Object[] params) {
-                // ok, update media library too
-                Log.d(this.getClass().getName(), "saved media: " + f.getAbsolutePath());
+            public File run() {
+                if (!f.equals(src)) {
+                    try {
+                        FileIO.move(src, f);
+                    } catch (IOException e) {
+                        Log.e(MainActivity.class.getName(), "can't move " + src.getAbsolutePath() + " to " + f.getAbsolutePath(), e);
+                        return null;
+                    }
+                }
+                Log.d(MainActivity.class.getName(), "saved media: " + f.getAbsolutePath());
+
+                // update media library too, it's just housekeeping
                 MediaScannerConnection.scanFile(ctx, new String[]{f.getAbsolutePath()}, null, null);
-                return null;
+                return f;
             }
-        };
-        t.execute();
-        return f;
+        }, callback) == null) {
+            Log.e(this.getClass().getName(), "can't queue the move, media left in " + src.getAbsolutePath());
+            callback.onCompleted(null);
+        }
     }
 
     /**
-     * save taken media and restart preview
+     * save taken media, handing it over to the move (so cleanup() won't delete it meanwhile)
      *
-     * @return File the saved media, or null
+     * @param callback called on the UI thread once saved, with the saved media or null
      */
-    private File saveMedia() {
+    private void saveMedia(TaskScheduler.Callback<File> callback) {
         // save the captured image/video
-        File f = moveMediaToStorage(this, _tmpMedia);
-        return f;
+        File src = _tmpMedia;
+        _tmpMedia = null;
+        moveMediaToStorage(this, src, callback);
+    }
+
+    /**
+     * a callback showing the outcome of saveMedia()
+     *
+     * @param ctx a Context
+     * @return TaskScheduler.Callback
+     */
+    private TaskScheduler.Callback<File> saveStatus(final Context ctx) {
+        return new TaskScheduler.Callback<File>() {
+            @Override
+            public void onCompleted(File result) {
+                statusShow(ctx, result != null ? DONE_STATUS.STATUS_OK : DONE_STATUS.STATUS_ERROR);
+            }
+        };
     }
 
     /**
      * delete cached media
      */
     private void cleanup() {
+        if (_thumbnailTask != null) {
+            // not needed anymore
+            _thumbnailTask.cancel(false);
+            _thumbnailTask = null;
+        }
         if (_tmpMedia != null) {
             _tmpMedia.delete();
             _tmpMedia = null;
         }
-        if (_tmpThumbnail != null) {
-            _tmpThumbnail.delete();
-            _tmpThumbnail = null;
-        }
+        _takenThumbnail = null;
     }
 
     /**
@@ -488,7 +854,16 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
      * start recording a video
      */
     private void startRecording() {
-        CamController cam = CamController.instance(this);
+        startRecording(false);
+    }
+
+    /**
+     * start recording a video
+     *
+     * @param keepFrames true if the frame analyzers must keep seeing the preview while recording (motion trigger)
+     */
+    private void startRecording(boolean keepFrames) {
+        final CamController cam = CamController.instance(this);
         if (cam.mode() == CamController.CAM_MODE.MODE_VIDEO) {
             // no effect
             statusShow(this, DONE_STATUS.STATUS_UNSUPPORTED);
@@ -496,20 +871,29 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
             return;
         }
 
-        // start recording
-        if (cam.camStartRecord()) {
-            // signal start
-            statusShow(this, DONE_STATUS.STATUS_START_VIDEO);
+        // start recording, the camera thread answers
+        cam.camStartRecord(keepFrames, new CameraThread.Callback<Boolean>() {
+            @Override
+            public void onCompleted(Boolean started) {
+                if (started == null || !started) {
+                    // nothing to stop on motion
+                    _motionRecording = false;
+                    return;
+                }
+
+                // signal start
+                statusShow(MainActivity.this, DONE_STATUS.STATUS_START_VIDEO);
 
-            // change mode icon to video
-            ImageView modeImg = (ImageView) findViewById(R.id.modeImageView);
-            modeImg.setImageResource(R.drawable.ic_video_50);
-            setupOverlay();
+                // change mode icon to video
+                ImageView modeImg = (ImageView) findViewById(R.id.modeImageView);
+                modeImg.setImageResource(R.drawable.ic_video_50);
+                setupOverlay();
 
-            // start recording timer
-            showRecordingTimer(true);
-            startRecordingTimer();
-        }
+                // start recording timer
+                showRecordingTimer(true);
+                startRecordingTimer();
+            }
+        });
     }
 
     /**
@@ -531,51 +915,64 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
         // stop timer
         stopRecordingTimer();
 
-        // use an async task
-        AsyncTask<Void, Void, File> t = new AsyncTask<Void, Void, File>() {
+        // stop the recorder on the camera thread, then generate the thumbnail
+        CamController.instance(ctx).camStopRecord(false, new CameraThread.Callback<File>() {
             @Override
-            protected File doInBackground(Void... params) {
-                // get the currently recorded media
-                File f = CamController.instance(ctx).camStopRecord(false);
-                if (f == null) {
-                    return null;
-                }
+            public void onCompleted(File f) {
+                onVideoRecorded(ctx, f);
+            }
+        });
+    }
 
-                // store it as a global, for commodity ....
-                _tmpMedia = f;
+    /**
+     * handle a recorded video
+     *
+     * @param ctx a Context
+     * @param video the recorded video (temporary file), or null on error
+     */
+    private void onVideoRecorded(final Context ctx, final File video) {
+        if (video == null) {
+            // some error here
+            statusShow(ctx, DONE_STATUS.STATUS_ERROR);
+            return;
+        }
 
-                // generate thumbnail
-                _tmpThumbnail = Utils.generateThumbnail(_tmpMedia, new File (AppConfiguration.instance(ctx).tmpFolder(), "thumbnail.jpg"));
-                return f;
-            }
+        // store it as a global, for commodity ....
+        _tmpMedia = video;
+
+        // we have a video
+        if (AppConfiguration.instance(ctx).autoSave()) {
+            // directly save, no thumbnail needed
+            saveMedia(saveStatus(ctx));
+            showRecordingTimer(false);
 
+            // back to preview
+            backToPreviewMode(ctx);
+            return;
+        }
+
+        // generate the thumbnail off the UI thread
+        _thumbnailTask = TaskScheduler.instance().submit(TaskScheduler.LANE.UI_FEEDBACK, new TaskScheduler.Task<Bitmap>() {
             @Override
-            protected void onPostExecute(File f) {
-                if (f == null) {
-                    // some error here
-                    statusShow(ctx, DONE_STATUS.STATUS_ERROR);
+            public Bitmap run() {
+                // handed over in memory, nothing written
+                return ThumbnailEngine.instance().decodeForDisplay(video);
+            }
+        }, new TaskScheduler.Callback<Bitmap>() {
+            @Override
+            public void onCompleted(Bitmap thumbnail) {
+                _thumbnailTask = null;
+                _takenThumbnail = thumbnail;
+                if (_tmpMedia == null) {
+                    // discarded meanwhile
                     return;
                 }
 
-                // we have a video
-                if (AppConfiguration.instance(ctx).autoSave()) {
-                    // directly save
-                    boolean ok = (saveMedia() != null);
-                    statusShow(ctx, ok ? DONE_STATUS.STATUS_OK : DONE_STATUS.STATUS_ERROR);
-                    showRecordingTimer(false);
-
-                    // back to preview
-                    backToPreviewMode(ctx);
-                } else {
-                    // user will take action
-                    showTakenThumbnail(true);
-                    switchPanelMenu(OPERATION_MODE.MODE_TAKEN);
-                }
+                // user will take action
+                showTakenThumbnail(true);
+                switchPanelMenu(OPERATION_MODE.MODE_TAKEN);
             }
-        };
-
-        // run the task
-        t.execute();
+        });
     }
 
     /**
@@ -586,9 +983,9 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
     private void showTakenThumbnail(boolean show) {
         ImageView iv = (ImageView) findViewById(R.id.takenImageView);
         if (show) {
-            // show thumbnail (and delete the temp file)
-            if (Utils.setMediaThumbnail(_tmpThumbnail, iv) == 0) {
-                _tmpThumbnail.delete();
+            // show thumbnail
+            if (_takenThumbnail != null) {
+                iv.setImageBitmap(_takenThumbnail);
                 iv.setVisibility(View.VISIBLE);
 
                 // show type of media taken
@@ -600,8 +997,9 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
                 }
             }
         } else {
-            // hide the thumbnail view so preview can get in front
+            // hide the thumbnail view so preview can get in front (and let go of the bitmap, it will be reused)
             iv.setVisibility(View.GONE);
+            iv.setImageDrawable(null);
             statusHide();
         }
     }
@@ -619,52 +1017,194 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
             return;
         }
 
-        // use an async task, since camTakePicture() would block the UI thread
-        AsyncTask<Void, Void, File> t = new AsyncTask<Void, Void, File>() {
+        if (AppConfiguration.instance(ctx).hdrMode()) {
+            // shoot a bracketed burst and merge it instead
+            takeHdr(ctx);
+            return;
+        }
+
+        if (AppConfiguration.instance(ctx).burstMode()) {
+            // shoot a burst instead
+            takeBurst(ctx);
+            return;
+        }
+
+        if (!AppConfiguration.instance(ctx).autoSave() && CamController.instance(ctx).pendingCaptures() > 0) {
+            // without autosave the user must handle each picture, don't queue more
+            statusShow(this, DONE_STATUS.STATUS_UNSUPPORTED);
+            return;
+        }
+
+        // queue the request, the camera answers asynchronously (will stop the preview)
+        CaptureRequest.OnCaptureListener listener = new CaptureRequest.OnCaptureListener() {
             @Override
-            protected File doInBackground(Void... params) {
-                // take picture, will stop the preview
-                File f = CamController.instance(ctx).camTakePicture();
-                if (f == null) {
-                    return null;
+            public void onCaptureCompleted(CaptureRequest request, File f) {
+                onPictureTaken(ctx, f);
+            }
+
+            @Override
+            public void onCaptureFailed(CaptureRequest request, CaptureRequest.STATUS status) {
+                // some error here
+                Log.e(MainActivity.class.getName(), "takePicture() failed, status=" + status);
+                statusShow(ctx, DONE_STATUS.STATUS_ERROR);
+            }
+        };
+        if (AppConfiguration.instance(ctx).nightShot()) {
+            // several shots merged in background, delivered as a single picture
+            if (BuildConfig.DEBUG) {
+                // keep the frame sets for NightBenchmark
+                CamController.instance(ctx).dumpNightShots(AppConfiguration.instance(ctx).tmpFolder());
+            }
+            CamController.instance(ctx).camTakeNightShot(listener);
+        }
+        else {
+            CamController.instance(ctx).camTakePicture(listener);
+        }
+    }
+
+    /**
+     * take a burst of pictures, they're always saved directly to the storage folder
+     *
+     * @param ctx a Context
+     */
+    private void takeBurst(final Context ctx) {
+        int count = AppConfiguration.instance(ctx).burstCount();
+        CameraThread.Callback<Boolean> started = new CameraThread.Callback<Boolean>() {
+            @Override
+            public void onCompleted(Boolean started) {
+                if (started == null || !started) {
+                    statusShow(ctx, DONE_STATUS.STATUS_UNSUPPORTED);
+                    return;
                 }
+                statusShow(ctx, DONE_STATUS.STATUS_GOT_PICTURE, true);
+            }
+        };
+        CamController.instance(ctx).camTakeBurst(count, started, new CamController.OnBurstListener() {
+            @Override
+            public void onBurstCompleted(final List<File> files, int requested) {
+                // update media library
+                TaskScheduler.instance().submit(TaskScheduler.LANE.BACKGROUND, new Runnable() {
+                    @Override
+                    public void run() {
+                        String[] paths = new String[files.size()];
+                        for (int i = 0; i < paths.length; i++) {
+                            paths[i] = files.get(i).getAbsolutePath();
+                        }
+                        MediaScannerConnection.scanFile(ctx, paths, null, null);
+                    }
+                });
 
-                // store it as a global, for commodity ....
-                _tmpMedia = f;
+                // signal and back to preview
+                Log.d(MainActivity.class.getName(), "burst saved " + files.size() + "/" + requested + " pictures");
+                statusShow(ctx, files.size() == requested ? DONE_STATUS.STATUS_OK : DONE_STATUS.STATUS_ERROR);
+                backToPreviewMode(ctx);
+            }
+        });
+    }
 
-                // generate thumbnail
-                _tmpThumbnail = Utils.generateThumbnail(_tmpMedia, new File (AppConfiguration.instance(ctx).tmpFolder(), "thumbnail.jpg"));
-                return f;
+    /**
+     * take an hdr picture: the reference shot is shown while the merge runs in background, then the merged picture
+     * (and the single shots, if configured) is saved directly to the storage folder
+     *
+     * @param ctx a Context
+     */
+    private void takeHdr(final Context ctx) {
+        CameraThread.Callback<Boolean> started = new CameraThread.Callback<Boolean>() {
+            @Override
+            public void onCompleted(Boolean started) {
+                if (started == null || !started) {
+                    statusShow(ctx, DONE_STATUS.STATUS_UNSUPPORTED);
+                    return;
+                }
+                statusShow(ctx, DONE_STATUS.STATUS_GOT_PICTURE, true);
+            }
+        };
+        CamController.instance(ctx).camTakeHdr(started, new CamController.OnHdrListener() {
+            @Override
+            public void onHdrPreview(Bitmap thumbnail) {
+                if (_mode == OPERATION_MODE.MODE_TAKEN) {
+                    // the user is handling another picture
+                    return;
+                }
+                ImageView iv = (ImageView) findViewById(R.id.takenImageView);
+                iv.setImageBitmap(thumbnail);
+                iv.setVisibility(View.VISIBLE);
             }
 
             @Override
-            protected void onPostExecute(File f) {
-                if (f == null) {
-                    // some error here
-                    statusShow(ctx, DONE_STATUS.STATUS_ERROR);
+            public void onHdrCompleted(final File merged, final List<File> originals) {
+                if (merged != null) {
+                    // update media library
+                    TaskScheduler.instance().submit(TaskScheduler.LANE.BACKGROUND, new Runnable() {
+                        @Override
+                        public void run() {
+                            String[] paths = new String[originals.size() + 1];
+                            paths[0] = merged.getAbsolutePath();
+                            for (int i = 0; i < originals.size(); i++) {
+                                paths[i + 1] = originals.get(i).getAbsolutePath();
+                            }
+                            MediaScannerConnection.scanFile(ctx, paths, null, null);
+                        }
+                    });
+                }
+
+                // signal and back to preview
+                Log.d(MainActivity.class.getName(), "hdr " + (merged != null ? "saved " + merged.getAbsolutePath() : "failed") +
+                        ", " + originals.size() + " shots saved");
+                if (_mode == OPERATION_MODE.MODE_TAKEN) {
+                    // the user is handling another picture, leave the taken screen alone
                     return;
                 }
+                findViewById(R.id.takenImageView).setVisibility(View.GONE);
+                statusShow(ctx, merged != null ? DONE_STATUS.STATUS_OK : DONE_STATUS.STATUS_ERROR);
+                backToPreviewMode(ctx);
+            }
+        });
+    }
 
-                // we have a picture
-                if (AppConfiguration.instance(ctx).autoSave()) {
-                    // directly save and restart preview (taking picture disable the preview)
-                    boolean ok = (saveMedia() != null);
-                    statusShow(ctx, ok ? DONE_STATUS.STATUS_OK : DONE_STATUS.STATUS_ERROR);
+    /**
+     * handle a taken picture
+     *
+     * @param ctx a Context
+     * @param picture the taken picture (temporary file)
+     */
+    private void onPictureTaken(final Context ctx, final File picture) {
+        // store it as a global, for commodity ....
+        _tmpMedia = picture;
 
-                    // back to preview
-                    backToPreviewMode(ctx);
-                } else {
-                    // show a thumbnail, and user will take action
-                    showTakenThumbnail(true);
+        if (AppConfiguration.instance(ctx).autoSave()) {
+            // directly save and restart preview (taking picture disable the preview), no thumbnail needed
+            saveMedia(saveStatus(ctx));
 
-                    // user will take action
-                    switchPanelMenu(OPERATION_MODE.MODE_TAKEN);
-                }
+            // back to preview
+            backToPreviewMode(ctx);
+            return;
+        }
+
+        // generate the thumbnail off the UI thread
+        _thumbnailTask = TaskScheduler.instance().submit(TaskScheduler.LANE.UI_FEEDBACK, new TaskScheduler.Task<Bitmap>() {
+            @Override
+            public Bitmap run() {
+                // handed over in memory, nothing written
+                return ThumbnailEngine.instance().decodeForDisplay(picture);
             }
-        };
+        }, new TaskScheduler.Callback<Bitmap>() {
+            @Override
+            public void onCompleted(Bitmap thumbnail) {
+                _thumbnailTask = null;
+                _takenThumbnail = thumbnail;
+                if (_tmpMedia == null) {
+                    // discarded meanwhile
+                    return;
+                }
+
+                // show a thumbnail, and user will take action
+                showTakenThumbnail(true);
 
-        // run the task
-        t.execute();
+                // user will take action
+                switchPanelMenu(OPERATION_MODE.MODE_TAKEN);
+            }
+        });
     }
 
     /**
@@ -680,8 +1220,7 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
 
             case R.id.save:
                 // save the captured image/video (preview will be restarted automatically)
-                boolean ok = (saveMedia() != null);
-                statusShow(this, ok ? DONE_STATUS.STATUS_OK : DONE_STATUS.STATUS_ERROR);
+                saveMedia(saveStatus(this));
                 break;
 
             case R.id.discard:
@@ -754,6 +1293,66 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
                 toggleAutoSave();
                 break;
 
+            case R.id.toggle_burst:
+                // toggle burst mode on/off
+                toggleBurst();
+                break;
+
+            case R.id.toggle_zsl:
+                // toggle zero shutter lag on/off
+                toggleZsl();
+                break;
+
+            case R.id.toggle_segmented:
+                // toggle segmented recording on/off
+                toggleSegmented();
+                break;
+
+            case R.id.toggle_record_ready:
+                // toggle keeping the recorder ready on/off
+                toggleRecordReady();
+                break;
+
+            case R.id.toggle_prerecord:
+                // toggle pre-recording on/off
+                togglePreRecord();
+                break;
+
+            case R.id.toggle_engine:
+                // toggle the recording engine
+                toggleEngine();
+                break;
+
+            case R.id.toggle_governor:
+                // toggle the quality governor
+                toggleGovernor();
+                break;
+
+            case R.id.toggle_qr_scan:
+                // toggle qr code scanning
+                toggleQrScan();
+                break;
+
+            case R.id.toggle_motion:
+                // cycle the motion trigger
+                toggleMotionTrigger();
+                break;
+
+            case R.id.toggle_hdr:
+                // cycle hdr pictures
+                toggleHdr();
+                break;
+
+            case R.id.toggle_night:
+                // toggle night shots
+                toggleNightShot();
+                break;
+
+            case R.id.toggle_fsync:
+                // cycle the fsync policy
+                toggleFsync();
+                break;
+
             case R.id.take_picture:
                 // take a picture
                 takePicture(this);
@@ -846,12 +1445,38 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
         // setup the listeners to show/hide the preview and zoom label
         sv.getHolder().addCallback(CamController.instance(this));
         CamController.instance(this).setOnZoomChangeListener(this);
+
+        // finished segments of a segmented recording
+        CamController.instance(this).setOnSegmentListener(new CamController.OnSegmentListener() {
+            @Override
+            public void onSegmentCompleted(File segment, int index) {
+                // saved straight away, recording goes on
+                final int idx = index;
+                moveMediaToStorage(MainActivity.this, segment, new TaskScheduler.Callback<File>() {
+                    @Override
+                    public void onCompleted(File result) {
+                        Log.d(MainActivity.class.getName(), "segment " + idx + (result != null ? " saved" : " not saved"));
+                    }
+                });
+            }
+
+            @Override
+            public void onRecordingInterrupted(File lastSegment) {
+                // handle as a normal stop
+                statusShow(MainActivity.this, DONE_STATUS.STATUS_STOP_VIDEO);
+                stopRecordingTimer();
+                onVideoRecorded(MainActivity.this, lastSegment);
+            }
+        });
     }
 
     @Override
     protected void onCreate(Bundle bundle) {
         super.onCreate(bundle);
 
+        // follow the pooled buffers in debug builds, before anything gets one
+        BufferPool.setTracking(BuildConfig.DEBUG);
+
         // ask for 'ok glass' prompt to accept commands
         getWindow().requestFeature(WindowUtils.FEATURE_VOICE_COMMANDS);
         _mode = OPERATION_MODE.MODE_PREVIEW;
@@ -862,6 +1487,24 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
         // set the overlay labels if we're in overlay mode
         setupOverlay();
 
+        // reflect quality tier changes in the overlay and the camera
+        QualityGovernor.instance(this).setOnTierChangedListener(new QualityGovernor.OnTierChangedListener() {
+            @Override
+            public void onTierChanged(QualityGovernor.TIER tier, String reason) {
+                showTier();
+                CamController.instance(MainActivity.this).applyGovernor();
+            }
+        });
+
+        // scan the preview for QR codes, if enabled
+        applyQrScan();
+
+        // take pictures/record on motion, if enabled
+        applyMotionTrigger();
+
+        // pictures are written in background, forced to flash as configured
+        MediaWriter.instance().setFsync(AppConfiguration.instance(this).fsync());
+
         // set touch/gestures detector, will be catched in onGenericMotionEvent() which, in turn,
         // will use the gesture detector's listener logic to react.
         _gestureDetector = new GestureDetector(this);
@@ -871,6 +1514,8 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
     @Override
     protected void onResume() {
         Log.d(this.getClass().getName(), "vgcamera is resuming");
+        _showingCards = false;
+        QualityGovernor.instance(this).start();
         super.onResume();
     }
 
@@ -879,10 +1524,22 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
         Log.d(this.getClass().getName(), "vgcamera is destroying");
 
         // stop camera if it's recording, deleting temporary files
-        CamController.instance(this).camStopRecord(true);
+        CamController.instance(this).camStopRecord(true, null);
 
         // cleanup
         cleanup();
+        if (_backToPreview != null) {
+            _handler.removeCallbacks(_backToPreview);
+            _backToPreview = null;
+        }
+        Log.d(this.getClass().getName(), "task lanes: " + TaskScheduler.instance().stats());
+        Log.d(this.getClass().getName(), "thumbnails: " + ThumbnailEngine.instance().stats());
+        QualityGovernor.instance(this).setOnTierChangedListener(null);
+        CamController.instance(this).removeFrameAnalyzer(_qrAnalyzer);
+        _qrAnalyzer.setOnScanListener(null);
+        showScanResult(null);
+        CamController.instance(this).removeFrameAnalyzer(_motionAnalyzer);
+        _motionAnalyzer.setOnMotionListener(null);
 
         // do some garbage collection too
         System.gc();
@@ -898,16 +1555,29 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
     @Override
     protected void onPause() {
         Log.d(this.getClass().getName(), "vgcamera is pausing");
+        if (!_showingCards) {
+            // we're really leaving, release the camera (it's kept opened while our own cards are shown)
+            CamController.instance(this).release();
+            QualityGovernor.instance(this).stop();
+        }
         super.onPause();
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        Log.w(this.getClass().getName(), "onTrimMemory(), level=" + level);
+        CamController.instance(this).onTrimMemory(level);
+        ThumbnailEngine.instance().trim();
+        super.onTrimMemory(level);
+    }
+
     @Override
     public void onZoomChange(int i, boolean b, Camera camera) {
         // update the zoom label
-        updateZoomLabel(camera);
+        updateZoomLabel(i);
 
         // update the saved zoom
-        CamController.instance(this).saveCurrentZoom(camera.getParameters().getZoom());
+        CamController.instance(this).saveCurrentZoom(i);
     }
 
     /**
@@ -923,6 +1593,7 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
             // in taken mode, show save/discard/share
             it = new Intent(this, TakenScroller.class);
         }
+        _showingCards = true;
         startActivityForResult(it, 1);
     }
 
@@ -932,16 +1603,15 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
      */
     private void backToPreviewMode(final Context ctx) {
         Log.d(this.getClass().getName(), "backToPreviewMode()");
-        AsyncTask<Void,Void,Void> t = new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                Utils.sleepThread(1000);
-                return null;
-            }
 
+        // leave the status visible for a second, a newer call supersedes a pending one
+        if (_backToPreview != null) {
+            _handler.removeCallbacks(_backToPreview);
+        }
+        _backToPreview = new Runnable() {
             @Override
-            protected void onPostExecute(Void aVoid) {
-                Log.d(this.getClass().getName(), "backToPreviewMode() postExecute()");
+            public void run() {
+                Log.d(MainActivity.class.getName(), "backToPreviewMode() delayed");
                 statusHide();
 
                 if (!AppConfiguration.instance(ctx).autoSave()) {
@@ -958,15 +1628,18 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
                     setupOverlay();
                     showRecordingTimer(false);
 
-                    // and restart preview
-                    CamController.instance(ctx).startPreview();
+                    // and restart preview (unless more pictures are queued, the camera is still busy with them)
+                    if (CamController.instance(ctx).pendingCaptures() == 0) {
+                        CamController.instance(ctx).startPreview();
+                    }
                 }
 
                 // in the end, switch operation mode back to preview
                 switchPanelMenu(OPERATION_MODE.MODE_PREVIEW);
+                _backToPreview = null;
             }
         };
-        t.execute();
+        _handler.postDelayed(_backToPreview, 1000);
     }
 
     @Override
@@ -1060,8 +1733,12 @@ public class MainActivity extends Activity implements Camera.OnZoomChangeListene
                         }
                         else {
                             // in video mode we can't interrupt the preview
-                            File f = saveMedia();
-                            statusShow(this, f != null ? DONE_STATUS.STATUS_OK : DONE_STATUS.STATUS_UNSUPPORTED, true);
+                            saveMedia(new TaskScheduler.Callback<File>() {
+                                @Override
+                                public void onCompleted(File result) {
+                                    statusShow(MainActivity.this, result != null ? DONE_STATUS.STATUS_OK : DONE_STATUS.STATUS_UNSUPPORTED, true);
+                                }
+                            });
 
                             // get back to preview
                             backToPreviewMode(this);
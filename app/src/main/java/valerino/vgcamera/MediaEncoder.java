@@ -0,0 +1,232 @@
+package valerino.vgcamera;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * a MediaCodec encoder running on its own thread, which feeds it (if the subclass pulls its input) and drains its
+ * output to an OnEncodedFrameListener
+ */
+public abstract class MediaEncoder {
+    /**
+     * receives the encoder output, on the encoder thread
+     */
+    public interface OnEncodedFrameListener {
+        /**
+         * the output format is known (it holds the codec config, needed by the muxer)
+         * @param encoder the encoder
+         * @param format the format
+         */
+        void onFormatChanged(MediaEncoder encoder, MediaFormat format);
+
+        /**
+         * an encoded frame (codec config buffers are not delivered)
+         * @param encoder the encoder
+         * @param data the frame, from position() to limit(), valid only during the call
+         * @param info frame info
+         */
+        void onEncodedFrame(MediaEncoder encoder, ByteBuffer data, MediaCodec.BufferInfo info);
+    }
+
+    /**
+     * how long the thread waits for output, if the subclass doesn't feed
+     */
+    protected static final long DRAIN_TIMEOUT_US = 10000;
+
+    private final String _name;
+    private final OnEncodedFrameListener _listener;
+    protected volatile MediaCodec _codec = null;
+    private Thread _thread = null;
+    private volatile boolean _running = false;
+    private int _encoded = 0;
+    private long _bytes = 0;
+
+    /**
+     * constructor
+     * @param name name of the encoder thread
+     * @param listener receives the output
+     */
+    protected MediaEncoder(String name, OnEncodedFrameListener listener) {
+        _name = name;
+        _listener = listener;
+    }
+
+    /**
+     * create and configure the codec
+     * @return the codec, not started yet
+     * @throws Exception
+     */
+    protected abstract MediaCodec createCodec() throws Exception;
+
+    /**
+     * the codec has been started, before the thread starts
+     * @param codec the codec
+     * @return false to abort
+     */
+    protected boolean onStarted(MediaCodec codec) {
+        return true;
+    }
+
+    /**
+     * the thread has been stopped, before the codec is released
+     */
+    protected void onStopped() {
+    }
+
+    /**
+     * feed the codec, on the encoder thread (for encoders pulling their input)
+     * @return how long to wait for output afterwards, in microseconds
+     */
+    protected long feed() {
+        return DRAIN_TIMEOUT_US;
+    }
+
+    /**
+     * start the codec and the encoder thread
+     * @return false on error
+     */
+    public synchronized boolean start() {
+        if (_running) {
+            return true;
+        }
+        MediaCodec codec = null;
+        try {
+            codec = createCodec();
+            codec.start();
+            if (!onStarted(codec)) {
+                codec.stop();
+                codec.release();
+                return false;
+            }
+        } catch (Throwable e) {
+            Log.e(this.getClass().getName(), "can't start the encoder", e);
+            if (codec != null) {
+                codec.release();
+            }
+            return false;
+        }
+
+        _codec = codec;
+        _running = true;
+        _thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, _name);
+        _thread.start();
+        return true;
+    }
+
+    /**
+     * stop the thread and release the codec
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            if (!_running) {
+                return;
+            }
+            _running = false;
+            t = _thread;
+            _thread = null;
+        }
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Log.e(this.getClass().getName(), "join()", e);
+        }
+
+        synchronized (this) {
+            onStopped();
+            MediaCodec codec = _codec;
+            _codec = null;
+            try {
+                codec.stop();
+            } catch (Throwable e) {
+                Log.e(this.getClass().getName(), "codec.stop()", e);
+            }
+            codec.release();
+        }
+    }
+
+    /**
+     * whether the encoder is running
+     * @return
+     */
+    public boolean isRunning() {
+        return _running;
+    }
+
+    /**
+     * ask the encoder for a keyframe asap
+     */
+    public void requestKeyFrame() {
+        MediaCodec codec = _codec;
+        if (codec == null) {
+            return;
+        }
+        Bundle b = new Bundle();
+        b.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            codec.setParameters(b);
+        } catch (Throwable e) {
+            Log.e(this.getClass().getName(), "setParameters()", e);
+        }
+    }
+
+    /**
+     * feed and drain, on the encoder thread
+     */
+    private void loop() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer[] outputs = _codec.getOutputBuffers();
+        try {
+            while (_running) {
+                long timeout = feed();
+                for (;;) {
+                    int idx = _codec.dequeueOutputBuffer(info, timeout);
+                    timeout = 0;
+                    if (idx == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                        break;
+                    }
+                    if (idx == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                        outputs = _codec.getOutputBuffers();
+                        continue;
+                    }
+                    if (idx == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                        _listener.onFormatChanged(this, _codec.getOutputFormat());
+                        continue;
+                    }
+                    if (idx < 0) {
+                        break;
+                    }
+
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0) {
+                        ByteBuffer b = outputs[idx];
+                        b.position(info.offset);
+                        b.limit(info.offset + info.size);
+                        _encoded++;
+                        _bytes += info.size;
+                        _listener.onEncodedFrame(this, b, info);
+                    }
+                    _codec.releaseOutputBuffer(idx, false);
+                }
+            }
+        } catch (IllegalStateException e) {
+            Log.e(this.getClass().getName(), "encoder failed", e);
+        }
+    }
+
+    /**
+     * counters, for logging
+     * @return
+     */
+    public String stats() {
+        return "encoded=" + _encoded + ", bytes=" + _bytes;
+    }
+}
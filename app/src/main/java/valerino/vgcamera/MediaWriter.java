@@ -0,0 +1,304 @@
+package valerino.vgcamera;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * write-behind stage between capture and flash: encoded buffers are queued and written by a dedicated thread through
+ * a FileChannel, to a partial file renamed in place once complete (so nobody sees half a picture). the queue is
+ * bounded by count and bytes: it never refuses a buffer (a taken picture can't be dropped), but reports full() so
+ * capture can wait (runWhenRoom()) instead of piling up memory when flash falls behind. singleton
+ */
+public class MediaWriter {
+    /**
+     * when written data is forced to flash
+     */
+    public enum FSYNC {
+        NEVER, // left to the kernel
+        EACH, // each file before it's published (safest, slowest)
+        IDLE // all the files written meanwhile, once the queue drains
+    }
+
+    /**
+     * notified on the writer thread once a buffer has been written
+     */
+    public interface OnWrittenListener {
+        /**
+         * @param f the written file
+         * @param ok true if the write succeeded
+         */
+        void onWritten(File f, boolean ok);
+    }
+
+    /**
+     * max buffers queued before the writer reports full
+     */
+    private static final int MAX_QUEUED = 4;
+
+    /**
+     * max bytes queued before the writer reports full
+     */
+    private static final long MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * a queued buffer
+     */
+    private static class Job {
+        byte[] data;
+        int length;
+        File dest;
+        OnWrittenListener listener;
+    }
+
+    private static MediaWriter _instance = null;
+    private final ArrayDeque<Job> _queue = new ArrayDeque<>();
+    private final List<Runnable> _waiting = new ArrayList<>();
+    private final List<FileChannel> _unsynced = new ArrayList<>();
+    private long _queuedBytes = 0;
+    private volatile FSYNC _fsync = FSYNC.EACH;
+
+    // counters
+    private int _files = 0;
+    private int _errors = 0;
+    private long _bytes = 0;
+    private long _writeMillis = 0;
+    private long _syncMillis = 0;
+    private int _maxDepth = 0;
+    private long _depthSum = 0;
+    private int _stalls = 0;
+    private long _stallMillis = 0;
+
+    /**
+     * constructor (use instance())
+     */
+    protected MediaWriter() {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                loop();
+            }
+        }, "VGCamera-writer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * get the singleton
+     * @return
+     */
+    public static synchronized MediaWriter instance() {
+        if (_instance == null) {
+            _instance = new MediaWriter();
+        }
+        return _instance;
+    }
+
+    /**
+     * set the fsync policy
+     * @param fsync one of FSYNC
+     */
+    public void setFsync(FSYNC fsync) {
+        _fsync = fsync;
+    }
+
+    /**
+     * queue a buffer for writing, never refused (check full() before capturing)
+     * @param data the data, owned by the writer until written
+     * @param length how many bytes to write
+     * @param dest the destination file (overwritten)
+     * @param listener an OnWrittenListener, may be null
+     */
+    public void write(byte[] data, int length, File dest, OnWrittenListener listener) {
+        Job j = new Job();
+        j.data = data;
+        j.length = length;
+        j.dest = dest;
+        j.listener = listener;
+        synchronized (this) {
+            _queue.add(j);
+            _queuedBytes += length;
+            _maxDepth = Math.max(_maxDepth, _queue.size());
+            _depthSum += _queue.size();
+            notifyAll();
+        }
+    }
+
+    /**
+     * whether the queue is over its bounds, capture should wait
+     * @return
+     */
+    public synchronized boolean full() {
+        return _queue.size() >= MAX_QUEUED || _queuedBytes >= MAX_QUEUED_BYTES;
+    }
+
+    /**
+     * buffers waiting to be written (including the one being written)
+     * @return
+     */
+    public synchronized int queued() {
+        return _queue.size();
+    }
+
+    /**
+     * run something once the queue has room (right away if it has), on the writer thread
+     * @param r the Runnable
+     */
+    public void runWhenRoom(final Runnable r) {
+        synchronized (this) {
+            if (full()) {
+                _stalls++;
+                final long start = SystemClock.uptimeMillis();
+                _waiting.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (MediaWriter.this) {
+                            _stallMillis += SystemClock.uptimeMillis() - start;
+                        }
+                        r.run();
+                    }
+                });
+                return;
+            }
+        }
+        r.run();
+    }
+
+    /**
+     * the writer loop
+     */
+    private void loop() {
+        while (true) {
+            Job j;
+            synchronized (this) {
+                while (_queue.isEmpty()) {
+                    if (!_unsynced.isEmpty()) {
+                        // idle, flush what's been written meanwhile
+                        break;
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                j = _queue.peek();
+            }
+            if (j == null) {
+                syncIdle();
+                continue;
+            }
+
+            boolean ok = writeJob(j);
+            List<Runnable> ready = null;
+            synchronized (this) {
+                _queue.poll();
+                _queuedBytes -= j.length;
+                if (!full() && !_waiting.isEmpty()) {
+                    ready = new ArrayList<>(_waiting);
+                    _waiting.clear();
+                }
+            }
+            if (j.listener != null) {
+                j.listener.onWritten(j.dest, ok);
+            }
+            if (ready != null) {
+                for (Runnable r : ready) {
+                    r.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * write a buffer to its partial file, then publish it
+     * @param j the Job
+     * @return true on success
+     */
+    private boolean writeJob(Job j) {
+        long start = SystemClock.uptimeMillis();
+        File part = new File(j.dest.getAbsolutePath() + ".part");
+        FileOutputStream fos = null;
+        FileChannel ch = null;
+        boolean keepOpen = false;
+        try {
+            fos = new FileOutputStream(part);
+            ch = fos.getChannel();
+            FileIO.writeFully(ch, ByteBuffer.wrap(j.data, 0, j.length));
+            FSYNC fsync = _fsync;
+            if (fsync == FSYNC.EACH) {
+                long s = SystemClock.uptimeMillis();
+                ch.force(false);
+                synchronized (this) {
+                    _syncMillis += SystemClock.uptimeMillis() - s;
+                }
+            }
+            if (!part.renameTo(j.dest)) {
+                throw new IOException("can't rename " + part.getAbsolutePath());
+            }
+            if (fsync == FSYNC.IDLE) {
+                // forced (and closed) once the queue drains
+                _unsynced.add(ch);
+                keepOpen = true;
+            }
+        } catch (IOException e) {
+            Log.e(this.getClass().getName(), "can't write " + j.dest.getAbsolutePath(), e);
+            part.delete();
+            synchronized (this) {
+                _errors++;
+            }
+            return false;
+        } finally {
+            if (!keepOpen) {
+                Utils.closeNoEx(fos);
+            }
+        }
+        synchronized (this) {
+            _files++;
+            _bytes += j.length;
+            _writeMillis += SystemClock.uptimeMillis() - start;
+        }
+        return true;
+    }
+
+    /**
+     * force and close the files written since the queue was last idle
+     */
+    private void syncIdle() {
+        long start = SystemClock.uptimeMillis();
+        for (FileChannel ch : _unsynced) {
+            try {
+                ch.force(false);
+            } catch (IOException e) {
+                Log.e(this.getClass().getName(), "force() failed", e);
+            }
+            Utils.closeNoEx(ch);
+        }
+        _unsynced.clear();
+        synchronized (this) {
+            _syncMillis += SystemClock.uptimeMillis() - start;
+        }
+    }
+
+    /**
+     * counters, for logging
+     * @return
+     */
+    public synchronized String stats() {
+        return "files=" + _files + ", errors=" + _errors + ", bytes=" + _bytes + ", throughput=" +
+                (_writeMillis > 0 ? (_bytes * 1000 / _writeMillis / 1024) : 0) + "KB/s, fsync=" + _fsync + " (" + _syncMillis +
+                "ms), depth=" + _queue.size() + " (max " + _maxDepth + ", avg " +
+                (_files + _errors > 0 ? String.format("%.1f", _depthSum / (float)(_files + _errors)) : "0") + "), stalls=" + _stalls +
+                " (" + _stallMillis + "ms)";
+    }
+}
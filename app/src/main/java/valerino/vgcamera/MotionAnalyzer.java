@@ -0,0 +1,105 @@
+package valerino.vgcamera;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * FrameAnalyzer watching the preview for motion with a MotionDetector, events are delivered on the main thread
+ */
+public class MotionAnalyzer implements FrameAnalyzer {
+    /**
+     * gets the motion events
+     */
+    public interface OnMotionListener {
+        /**
+         * motion started, on the main thread
+         */
+        void onMotionStarted();
+
+        /**
+         * no more motion for a while, on the main thread
+         */
+        void onMotionStopped();
+    }
+
+    /**
+     * fraction of the picture which must change
+     */
+    private static final float MIN_CHANGED = 0.03f;
+
+    /**
+     * motion stops after this long without (ms)
+     */
+    private static final long QUIET_MILLIS = 10000;
+
+    /**
+     * fraction of a core the detector may use
+     */
+    private static final float CPU_BUDGET = 0.02f;
+
+    private final MotionDetector _detector;
+    private final Handler _handler = new Handler(Looper.getMainLooper());
+    private volatile OnMotionListener _listener = null;
+
+    /**
+     * constructor
+     * @param fps frames per second to look at, at most
+     */
+    public MotionAnalyzer(int fps) {
+        _detector = new MotionDetector(MIN_CHANGED, QUIET_MILLIS, 1000 / fps, CPU_BUDGET);
+    }
+
+    /**
+     * set the listener
+     * @param listener an OnMotionListener, or null
+     */
+    public void setOnMotionListener(OnMotionListener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * learn the background again (i.e. after the preview has been restarted)
+     */
+    public void reset() {
+        _detector.reset();
+    }
+
+    @Override
+    public String name() {
+        return "motion";
+    }
+
+    @Override
+    public void analyze(FramePipeline.Frame frame) {
+        final int event = _detector.process(frame.data, frame.width, frame.height, frame.timestamp);
+        if (event == MotionDetector.EVENT_NONE) {
+            return;
+        }
+        Log.d(this.getClass().getName(), "motion " + (event == MotionDetector.EVENT_STARTED ? "started" : "stopped") +
+                ", " + _detector.stats());
+        _handler.post(new Runnable() {
+            @Override
+            public void run() {
+                OnMotionListener l = _listener;
+                if (l == null) {
+                    return;
+                }
+                if (event == MotionDetector.EVENT_STARTED) {
+                    l.onMotionStarted();
+                }
+                else {
+                    l.onMotionStopped();
+                }
+            }
+        });
+    }
+
+    /**
+     * counters, for logging
+     * @return
+     */
+    public String stats() {
+        return _detector.stats();
+    }
+}
@@ -0,0 +1,302 @@
+package valerino.vgcamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * merges the shots of a night picture in background with a NightStacker: the shots are read in stripes straight from
+ * their JPEGs (region decoders), and the result is collected as NV21 (half the memory of an ARGB bitmap) and
+ * compressed from there. merges are queued and run one at a time
+ */
+public class NightShot {
+    /**
+     * receives the result of a merge
+     */
+    public interface OnStackedListener {
+        /**
+         * the merge is over, on the merge thread
+         * @param merged the merged picture, or null on error
+         */
+        void onStacked(File merged);
+    }
+
+    /**
+     * fraction of the heap the merge workers may use, at most MAX_MEMORY
+     */
+    private static final int MEMORY_DIVIDER = 8;
+    private static final long MAX_MEMORY = 16 * 1024 * 1024;
+
+    /**
+     * the shots, decoded in stripes
+     */
+    private static class JpegSource implements NightStacker.FrameSource {
+        private final byte[][] _shots;
+        private final int _width;
+        private final int _height;
+
+        JpegSource(byte[][] shots) throws IOException {
+            _shots = shots;
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(shots[0], 0, shots[0].length, bounds);
+            if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+                throw new IOException("can't decode the reference shot");
+            }
+            _width = bounds.outWidth;
+            _height = bounds.outHeight;
+        }
+
+        @Override
+        public int frames() {
+            return _shots.length;
+        }
+
+        @Override
+        public int width() {
+            return _width;
+        }
+
+        @Override
+        public int height() {
+            return _height;
+        }
+
+        @Override
+        public byte[] luma(int frame, int sample, int[] size) throws IOException {
+            return HdrMerger.decodeLuma(_shots[frame], sample, size);
+        }
+
+        @Override
+        public NightStacker.Reader open(int width) throws IOException {
+            final BitmapRegionDecoder[] decoders = new BitmapRegionDecoder[_shots.length];
+            final BitmapFactory.Options[] options = new BitmapFactory.Options[_shots.length];
+            final Bitmap[] tiles = new Bitmap[_shots.length];
+            for (int i = 0; i < _shots.length; i++) {
+                // shareable, the decoders don't copy the JPEGs
+                decoders[i] = BitmapRegionDecoder.newInstance(_shots[i], 0, _shots[i].length, true);
+                options[i] = new BitmapFactory.Options();
+                options[i].inMutable = true;
+                options[i].inPreferredConfig = Bitmap.Config.ARGB_8888;
+            }
+            return new NightStacker.Reader() {
+                @Override
+                public void read(int frame, int x, int y, int width, int rows, int[] argb) throws IOException {
+                    Bitmap reuse = tiles[frame];
+                    options[frame].inBitmap = (reuse != null && reuse.getWidth() == width && reuse.getHeight() == rows ? reuse : null);
+                    Bitmap b = decoders[frame].decodeRegion(new Rect(x, y, x + width, y + rows), options[frame]);
+                    if (b == null) {
+                        throw new IOException("decodeRegion() failed, shot " + frame);
+                    }
+                    if (b != reuse) {
+                        if (reuse != null) {
+                            reuse.recycle();
+                        }
+                        tiles[frame] = b;
+                    }
+                    b.getPixels(argb, 0, width, 0, 0, width, rows);
+                }
+
+                @Override
+                public void close() {
+                    for (int i = 0; i < decoders.length; i++) {
+                        decoders[i].recycle();
+                        if (tiles[i] != null) {
+                            tiles[i].recycle();
+                        }
+                    }
+                }
+            };
+        }
+
+        @Override
+        public long readerBytes(int width, int rows) {
+            // one decoded stripe per shot
+            return (long)_shots.length * width * rows * 4;
+        }
+    }
+
+    /**
+     * collects the merged picture as NV21, then compresses it
+     */
+    private static class Nv21Sink implements NightStacker.FrameSink {
+        private final File _dest;
+        private final int _quality;
+        private byte[] _nv21;
+        private int _width;
+        private int _height;
+
+        Nv21Sink(File dest, int quality) {
+            _dest = dest;
+            _quality = quality;
+        }
+
+        @Override
+        public void begin(int width, int height) {
+            _width = width;
+            _height = height;
+            _nv21 = BufferPool.instance().acquire(width * height * 3 / 2);
+        }
+
+        @Override
+        public void write(int y, int rows, int[] argb) {
+            int w = _width;
+            for (int r = 0; r < rows; r += 2) {
+                int line = r * w;
+                int luma = (y + r) * w;
+                int chroma = w * _height + ((y + r) >> 1) * w;
+                for (int x = 0; x < w; x += 2) {
+                    int sr = 0;
+                    int sg = 0;
+                    int sb = 0;
+                    for (int k = 0; k < 4; k++) {
+                        int i = line + (k >> 1) * w + x + (k & 1);
+                        int c = argb[i];
+                        int cr = (c >> 16) & 0xff;
+                        int cg = (c >> 8) & 0xff;
+                        int cb = c & 0xff;
+                        _nv21[luma + (k >> 1) * w + x + (k & 1)] = (byte)((cr * 77 + cg * 150 + cb * 29) >> 8);
+                        sr += cr;
+                        sg += cg;
+                        sb += cb;
+                    }
+                    // full range, as JPEG wants it: V then U
+                    _nv21[chroma + x] = (byte)(((sr * 128 - sg * 107 - sb * 21) >> 10) + 128);
+                    _nv21[chroma + x + 1] = (byte)(((-sr * 43 - sg * 85 + sb * 128) >> 10) + 128);
+                }
+            }
+        }
+
+        @Override
+        public void end() throws IOException {
+            try {
+                if (!Utils.nv21ToJpegFile(_nv21, _width, _height, _quality, _dest)) {
+                    throw new IOException("can't compress to " + _dest.getAbsolutePath());
+                }
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * give the buffer back (end() does, call on error)
+         */
+        void release() {
+            BufferPool.instance().release(_nv21);
+            _nv21 = null;
+        }
+    }
+
+    private final NightStacker _stacker;
+    private final int _threads;
+    private final ThreadPoolExecutor _jobs;
+    private final AtomicInteger _pending = new AtomicInteger(0);
+    private volatile File _dumpFolder = null;
+
+    /**
+     * constructor
+     */
+    public NightShot() {
+        _threads = Runtime.getRuntime().availableProcessors();
+        _stacker = new NightStacker(new TileExecutor("VGCamera-night-tile", _threads),
+                Math.min(MAX_MEMORY, Runtime.getRuntime().maxMemory() / MEMORY_DIVIDER));
+        _jobs = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "VGCamera-night");
+            }
+        });
+        _jobs.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * merges queued or running
+     * @return
+     */
+    public int pending() {
+        return _pending.get();
+    }
+
+    /**
+     * keep the shots of each merge as they are too, in a subfolder of the given folder (to feed NightBenchmark)
+     * @param folder the folder, or null to stop
+     */
+    public void dumpShots(File folder) {
+        _dumpFolder = folder;
+    }
+
+    /**
+     * queue a merge
+     * @param shots the JPEGs, the first is the reference
+     * @param dest the merged picture
+     * @param quality JPEG quality of the merged picture
+     * @param listener an OnStackedListener
+     */
+    public void stack(final byte[][] shots, final File dest, final int quality, final OnStackedListener listener) {
+        _pending.incrementAndGet();
+        _jobs.execute(new Runnable() {
+            @Override
+            public void run() {
+                File folder = _dumpFolder;
+                if (folder != null) {
+                    dump(shots, folder);
+                }
+
+                File merged = null;
+                Nv21Sink sink = new Nv21Sink(dest, quality);
+                try {
+                    NightStacker.Stats stats = _stacker.stack(new JpegSource(shots), 0, sink);
+                    merged = dest;
+                    Log.d(NightShot.class.getName(), "merged " + stats + " on " + _threads + " cores, " + dest.getAbsolutePath());
+                } catch (Throwable e) {
+                    Log.e(NightShot.class.getName(), "merge failed", e);
+                    sink.release();
+                    dest.delete();
+                }
+                if (merged != null) {
+                    // just metadata, the merged picture is kept anyway
+                    HdrMerger.copyExif(shots[0], null, merged);
+                }
+                _pending.decrementAndGet();
+                listener.onStacked(merged);
+            }
+        });
+    }
+
+    /**
+     * save the shots as they are
+     * @param shots the JPEGs
+     * @param folder where to create the frame set folder
+     */
+    private static void dump(byte[][] shots, File folder) {
+        File set = new File(folder, "night-" + new SimpleDateFormat("yyyyMMdd_HHmmss_SSS").format(new Date()));
+        if (!set.mkdirs()) {
+            Log.w(NightShot.class.getName(), "can't create " + set.getAbsolutePath());
+            return;
+        }
+        for (int i = 0; i < shots.length; i++) {
+            // the writer only reads them, the merge goes on meanwhile
+            MediaWriter.instance().write(shots[i], shots[i].length, new File(set, String.format("%02d.jpg", i)), null);
+        }
+        Log.d(NightShot.class.getName(), "shots queued to " + set.getAbsolutePath());
+    }
+}
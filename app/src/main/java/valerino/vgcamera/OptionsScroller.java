@@ -30,6 +30,18 @@ public class OptionsScroller extends Activity {
     public static final int CHOICE_TOGGLE_MAXZOOM = 4;
     public static final int CHOICE_TOGGLE_SMOOTHZOOM = 5;
     public static final int CHOICE_RESET_ZOOM = 6;
+    public static final int CHOICE_TOGGLE_BURST = 7;
+    public static final int CHOICE_TOGGLE_ZSL = 8;
+    public static final int CHOICE_TOGGLE_SEGMENTED = 9;
+    public static final int CHOICE_TOGGLE_RECORD_READY = 10;
+    public static final int CHOICE_TOGGLE_PRERECORD = 11;
+    public static final int CHOICE_TOGGLE_ENGINE = 12;
+    public static final int CHOICE_TOGGLE_GOVERNOR = 13;
+    public static final int CHOICE_TOGGLE_QR_SCAN = 14;
+    public static final int CHOICE_TOGGLE_MOTION = 15;
+    public static final int CHOICE_TOGGLE_HDR = 16;
+    public static final int CHOICE_TOGGLE_NIGHT = 17;
+    public static final int CHOICE_TOGGLE_FSYNC = 18;
 
     @Override
     protected void onCreate(Bundle bundle) {
@@ -55,6 +67,32 @@ public class OptionsScroller extends Activity {
         adapter.cards().add(new CardBuilder(this, CardBuilder.Layout.MENU).setText(s).setFootnote("Toggle smooth zoom on/off"));
         s = "Reset zoom";
         adapter.cards().add(new CardBuilder(this, CardBuilder.Layout.MENU).setText(s).setFootnote("Reset zoom level"));
+        s = "Burst" + (AppConfiguration.instance(this).burstMode() ? off : on);
+        adapter.cards().add(new CardBuilder(this, CardBuilder.Layout.MENU).setText(s).setFootnote("Toggle burst mode on/off"));
+        s = "Zero-lag" + (AppConfiguration.instance(this).zslMode() ? off : on);
+        adapter.cards().add(new CardBuilder(this, CardBuilder.Layout.MENU).setText(s).setFootnote("Toggle zero shutter lag pictures on/off"));
+        s = "Segments" + (AppConfiguration.instance(this).segmentedRecording() ? off : on);
+        adapter.cards().add(new CardBuilder(this, CardBuilder.Layout.MENU).setText(s).setFootnote("Toggle recording videos in segments on/off"));
+        s = "Ready-rec" + (AppConfiguration.instance(this).recordReady() ? off : on);
+        adapter.cards().add(new CardBuilder(this, CardBuilder.Layout.MENU).setText(s).setFootnote("Toggle keeping the recorder ready on/off"));
+        s = "Pre-rec" + (AppConfiguration.instance(this).preRecord() ? off : on);
+        adapter.cards().add(new CardBuilder(this, CardBuilder.Layout.MENU).setText(s).setFootnote("Toggle recording the seconds before the trigger on/off"));
+        s = "Codec-rec" + (AppConfiguration.instance(this).engine() == AppConfiguration.ENGINE.MEDIA_CODEC ? off : on);
+        adapter.cards().add(new CardBuilder(this, CardBuilder.Layout.MENU).setText(s).setFootnote("Toggle the tunable video encoder on/off"));
+        s = "Governor" + (AppConfiguration.instance(this).governor() ? off : on);
+        adapter.cards().add(new CardBuilder(this, CardBuilder.Layout.MENU).setText(s).setFootnote("Toggle adapting quality to battery, heat and storage on/off"));
+        s = "QR-scan" + (AppConfiguration.instance(this).qrScan() ? off : on);
+        adapter.cards().add(new CardBuilder(this, CardBuilder.Layout.MENU).setText(s).setFootnote("Toggle scanning the preview for QR codes on/off"));
+        AppConfiguration.MOTION_TRIGGER[] triggers = AppConfiguration.MOTION_TRIGGER.values();
+        s = "Motion " + triggers[(AppConfiguration.instance(this).motionTrigger().ordinal() + 1) % triggers.length];
+        adapter.cards().add(new CardBuilder(this, CardBuilder.Layout.MENU).setText(s).setFootnote("Toggle taking a picture/recording on motion"));
+        s = "HDR" + (!AppConfiguration.instance(this).hdrMode() ? on : (AppConfiguration.instance(this).hdrKeepOriginals() ? off : " +shots"));
+        adapter.cards().add(new CardBuilder(this, CardBuilder.Layout.MENU).setText(s).setFootnote("Toggle merging bracketed exposures on/on keeping the shots/off"));
+        s = "Night" + (AppConfiguration.instance(this).nightShot() ? off : on);
+        adapter.cards().add(new CardBuilder(this, CardBuilder.Layout.MENU).setText(s).setFootnote("Toggle averaging several shots in low light on/off"));
+        MediaWriter.FSYNC[] policies = MediaWriter.FSYNC.values();
+        s = "Fsync " + policies[(AppConfiguration.instance(this).fsync().ordinal() + 1) % policies.length];
+        adapter.cards().add(new CardBuilder(this, CardBuilder.Layout.MENU).setText(s).setFootnote("Toggle forcing pictures to flash never/each/when idle"));
 
         // setup the view
         _view = new CardScrollView(this);
@@ -105,6 +143,66 @@ public class OptionsScroller extends Activity {
                         resIntent.putExtra("choice", R.id.toggle_quality);
                         setResult(RESULT_OK, resIntent);
                         break;
+                    case CHOICE_TOGGLE_BURST:
+                        // toggle burst mode
+                        resIntent.putExtra("choice", R.id.toggle_burst);
+                        setResult(RESULT_OK, resIntent);
+                        break;
+                    case CHOICE_TOGGLE_ZSL:
+                        // toggle zero shutter lag
+                        resIntent.putExtra("choice", R.id.toggle_zsl);
+                        setResult(RESULT_OK, resIntent);
+                        break;
+                    case CHOICE_TOGGLE_SEGMENTED:
+                        // toggle segmented recording
+                        resIntent.putExtra("choice", R.id.toggle_segmented);
+                        setResult(RESULT_OK, resIntent);
+                        break;
+                    case CHOICE_TOGGLE_RECORD_READY:
+                        // toggle keeping the recorder ready
+                        resIntent.putExtra("choice", R.id.toggle_record_ready);
+                        setResult(RESULT_OK, resIntent);
+                        break;
+                    case CHOICE_TOGGLE_PRERECORD:
+                        // toggle pre-recording
+                        resIntent.putExtra("choice", R.id.toggle_prerecord);
+                        setResult(RESULT_OK, resIntent);
+                        break;
+                    case CHOICE_TOGGLE_ENGINE:
+                        // toggle the recording engine
+                        resIntent.putExtra("choice", R.id.toggle_engine);
+                        setResult(RESULT_OK, resIntent);
+                        break;
+                    case CHOICE_TOGGLE_GOVERNOR:
+                        // toggle the quality governor
+                        resIntent.putExtra("choice", R.id.toggle_governor);
+                        setResult(RESULT_OK, resIntent);
+                        break;
+                    case CHOICE_TOGGLE_QR_SCAN:
+                        // toggle qr code scanning
+                        resIntent.putExtra("choice", R.id.toggle_qr_scan);
+                        setResult(RESULT_OK, resIntent);
+                        break;
+                    case CHOICE_TOGGLE_MOTION:
+                        // toggle the motion trigger
+                        resIntent.putExtra("choice", R.id.toggle_motion);
+                        setResult(RESULT_OK, resIntent);
+                        break;
+                    case CHOICE_TOGGLE_HDR:
+                        // toggle hdr
+                        resIntent.putExtra("choice", R.id.toggle_hdr);
+                        setResult(RESULT_OK, resIntent);
+                        break;
+                    case CHOICE_TOGGLE_NIGHT:
+                        // toggle night shots
+                        resIntent.putExtra("choice", R.id.toggle_night);
+                        setResult(RESULT_OK, resIntent);
+                        break;
+                    case CHOICE_TOGGLE_FSYNC:
+                        // cycle the fsync policy
+                        resIntent.putExtra("choice", R.id.toggle_fsync);
+                        setResult(RESULT_OK, resIntent);
+                        break;
                     case CHOICE_TOGGLE_LOCATION:
                         // toggle geotagging
                         resIntent.putExtra("choice", R.id.toggle_location);
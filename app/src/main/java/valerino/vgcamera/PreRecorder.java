@@ -0,0 +1,216 @@
+package valerino.vgcamera;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * continuously encodes the preview frames (H.264, video only) into an EncodedSampleRing, so a recording can start
+ * with the last N seconds before the trigger. on startOutput() the ring is flushed into an MP4 and the live stream
+ * follows it, until stopOutput(). frames are fed on the camera thread, the encoder output is drained on its own thread
+ */
+public class PreRecorder implements PreviewFrameRing.OnFrameListener, MediaEncoder.OnEncodedFrameListener {
+    private final VideoEncoder _encoder;
+    private final EncodedSampleRing _ring;
+    private final MediaCodec.BufferInfo _sampleInfo = new MediaCodec.BufferInfo();
+    private MediaFormat _format = null;
+    private File _pendingOutput = null;
+    private MediaMuxer _muxer = null;
+    private int _track = -1;
+    private File _output = null;
+    private int _muxed = 0;
+
+    /**
+     * constructor, allocates the ring
+     * @param config the encoder settings, width and height must match the preview (no audio)
+     * @param seconds how much video to keep before the trigger
+     * @param budget max bytes of encoded video to keep
+     */
+    public PreRecorder(EncoderConfig config, int seconds, int budget) {
+        _encoder = new VideoEncoder(config, this);
+        _ring = new EncodedSampleRing(budget, (seconds + config.gopSeconds * 2) * config.fps, seconds * 1000L);
+    }
+
+    /**
+     * preview width
+     * @return
+     */
+    public int width() {
+        return _encoder.config().width;
+    }
+
+    /**
+     * preview height
+     * @return
+     */
+    public int height() {
+        return _encoder.config().height;
+    }
+
+    /**
+     * start the encoder
+     * @return false if the encoder can't be started
+     */
+    public boolean start() {
+        return _encoder.start();
+    }
+
+    /**
+     * stop and release the encoder. an output in progress is finalized (and left where it is)
+     */
+    public void stop() {
+        _encoder.stop();
+        synchronized (this) {
+            if (_muxer != null) {
+                Log.w(this.getClass().getName(), "stopped while recording, finalizing " + _output.getAbsolutePath());
+                finishOutput();
+            }
+            _pendingOutput = null;
+            _ring.clear();
+            Log.d(this.getClass().getName(), "stopped, " + stats());
+        }
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, long timestamp) {
+        _encoder.onPreviewFrame(data, timestamp);
+    }
+
+    /**
+     * flush the buffered video into a new MP4 and keep appending the live stream to it, until stopOutput()
+     * @param f the output file
+     * @return false if not running, or already recording
+     */
+    public synchronized boolean startOutput(File f) {
+        if (!_encoder.isRunning() || _muxer != null || _pendingOutput != null) {
+            return false;
+        }
+        // the encoder thread picks it up with the next sample
+        _pendingOutput = f;
+        return true;
+    }
+
+    /**
+     * finalize the output started with startOutput()
+     * @return the MP4, or null if nothing could be written
+     */
+    public synchronized File stopOutput() {
+        if (_pendingOutput != null) {
+            // never started (no encoder output yet)
+            _pendingOutput = null;
+            return null;
+        }
+        return finishOutput();
+    }
+
+    @Override
+    public synchronized void onFormatChanged(MediaEncoder encoder, MediaFormat format) {
+        // holds the codec config (sps/pps), needed by the muxer
+        _format = format;
+    }
+
+    @Override
+    public synchronized void onEncodedFrame(MediaEncoder encoder, ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (_pendingOutput != null && _format != null) {
+            openOutput();
+        }
+        boolean key = (info.flags & MediaCodec.BUFFER_FLAG_SYNC_FRAME) != 0;
+        if (_muxer == null) {
+            _ring.add(data, info.presentationTimeUs, key);
+            return;
+        }
+        if (_muxed == 0 && !key) {
+            // nothing was buffered, the output must start with a keyframe
+            return;
+        }
+        try {
+            _muxer.writeSampleData(_track, data, info);
+            _muxed++;
+        } catch (Throwable e) {
+            Log.e(this.getClass().getName(), "writeSampleData()", e);
+        }
+    }
+
+    /**
+     * open the requested output and flush the ring in it, on the encoder thread
+     */
+    private void openOutput() {
+        File f = _pendingOutput;
+        _pendingOutput = null;
+        try {
+            _muxer = new MediaMuxer(f.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            _track = _muxer.addTrack(_format);
+            _muxer.start();
+        } catch (Throwable e) {
+            Log.e(this.getClass().getName(), "can't start the muxer", e);
+            if (_muxer != null) {
+                _muxer.release();
+                _muxer = null;
+            }
+            f.delete();
+            return;
+        }
+        _output = f;
+        _muxed = 0;
+        long duration = _ring.durationUs();
+        int bytes = _ring.bytes();
+        _ring.drainTo(new EncodedSampleRing.SampleSink() {
+            @Override
+            public void onSample(byte[] data, int offset, int size, long ptsUs, boolean keyFrame) {
+                _sampleInfo.set(offset, size, ptsUs, keyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+                try {
+                    _muxer.writeSampleData(_track, ByteBuffer.wrap(data), _sampleInfo);
+                    _muxed++;
+                } catch (Throwable e) {
+                    Log.e(PreRecorder.class.getName(), "writeSampleData()", e);
+                }
+            }
+        });
+        if (_muxed == 0) {
+            // start from the next keyframe asap
+            _encoder.requestKeyFrame();
+        }
+        Log.d(this.getClass().getName(), "output started, flushed " + _muxed + " samples (" + duration / 1000 + "ms, " +
+                bytes + " bytes) to " + f.getAbsolutePath());
+    }
+
+    /**
+     * finalize the muxer
+     * @return the MP4, or null
+     */
+    private File finishOutput() {
+        if (_muxer == null) {
+            return null;
+        }
+        boolean ok = (_muxed > 0);
+        try {
+            _muxer.stop();
+        } catch (Throwable e) {
+            // no samples written
+            Log.e(this.getClass().getName(), "muxer.stop()", e);
+            ok = false;
+        }
+        _muxer.release();
+        _muxer = null;
+        File f = _output;
+        _output = null;
+        Log.d(this.getClass().getName(), "output finished, " + _muxed + " samples");
+        if (!ok) {
+            f.delete();
+            return null;
+        }
+        return f;
+    }
+
+    /**
+     * counters, for logging
+     * @return
+     */
+    public synchronized String stats() {
+        return _encoder.stats() + ", ring: " + _ring.stats();
+    }
+}
@@ -0,0 +1,259 @@
+package valerino.vgcamera;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.os.SystemClock;
+
+/**
+ * keeps the last N preview frames (NV21) in a fixed ring of callback buffers, for zero-shutter-lag pictures.
+ * buffers are allocated once, evicted frames are handed back to the camera with addCallbackBuffer().
+ * every frame is also offered to the OnFrameListeners (i.e. the pre-record encoder, the analyzers), N may be 0 for that only
+ */
+public class PreviewFrameRing implements Camera.PreviewCallback {
+    /**
+     * buffers always owned by the camera on top of the ring ones, so the preview never starves
+     */
+    private static final int SPARE_BUFFERS = 2;
+
+    /**
+     * sees every preview frame as it arrives, on the camera thread
+     */
+    public interface OnFrameListener {
+        /**
+         * a new frame arrived
+         * @param data NV21 data, valid only during the call
+         * @param timestamp when the frame arrived (SystemClock.uptimeMillis())
+         */
+        void onPreviewFrame(byte[] data, long timestamp);
+    }
+
+    /**
+     * a frame taken out of the ring, must be given back with release()
+     */
+    public static class Frame {
+        /**
+         * NV21 data
+         */
+        public final byte[] data;
+
+        /**
+         * when the frame arrived (SystemClock.uptimeMillis())
+         */
+        public final long timestamp;
+
+        /**
+         * the attach the frame belongs to
+         */
+        private final int _generation;
+        private boolean _released = false;
+
+        Frame(byte[] data, long timestamp, int generation) {
+            this.data = data;
+            this.timestamp = timestamp;
+            _generation = generation;
+        }
+    }
+
+    private final int _width;
+    private final int _height;
+    private final int _bufferSize;
+    private final byte[][] _buffers;
+    private final byte[][] _ring;
+    private final long[] _stamps;
+    private int _oldest = 0;
+    private int _count = 0;
+    private Camera _camera = null;
+    private int _generation = 0;
+    private OnFrameListener[] _listeners = new OnFrameListener[0];
+
+    /**
+     * constructor, allocates all the buffers
+     * @param frames number of frames to keep
+     * @param width preview width
+     * @param height preview height
+     */
+    public PreviewFrameRing(int frames, int width, int height) {
+        _width = width;
+        _height = height;
+        _bufferSize = width * height * ImageFormat.getBitsPerPixel(ImageFormat.NV21) / 8;
+        _buffers = new byte[frames + SPARE_BUFFERS][];
+        for (int i = 0; i < _buffers.length; i++) {
+            _buffers[i] = new byte[_bufferSize];
+        }
+        _ring = new byte[frames][];
+        _stamps = new long[frames];
+    }
+
+    /**
+     * preview width
+     * @return
+     */
+    public int width() {
+        return _width;
+    }
+
+    /**
+     * preview height
+     * @return
+     */
+    public int height() {
+        return _height;
+    }
+
+    /**
+     * number of frames kept
+     * @return
+     */
+    public int frames() {
+        return _ring.length;
+    }
+
+    /**
+     * set the listeners offered every frame, in order
+     * @param listeners OnFrameListeners, null ones are skipped
+     */
+    public synchronized void setOnFrameListeners(OnFrameListener... listeners) {
+        int n = 0;
+        for (OnFrameListener l : listeners) {
+            if (l != null) {
+                n++;
+            }
+        }
+        _listeners = new OnFrameListener[n];
+        n = 0;
+        for (OnFrameListener l : listeners) {
+            if (l != null) {
+                _listeners[n++] = l;
+            }
+        }
+    }
+
+    /**
+     * start collecting frames from the camera (the preview must be configured as width x height, NV21)
+     * @param camera the Camera
+     */
+    public synchronized void attach(Camera camera) {
+        // when reattaching, this drops the buffers queued so far
+        detach();
+        _camera = camera;
+        clear();
+
+        // every buffer is queued again, frames still out belong to the previous attach
+        _generation++;
+
+        // all the buffers go to the camera, they come back filled in onPreviewFrame()
+        camera.setPreviewCallbackWithBuffer(this);
+        for (byte[] b : _buffers) {
+            camera.addCallbackBuffer(b);
+        }
+    }
+
+    /**
+     * stop collecting frames
+     */
+    public synchronized void detach() {
+        if (_camera != null) {
+            _camera.setPreviewCallbackWithBuffer(null);
+            _camera = null;
+        }
+        clear();
+    }
+
+    /**
+     * empty the ring
+     */
+    private void clear() {
+        for (int i = 0; i < _ring.length; i++) {
+            _ring[i] = null;
+        }
+        _oldest = 0;
+        _count = 0;
+    }
+
+    /**
+     * index in _ring of the n-th frame (0 = oldest)
+     * @param n frame number
+     * @return
+     */
+    private int slot(int n) {
+        return (_oldest + n) % _ring.length;
+    }
+
+    @Override
+    public synchronized void onPreviewFrame(byte[] data, Camera camera) {
+        if (data == null || camera != _camera || data.length != _bufferSize) {
+            // not ours (i.e. stale buffer from a previous configuration)
+            return;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        for (OnFrameListener l : _listeners) {
+            l.onPreviewFrame(data, now);
+        }
+        if (_ring.length == 0) {
+            // nothing to keep
+            camera.addCallbackBuffer(data);
+            return;
+        }
+
+        if (_count == _ring.length) {
+            // ring full, the oldest frame goes back to the camera
+            camera.addCallbackBuffer(_ring[_oldest]);
+            _ring[_oldest] = null;
+            _oldest = slot(1);
+            _count--;
+        }
+
+        // append the new frame
+        int idx = slot(_count);
+        _ring[idx] = data;
+        _stamps[idx] = now;
+        _count++;
+    }
+
+    /**
+     * take the frame nearest to the given time out of the ring
+     * @param timestamp a time (SystemClock.uptimeMillis())
+     * @return a Frame to be given back with release(), or null if there's no frame
+     */
+    public synchronized Frame acquireNearest(long timestamp) {
+        int best = -1;
+        long bestDelta = Long.MAX_VALUE;
+        for (int n = 0; n < _count; n++) {
+            long delta = Math.abs(_stamps[slot(n)] - timestamp);
+            if (delta <= bestDelta) {
+                // on ties, prefer the newer frame
+                best = n;
+                bestDelta = delta;
+            }
+        }
+        if (best == -1) {
+            return null;
+        }
+
+        // take it out, newer frames shift down by one
+        Frame f = new Frame(_ring[slot(best)], _stamps[slot(best)], _generation);
+        for (int n = best; n < _count - 1; n++) {
+            _ring[slot(n)] = _ring[slot(n + 1)];
+            _stamps[slot(n)] = _stamps[slot(n + 1)];
+        }
+        _ring[slot(_count - 1)] = null;
+        _count--;
+        return f;
+    }
+
+    /**
+     * give back a frame taken with acquireNearest(). frames from before a detach/attach are dropped, their buffer has
+     * been queued to the camera again by attach() (queuing it twice would corrupt the camera buffer queue)
+     * @param f the Frame
+     */
+    public synchronized void release(Frame f) {
+        if (f._released) {
+            return;
+        }
+        f._released = true;
+        if (_camera != null && f._generation == _generation && f.data.length == _bufferSize) {
+            _camera.addCallbackBuffer(f.data);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package valerino.vgcamera;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * FrameAnalyzer scanning the preview for QR codes with a QrScanner, results are delivered on the main thread.
+ * the same code kept in sight is reported once
+ */
+public class QrAnalyzer implements FrameAnalyzer {
+    /**
+     * gets the decoded codes
+     */
+    public interface OnScanListener {
+        /**
+         * a code has been read, on the main thread
+         * @param text the decoded text
+         */
+        void onScanned(String text);
+    }
+
+    /**
+     * the same text isn't reported again before this (ms)
+     */
+    private static final long REPEAT_INTERVAL = 5000;
+
+    private final QrScanner _scanner = new QrScanner();
+    private final Handler _handler = new Handler(Looper.getMainLooper());
+    private volatile OnScanListener _listener = null;
+    private String _lastText = null;
+    private long _lastTime = 0;
+    private volatile File _dumpFolder = null;
+    private volatile int _dumpCount = 0;
+
+    /**
+     * set the listener
+     * @param listener an OnScanListener, or null
+     */
+    public void setOnScanListener(OnScanListener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * save the next frames as raw NV21 files (named qr-WxH-timestamp.nv21), to benchmark with QrBenchmark
+     * @param folder where to save them
+     * @param count how many
+     */
+    public void dumpFrames(File folder, int count) {
+        _dumpFolder = folder;
+        _dumpCount = count;
+    }
+
+    @Override
+    public String name() {
+        return "qr";
+    }
+
+    @Override
+    public void analyze(FramePipeline.Frame frame) {
+        if (_dumpCount > 0) {
+            _dumpCount--;
+            dump(frame);
+        }
+
+        final String text = _scanner.scan(frame.data, frame.width, frame.height, frame.timestamp);
+        if (text == null) {
+            return;
+        }
+        if (text.equals(_lastText) && frame.timestamp - _lastTime < REPEAT_INTERVAL) {
+            return;
+        }
+        _lastText = text;
+        _lastTime = frame.timestamp;
+        Log.d(this.getClass().getName(), "decoded '" + text + "', " + _scanner.stats());
+        _handler.post(new Runnable() {
+            @Override
+            public void run() {
+                OnScanListener l = _listener;
+                if (l != null) {
+                    l.onScanned(text);
+                }
+            }
+        });
+    }
+
+    /**
+     * save a frame
+     * @param frame the frame
+     */
+    private void dump(FramePipeline.Frame frame) {
+        File f = new File(_dumpFolder, "qr-" + frame.width + "x" + frame.height + "-" + frame.timestamp + ".nv21");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(f);
+            out.write(frame.data, 0, frame.width * frame.height * 3 / 2);
+        } catch (Throwable e) {
+            Log.e(this.getClass().getName(), "can't dump frame to " + f.getAbsolutePath(), e);
+        } finally {
+            Utils.closeNoEx(out);
+        }
+    }
+
+    /**
+     * counters, for logging
+     * @return
+     */
+    public String stats() {
+        return _scanner.stats();
+    }
+}
@@ -0,0 +1,420 @@
+package valerino.vgcamera;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * picks the capture quality tier from the battery level, the battery temperature and the measured write throughput
+ * of the storage folder. tiers scale down the user settings (quality, encoder settings), never above them, and never
+ * below the configured floor. downgrades happen at once, upgrades only once the conditions held for a while, so the
+ * tier doesn't flap. runs on the UI thread (the write probe on the BACKGROUND lane), singleton
+ */
+public class QualityGovernor {
+    /**
+     * the tiers, from the best to the cheapest
+     */
+    public enum TIER {
+        HIGH(1.0f, 30, AppConfiguration.QUALITY.HIGH),
+        MEDIUM(0.6f, 24, AppConfiguration.QUALITY.LOW),
+        LOW(0.35f, 15, AppConfiguration.QUALITY.LOW);
+
+        /**
+         * video bitrate, as a fraction of the configured one
+         */
+        public final float bitrateScale;
+
+        /**
+         * max preview (and encoder) fps
+         */
+        public final int maxFps;
+
+        /**
+         * max picture size
+         */
+        public final AppConfiguration.QUALITY pictureQuality;
+
+        TIER(float bitrateScale, int maxFps, AppConfiguration.QUALITY pictureQuality) {
+            this.bitrateScale = bitrateScale;
+            this.maxFps = maxFps;
+            this.pictureQuality = pictureQuality;
+        }
+    }
+
+    /**
+     * notified on the UI thread when the tier changes
+     */
+    public interface OnTierChangedListener {
+        /**
+         * @param tier the new tier
+         * @param reason why, for display/logging
+         */
+        void onTierChanged(TIER tier, String reason);
+    }
+
+    /**
+     * battery temperatures (tenths of degree) entering MEDIUM and LOW, and the hysteresis to leave them
+     */
+    private static final int TEMP_MEDIUM = 400;
+    private static final int TEMP_LOW = 440;
+    private static final int TEMP_HYSTERESIS = 20;
+
+    /**
+     * battery levels (percent, when not charging) entering MEDIUM and LOW, and the hysteresis to leave them
+     */
+    private static final int BATTERY_MEDIUM = 30;
+    private static final int BATTERY_LOW = 15;
+    private static final int BATTERY_HYSTERESIS = 5;
+
+    /**
+     * write throughput (bytes/s) needed by HIGH and MEDIUM, with room for the video plus the pictures
+     */
+    private static final long THROUGHPUT_HIGH = 4 * 1024 * 1024;
+    private static final long THROUGHPUT_MEDIUM = 2 * 1024 * 1024;
+
+    /**
+     * how long an upgrade must be possible before it's done
+     */
+    private static final long UPGRADE_HOLD = 30000;
+
+    /**
+     * how often the conditions are reevaluated, and the write throughput probed
+     */
+    private static final long EVALUATE_INTERVAL = 10000;
+    private static final long PROBE_INTERVAL = 60000;
+
+    /**
+     * size of the write probe (synced to the flash)
+     */
+    private static final int PROBE_SIZE = 512 * 1024;
+
+    private static QualityGovernor _instance = null;
+    private final Context _context;
+    private final Handler _handler = new Handler(Looper.getMainLooper());
+    private OnTierChangedListener _listener = null;
+    private TIER _tier = TIER.HIGH;
+    private String _reason = "startup";
+    private TIER _pendingUpgrade = null;
+    private long _pendingSince = 0;
+    private boolean _running = false;
+    private int _batteryLevel = -1;
+    private boolean _charging = false;
+    private int _temperature = -1;
+    private volatile long _throughput = -1;
+    private long _lastProbe = 0;
+    private boolean _probing = false;
+    private int _transitions = 0;
+
+    /**
+     * constructor (use instance())
+     * @param ctx a Context
+     */
+    protected QualityGovernor(Context ctx) {
+        _context = ctx;
+    }
+
+    /**
+     * get the singleton
+     * @param ctx a Context
+     * @return
+     */
+    public static synchronized QualityGovernor instance(Context ctx) {
+        if (_instance == null) {
+            _instance = new QualityGovernor(ctx.getApplicationContext());
+        }
+        return _instance;
+    }
+
+    /**
+     * set the listener for tier changes
+     * @param listener an OnTierChangedListener, or null
+     */
+    public void setOnTierChangedListener(OnTierChangedListener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * start watching (on resume), no-op if the governor is disabled
+     */
+    public void start() {
+        if (_running || !AppConfiguration.instance(_context).governor()) {
+            return;
+        }
+        _running = true;
+
+        // the sticky intent gives the current state at once
+        Intent battery = _context.registerReceiver(_batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            onBattery(battery);
+        }
+        _handler.post(_evaluate);
+        Log.d(this.getClass().getName(), "started, tier " + _tier);
+    }
+
+    /**
+     * stop watching (on pause). the tier is kept
+     */
+    public void stop() {
+        if (!_running) {
+            return;
+        }
+        _running = false;
+        _context.unregisterReceiver(_batteryReceiver);
+        _handler.removeCallbacks(_evaluate);
+        Log.d(this.getClass().getName(), "stopped, " + stats());
+    }
+
+    /**
+     * the current tier, no lower than the configured floor (HIGH, the user settings as they are, if the governor is
+     * disabled)
+     * @return
+     */
+    public TIER tier() {
+        AppConfiguration cfg = AppConfiguration.instance(_context);
+        if (!cfg.governor()) {
+            return TIER.HIGH;
+        }
+        TIER floor = cfg.governorFloor();
+        return _tier.ordinal() > floor.ordinal() ? floor : _tier;
+    }
+
+    /**
+     * the picture quality to use: the manual one, lowered by the tier
+     * @return
+     */
+    public AppConfiguration.QUALITY pictureQuality() {
+        if (AppConfiguration.instance(_context).quality() == AppConfiguration.QUALITY.LOW) {
+            return AppConfiguration.QUALITY.LOW;
+        }
+        return tier().pictureQuality;
+    }
+
+    /**
+     * the reason of the last transition
+     * @return
+     */
+    public String reason() {
+        return _reason;
+    }
+
+    private final BroadcastReceiver _batteryReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            onBattery(intent);
+            evaluate();
+        }
+    };
+
+    /**
+     * read the battery state
+     * @param intent the ACTION_BATTERY_CHANGED intent
+     */
+    private void onBattery(Intent intent) {
+        int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        _batteryLevel = (level >= 0 && scale > 0) ? level * 100 / scale : -1;
+        _charging = (intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1) == BatteryManager.BATTERY_STATUS_CHARGING);
+        _temperature = intent.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, -1);
+    }
+
+    private final Runnable _evaluate = new Runnable() {
+        @Override
+        public void run() {
+            evaluate();
+            maybeProbe();
+            if (_running) {
+                _handler.postDelayed(_evaluate, EVALUATE_INTERVAL);
+            }
+        }
+    };
+
+    /**
+     * the tier the conditions allow, with hysteresis around the current one
+     * @param why receives the limiting condition
+     * @return
+     */
+    private TIER target(StringBuilder why) {
+        TIER t = TIER.HIGH;
+
+        // thermal, leave a tier only once cooled down below its threshold
+        if (_temperature >= 0) {
+            int lowAt = (_tier == TIER.LOW) ? TEMP_LOW - TEMP_HYSTERESIS : TEMP_LOW;
+            int mediumAt = (_tier != TIER.HIGH) ? TEMP_MEDIUM - TEMP_HYSTERESIS : TEMP_MEDIUM;
+            if (_temperature >= lowAt) {
+                t = worse(t, TIER.LOW, why, "temperature " + _temperature / 10f + "C");
+            }
+            else if (_temperature >= mediumAt) {
+                t = worse(t, TIER.MEDIUM, why, "temperature " + _temperature / 10f + "C");
+            }
+        }
+
+        // battery, charging lifts the limit
+        if (_batteryLevel >= 0 && !_charging) {
+            int lowAt = (_tier == TIER.LOW) ? BATTERY_LOW + BATTERY_HYSTERESIS : BATTERY_LOW;
+            int mediumAt = (_tier != TIER.HIGH) ? BATTERY_MEDIUM + BATTERY_HYSTERESIS : BATTERY_MEDIUM;
+            if (_batteryLevel <= lowAt) {
+                t = worse(t, TIER.LOW, why, "battery " + _batteryLevel + "%");
+            }
+            else if (_batteryLevel <= mediumAt) {
+                t = worse(t, TIER.MEDIUM, why, "battery " + _batteryLevel + "%");
+            }
+        }
+
+        // storage
+        long tp = _throughput;
+        if (tp >= 0) {
+            if (tp < THROUGHPUT_MEDIUM) {
+                t = worse(t, TIER.LOW, why, "writes " + tp / 1024 + "KB/s");
+            }
+            else if (tp < THROUGHPUT_HIGH) {
+                t = worse(t, TIER.MEDIUM, why, "writes " + tp / 1024 + "KB/s");
+            }
+        }
+        return t;
+    }
+
+    /**
+     * the worse of two tiers, recording the reason if the new one wins
+     * @return
+     */
+    private static TIER worse(TIER current, TIER t, StringBuilder why, String reason) {
+        if (t.ordinal() > current.ordinal()) {
+            why.setLength(0);
+            why.append(reason);
+            return t;
+        }
+        return current;
+    }
+
+    /**
+     * reevaluate the conditions, changing tier if needed
+     */
+    private void evaluate() {
+        if (!_running) {
+            return;
+        }
+        StringBuilder why = new StringBuilder();
+        TIER t = target(why);
+        if (t == _tier) {
+            _pendingUpgrade = null;
+            return;
+        }
+        if (t.ordinal() > _tier.ordinal()) {
+            // downgrade at once
+            _pendingUpgrade = null;
+            transition(t, why.toString());
+            return;
+        }
+
+        // upgrade once it held for a while
+        long now = SystemClock.uptimeMillis();
+        if (_pendingUpgrade != t) {
+            _pendingUpgrade = t;
+            _pendingSince = now;
+            return;
+        }
+        if (now - _pendingSince >= UPGRADE_HOLD) {
+            _pendingUpgrade = null;
+            transition(t, why.length() > 0 ? why.toString() : "conditions recovered");
+        }
+    }
+
+    /**
+     * change tier, notifying the listener
+     * @param t the new tier
+     * @param reason why
+     */
+    private void transition(TIER t, String reason) {
+        TIER old = tier();
+        _tier = t;
+        _reason = reason;
+        _transitions++;
+        Log.d(this.getClass().getName(), "tier " + old + " -> " + tier() + " (governed " + t + ", " + reason + "), battery=" +
+                _batteryLevel + "%" + (_charging ? " charging" : "") + ", temperature=" + _temperature / 10f +
+                "C, writes=" + (_throughput >= 0 ? _throughput / 1024 + "KB/s" : "unknown"));
+        if (_listener != null && tier() != old) {
+            _listener.onTierChanged(tier(), reason);
+        }
+    }
+
+    /**
+     * measure the storage write throughput on the BACKGROUND lane, if it's time to
+     */
+    private void maybeProbe() {
+        long now = SystemClock.uptimeMillis();
+        if (_probing || (_lastProbe != 0 && now - _lastProbe < PROBE_INTERVAL)) {
+            return;
+        }
+        _probing = true;
+        _lastProbe = now;
+        TaskScheduler.instance().submit(TaskScheduler.LANE.BACKGROUND, new TaskScheduler.Task<Long>() {
+            @Override
+            public Long run() {
+                return probe(AppConfiguration.instance(_context).storageFolder());
+            }
+        }, new TaskScheduler.Callback<Long>() {
+            @Override
+            public void onCompleted(Long result) {
+                _probing = false;
+                if (result != null && result > 0) {
+                    _throughput = result;
+                    evaluate();
+                }
+            }
+        });
+    }
+
+    /**
+     * write (and sync) a probe file, under whatever load the storage has right now
+     * @param folder the folder to measure
+     * @return bytes/s, or -1 on error
+     */
+    private static long probe(File folder) {
+        File f = new File(folder, ".vgcamera_probe");
+        ByteBuffer buf = BufferPool.instance().acquireDirect(64 * 1024);
+        FileOutputStream fos = null;
+        long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            fos = new FileOutputStream(f);
+            FileChannel ch = fos.getChannel();
+            for (int written = 0; written < PROBE_SIZE; written += buf.limit()) {
+                buf.rewind();
+                while (buf.hasRemaining()) {
+                    ch.write(buf);
+                }
+            }
+            ch.force(true);
+        } catch (IOException e) {
+            Log.e(QualityGovernor.class.getName(), "write probe failed", e);
+            return -1;
+        }
+        finally {
+            Utils.closeNoEx(fos);
+            BufferPool.instance().releaseDirect(buf);
+            f.delete();
+        }
+        long nanos = Math.max(SystemClock.elapsedRealtimeNanos() - start, 1);
+        return PROBE_SIZE * 1000000000L / nanos;
+    }
+
+    /**
+     * the state, for logging
+     * @return
+     */
+    public String stats() {
+        return "tier=" + tier() + " (" + _reason + "), transitions=" + _transitions + ", battery=" + _batteryLevel + "%" +
+                ", temperature=" + _temperature / 10f + "C, writes=" + (_throughput >= 0 ? _throughput / 1024 + "KB/s" : "unknown");
+    }
+}
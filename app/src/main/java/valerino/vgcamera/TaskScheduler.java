@@ -0,0 +1,218 @@
+package valerino.vgcamera;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * runs background work on separate priority lanes, so housekeeping (media scans) never delays capture work or user
+ * feedback (thumbnails). each lane has its own bounded queue, thread priority and counters, singleton
+ */
+public class TaskScheduler {
+    /**
+     * the lanes, from the most to the least urgent
+     */
+    public enum LANE {
+        CAPTURE, // capture-critical work (i.e. encoding a zsl picture)
+        UI_FEEDBACK, // what the user is waiting to see (thumbnails)
+        BACKGROUND // housekeeping (media scans)
+    }
+
+    /**
+     * a task, runs on the lane thread
+     * @param <T> the result type
+     */
+    public interface Task<T> {
+        /**
+         * run the task
+         * @return the result, handed to the Callback
+         */
+        T run();
+    }
+
+    /**
+     * receives the result of a Task on the UI thread (not called if the task is canceled)
+     * @param <T> the result type
+     */
+    public interface Callback<T> {
+        /**
+         * the task has been executed
+         * @param result the task result (null if the task threw)
+         */
+        void onCompleted(T result);
+    }
+
+    /**
+     * a lane: executor plus counters
+     */
+    private static class Lane {
+        final LANE id;
+        final ThreadPoolExecutor executor;
+        final AtomicInteger submitted = new AtomicInteger(0);
+        final AtomicInteger completed = new AtomicInteger(0);
+        final AtomicInteger canceled = new AtomicInteger(0);
+        final AtomicInteger rejected = new AtomicInteger(0);
+        final AtomicInteger maxDepth = new AtomicInteger(0);
+
+        Lane(LANE id, int threads, int queueSize, final int priority) {
+            this.id = id;
+            final String name = "VGCamera-" + id.toString().toLowerCase();
+            executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(priority);
+                            r.run();
+                        }
+                    }, name);
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+    }
+
+    private static TaskScheduler _instance = null;
+    private final Lane[] _lanes = new Lane[LANE.values().length];
+    private final Handler _ui = new Handler(Looper.getMainLooper());
+
+    /**
+     * constructor (use instance())
+     */
+    protected TaskScheduler() {
+        _lanes[LANE.CAPTURE.ordinal()] = new Lane(LANE.CAPTURE, 1, 16, Process.THREAD_PRIORITY_DISPLAY);
+        _lanes[LANE.UI_FEEDBACK.ordinal()] = new Lane(LANE.UI_FEEDBACK, 1, 8, Process.THREAD_PRIORITY_DEFAULT);
+        _lanes[LANE.BACKGROUND.ordinal()] = new Lane(LANE.BACKGROUND, 1, 32, Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * get the singleton
+     * @return
+     */
+    public static synchronized TaskScheduler instance() {
+        if (_instance == null) {
+            _instance = new TaskScheduler();
+        }
+        return _instance;
+    }
+
+    /**
+     * queue a task on a lane
+     * @param lane the lane
+     * @param task the Task
+     * @param callback a Callback, may be null
+     * @return a Future to cancel the task, or null if the lane queue is full (the task is dropped)
+     */
+    public <T> Future<T> submit(LANE lane, final Task<T> task, final Callback<T> callback) {
+        final Lane l = _lanes[lane.ordinal()];
+        FutureTask<T> ft = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return task.run();
+            }
+        }) {
+            @Override
+            protected void done() {
+                if (isCancelled()) {
+                    l.canceled.incrementAndGet();
+                    return;
+                }
+                l.completed.incrementAndGet();
+                T result = null;
+                try {
+                    result = get();
+                } catch (Throwable e) {
+                    Log.e(TaskScheduler.class.getName(), l.id + " task failed", e);
+                }
+                if (callback == null) {
+                    return;
+                }
+                final T res = result;
+                _ui.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onCompleted(res);
+                    }
+                });
+            }
+        };
+
+        try {
+            l.executor.execute(ft);
+        } catch (RejectedExecutionException e) {
+            l.rejected.incrementAndGet();
+            Log.e(this.getClass().getName(), l.id + " lane full, dropping task (" + stats(lane) + ")");
+            return null;
+        }
+        l.submitted.incrementAndGet();
+        int depth = l.executor.getQueue().size();
+        if (depth > l.maxDepth.get()) {
+            l.maxDepth.set(depth);
+        }
+        return ft;
+    }
+
+    /**
+     * queue a task without result
+     * @param lane the lane
+     * @param r the task
+     * @return a Future to cancel the task, or null if the lane queue is full
+     */
+    public Future<Void> submit(LANE lane, final Runnable r) {
+        return submit(lane, new Task<Void>() {
+            @Override
+            public Void run() {
+                r.run();
+                return null;
+            }
+        }, null);
+    }
+
+    /**
+     * tasks waiting in a lane (not running yet)
+     * @param lane the lane
+     * @return
+     */
+    public int queueDepth(LANE lane) {
+        return _lanes[lane.ordinal()].executor.getQueue().size();
+    }
+
+    /**
+     * counters for a lane, for logging
+     * @param lane the lane
+     * @return
+     */
+    public String stats(LANE lane) {
+        Lane l = _lanes[lane.ordinal()];
+        return lane + ": depth=" + queueDepth(lane) + ", max depth=" + l.maxDepth.get() + ", submitted=" + l.submitted.get() +
+                ", completed=" + l.completed.get() + ", canceled=" + l.canceled.get() + ", rejected=" + l.rejected.get();
+    }
+
+    /**
+     * counters for all the lanes, for logging
+     * @return
+     */
+    public String stats() {
+        StringBuilder sb = new StringBuilder();
+        for (LANE lane : LANE.values()) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(stats(lane));
+        }
+        return sb.toString();
+    }
+}
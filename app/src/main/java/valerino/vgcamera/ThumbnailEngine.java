@@ -0,0 +1,465 @@
+package valerino.vgcamera;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.media.ThumbnailUtils;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * builds the screen-sized thumbnails of taken media without decoding the whole picture: the thumbnail embedded in the
+ * EXIF is used if large enough, else the picture is decoded subsampled (power of two inSampleSize, read from the
+ * bounds first). every decode must fit a memory ceiling: past it the config drops to RGB_565, then the sample doubles.
+ * a full decode is the last resort, and only if it fits the ceiling too.
+ * thumbnails for display are handed over in memory: the decode reuses one scratch bitmap (inBitmap), and the result
+ * is drawn in two display bitmaps used in turn, so the one on screen is never written. nothing is written to disk:
+ * there's no thumbnail file anymore, as nothing needs a persistent one. singleton
+ */
+public class ThumbnailEngine {
+    /**
+     * thumbnail size (the Glass screen)
+     */
+    public static final int WIDTH = 640;
+    public static final int HEIGHT = 360;
+
+    /**
+     * max bytes of a decoded bitmap, per thumbnail
+     */
+    private static final long MAX_DECODE_BYTES = 4 * 1024 * 1024;
+
+    private static ThumbnailEngine _instance = null;
+    private final Bitmap[] _slots = new Bitmap[2];
+    private int _next = 0;
+    private Bitmap _scratch = null;
+    private final Paint _paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // counters
+    private int _reused = 0;
+    private int _exif = 0;
+    private int _sampled = 0;
+    private int _full = 0;
+    private int _failed = 0;
+    private long _millis = 0;
+
+    /**
+     * constructor (use instance())
+     */
+    protected ThumbnailEngine() {
+    }
+
+    /**
+     * get the singleton
+     * @return
+     */
+    public static synchronized ThumbnailEngine instance() {
+        if (_instance == null) {
+            _instance = new ThumbnailEngine();
+        }
+        return _instance;
+    }
+
+    /**
+     * thumbnail of a media file
+     * @param file input file (.jpg or .mp4)
+     * @return Bitmap of WIDTH x HEIGHT, or null
+     */
+    public Bitmap decode(File file) {
+        long start = SystemClock.uptimeMillis();
+        Bitmap bmp = source(file, false);
+        if (bmp != null) {
+            bmp = crop(bmp);
+        }
+        done(bmp, start);
+        return bmp;
+    }
+
+    /**
+     * thumbnail of an in-memory JPEG
+     * @param jpeg the JPEG
+     * @return Bitmap of WIDTH x HEIGHT, or null
+     */
+    public Bitmap decode(byte[] jpeg) {
+        long start = SystemClock.uptimeMillis();
+        Bitmap bmp = null;
+        int[] embedded = findExifThumbnail(jpeg);
+        if (embedded != null) {
+            bmp = decodeEmbedded(jpeg, embedded[0], embedded[1], false);
+        }
+        if (bmp == null) {
+            bmp = decodePicture(null, jpeg, 0, jpeg.length, false);
+        }
+        if (bmp != null) {
+            bmp = crop(bmp);
+        }
+        else {
+            Log.e(this.getClass().getName(), "can't decode a thumbnail from memory");
+        }
+        done(bmp, start);
+        return bmp;
+    }
+
+    /**
+     * thumbnail of a media file to be shown right away, without allocating: the returned bitmap belongs to the engine
+     * and is overwritten two thumbnails later, so it must be off screen (replaced by the next one, or hidden) by then
+     * @param file input file (.jpg or .mp4)
+     * @return Bitmap of WIDTH x HEIGHT, or null
+     */
+    public synchronized Bitmap decodeForDisplay(File file) {
+        long start = SystemClock.uptimeMillis();
+        Bitmap src = source(file, true);
+        Bitmap bmp = null;
+        if (src != null) {
+            bmp = _slots[_next];
+            if (bmp == null) {
+                bmp = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+                _slots[_next] = bmp;
+            }
+            draw(src, bmp);
+            _next ^= 1;
+
+            // a decoded bitmap is the scratch for the next decode, anything else is gone
+            if (src != _scratch) {
+                if (src.isMutable() && src.getAllocationByteCount() <= MAX_DECODE_BYTES) {
+                    if (_scratch != null) {
+                        _scratch.recycle();
+                    }
+                    _scratch = src;
+                }
+                else {
+                    src.recycle();
+                }
+            }
+        }
+        done(bmp, start);
+        return bmp;
+    }
+
+    /**
+     * drop the scratch and display bitmaps (i.e. on memory pressure), they're allocated again when needed
+     */
+    public synchronized void trim() {
+        if (_scratch != null) {
+            _scratch.recycle();
+            _scratch = null;
+        }
+
+        // maybe on screen, left to the GC
+        _slots[0] = null;
+        _slots[1] = null;
+    }
+
+    /**
+     * counters, for logging
+     * @return
+     */
+    public synchronized String stats() {
+        int n = _exif + _sampled + _full;
+        return "exif=" + _exif + ", sampled=" + _sampled + ", full=" + _full + ", failed=" + _failed + ", reused=" +
+                _reused + ", avg=" + (n + _failed > 0 ? _millis / (n + _failed) : 0) + "ms";
+    }
+
+    /**
+     * decode a media file, not cropped yet
+     * @param file input file (.jpg or .mp4)
+     * @param reuse true to decode mutable, in the scratch bitmap if large enough (decodeForDisplay() only)
+     * @return Bitmap, or null
+     */
+    private Bitmap source(File file, boolean reuse) {
+        Bitmap bmp;
+        if (file.getAbsolutePath().endsWith(".mp4")) {
+            bmp = decodeVideo(file);
+        }
+        else {
+            bmp = decodeExif(file, reuse);
+            if (bmp == null) {
+                bmp = decodePicture(file.getAbsolutePath(), null, 0, 0, reuse);
+            }
+        }
+        if (bmp == null) {
+            Log.e(this.getClass().getName(), "can't decode a thumbnail, file=" + file.getAbsolutePath());
+        }
+        return bmp;
+    }
+
+    /**
+     * the video thumbnail (512x384)
+     */
+    private Bitmap decodeVideo(File file) {
+        Bitmap bmp = ThumbnailUtils.createVideoThumbnail(file.getAbsolutePath(), MediaStore.Images.Thumbnails.MINI_KIND);
+        if (bmp == null) {
+            Log.e(this.getClass().getName(), "createVideoThumbnail() failed, file=" + file.getAbsolutePath());
+            return null;
+        }
+        synchronized (this) {
+            _sampled++;
+        }
+        return bmp;
+    }
+
+    /**
+     * the thumbnail embedded in the EXIF of a file (ExifInterface reads the header only)
+     * @return Bitmap, or null if missing or too small
+     */
+    private Bitmap decodeExif(File file, boolean reuse) {
+        byte[] thumb;
+        try {
+            ExifInterface exif = new ExifInterface(file.getAbsolutePath());
+            if (!exif.hasThumbnail()) {
+                return null;
+            }
+            thumb = exif.getThumbnail();
+        } catch (IOException e) {
+            return null;
+        }
+        if (thumb == null) {
+            return null;
+        }
+        return decodeEmbedded(thumb, 0, thumb.length, reuse);
+    }
+
+    /**
+     * decode an embedded thumbnail if it covers the thumbnail size (most are 160x120 or so, and upscaled would look
+     * blurry on the taken screen)
+     * @return Bitmap, or null
+     */
+    private Bitmap decodeEmbedded(byte[] data, int off, int len, boolean reuse) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, off, len, opts);
+        if (opts.outWidth < WIDTH || opts.outHeight < HEIGHT || !fit(opts, opts.outWidth, opts.outHeight)) {
+            return null;
+        }
+        opts.inJustDecodeBounds = false;
+        if (reuse) {
+            reuse(opts);
+        }
+        Bitmap bmp = decode(null, data, off, len, opts);
+        if (bmp == null) {
+            return null;
+        }
+        synchronized (this) {
+            _exif++;
+        }
+        return bmp;
+    }
+
+    /**
+     * decode the picture subsampled, or whole as the last resort (from a file or from memory)
+     * @param path the file, or null
+     * @param data the JPEG if path is null
+     * @return Bitmap, or null
+     */
+    private Bitmap decodePicture(String path, byte[] data, int off, int len, boolean reuse) {
+        BitmapFactory.Options opts = new BitmapFactory.Options();
+        opts.inJustDecodeBounds = true;
+        decode(path, data, off, len, opts);
+        if (opts.outWidth <= 0 || opts.outHeight <= 0) {
+            Log.e(this.getClass().getName(), "can't read bounds");
+            return null;
+        }
+        int width = opts.outWidth;
+        int height = opts.outHeight;
+        if (!fit(opts, width, height)) {
+            return null;
+        }
+        opts.inJustDecodeBounds = false;
+        if (reuse) {
+            reuse(opts);
+        }
+        Bitmap bmp = decode(path, data, off, len, opts);
+        if (bmp != null) {
+            synchronized (this) {
+                if (opts.inSampleSize > 1) {
+                    _sampled++;
+                }
+                else {
+                    _full++;
+                }
+            }
+            return bmp;
+        }
+        if (opts.inSampleSize == 1) {
+            return null;
+        }
+
+        // some decoders choke on subsampling, try whole if it fits
+        Log.w(this.getClass().getName(), "subsampled decode failed (" + opts.inSampleSize + "), trying a full decode");
+        opts = new BitmapFactory.Options();
+        opts.inPreferredConfig = Bitmap.Config.RGB_565;
+        if ((long)width * height * 2 > MAX_DECODE_BYTES) {
+            Log.e(this.getClass().getName(), width + "x" + height + " over the memory ceiling");
+            return null;
+        }
+        opts.outWidth = width;
+        opts.outHeight = height;
+        if (reuse) {
+            reuse(opts);
+        }
+        bmp = decode(path, data, off, len, opts);
+        if (bmp == null) {
+            return null;
+        }
+        synchronized (this) {
+            _full++;
+        }
+        return bmp;
+    }
+
+    /**
+     * decode from a file or from memory, without the reused bitmap if the decoder refuses it
+     */
+    private static Bitmap decode(String path, byte[] data, int off, int len, BitmapFactory.Options opts) {
+        try {
+            if (path != null) {
+                return BitmapFactory.decodeFile(path, opts);
+            }
+            return BitmapFactory.decodeByteArray(data, off, len, opts);
+        } catch (IllegalArgumentException e) {
+            if (opts.inBitmap == null) {
+                throw e;
+            }
+            opts.inBitmap = null;
+            return decode(path, data, off, len, opts);
+        }
+    }
+
+    /**
+     * decode mutable, in the scratch bitmap if it's large enough (opts must have bounds, sample and config set)
+     * @param opts the options
+     */
+    private void reuse(BitmapFactory.Options opts) {
+        opts.inMutable = true;
+        if (_scratch == null) {
+            return;
+        }
+        int s = opts.inSampleSize;
+        long bytes = (long)((opts.outWidth + s - 1) / s) * ((opts.outHeight + s - 1) / s) *
+                (opts.inPreferredConfig == Bitmap.Config.RGB_565 ? 2 : 4);
+        if (bytes <= _scratch.getAllocationByteCount()) {
+            opts.inBitmap = _scratch;
+            _reused++;
+        }
+    }
+
+    /**
+     * choose sample and config so the decoded bitmap covers the thumbnail (if possible) within the memory ceiling
+     * @param opts set inSampleSize and inPreferredConfig here
+     * @param width picture width
+     * @param height picture height
+     * @return false if it can't fit
+     */
+    private static boolean fit(BitmapFactory.Options opts, int width, int height) {
+        // the largest power of two still covering the thumbnail
+        int sample = 1;
+        while (width / (sample * 2) >= WIDTH && height / (sample * 2) >= HEIGHT) {
+            sample *= 2;
+        }
+
+        // then within the ceiling, halving the bytes per pixel before the resolution
+        while (sample <= 64) {
+            long pixels = (long)((width + sample - 1) / sample) * ((height + sample - 1) / sample);
+            if (pixels * 4 <= MAX_DECODE_BYTES) {
+                opts.inPreferredConfig = Bitmap.Config.ARGB_8888;
+                opts.inSampleSize = sample;
+                return true;
+            }
+            if (pixels * 2 <= MAX_DECODE_BYTES) {
+                opts.inPreferredConfig = Bitmap.Config.RGB_565;
+                opts.inSampleSize = sample;
+                return true;
+            }
+            sample *= 2;
+        }
+        return false;
+    }
+
+    /**
+     * center crop and scale to the thumbnail size
+     * @param bmp the decoded bitmap, recycled
+     * @return Bitmap, or null
+     */
+    private static Bitmap crop(Bitmap bmp) {
+        if (bmp.getWidth() == WIDTH && bmp.getHeight() == HEIGHT) {
+            return bmp;
+        }
+        return ThumbnailUtils.extractThumbnail(bmp, WIDTH, HEIGHT, ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+    }
+
+    /**
+     * center crop and scale in a display bitmap, as extractThumbnail() does
+     * @param src the decoded bitmap
+     * @param dst the display bitmap
+     */
+    private void draw(Bitmap src, Bitmap dst) {
+        int w = src.getWidth();
+        int h = src.getHeight();
+        int cw = w;
+        int ch = h;
+        if ((long)w * HEIGHT > (long)h * WIDTH) {
+            cw = h * WIDTH / HEIGHT;
+        }
+        else {
+            ch = w * HEIGHT / WIDTH;
+        }
+        int x = (w - cw) / 2;
+        int y = (h - ch) / 2;
+        new Canvas(dst).drawBitmap(src, new Rect(x, y, x + cw, y + ch), new Rect(0, 0, WIDTH, HEIGHT), _paint);
+    }
+
+    /**
+     * find the thumbnail embedded in the EXIF (APP1) segment of a JPEG, without copying it
+     * @param jpeg the JPEG
+     * @return offset and length of the embedded JPEG, or null
+     */
+    private static int[] findExifThumbnail(byte[] jpeg) {
+        int pos = 2;
+        while (pos + 4 <= jpeg.length && (jpeg[pos] & 0xff) == 0xff) {
+            int marker = jpeg[pos + 1] & 0xff;
+            int seg = ((jpeg[pos + 2] & 0xff) << 8) | (jpeg[pos + 3] & 0xff);
+            if (marker == 0xda) {
+                // scan data, no EXIF past here
+                return null;
+            }
+            int end = Math.min(jpeg.length, pos + 2 + seg);
+            if (marker == 0xe1) {
+                // the embedded JPEG: first SOI after the segment header, up to the last EOI in the segment
+                int soi = -1;
+                for (int i = pos + 4; i + 1 < end; i++) {
+                    if ((jpeg[i] & 0xff) == 0xff && (jpeg[i + 1] & 0xff) == 0xd8) {
+                        soi = i;
+                        break;
+                    }
+                }
+                if (soi < 0) {
+                    return null;
+                }
+                for (int i = end - 2; i > soi; i--) {
+                    if ((jpeg[i] & 0xff) == 0xff && (jpeg[i + 1] & 0xff) == 0xd9) {
+                        return new int[] { soi, i + 2 - soi };
+                    }
+                }
+                return null;
+            }
+            pos = end;
+        }
+        return null;
+    }
+
+    /**
+     * account a thumbnail
+     */
+    private synchronized void done(Bitmap bmp, long start) {
+        if (bmp == null) {
+            _failed++;
+        }
+        _millis += SystemClock.uptimeMillis() - start;
+    }
+}
@@ -3,23 +3,21 @@ package valerino.vgcamera;
 import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
 import android.media.AudioManager;
-import android.media.ThumbnailUtils;
-import android.provider.MediaStore;
 import android.util.Log;
 import android.widget.ImageView;
 
 import com.google.android.glass.widget.CardBuilder;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -49,104 +47,72 @@ public class Utils {
      * @return a File (pointing at path), or null on error
      */
     public static File bufferToFile (byte[] buf, final String path) {
-        FileOutputStream fos = null;
+        return bufferToFile(buf, buf.length, path);
+    }
+
+    /**
+     * creates a new file out of the first bytes of a buffer
+     * @param buf the data to be written
+     * @param len how many bytes to write
+     * @param path path to the file to be created (will be overwritten)
+     * @return a File (pointing at path), or null on error
+     */
+    public static File bufferToFile (byte[] buf, int len, final String path) {
         File f = new File (path);
         try {
-            fos = new FileOutputStream(f);
-            fos.write(buf);
-        } catch (FileNotFoundException e) {
-            return null;
+            FileIO.write(f, buf, 0, len);
         } catch (IOException e) {
-            f.delete();
             return null;
         }
-        finally {
-            closeNoEx(fos);
-        }
         return f;
     }
 
     /**
-     * read input stream to a byte array
-     * @param inputStream the input stream
-     * @param maxRead max bytes to be read, 0 to read all input stream
-     * @return byte[]
-     * @throws IOException
+     * encode a NV21 frame (i.e. a preview frame) to a JPEG file
+     * @param nv21 the frame
+     * @param width frame width
+     * @param height frame height
+     * @param quality JPEG quality (0-100)
+     * @param dest the destination file (will be overwritten)
+     * @return true on success
      */
-    public static byte[] inputStreamToByteArray (InputStream inputStream, int maxRead) throws IOException {
-        byte[] buf = new byte[8192];
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-
-        int totRead = 0;
-        while (true) {
-            int read = 0;
-            try {
-                read = inputStream.read(buf);
-            }
-            finally {
-                bos.close();
-            }
-            if (read == -1) {
-                break;
-            }
-            if (maxRead == 0) {
-                // write all
-                bos.write(buf,0,read);
-            }
-            else {
-                if (totRead < maxRead) {
-                    // write a full chunk
-                    bos.write(buf,0,read);
-                }
-                else {
-                    // last chunk
-                    bos.write(buf,0,maxRead - totRead);
-                    bos.close();
-                    break;
-                }
-            }
-            totRead += read;
-        }
-        return bos.toByteArray();
-    }
-
-    /**
-     * read a file to buffer
-     * @param f file to be read
-     * @return a byte array or null
-     */
-    public static byte[] fileToBuffer(File f) {
-        FileInputStream fis;
-        try {
-            fis = new FileInputStream(f);
-        } catch (FileNotFoundException e) {
-            return null;
-        }
-        byte[] buf = null;
+    public static boolean nv21ToJpegFile(byte[] nv21, int width, int height, int quality, File dest) {
+        YuvImage img = new YuvImage(nv21, ImageFormat.NV21, width, height, null);
+        FileOutputStream fos = null;
+        boolean ok;
         try {
-            buf = inputStreamToByteArray(fis, 0);
+            fos = new FileOutputStream(dest);
+            ok = img.compressToJpeg(new Rect(0, 0, width, height), quality, fos);
         } catch (IOException e) {
-            return null;
+            ok = false;
         }
         finally {
-            closeNoEx(fis);
+            closeNoEx(fos);
         }
-        return buf;
+        if (!ok) {
+            Log.e(Utils.class.getName(), "compressToJpeg() failed, dest=" + dest.getAbsolutePath());
+            dest.delete();
+        }
+        return ok;
     }
 
     /**
      * creates a temporary file out of a buffer
      * @param buf the data to be written
+     * @param dir where to create the file
      * @return a File (should be deleted after usage), or null on error
      */
-    public static File bufferToTempFile(byte[] buf) {
+    public static File bufferToTempFile(byte[] buf, File dir) {
         File tmpFile;
         try {
-            tmpFile = File.createTempFile(null,null);
+            tmpFile = File.createTempFile("vgcamera", ".tmp", dir);
         } catch (IOException e) {
             return null;
         }
         File f = bufferToFile(buf, tmpFile.getAbsolutePath());
+        if (f == null) {
+            tmpFile.delete();
+        }
         return f;
     }
 
@@ -171,7 +137,7 @@ public class Utils {
 
         // and write to it
         try {
-            fos.write(buf);
+            FileIO.writeFully(fos.getChannel(), ByteBuffer.wrap(buf));
         } catch (IOException e) {
             f.delete();
             return null;
@@ -221,7 +187,50 @@ public class Utils {
     public static File getTempMediaFile(Context ctx, CamController.CAM_MODE mode) {
         String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS").format(new Date());
         File f = new File(AppConfiguration.instance(ctx).tmpFolder(), timeStamp +
-                (mode == CamController.CAM_MODE.MODE_PHOTO ? ".jpg" : ".mp4"));
+                (mode == CamController.CAM_MODE.MODE_VIDEO ? ".mp4" : ".jpg"));
+        return f;
+    }
+
+    /**
+     * get a properly named File in the storage folder
+     *
+     * @param ctx a Context
+     * @param mode one of the CamController.CAM_MODE
+     * @return
+     */
+    public static File getStorageMediaFile(Context ctx, CamController.CAM_MODE mode) {
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS").format(new Date());
+        File f = new File(AppConfiguration.instance(ctx).storageFolder(), timeStamp +
+                (mode == CamController.CAM_MODE.MODE_VIDEO ? ".mp4" : ".jpg"));
+        return f;
+    }
+
+    /**
+     * get a properly named File in the storage folder, for a burst picture
+     *
+     * @param ctx a Context
+     * @param burstStart the time the burst started (shared by all the burst pictures)
+     * @param index index of the picture in the burst
+     * @return
+     */
+    public static File getBurstMediaFile(Context ctx, Date burstStart, int index) {
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS").format(burstStart);
+        File f = new File(AppConfiguration.instance(ctx).storageFolder(), timeStamp +
+                String.format("_burst%02d.jpg", index));
+        return f;
+    }
+
+    /**
+     * get a properly named File in the storage folder, for an hdr picture or one of its shots
+     *
+     * @param ctx a Context
+     * @param hdrStart the time the hdr capture started (shared by the merged picture and its shots)
+     * @param suffix i.e. "hdr" for the merged picture
+     * @return
+     */
+    public static File getHdrMediaFile(Context ctx, Date hdrStart, String suffix) {
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS").format(hdrStart);
+        File f = new File(AppConfiguration.instance(ctx).storageFolder(), timeStamp + "_" + suffix + ".jpg");
         return f;
     }
 
@@ -236,66 +245,21 @@ public class Utils {
     }
 
     /**
-     * create a thumbnail for the given file
+     * generate a thumbnail Bitmap for the given file
      * @param file input file (.jpg or .mp4)
-     * @parm dest destination file for the thumbnail
-     * @return File, or null
+     * @return Bitmap, or null
      */
-    public static File generateThumbnail (File file, File dest) {
-        Bitmap bmp = fileToThumbnail(file);
-        if (bmp == null) {
-            return null;
-        }
-
-        // save bitmap to file
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        if (bmp.compress(Bitmap.CompressFormat.JPEG, 90, bos) == false) {
-            Log.e(Utils.class.getName(), "compress() failed, file=" + file.getAbsolutePath());
-            closeNoEx(bos);
-            dest.delete();
-            return null;
-        }
-        closeNoEx(bos);
-        File f = bufferToFile(bos.toByteArray(), dest.getAbsolutePath());
-        if (f == null) {
-            Log.e(Utils.class.getName(), "bufferToFile() returned null, dest=" + dest.getAbsolutePath() + ", file=" + file.getAbsolutePath());
-        }
-        return f;
+    public static Bitmap fileToThumbnail (File file) {
+        return ThumbnailEngine.instance().decode(file);
     }
 
     /**
-     * generate a thumbnail Bitmap for the given file
-     * @param file input file (.jpg or .mp4)
+     * generate a thumbnail Bitmap for an in-memory jpeg
+     * @param jpeg the jpeg
      * @return Bitmap, or null
      */
-    public static Bitmap fileToThumbnail (File file) {
-        Bitmap bmp;
-        if (file.getAbsolutePath().endsWith(".mp4")) {
-            // generate a video thumbnail
-            bmp = ThumbnailUtils.createVideoThumbnail(file.getAbsolutePath(), MediaStore.Images.Thumbnails.MINI_KIND);
-            if (bmp == null) {
-                Log.e(Utils.class.getName(), "createVideoThumbnail() failed, file=" + file.getAbsolutePath());
-                return null;
-            }
-            bmp = Bitmap.createScaledBitmap(bmp, 640, 360, false);
-            if (bmp == null) {
-                Log.e(Utils.class.getName(), "createScaledBitmap() failed, file=" + file.getAbsolutePath());
-                return null;
-            }
-        } else {
-            // we have an image file
-            bmp = BitmapFactory.decodeFile(file.getAbsolutePath(), null);
-            if (bmp == null) {
-                Log.e(Utils.class.getName(), "decodeFile() failed, file=" + file.getAbsolutePath());
-                return null;
-            }
-            bmp = ThumbnailUtils.extractThumbnail(bmp, 640, 360);
-            if (bmp == null) {
-                Log.e(Utils.class.getName(), "extractThumbnail() failed, file=" + file.getAbsolutePath());
-                return null;
-            }
-        }
-        return bmp;
+    public static Bitmap jpegToThumbnail (byte[] jpeg) {
+        return ThumbnailEngine.instance().decode(jpeg);
     }
 
     /**
@@ -0,0 +1,147 @@
+package valerino.vgcamera;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * H.264 encoder fed with the NV21 preview frames (on the camera thread), decimated down to the configured frame rate
+ */
+public class VideoEncoder extends MediaEncoder implements PreviewFrameRing.OnFrameListener {
+    private static final String MIME = "video/avc";
+
+    private final EncoderConfig _config;
+    private final byte[] _scratch;
+    private final long _frameInterval;
+    private ByteBuffer[] _inputs = null;
+    private boolean _planar = false;
+    private long _nextFrame = 0;
+    private int _framesIn = 0;
+    private int _framesSkipped = 0;
+    private int _framesDropped = 0;
+
+    /**
+     * constructor
+     * @param config the encoder settings, width and height must match the preview
+     * @param listener receives the output
+     */
+    public VideoEncoder(EncoderConfig config, OnEncodedFrameListener listener) {
+        super("VGCamera-video-encoder", listener);
+        _config = config;
+        _scratch = new byte[config.width * config.height * 3 / 2];
+        _frameInterval = 1000 / Math.max(config.fps, 1);
+    }
+
+    /**
+     * the encoder settings
+     * @return
+     */
+    public EncoderConfig config() {
+        return _config;
+    }
+
+    @Override
+    protected MediaCodec createCodec() throws Exception {
+        MediaFormat format = MediaFormat.createVideoFormat(MIME, _config.width, _config.height);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, _config.bitrate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, _config.fps);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, _config.gopSeconds);
+        MediaCodec codec = MediaCodec.createEncoderByType(MIME);
+        int color = chooseColorFormat(codec.getCodecInfo());
+        if (color == -1) {
+            codec.release();
+            throw new Exception("no supported yuv420 input format");
+        }
+        _planar = (color == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, color);
+        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        Log.d(this.getClass().getName(), "encoding " + _config.toString() + (_planar ? ", planar" : ", semiplanar"));
+        return codec;
+    }
+
+    @Override
+    protected boolean onStarted(MediaCodec codec) {
+        _inputs = codec.getInputBuffers();
+        _nextFrame = 0;
+        return true;
+    }
+
+    /**
+     * pick the encoder input format we can convert NV21 to
+     * @param info the encoder info
+     * @return a COLOR_FormatYUV420* constant, or -1
+     */
+    private static int chooseColorFormat(MediaCodecInfo info) {
+        int[] formats = info.getCapabilitiesForType(MIME).colorFormats;
+        int found = -1;
+        for (int f : formats) {
+            if (f == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar) {
+                // cheapest conversion
+                return f;
+            }
+            if (f == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar) {
+                found = f;
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, long timestamp) {
+        MediaCodec codec = _codec;
+        if (codec == null || data.length < _scratch.length) {
+            return;
+        }
+        _framesIn++;
+        if (_nextFrame != 0 && timestamp < _nextFrame - _frameInterval / 2) {
+            // faster than the configured frame rate
+            _framesSkipped++;
+            return;
+        }
+        _nextFrame = (_nextFrame == 0 || timestamp - _nextFrame > _frameInterval) ? timestamp + _frameInterval : _nextFrame + _frameInterval;
+
+        int idx;
+        try {
+            idx = codec.dequeueInputBuffer(0);
+        } catch (IllegalStateException e) {
+            // being stopped
+            return;
+        }
+        if (idx < 0) {
+            // the encoder is behind, skip this frame
+            _framesDropped++;
+            return;
+        }
+
+        // NV21 to the encoder layout
+        int ySize = _config.width * _config.height;
+        System.arraycopy(data, 0, _scratch, 0, ySize);
+        int chroma = ySize / 4;
+        if (_planar) {
+            // I420: U plane, then V plane
+            for (int i = 0; i < chroma; i++) {
+                _scratch[ySize + i] = data[ySize + i * 2 + 1];
+                _scratch[ySize + chroma + i] = data[ySize + i * 2];
+            }
+        }
+        else {
+            // NV12: interleaved U/V
+            for (int i = 0; i < chroma; i++) {
+                _scratch[ySize + i * 2] = data[ySize + i * 2 + 1];
+                _scratch[ySize + i * 2 + 1] = data[ySize + i * 2];
+            }
+        }
+        ByteBuffer in = _inputs[idx];
+        in.clear();
+        in.put(_scratch);
+        codec.queueInputBuffer(idx, 0, _scratch.length, timestamp * 1000, 0);
+    }
+
+    @Override
+    public String stats() {
+        return "frames in=" + _framesIn + ", skipped (rate)=" + _framesSkipped + ", dropped (busy)=" + _framesDropped + ", " + super.stats();
+    }
+}
@@ -0,0 +1,226 @@
+package valerino.vgcamera;
+
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * applies zoom changes on the camera thread, keeping only the latest requested level: requests superseded before
+ * being applied are dropped, an in-flight smooth zoom is stopped and retargeted. the listener is notified once per
+ * applied level, on the UI thread
+ */
+public class ZoomWorker {
+    private static final int NO_TARGET = -1;
+
+    private final Handler _worker;
+    private final Handler _ui = new Handler(Looper.getMainLooper());
+    private Camera.OnZoomChangeListener _listener = null;
+    private Camera _camera = null;
+    private CameraParameters _params = null;
+    private boolean _smooth = false;
+
+    // guarded by this
+    private int _target = NO_TARGET;
+    private boolean _scheduled = false;
+    private boolean _smoothInFlight = false;
+    private int _smoothTarget = NO_TARGET;
+    private int _lastNotified = NO_TARGET;
+    private int _lastRequested = NO_TARGET;
+    private int _requests = 0;
+    private int _applied = 0;
+
+    /**
+     * constructor
+     * @param worker Handler of the thread the zoom is applied on
+     */
+    public ZoomWorker(Handler worker) {
+        _worker = worker;
+    }
+
+    /**
+     * set the listener notified (on the UI thread) for each applied zoom level
+     * @param listener an OnZoomChangeListener
+     */
+    public synchronized void setListener(Camera.OnZoomChangeListener listener) {
+        _listener = listener;
+    }
+
+    /**
+     * bind to an opened camera
+     * @param camera the Camera
+     * @param params its CameraParameters
+     */
+    public synchronized void bind(Camera camera, CameraParameters params) {
+        _camera = camera;
+        _params = params;
+        _smoothInFlight = false;
+        _smoothTarget = NO_TARGET;
+        _lastNotified = NO_TARGET;
+        _lastRequested = NO_TARGET;
+    }
+
+    /**
+     * unbind from the camera (released), pending requests are dropped
+     */
+    public synchronized void unbind() {
+        Log.d(this.getClass().getName(), "unbind(), requests=" + _requests + ", applied=" + _applied);
+        _camera = null;
+        _params = null;
+        _target = NO_TARGET;
+        _smoothInFlight = false;
+    }
+
+    /**
+     * request a zoom level, superseding any request not yet applied
+     * @param level the zoom level
+     * @param smooth true to zoom smoothly
+     */
+    public synchronized void setZoom(int level, boolean smooth) {
+        _requests++;
+        _target = level;
+        _lastRequested = level;
+        _smooth = smooth;
+        if (_smoothInFlight && _smoothTarget != level && _camera != null) {
+            // retarget: stop the running smooth zoom, the drain happens on its 'stopped' callback
+            try {
+                _camera.stopSmoothZoom();
+            } catch (Throwable e) {
+                Log.e(this.getClass().getName(), "can't stop smooth-zoom", e);
+            }
+            return;
+        }
+        schedule();
+    }
+
+    /**
+     * the last requested zoom level (applied or not), to compute relative steps on rapid requests
+     * @param current the current zoom level, returned if nothing has been requested on this camera yet
+     * @return
+     */
+    public synchronized int lastRequested(int current) {
+        return _lastRequested == NO_TARGET ? current : _lastRequested;
+    }
+
+    /**
+     * whether there's no zoom change pending or in progress
+     * @return
+     */
+    public synchronized boolean isIdle() {
+        return !_scheduled && !_smoothInFlight && _target == NO_TARGET;
+    }
+
+    /**
+     * schedule a drain on the worker, if not already scheduled
+     */
+    private void schedule() {
+        if (!_scheduled) {
+            _scheduled = true;
+            _worker.post(_drain);
+        }
+    }
+
+    /**
+     * applies the latest target, on the camera thread (camera calls are made outside the lock, which only guards the
+     * state shared with the smooth zoom callbacks)
+     */
+    private final Runnable _drain = new Runnable() {
+        @Override
+        public void run() {
+            int level;
+            boolean smooth;
+            Camera camera;
+            CameraParameters params;
+            synchronized (ZoomWorker.this) {
+                _scheduled = false;
+                if (_target == NO_TARGET || _camera == null || _smoothInFlight) {
+                    // nothing to do, or will run again once the smooth zoom stops
+                    return;
+                }
+                level = _target;
+                _target = NO_TARGET;
+                smooth = _smooth;
+                camera = _camera;
+                params = _params;
+                if (level == params.zoom() || level > params.maxZoom() || level < 0) {
+                    // we're already at the desired zoom level, or it's out of range
+                    return;
+                }
+                if (smooth) {
+                    _smoothInFlight = true;
+                    _smoothTarget = level;
+                }
+            }
+
+            if (smooth) {
+                // zoom smoothly, the camera notifies each step
+                try {
+                    camera.startSmoothZoom(level);
+                } catch (Throwable ex) {
+                    Log.e(ZoomWorker.class.getName(), "can't smooth-zoom");
+                    synchronized (ZoomWorker.this) {
+                        _smoothInFlight = false;
+                        _smoothTarget = NO_TARGET;
+                    }
+                }
+                return;
+            }
+
+            // zoom normally
+            try {
+                params.setZoom(level);
+                params.commit();
+            } catch (Throwable ex) {
+                // the driver rejected it, nothing was applied
+                Log.e(ZoomWorker.class.getName(), "can't zoom to " + level, ex);
+                return;
+            }
+            synchronized (ZoomWorker.this) {
+                if (_camera == camera) {
+                    notifyApplied(level, true);
+                }
+            }
+        }
+    };
+
+    /**
+     * to be called from the camera OnZoomChangeListener (smooth zoom progress)
+     * @param level the current zoom level
+     * @param stopped true if the smooth zoom is over
+     */
+    public synchronized void onCameraZoomChange(int level, boolean stopped) {
+        notifyApplied(level, stopped);
+        if (stopped) {
+            _smoothInFlight = false;
+            _smoothTarget = NO_TARGET;
+            if (_target != NO_TARGET) {
+                // a newer request is waiting
+                schedule();
+            }
+        }
+    }
+
+    /**
+     * notify the listener on the UI thread, once per level
+     * @param level the applied zoom level
+     * @param stopped true if zoom is not changing anymore
+     */
+    private void notifyApplied(final int level, final boolean stopped) {
+        if (level == _lastNotified) {
+            return;
+        }
+        _lastNotified = level;
+        _applied++;
+        final Camera.OnZoomChangeListener l = _listener;
+        final Camera cam = _camera;
+        if (l == null) {
+            return;
+        }
+        _ui.post(new Runnable() {
+            @Override
+            public void run() {
+                l.onZoomChange(level, stopped, cam);
+            }
+        });
+    }
+}
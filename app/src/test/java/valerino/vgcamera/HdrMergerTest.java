@@ -0,0 +1,66 @@
+package valerino.vgcamera;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * EXIF copy of the merged pictures (HdrMerger and NightShot), the android classes are stubbed (returnDefaultValues)
+ */
+public class HdrMergerTest {
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    /**
+     * SOI, an APP1 segment and the SOS header (18 bytes up to there), then scan data and EOI
+     */
+    private static final byte[] JPEG = {
+            (byte)0xff, (byte)0xd8,
+            (byte)0xff, (byte)0xe1, 0x00, 0x08, 'E', 'x', 'i', 'f', 0x00, 0x00,
+            (byte)0xff, (byte)0xda, 0x00, 0x04, 0x01, 0x02,
+            0x11, 0x22, 0x33, 0x44, 0x55,
+            (byte)0xff, (byte)0xd9
+    };
+    private static final int HEADER = 18;
+
+    @Test
+    public void headerToTempFileWritesTheHeaderOnly() throws Exception {
+        File tmp = HdrMerger.headerToTempFile(JPEG, _folder.getRoot());
+        assertNotNull(tmp);
+        assertEquals(_folder.getRoot(), tmp.getParentFile());
+
+        byte[] expected = Arrays.copyOf(JPEG, HEADER + 2);
+        expected[HEADER] = (byte)0xff;
+        expected[HEADER + 1] = (byte)0xd9;
+        assertArrayEquals(expected, FileIO.read(tmp));
+    }
+
+    @Test
+    public void copyExifWithoutOriginalsKeepsTheMergedPicture() throws Exception {
+        File merged = new File(_folder.getRoot(), "merged.jpg");
+        FileIO.write(merged, ByteBuffer.wrap(JPEG));
+
+        HdrMerger.copyExif(JPEG, null, merged);
+
+        // untouched (the stubbed ExifInterface writes nothing), and the temporary header is gone
+        assertArrayEquals(JPEG, FileIO.read(merged));
+        assertArrayEquals(new String[] { "merged.jpg" }, _folder.getRoot().list());
+    }
+
+    @Test
+    public void copyExifNeverThrows() throws Exception {
+        // no folder to create the temporary header in
+        File merged = new File(new File(_folder.getRoot(), "missing"), "merged.jpg");
+        HdrMerger.copyExif(JPEG, null, merged);
+        assertTrue(!merged.exists());
+    }
+}
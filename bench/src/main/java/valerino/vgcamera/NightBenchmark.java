@@ -0,0 +1,203 @@
+package valerino.vgcamera;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+/**
+ * desktop benchmark of NightStacker against stored frame sets, each a folder of same sized pictures (i.e. the shots
+ * kept by NightShot.dumpShots() in debug builds), sorted by name, the first being the reference.
+ * run with gradlew :bench:nightBenchmark -PbenchArgs="[-n iterations] [-t threads] [-m budgetKB] [-o merged.png] folder..."
+ */
+public class NightBenchmark {
+    private static final int WARMUP = 2;
+
+    /**
+     * frames decoded whole in memory, the desktop has plenty
+     */
+    private static class ImageSource implements NightStacker.FrameSource {
+        private final int[][] _pixels;
+        private final int _width;
+        private final int _height;
+
+        ImageSource(List<File> files) throws IOException {
+            _pixels = new int[files.size()][];
+            int width = 0;
+            int height = 0;
+            for (int i = 0; i < files.size(); i++) {
+                BufferedImage img = ImageIO.read(files.get(i));
+                if (img == null) {
+                    throw new IOException(files.get(i).getName() + ": unsupported format");
+                }
+                if (i > 0 && (img.getWidth() != width || img.getHeight() != height)) {
+                    throw new IOException(files.get(i).getName() + ": different size");
+                }
+                width = img.getWidth();
+                height = img.getHeight();
+                _pixels[i] = img.getRGB(0, 0, width, height, null, 0, width);
+            }
+            _width = width;
+            _height = height;
+        }
+
+        @Override
+        public int frames() {
+            return _pixels.length;
+        }
+
+        @Override
+        public int width() {
+            return _width;
+        }
+
+        @Override
+        public int height() {
+            return _height;
+        }
+
+        @Override
+        public byte[] luma(int frame, int sample, int[] size) {
+            // box filter, as a subsampled decode would
+            int w = _width / sample;
+            int h = _height / sample;
+            byte[] full = new byte[_width * _height];
+            FrameAligner.toLuma(_pixels[frame], full, full.length);
+            byte[] luma = BufferPool.instance().acquire(w * h);
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    int sum = 0;
+                    for (int sy = 0; sy < sample; sy++) {
+                        int p = (y * sample + sy) * _width + x * sample;
+                        for (int sx = 0; sx < sample; sx++) {
+                            sum += full[p + sx] & 0xff;
+                        }
+                    }
+                    luma[y * w + x] = (byte)(sum / (sample * sample));
+                }
+            }
+            size[0] = w;
+            size[1] = h;
+            return luma;
+        }
+
+        @Override
+        public NightStacker.Reader open(int width) {
+            return new NightStacker.Reader() {
+                @Override
+                public void read(int frame, int x, int y, int width, int rows, int[] argb) {
+                    for (int r = 0; r < rows; r++) {
+                        System.arraycopy(_pixels[frame], (y + r) * _width + x, argb, r * width, width);
+                    }
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        public long readerBytes(int width, int rows) {
+            return 0;
+        }
+    }
+
+    /**
+     * collects the merged picture in a BufferedImage
+     */
+    private static class ImageSink implements NightStacker.FrameSink {
+        BufferedImage image;
+
+        @Override
+        public void begin(int width, int height) {
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+
+        @Override
+        public void write(int y, int rows, int[] argb) {
+            image.setRGB(0, y, image.getWidth(), rows, argb, 0, image.getWidth());
+        }
+
+        @Override
+        public void end() {
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = 10;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long budget = 16 * 1024 * 1024;
+        File output = null;
+        List<File> sets = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n") && i + 1 < args.length) {
+                iterations = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-t") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-m") && i + 1 < args.length) {
+                budget = Long.parseLong(args[++i]) * 1024;
+            }
+            else if (args[i].equals("-o") && i + 1 < args.length) {
+                output = new File(args[++i]);
+            }
+            else {
+                sets.add(new File(args[i]));
+            }
+        }
+        if (sets.isEmpty()) {
+            System.err.println("usage: NightBenchmark [-n iterations] [-t threads] [-m budgetKB] [-o merged.png] folder...");
+            return;
+        }
+
+        NightStacker stacker = new NightStacker(new TileExecutor("night-tile", threads), budget);
+        for (File set : sets) {
+            File[] children = set.listFiles();
+            if (children == null) {
+                System.err.println(set.getName() + ": not a folder, skipped");
+                continue;
+            }
+            Arrays.sort(children);
+            List<File> files = new ArrayList<>();
+            for (File c : children) {
+                String n = c.getName().toLowerCase();
+                if (n.endsWith(".jpg") || n.endsWith(".jpeg") || n.endsWith(".png")) {
+                    files.add(c);
+                }
+            }
+            if (files.isEmpty()) {
+                System.err.println(set.getName() + ": no pictures, skipped");
+                continue;
+            }
+            ImageSource source = new ImageSource(files);
+            ImageSink sink = new ImageSink();
+            NightStacker.Stats stats = null;
+            for (int i = 0; i < WARMUP; i++) {
+                stats = stacker.stack(source, 0, sink);
+            }
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            long sum = 0;
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                stats = stacker.stack(source, 0, sink);
+                long t = System.nanoTime() - start;
+                min = Math.min(min, t);
+                max = Math.max(max, t);
+                sum += t;
+            }
+            System.out.println(String.format("%s: avg=%.1fms min=%.1fms max=%.1fms, %s", set.getName(),
+                    sum / (double)iterations / 1e6, min / 1e6, max / 1e6, stats));
+            if (output != null) {
+                String n = output.getName();
+                ImageIO.write(sink.image, n.substring(n.lastIndexOf('.') + 1), output);
+            }
+        }
+    }
+}
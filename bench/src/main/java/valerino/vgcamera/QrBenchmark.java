@@ -0,0 +1,112 @@
+package valerino.vgcamera;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * desktop benchmark of QrScanner against raw NV21 frame dumps (i.e. the ones written by QrAnalyzer.dumpFrames() in
+ * debug builds). the frame size is taken from the file name (something like qr-640x360-1234.nv21).
+ * run with gradlew :bench:qrBenchmark -PbenchArgs="[-n iterations] file|folder..."
+ */
+public class QrBenchmark {
+    private static final Pattern SIZE = Pattern.compile("(\\d+)x(\\d+)");
+    private static final int WARMUP = 20;
+
+    public static void main(String[] args) throws IOException {
+        int iterations = 100;
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n") && i + 1 < args.length) {
+                iterations = Integer.parseInt(args[++i]);
+                continue;
+            }
+            File f = new File(args[i]);
+            File[] children = f.listFiles();
+            if (children == null) {
+                files.add(f);
+                continue;
+            }
+            for (File c : children) {
+                if (c.getName().endsWith(".nv21")) {
+                    files.add(c);
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("usage: QrBenchmark [-n iterations] file|folder...");
+            return;
+        }
+
+        QrScanner scanner = new QrScanner();
+        long total = 0;
+        int frames = 0;
+        int decoded = 0;
+        for (File f : files) {
+            Matcher m = SIZE.matcher(f.getName());
+            if (!m.find()) {
+                System.err.println(f.getName() + ": no WxH in the name, skipped");
+                continue;
+            }
+            int width = Integer.parseInt(m.group(1));
+            int height = Integer.parseInt(m.group(2));
+            byte[] data = read(f);
+            if (data.length < width * height) {
+                System.err.println(f.getName() + ": too short for " + width + "x" + height + ", skipped");
+                continue;
+            }
+
+            String text = null;
+            for (int i = 0; i < WARMUP; i++) {
+                text = decode(scanner, data, width, height);
+            }
+            long min = Long.MAX_VALUE;
+            long max = 0;
+            long sum = 0;
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+                decode(scanner, data, width, height);
+                long t = System.nanoTime() - start;
+                min = Math.min(min, t);
+                max = Math.max(max, t);
+                sum += t;
+            }
+            total += sum;
+            frames += iterations;
+            if (text != null) {
+                decoded++;
+            }
+            System.out.println(String.format("%s: %dx%d, avg=%.2fms, min=%.2fms, max=%.2fms, %s", f.getName(), width, height,
+                    sum / 1e6 / iterations, min / 1e6, max / 1e6, text != null ? "decoded '" + text + "'" : "nothing decoded"));
+        }
+        if (frames > 0) {
+            System.out.println(String.format("%d files, %d decoded, avg=%.2fms/frame (%.1f fps on one core)", files.size(), decoded,
+                    total / 1e6 / frames, frames * 1e9 / total));
+        }
+    }
+
+    /**
+     * decode, unreadable codes count as nothing decoded
+     */
+    private static String decode(QrScanner scanner, byte[] data, int width, int height) {
+        try {
+            return scanner.decode(data, width, height);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * read a whole file (mapped, no stream buffering)
+     */
+    private static byte[] read(File f) throws IOException {
+        ByteBuffer bb = FileIO.map(f);
+        byte[] data = new byte[bb.remaining()];
+        bb.get(data);
+        return data;
+    }
+}
@@ -0,0 +1,342 @@
+package valerino.vgcamera;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * pool of reusable buffers (byte and int arrays, direct byte buffers), so the merges don't allocate (and leave for the
+ * GC) megabytes per shot. sizes are rounded up to classes (powers of two and halfway between, 4K to 16M elements),
+ * larger ones are allocated as they are and never kept. released buffers are kept up to a budget per kind, a single
+ * buffer taking more than a quarter of it is never kept (not to pin a whole picture in a small heap), and everything
+ * is dropped on trim(). with tracking on (debug builds) every buffer is followed from acquire to release, to find
+ * leaks and double releases. singleton
+ * Android-free, runs on a desktop jvm too
+ */
+public class BufferPool {
+    /**
+     * smallest and largest pooled sizes, in elements
+     */
+    private static final int MIN_SIZE = 4 * 1024;
+    private static final int MAX_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * bytes kept in the pool at most, per kind (heap arrays of both types, direct buffers)
+     */
+    private static final long HEAP_BUDGET = 8 * 1024 * 1024;
+    private static final long DIRECT_BUDGET = 1024 * 1024;
+
+    /**
+     * buffers out for longer than this are reported by checkLeaks()
+     */
+    private static final long LEAK_AGE = 30000;
+
+    /**
+     * bad releases kept for checkLeaks() at most
+     */
+    private static final int MAX_BAD_RELEASES = 8;
+
+    /**
+     * a buffer out of the pool, tracked
+     */
+    private static class Lease {
+        final Throwable where = new Throwable("acquired here");
+        final long time = System.currentTimeMillis();
+        final int size;
+
+        Lease(int size) {
+            this.size = size;
+        }
+    }
+
+    private static BufferPool _instance = null;
+    private static boolean _track = false;
+    private final int[] _sizes;
+    private final ArrayDeque<byte[]>[] _heap;
+    private final ArrayDeque<int[]>[] _ints;
+    private final ArrayDeque<ByteBuffer>[] _direct;
+    private long _heapKept = 0;
+    private long _directKept = 0;
+    private final Map<Object, Lease> _leases;
+    private final List<Throwable> _badReleases = new ArrayList<>();
+
+    // counters
+    private int _hits = 0;
+    private int _misses = 0;
+    private int _dropped = 0;
+    private int _badReleaseCount = 0;
+
+    /**
+     * constructor (use instance())
+     * @param track true to track every buffer (leak detection)
+     */
+    @SuppressWarnings("unchecked")
+    protected BufferPool(boolean track) {
+        int n = 0;
+        for (int s = MIN_SIZE; s <= MAX_SIZE; s *= 2) {
+            n += (s < MAX_SIZE ? 2 : 1);
+        }
+        _sizes = new int[n];
+        int i = 0;
+        for (int s = MIN_SIZE; s <= MAX_SIZE; s *= 2) {
+            _sizes[i++] = s;
+            if (s < MAX_SIZE) {
+                _sizes[i++] = s + s / 2;
+            }
+        }
+        _heap = new ArrayDeque[n];
+        _ints = new ArrayDeque[n];
+        _direct = new ArrayDeque[n];
+        for (i = 0; i < n; i++) {
+            _heap[i] = new ArrayDeque<>();
+            _ints[i] = new ArrayDeque<>();
+            _direct[i] = new ArrayDeque<>();
+        }
+        _leases = (track ? new IdentityHashMap<Object, Lease>() : null);
+    }
+
+    /**
+     * track every buffer from acquire to release (i.e. in debug builds). applies only if called before the first
+     * instance()
+     * @param track true to track
+     */
+    public static synchronized void setTracking(boolean track) {
+        _track = track;
+    }
+
+    /**
+     * get the singleton
+     * @return
+     */
+    public static synchronized BufferPool instance() {
+        if (_instance == null) {
+            _instance = new BufferPool(_track);
+        }
+        return _instance;
+    }
+
+    /**
+     * get a byte array
+     * @param size the minimum size
+     * @return an array of at least size bytes (contents undefined)
+     */
+    public synchronized byte[] acquire(int size) {
+        int c = sizeClass(size);
+        byte[] buf;
+        if (c >= 0 && !_heap[c].isEmpty()) {
+            buf = _heap[c].poll();
+            _heapKept -= buf.length;
+            _hits++;
+        }
+        else {
+            buf = new byte[c >= 0 ? _sizes[c] : size];
+            _misses++;
+        }
+        lease(buf, buf.length);
+        return buf;
+    }
+
+    /**
+     * give a byte array back, the caller must not use it anymore
+     * @param buf an array from acquire(), may be null
+     */
+    public synchronized void release(byte[] buf) {
+        if (buf == null || !unlease(buf)) {
+            return;
+        }
+        int c = classOf(buf.length);
+        if (c < 0 || !keep(buf.length)) {
+            return;
+        }
+        _heap[c].add(buf);
+        _heapKept += buf.length;
+    }
+
+    /**
+     * get an int array
+     * @param size the minimum size, in ints
+     * @return an array of at least size ints (contents undefined)
+     */
+    public synchronized int[] acquireInts(int size) {
+        int c = sizeClass(size);
+        int[] buf;
+        if (c >= 0 && !_ints[c].isEmpty()) {
+            buf = _ints[c].poll();
+            _heapKept -= (long)buf.length * 4;
+            _hits++;
+        }
+        else {
+            buf = new int[c >= 0 ? _sizes[c] : size];
+            _misses++;
+        }
+        lease(buf, buf.length * 4);
+        return buf;
+    }
+
+    /**
+     * give an int array back, the caller must not use it anymore
+     * @param buf an array from acquireInts(), may be null
+     */
+    public synchronized void releaseInts(int[] buf) {
+        if (buf == null || !unlease(buf)) {
+            return;
+        }
+        int c = classOf(buf.length);
+        if (c < 0 || !keep((long)buf.length * 4)) {
+            return;
+        }
+        _ints[c].add(buf);
+        _heapKept += (long)buf.length * 4;
+    }
+
+    /**
+     * get a direct buffer (for channel I/O)
+     * @param size the minimum size
+     * @return a cleared buffer with limit set to size
+     */
+    public synchronized ByteBuffer acquireDirect(int size) {
+        int c = sizeClass(size);
+        ByteBuffer bb;
+        if (c >= 0 && !_direct[c].isEmpty()) {
+            bb = _direct[c].poll();
+            _directKept -= bb.capacity();
+            _hits++;
+        }
+        else {
+            bb = ByteBuffer.allocateDirect(c >= 0 ? _sizes[c] : size);
+            _misses++;
+        }
+        lease(bb, bb.capacity());
+        bb.clear();
+        bb.limit(size);
+        return bb;
+    }
+
+    /**
+     * give a direct buffer back, the caller must not use it anymore
+     * @param bb a buffer from acquireDirect(), may be null
+     */
+    public synchronized void releaseDirect(ByteBuffer bb) {
+        if (bb == null || !unlease(bb)) {
+            return;
+        }
+        int c = classOf(bb.capacity());
+        if (c < 0 || bb.capacity() > DIRECT_BUDGET / 4 || _directKept + bb.capacity() > DIRECT_BUDGET) {
+            _dropped++;
+            return;
+        }
+        _direct[c].add(bb);
+        _directKept += bb.capacity();
+    }
+
+    /**
+     * drop all the kept buffers (i.e. on memory pressure)
+     */
+    public synchronized void trim() {
+        for (int i = 0; i < _sizes.length; i++) {
+            _heap[i].clear();
+            _ints[i].clear();
+            _direct[i].clear();
+        }
+        _heapKept = 0;
+        _directKept = 0;
+    }
+
+    /**
+     * the buffers out for a while, and the bad releases (double, or of foreign buffers) seen since the last call.
+     * tracking only
+     * @return a Throwable for each, with the stack where the buffer was acquired (or released)
+     */
+    public synchronized List<Throwable> checkLeaks() {
+        List<Throwable> res = new ArrayList<>(_badReleases);
+        _badReleases.clear();
+        if (_leases == null) {
+            return res;
+        }
+        long now = System.currentTimeMillis();
+        for (Lease l : _leases.values()) {
+            if (now - l.time > LEAK_AGE) {
+                Throwable t = new Throwable("buffer of " + l.size + " bytes out for " + (now - l.time) + "ms");
+                t.setStackTrace(l.where.getStackTrace());
+                res.add(t);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * counters, for logging
+     * @return
+     */
+    public synchronized String stats() {
+        return "hits=" + _hits + ", misses=" + _misses + ", dropped=" + _dropped + ", kept=" + _heapKept / 1024 + "KB heap/" +
+                _directKept / 1024 + "KB direct" + (_leases != null ? ", out=" + _leases.size() + ", bad releases=" + _badReleaseCount : "");
+    }
+
+    /**
+     * check if a released heap array fits the budget
+     * @param bytes its size
+     * @return false if it's dropped
+     */
+    private boolean keep(long bytes) {
+        if (bytes > HEAP_BUDGET / 4 || _heapKept + bytes > HEAP_BUDGET) {
+            _dropped++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * the class holding a size
+     * @param size the size
+     * @return class index, or -1 if too large to pool
+     */
+    private int sizeClass(int size) {
+        for (int i = 0; i < _sizes.length; i++) {
+            if (_sizes[i] >= size) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * the class of exactly this size
+     * @param size a buffer size
+     * @return class index, or -1 if not a class size
+     */
+    private int classOf(int size) {
+        int c = sizeClass(size);
+        return (c >= 0 && _sizes[c] == size ? c : -1);
+    }
+
+    /**
+     * track a buffer going out
+     */
+    private void lease(Object buf, int size) {
+        if (_leases != null) {
+            _leases.put(buf, new Lease(size));
+        }
+    }
+
+    /**
+     * stop tracking a buffer coming back
+     * @return false if it wasn't out (released twice, or not from the pool), it must not be kept then
+     */
+    private boolean unlease(Object buf) {
+        if (_leases == null) {
+            return true;
+        }
+        if (_leases.remove(buf) == null) {
+            _badReleaseCount++;
+            if (_badReleases.size() < MAX_BAD_RELEASES) {
+                _badReleases.add(new Throwable("releasing a buffer which is not out"));
+            }
+            return false;
+        }
+        return true;
+    }
+}
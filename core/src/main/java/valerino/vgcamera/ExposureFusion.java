@@ -0,0 +1,60 @@
+package valerino.vgcamera;
+
+/**
+ * merges aligned shots taken at different exposures into one well exposed picture (exposure fusion): each pixel is
+ * the average of the shots weighted by how close each one is to mid-grey there, so shadows come from the brighter
+ * shots and highlights from the darker ones, then a gentle s-curve restores the contrast lost in the blend.
+ * Android-free, runs on a desktop jvm too
+ */
+public class ExposureFusion {
+    /**
+     * width of the well-exposedness gaussian, on a 0..1 luma scale
+     */
+    private static final double SIGMA = 0.25;
+
+    /**
+     * contrast restored after the blend (0 = none)
+     */
+    private static final double CONTRAST = 0.15;
+
+    private static final int[] WEIGHTS = new int[256];
+    private static final int[] CURVE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            double l = i / 255.0;
+            // never 0, so clipped areas still get a (flat) value
+            WEIGHTS[i] = 1 + (int)(1023 * Math.exp(-(l - 0.5) * (l - 0.5) / (2 * SIGMA * SIGMA)));
+            double c = l - CONTRAST * Math.sin(2 * Math.PI * l) / (2 * Math.PI);
+            CURVE[i] = Math.max(0, Math.min(255, (int)Math.round(c * 255)));
+        }
+    }
+
+    /**
+     * fuse a run of pixels
+     * @param inputs ARGB pixels of each shot, aligned
+     * @param count how many shots
+     * @param out receives the ARGB result
+     * @param length how many pixels
+     */
+    public static void fuse(int[][] inputs, int count, int[] out, int length) {
+        for (int i = 0; i < length; i++) {
+            long r = 0;
+            long g = 0;
+            long b = 0;
+            long sum = 0;
+            for (int k = 0; k < count; k++) {
+                int c = inputs[k][i];
+                int cr = (c >> 16) & 0xff;
+                int cg = (c >> 8) & 0xff;
+                int cb = c & 0xff;
+                int w = WEIGHTS[(cr * 77 + cg * 150 + cb * 29) >> 8];
+                r += cr * w;
+                g += cg * w;
+                b += cb * w;
+                sum += w;
+            }
+            out[i] = 0xff000000 | (CURVE[(int)(r / sum)] << 16) | (CURVE[(int)(g / sum)] << 8) | CURVE[(int)(b / sum)];
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package valerino.vgcamera;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * file I/O over NIO channels: whole-buffer and gather writes (i.e. a header plus a payload, without joining them
+ * first), reads in place or memory mapped, and kernel-side copies (transferTo) for moves across filesystems.
+ * Android-free, runs on a desktop jvm too
+ */
+public class FileIO {
+    /**
+     * max bytes per transferTo() call (some kernels cap a single sendfile)
+     */
+    private static final long TRANSFER_CHUNK = 8 * 1024 * 1024;
+
+    /**
+     * write buffers to a file, in order (gather write)
+     * @param f the file (overwritten)
+     * @param buffers the buffers, from their position to their limit
+     * @throws IOException on error (the file is deleted)
+     */
+    public static void write(File f, ByteBuffer... buffers) throws IOException {
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            writeFully(fos.getChannel(), buffers);
+        } catch (IOException e) {
+            closeNoEx(fos);
+            f.delete();
+            throw e;
+        }
+        fos.close();
+    }
+
+    /**
+     * write part of an array to a file
+     * @param f the file (overwritten)
+     * @param buf the data
+     * @param off where the data starts
+     * @param len how many bytes
+     * @throws IOException on error (the file is deleted)
+     */
+    public static void write(File f, byte[] buf, int off, int len) throws IOException {
+        write(f, ByteBuffer.wrap(buf, off, len));
+    }
+
+    /**
+     * write buffers to a channel, in order, until all of them are consumed
+     * @param ch the channel
+     * @param buffers the buffers, from their position to their limit
+     * @throws IOException
+     */
+    public static void writeFully(FileChannel ch, ByteBuffer... buffers) throws IOException {
+        long left = 0;
+        for (ByteBuffer bb : buffers) {
+            left += bb.remaining();
+        }
+        while (left > 0) {
+            left -= ch.write(buffers);
+        }
+    }
+
+    /**
+     * read a whole file in a new array
+     * @param f the file
+     * @return the contents
+     * @throws IOException
+     */
+    public static byte[] read(File f) throws IOException {
+        FileInputStream fis = new FileInputStream(f);
+        try {
+            FileChannel ch = fis.getChannel();
+            long size = ch.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("too large, " + size + " bytes");
+            }
+            byte[] buf = new byte[(int) size];
+            ByteBuffer bb = ByteBuffer.wrap(buf);
+            while (bb.hasRemaining()) {
+                if (ch.read(bb) == -1) {
+                    throw new IOException("short read, " + bb.position() + "/" + size);
+                }
+            }
+            return buf;
+        } finally {
+            closeNoEx(fis);
+        }
+    }
+
+    /**
+     * map a whole file read-only: pages are read on access and belong to the page cache, not to the heap
+     * @param f the file
+     * @return the mapping (valid after the file is closed, until garbage collected)
+     * @throws IOException
+     */
+    public static MappedByteBuffer map(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            FileChannel ch = raf.getChannel();
+            return ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        } finally {
+            closeNoEx(raf);
+        }
+    }
+
+    /**
+     * copy a file without passing its contents through the heap (transferTo), and sync it
+     * @param src the source
+     * @param dest the destination (overwritten)
+     * @return bytes copied
+     * @throws IOException on error (the destination is deleted)
+     */
+    public static long copy(File src, File dest) throws IOException {
+        FileInputStream in = new FileInputStream(src);
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(dest);
+            FileChannel from = in.getChannel();
+            FileChannel to = out.getChannel();
+            long size = from.size();
+            long pos = 0;
+            while (pos < size) {
+                long n = from.transferTo(pos, Math.min(TRANSFER_CHUNK, size - pos), to);
+                if (n <= 0) {
+                    throw new IOException("transferTo() stalled at " + pos + "/" + size);
+                }
+                pos += n;
+            }
+            to.force(true);
+            out.close();
+            out = null;
+            return size;
+        } catch (IOException e) {
+            closeNoEx(out);
+            dest.delete();
+            throw e;
+        } finally {
+            closeNoEx(in);
+        }
+    }
+
+    /**
+     * move a file: rename if on the same filesystem, else copy (to a partial file renamed once complete, so the
+     * destination never shows up half written) and delete the source
+     * @param src the source
+     * @param dest the destination (overwritten)
+     * @throws IOException on error (the source is left as it is)
+     */
+    public static void move(File src, File dest) throws IOException {
+        if (src.renameTo(dest)) {
+            return;
+        }
+        File part = new File(dest.getAbsolutePath() + ".part");
+        copy(src, part);
+        if (!part.renameTo(dest)) {
+            part.delete();
+            throw new IOException("can't rename " + part.getAbsolutePath());
+        }
+        if (!src.delete()) {
+            // the copy is complete anyway
+            src.deleteOnExit();
+        }
+    }
+
+    /**
+     * close without throwing (Utils.closeNoEx(), which is not Android-free)
+     * @param c a Closeable, may be null
+     */
+    private static void closeNoEx(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // swallow
+            }
+        }
+    }
+}
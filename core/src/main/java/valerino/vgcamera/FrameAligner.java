@@ -0,0 +1,127 @@
+package valerino.vgcamera;
+
+/**
+ * estimates the translation between two differently exposed shots of the same scene, comparing median threshold
+ * bitmaps (each image thresholded at its own median, so exposure doesn't matter; pixels too close to the median are
+ * ignored as noise). meant to be run coarse to fine on downscaled luma.
+ * Android-free, runs on a desktop jvm too
+ */
+public class FrameAligner {
+    /**
+     * pixels within this of the median are excluded from the comparison
+     */
+    private static final int EXCLUSION = 4;
+
+    /**
+     * luma of ARGB pixels
+     * @param argb the pixels
+     * @param luma receives the luma, at least as long as argb
+     * @param length how many pixels
+     */
+    public static void toLuma(int[] argb, byte[] luma, int length) {
+        toLuma(argb, luma, 0, length);
+    }
+
+    /**
+     * luma of ARGB pixels, into a part of a larger luma
+     * @param argb the pixels
+     * @param luma receives the luma
+     * @param offset where to start in luma
+     * @param length how many pixels
+     */
+    public static void toLuma(int[] argb, byte[] luma, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            int c = argb[i];
+            luma[offset + i] = (byte)((((c >> 16) & 0xff) * 77 + ((c >> 8) & 0xff) * 150 + (c & 0xff) * 29) >> 8);
+        }
+    }
+
+    /**
+     * find the offset (dx, dy) such as img(x + dx, y + dy) matches ref(x, y), searching around a start offset
+     * @param ref the reference luma
+     * @param img the luma to align
+     * @param width width of both
+     * @param height height of both
+     * @param startDx start offset, x
+     * @param startDy start offset, y
+     * @param radius how far from the start offset to search
+     * @return {dx, dy}
+     */
+    public static int[] align(byte[] ref, byte[] img, int width, int height, int startDx, int startDy, int radius) {
+        int length = width * height;
+        byte[] refBits = BufferPool.instance().acquire(length);
+        byte[] imgBits = BufferPool.instance().acquire(length);
+        int bestDx = startDx;
+        int bestDy = startDy;
+        try {
+            threshold(ref, length, refBits);
+            threshold(img, length, imgBits);
+
+            long bestScore = Long.MAX_VALUE;
+            for (int dy = startDy - radius; dy <= startDy + radius; dy++) {
+                for (int dx = startDx - radius; dx <= startDx + radius; dx++) {
+                    long score = difference(refBits, imgBits, width, height, dx, dy);
+                    if (score < bestScore || (score == bestScore && Math.abs(dx) + Math.abs(dy) < Math.abs(bestDx) + Math.abs(bestDy))) {
+                        bestScore = score;
+                        bestDx = dx;
+                        bestDy = dy;
+                    }
+                }
+            }
+        } finally {
+            BufferPool.instance().release(refBits);
+            BufferPool.instance().release(imgBits);
+        }
+        return new int[] { bestDx, bestDy };
+    }
+
+    /**
+     * build the threshold bitmap: 1 above the median, 0 below, -1 too close to tell
+     * @param luma the luma
+     * @param length how many pixels
+     * @param bits receives the bitmap
+     */
+    private static void threshold(byte[] luma, int length, byte[] bits) {
+        int[] histogram = new int[256];
+        for (int i = 0; i < length; i++) {
+            histogram[luma[i] & 0xff]++;
+        }
+        int median = 0;
+        int count = 0;
+        while (median < 255 && (count += histogram[median]) < length / 2) {
+            median++;
+        }
+        for (int i = 0; i < length; i++) {
+            int l = luma[i] & 0xff;
+            bits[i] = (byte)(Math.abs(l - median) <= EXCLUSION ? -1 : (l > median ? 1 : 0));
+        }
+    }
+
+    /**
+     * count the mismatching pixels at an offset, normalized on the overlap area
+     * @return
+     */
+    private static long difference(byte[] ref, byte[] img, int width, int height, int dx, int dy) {
+        int x0 = Math.max(0, -dx);
+        int x1 = Math.min(width, width - dx);
+        int y0 = Math.max(0, -dy);
+        int y1 = Math.min(height, height - dy);
+        if (x1 - x0 <= 0 || y1 - y0 <= 0) {
+            return Long.MAX_VALUE;
+        }
+        long diff = 0;
+        for (int y = y0; y < y1; y++) {
+            int r = y * width;
+            int i = (y + dy) * width + dx;
+            for (int x = x0; x < x1; x++) {
+                byte a = ref[r + x];
+                byte b = img[i + x];
+                if (a != b && a >= 0 && b >= 0) {
+                    diff++;
+                }
+            }
+        }
+        // per million pixels of overlap, so larger offsets aren't favoured
+        return diff * 1000000 / ((long)(x1 - x0) * (y1 - y0));
+    }
+}
@@ -0,0 +1,170 @@
+package valerino.vgcamera;
+
+import com.google.zxing.Binarizer;
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * a zxing Binarizer thresholding each pixel against the average of the 8x8 blocks around it (as zxing's
+ * HybridBinarizer does), copes with uneven lighting. unlike HybridBinarizer it's reused across frames: the bit matrix
+ * and the block thresholds are allocated once, invalidate() must be called when the source points to a new frame.
+ * Android-free, runs on a desktop jvm too
+ */
+public class LocalThresholdBinarizer extends Binarizer {
+    private static final int BLOCK_POWER = 3;
+    private static final int BLOCK_SIZE = 1 << BLOCK_POWER;
+    private static final int BLOCK_MASK = BLOCK_SIZE - 1;
+
+    /**
+     * blocks with less contrast than this are considered plain background
+     */
+    private static final int MIN_DYNAMIC_RANGE = 24;
+
+    private final BitMatrix _matrix;
+    private final int[] _blackPoints;
+    private final int _subWidth;
+    private final int _subHeight;
+    private boolean _valid = false;
+
+    /**
+     * constructor
+     * @param source the source, at least 40x40 (5x5 blocks)
+     */
+    public LocalThresholdBinarizer(LuminanceSource source) {
+        super(source);
+        int width = source.getWidth();
+        int height = source.getHeight();
+        _subWidth = (width + BLOCK_MASK) >> BLOCK_POWER;
+        _subHeight = (height + BLOCK_MASK) >> BLOCK_POWER;
+        _matrix = new BitMatrix(width, height);
+        _blackPoints = new int[_subWidth * _subHeight];
+    }
+
+    /**
+     * the source points to a new frame
+     */
+    public void invalidate() {
+        _valid = false;
+    }
+
+    @Override
+    public BitArray getBlackRow(int y, BitArray row) throws NotFoundException {
+        BitMatrix m = getBlackMatrix();
+        int width = getWidth();
+        if (row == null || row.getSize() < width) {
+            row = new BitArray(width);
+        }
+        else {
+            row.clear();
+        }
+        for (int x = 0; x < width; x++) {
+            if (m.get(x, y)) {
+                row.set(x);
+            }
+        }
+        return row;
+    }
+
+    @Override
+    public BitMatrix getBlackMatrix() throws NotFoundException {
+        if (_valid) {
+            return _matrix;
+        }
+        byte[] luminances = getLuminanceSource().getMatrix();
+        int width = getWidth();
+        int height = getHeight();
+        computeBlackPoints(luminances, width, height);
+        _matrix.clear();
+        for (int by = 0; by < _subHeight; by++) {
+            int top = Math.min(by << BLOCK_POWER, height - BLOCK_SIZE);
+            int cy = clamp(by, 2, _subHeight - 3);
+            for (int bx = 0; bx < _subWidth; bx++) {
+                int left = Math.min(bx << BLOCK_POWER, width - BLOCK_SIZE);
+                int cx = clamp(bx, 2, _subWidth - 3);
+
+                // threshold on the average of the surrounding 5x5 blocks
+                int sum = 0;
+                for (int z = -2; z <= 2; z++) {
+                    int offset = (cy + z) * _subWidth + cx;
+                    sum += _blackPoints[offset - 2] + _blackPoints[offset - 1] + _blackPoints[offset] +
+                            _blackPoints[offset + 1] + _blackPoints[offset + 2];
+                }
+                int threshold = sum / 25;
+                for (int y = 0; y < BLOCK_SIZE; y++) {
+                    int offset = (top + y) * width + left;
+                    for (int x = 0; x < BLOCK_SIZE; x++) {
+                        if ((luminances[offset + x] & 0xff) <= threshold) {
+                            _matrix.set(left + x, top + y);
+                        }
+                    }
+                }
+            }
+        }
+        _valid = true;
+        return _matrix;
+    }
+
+    /**
+     * compute the black point of each block
+     * @param luminances the pixels
+     * @param width width
+     * @param height height
+     */
+    private void computeBlackPoints(byte[] luminances, int width, int height) {
+        for (int by = 0; by < _subHeight; by++) {
+            int top = Math.min(by << BLOCK_POWER, height - BLOCK_SIZE);
+            for (int bx = 0; bx < _subWidth; bx++) {
+                int left = Math.min(bx << BLOCK_POWER, width - BLOCK_SIZE);
+                int sum = 0;
+                int min = 0xff;
+                int max = 0;
+                for (int y = 0; y < BLOCK_SIZE; y++) {
+                    int offset = (top + y) * width + left;
+                    for (int x = 0; x < BLOCK_SIZE; x++) {
+                        int pixel = luminances[offset + x] & 0xff;
+                        sum += pixel;
+                        if (pixel < min) {
+                            min = pixel;
+                        }
+                        if (pixel > max) {
+                            max = pixel;
+                        }
+                    }
+                }
+
+                int average = sum >> (BLOCK_POWER * 2);
+                if (max - min <= MIN_DYNAMIC_RANGE) {
+                    // flat block, assume it's background (lighter than the black point) unless the neighbours say
+                    // it's inside a dark area
+                    average = min / 2;
+                    if (by > 0 && bx > 0) {
+                        int neighbours = (_blackPoints[(by - 1) * _subWidth + bx] + 2 * _blackPoints[by * _subWidth + bx - 1] +
+                                _blackPoints[(by - 1) * _subWidth + bx - 1]) / 4;
+                        if (min < neighbours) {
+                            average = neighbours;
+                        }
+                    }
+                }
+                _blackPoints[by * _subWidth + bx] = average;
+            }
+        }
+    }
+
+    /**
+     * clamp a block index so the 5x5 neighbourhood stays inside
+     * @param value the index
+     * @param min the lowest
+     * @param max the highest
+     * @return
+     */
+    private static int clamp(int value, int min, int max) {
+        return value < min ? min : (value > max ? max : value);
+    }
+
+    @Override
+    public Binarizer createBinarizer(LuminanceSource source) {
+        return new LocalThresholdBinarizer(source);
+    }
+}
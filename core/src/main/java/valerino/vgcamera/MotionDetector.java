@@ -0,0 +1,251 @@
+package valerino.vgcamera;
+
+/**
+ * detects motion in NV21 frames: the Y plane is reduced to a tiny grid of cell averages (sampling a few pixels per
+ * cell), which is compared against a rolling background model. global brightness changes (i.e. auto exposure) are
+ * compensated. all the state lives in primitive arrays allocated once per frame size.
+ * frames are skipped so the time spent stays within a CPU budget (a fraction of one core).
+ * Android-free, runs on a desktop jvm too
+ */
+public class MotionDetector {
+    /**
+     * returned by process()
+     */
+    public static final int EVENT_NONE = 0;
+    public static final int EVENT_STARTED = 1;
+    public static final int EVENT_STOPPED = 2;
+
+    /**
+     * grid size, and pixels sampled per cell side
+     */
+    private static final int GRID_WIDTH = 32;
+    private static final int GRID_HEIGHT = 24;
+    private static final int CELL_SAMPLES = 4;
+
+    /**
+     * background learning rate, as a shift (1/16 of the difference per frame), slower where there's motion so
+     * something which stops moving eventually becomes background
+     */
+    private static final int LEARN_SHIFT = 4;
+    private static final int LEARN_SHIFT_MOVING = 7;
+
+    /**
+     * background values are fixed point, with this many fractional bits
+     */
+    private static final int FRACTION_BITS = 8;
+
+    /**
+     * frames only learnt from at the start (or after reset())
+     */
+    private static final int WARMUP_FRAMES = 8;
+
+    /**
+     * consecutive frames with motion needed to start
+     */
+    private static final int CONFIRM_FRAMES = 2;
+
+    /**
+     * luma difference for a cell to be changed
+     */
+    private static final int CELL_THRESHOLD = 18;
+
+    private final float _minChanged;
+    private final long _quietMillis;
+    private final long _minInterval;
+    private final float _budget;
+    private int _frameWidth = 0;
+    private int _frameHeight = 0;
+    private int[] _offsets = null;
+    private final int[] _cells = new int[GRID_WIDTH * GRID_HEIGHT];
+    private final int[] _background = new int[GRID_WIDTH * GRID_HEIGHT];
+    private volatile boolean _reset = true;
+    private int _warmup = 0;
+    private int _confirm = 0;
+    private boolean _moving = false;
+    private long _lastMotion = 0;
+    private long _lastProcessed = 0;
+    private long _interval = 0;
+    private long _avgCostNs = 0;
+    private int _processed = 0;
+    private int _skipped = 0;
+    private int _events = 0;
+    private long _totalCostNs = 0;
+
+    /**
+     * constructor
+     * @param minChanged fraction of the picture which must change to be motion (i.e. 0.03)
+     * @param quietMillis motion stops after this much time without
+     * @param minInterval process at most a frame every minInterval ms
+     * @param budget fraction of one core the detector may use (i.e. 0.02)
+     */
+    public MotionDetector(float minChanged, long quietMillis, long minInterval, float budget) {
+        _minChanged = minChanged;
+        _quietMillis = quietMillis;
+        _minInterval = minInterval;
+        _budget = budget;
+    }
+
+    /**
+     * forget the background (i.e. the scene changed), it's learnt again from the next frames. thread safe
+     */
+    public void reset() {
+        _reset = true;
+    }
+
+    /**
+     * whether there's motion now
+     * @return
+     */
+    public boolean moving() {
+        return _moving;
+    }
+
+    /**
+     * process a frame, if it's time to (according to the rate and the budget)
+     * @param data NV21 (or Y only) data
+     * @param width frame width
+     * @param height frame height
+     * @param timestamp the frame time (ms, any monotonic clock)
+     * @return EVENT_STARTED/EVENT_STOPPED when motion starts/stops, else EVENT_NONE
+     */
+    public int process(byte[] data, int width, int height, long timestamp) {
+        if (_processed > 0 && timestamp - _lastProcessed < _interval) {
+            _skipped++;
+            return EVENT_NONE;
+        }
+        _lastProcessed = timestamp;
+        long start = System.nanoTime();
+
+        if (width != _frameWidth || height != _frameHeight) {
+            computeOffsets(width, height);
+            _reset = true;
+        }
+        sample(data);
+        int event = EVENT_NONE;
+        if (_reset) {
+            // start learning again from this frame
+            _reset = false;
+            for (int i = 0; i < _cells.length; i++) {
+                _background[i] = _cells[i] << FRACTION_BITS;
+            }
+            _warmup = WARMUP_FRAMES;
+            _confirm = 0;
+        }
+        else {
+            boolean motion = compare();
+            if (_warmup > 0) {
+                _warmup--;
+            }
+            else {
+                event = update(motion, timestamp);
+            }
+        }
+
+        // keep the cost within budget
+        long cost = System.nanoTime() - start;
+        _totalCostNs += cost;
+        _processed++;
+        _avgCostNs = (_avgCostNs == 0 ? cost : (_avgCostNs * 7 + cost) / 8);
+        _interval = Math.max(_minInterval, (long)(_avgCostNs / 1000000f / _budget));
+        return event;
+    }
+
+    /**
+     * precompute where the samples of each cell are
+     * @param width frame width
+     * @param height frame height
+     */
+    private void computeOffsets(int width, int height) {
+        _offsets = new int[GRID_WIDTH * GRID_HEIGHT * CELL_SAMPLES * CELL_SAMPLES];
+        int n = 0;
+        for (int gy = 0; gy < GRID_HEIGHT; gy++) {
+            for (int gx = 0; gx < GRID_WIDTH; gx++) {
+                for (int sy = 0; sy < CELL_SAMPLES; sy++) {
+                    // samples at the center of each sub-cell
+                    int y = ((gy * CELL_SAMPLES + sy) * 2 + 1) * height / (GRID_HEIGHT * CELL_SAMPLES * 2);
+                    for (int sx = 0; sx < CELL_SAMPLES; sx++) {
+                        int x = ((gx * CELL_SAMPLES + sx) * 2 + 1) * width / (GRID_WIDTH * CELL_SAMPLES * 2);
+                        _offsets[n++] = y * width + x;
+                    }
+                }
+            }
+        }
+        _frameWidth = width;
+        _frameHeight = height;
+    }
+
+    /**
+     * reduce the frame to the cell averages
+     * @param data the frame
+     */
+    private void sample(byte[] data) {
+        final int samples = CELL_SAMPLES * CELL_SAMPLES;
+        int n = 0;
+        for (int i = 0; i < _cells.length; i++) {
+            int sum = 0;
+            for (int s = 0; s < samples; s++) {
+                sum += data[_offsets[n++]] & 0xff;
+            }
+            _cells[i] = sum / samples;
+        }
+    }
+
+    /**
+     * compare the cells with the background, and update it
+     * @return true if enough cells changed
+     */
+    private boolean compare() {
+        // overall brightness shift, not motion
+        long shift = 0;
+        for (int i = 0; i < _cells.length; i++) {
+            shift += (_cells[i] << FRACTION_BITS) - _background[i];
+        }
+        int mean = (int)(shift / _cells.length);
+
+        int changed = 0;
+        for (int i = 0; i < _cells.length; i++) {
+            int current = _cells[i] << FRACTION_BITS;
+            int diff = current - _background[i] - mean;
+            boolean moving = Math.abs(diff) > (CELL_THRESHOLD << FRACTION_BITS);
+            if (moving) {
+                changed++;
+            }
+            _background[i] += (current - _background[i]) >> (moving ? LEARN_SHIFT_MOVING : LEARN_SHIFT);
+        }
+        return changed >= _cells.length * _minChanged;
+    }
+
+    /**
+     * update the motion state
+     * @param motion whether the last frame had motion
+     * @param timestamp the frame time
+     * @return the event
+     */
+    private int update(boolean motion, long timestamp) {
+        if (motion) {
+            _lastMotion = timestamp;
+            _confirm++;
+            if (!_moving && _confirm >= CONFIRM_FRAMES) {
+                _moving = true;
+                _events++;
+                return EVENT_STARTED;
+            }
+            return EVENT_NONE;
+        }
+        _confirm = 0;
+        if (_moving && timestamp - _lastMotion >= _quietMillis) {
+            _moving = false;
+            return EVENT_STOPPED;
+        }
+        return EVENT_NONE;
+    }
+
+    /**
+     * counters, for logging
+     * @return
+     */
+    public String stats() {
+        return "processed=" + _processed + ", skipped=" + _skipped + ", motion events=" + _events +
+                (_processed > 0 ? ", avg cost=" + (_totalCostNs / _processed / 1000) + "us" : "") + ", interval=" + _interval + "ms";
+    }
+}
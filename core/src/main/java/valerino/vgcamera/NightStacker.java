@@ -0,0 +1,454 @@
+package valerino.vgcamera;
+
+import java.io.IOException;
+
+/**
+ * merges several shots of the same (dark) scene into one with less noise: the shots are aligned on the reference one
+ * (FrameAligner, coarse to fine on downscaled luma, then to the pixel on a full resolution crop), then averaged
+ * pixel by pixel in horizontal stripes on all the cores (TileExecutor).
+ * pixels too far from the reference (something moved) are weighted down, so moving things don't ghost.
+ * the shots are never held whole: each worker reads its stripe of every shot into reused int buffers, and the number
+ * of workers and the stripe height are picked to stay within a memory budget.
+ * Android-free, runs on a desktop jvm too (see NightBenchmark)
+ */
+public class NightStacker {
+    /**
+     * the shots to merge
+     */
+    public interface FrameSource {
+        /**
+         * how many shots
+         * @return
+         */
+        int frames();
+
+        /**
+         * width of the shots (all the same)
+         * @return
+         */
+        int width();
+
+        /**
+         * height of the shots (all the same)
+         * @return
+         */
+        int height();
+
+        /**
+         * a downscaled luma of a shot, for alignment
+         * @param frame the shot
+         * @param sample the downscale factor (power of two)
+         * @param size receives width and height
+         * @return the luma, from the BufferPool (it's given back once used), may be longer than width * height
+         * @throws IOException
+         */
+        byte[] luma(int frame, int sample, int[] size) throws IOException;
+
+        /**
+         * open a reader, one per worker
+         * @param width the widest stripe which will be read
+         * @return
+         * @throws IOException
+         */
+        Reader open(int width) throws IOException;
+
+        /**
+         * memory held by a reader besides the pixels it returns (i.e. decode buffers), to fit the budget
+         * @param width stripe width
+         * @param rows stripe height
+         * @return bytes
+         */
+        long readerBytes(int width, int rows);
+    }
+
+    /**
+     * reads stripes of the shots, used by one worker at a time
+     */
+    public interface Reader {
+        /**
+         * read a region of a shot
+         * @param frame the shot
+         * @param x left
+         * @param y top
+         * @param width region width
+         * @param rows region height
+         * @param argb receives the ARGB pixels (stride width)
+         * @throws IOException
+         */
+        void read(int frame, int x, int y, int width, int rows, int[] argb) throws IOException;
+
+        /**
+         * release the reader
+         */
+        void close();
+    }
+
+    /**
+     * receives the merged picture
+     */
+    public interface FrameSink {
+        /**
+         * the merge starts
+         * @param width width of the merged picture (even)
+         * @param height height of the merged picture (even)
+         * @throws IOException
+         */
+        void begin(int width, int height) throws IOException;
+
+        /**
+         * a stripe is merged, called concurrently by the workers for different stripes
+         * @param y top of the stripe (even)
+         * @param rows height of the stripe (even)
+         * @param argb the ARGB pixels (stride width)
+         * @throws IOException
+         */
+        void write(int y, int rows, int[] argb) throws IOException;
+
+        /**
+         * all the stripes have been written (not called on error)
+         * @throws IOException
+         */
+        void end() throws IOException;
+    }
+
+    /**
+     * how a merge went
+     */
+    public static class Stats {
+        public int width;
+        public int height;
+        public int frames;
+        public int workers;
+        public int rows;
+        public long memory;
+        public long alignMillis;
+        public long mergeMillis;
+        public int[][] offsets;
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(frames).append(" frames ").append(width).append("x").append(height).append(", align=")
+                    .append(alignMillis).append("ms, merge=").append(mergeMillis).append("ms, workers=").append(workers)
+                    .append(", rows=").append(rows).append(", memory=").append(memory / 1024).append("KB, offsets=");
+            for (int[] o : offsets) {
+                sb.append("(").append(o[0]).append(",").append(o[1]).append(")");
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * height of the stripes merged by each worker at once, at most
+     */
+    private static final int TILE_ROWS = 64;
+
+    /**
+     * alignment passes, coarse to fine: downscale factor and search radius (in pixels at that scale)
+     */
+    private static final int[] ALIGN_SAMPLE_SIZES = { 16, 4, 2 };
+    private static final int[] ALIGN_RADIUS = { 4, 3, 2 };
+
+    /**
+     * side of the full resolution center crop the alignment is refined on, at most
+     */
+    private static final int REFINE_SIZE = 512;
+
+    /**
+     * alignment giving less overlap than this (fraction of each side) is considered failed
+     */
+    private static final float MIN_OVERLAP = 0.8f;
+
+    /**
+     * luma difference from the reference within which a pixel is taken as noise (full weight), and beyond which it's
+     * taken as motion (ignored), with a linear fade in between
+     */
+    private static final int NOISE_LEVEL = 16;
+    private static final int MOTION_LEVEL = 48;
+
+    private static final int[] WEIGHTS = new int[256];
+
+    static {
+        for (int d = 0; d < 256; d++) {
+            if (d <= NOISE_LEVEL) {
+                WEIGHTS[d] = 256;
+            }
+            else if (d < MOTION_LEVEL) {
+                WEIGHTS[d] = 256 * (MOTION_LEVEL - d) / (MOTION_LEVEL - NOISE_LEVEL);
+            }
+        }
+    }
+
+    /**
+     * per worker state
+     */
+    private static class Worker {
+        Reader reader;
+        int[][] pixels;
+        int[] out;
+    }
+
+    private final TileExecutor _tiles;
+    private final long _memoryBudget;
+
+    /**
+     * constructor
+     * @param tiles the TileExecutor running the stripes
+     * @param memoryBudget bytes the workers may hold at once (readers and buffers), the sink is not accounted
+     */
+    public NightStacker(TileExecutor tiles, long memoryBudget) {
+        _tiles = tiles;
+        _memoryBudget = memoryBudget;
+    }
+
+    /**
+     * merge the shots
+     * @param source the shots
+     * @param reference index of the shot the others are aligned on (and which wins where things moved)
+     * @param sink receives the merged picture
+     * @return how it went
+     * @throws Exception on error
+     */
+    public Stats stack(final FrameSource source, final int reference, final FrameSink sink) throws Exception {
+        final int frames = source.frames();
+        int width = source.width();
+        int height = source.height();
+        if (frames < 1 || width <= 0 || height <= 0) {
+            throw new IOException("no frames");
+        }
+        Stats stats = new Stats();
+        stats.frames = frames;
+
+        // where each shot is, relative to the reference
+        long start = System.nanoTime();
+        final int[][] offsets = new int[frames][2];
+        if (frames > 1) {
+            byte[][] refLuma = new byte[ALIGN_SAMPLE_SIZES.length][];
+            int[][] refSize = new int[ALIGN_SAMPLE_SIZES.length][2];
+            int crop = Math.min(REFINE_SIZE, Math.min(width, height) / 2);
+            int[] argb = BufferPool.instance().acquireInts(crop * crop);
+            byte[] refCrop = BufferPool.instance().acquire(crop * crop);
+            byte[] imgCrop = BufferPool.instance().acquire(crop * crop);
+            Reader reader = null;
+            try {
+                for (int pass = 0; pass < ALIGN_SAMPLE_SIZES.length; pass++) {
+                    refLuma[pass] = source.luma(reference, ALIGN_SAMPLE_SIZES[pass], refSize[pass]);
+                }
+                reader = source.open(crop);
+                reader.read(reference, (width - crop) / 2, (height - crop) / 2, crop, crop, argb);
+                FrameAligner.toLuma(argb, refCrop, crop * crop);
+                for (int i = 0; i < frames; i++) {
+                    if (i == reference) {
+                        continue;
+                    }
+                    offsets[i] = align(source, i, refLuma, refSize);
+
+                    // the downscaled passes leave up to a couple of pixels, refine on the center
+                    int cx = (width - crop) / 2 + offsets[i][0];
+                    int cy = (height - crop) / 2 + offsets[i][1];
+                    if (cx >= 0 && cy >= 0 && cx + crop <= width && cy + crop <= height) {
+                        reader.read(i, cx, cy, crop, crop, argb);
+                        FrameAligner.toLuma(argb, imgCrop, crop * crop);
+                        int[] o = FrameAligner.align(refCrop, imgCrop, crop, crop, 0, 0,
+                                ALIGN_SAMPLE_SIZES[ALIGN_SAMPLE_SIZES.length - 1] - 1);
+                        offsets[i][0] += o[0];
+                        offsets[i][1] += o[1];
+                    }
+                }
+            } finally {
+                if (reader != null) {
+                    reader.close();
+                }
+                for (byte[] l : refLuma) {
+                    BufferPool.instance().release(l);
+                }
+                BufferPool.instance().releaseInts(argb);
+                BufferPool.instance().release(refCrop);
+                BufferPool.instance().release(imgCrop);
+            }
+        }
+        stats.alignMillis = (System.nanoTime() - start) / 1000000;
+        stats.offsets = offsets;
+
+        // merge only the area covered by all the shots, even sized (for the chroma subsampling of the sinks)
+        int left = 0;
+        int top = 0;
+        int right = width;
+        int bottom = height;
+        for (int[] o : offsets) {
+            left = Math.max(left, -o[0]);
+            top = Math.max(top, -o[1]);
+            right = Math.min(right, width - o[0]);
+            bottom = Math.min(bottom, height - o[1]);
+        }
+        if (right - left < width * MIN_OVERLAP || bottom - top < height * MIN_OVERLAP) {
+            // too much movement to tell, the motion weighting still keeps the reference sharp
+            for (int[] o : offsets) {
+                o[0] = 0;
+                o[1] = 0;
+            }
+            left = 0;
+            top = 0;
+            right = width;
+            bottom = height;
+        }
+        final int outWidth = (right - left) & ~1;
+        final int outHeight = (bottom - top) & ~1;
+        final int x0 = left;
+        final int y0 = top;
+        stats.width = outWidth;
+        stats.height = outHeight;
+
+        // as many workers and rows as the budget allows
+        int workers = _tiles.threads();
+        int rows = rowsWithin(source, frames, outWidth, workers);
+        while (rows < TILE_ROWS / 4 && workers > 1) {
+            workers--;
+            rows = rowsWithin(source, frames, outWidth, workers);
+        }
+        final int tileRows = Math.max(2, Math.min(TILE_ROWS, rows) & ~1);
+        stats.workers = workers;
+        stats.rows = tileRows;
+        stats.memory = workers * workerBytes(source, frames, outWidth, tileRows);
+
+        start = System.nanoTime();
+        sink.begin(outWidth, outHeight);
+        final Worker[] state = new Worker[workers];
+        int tiles = (outHeight + tileRows - 1) / tileRows;
+        try {
+            _tiles.run(tiles, workers, new TileExecutor.TileTask() {
+                @Override
+                public void run(int tile, int worker) throws Exception {
+                    Worker w = state[worker];
+                    if (w == null) {
+                        w = new Worker();
+                        state[worker] = w;
+                        w.reader = source.open(outWidth);
+                        w.pixels = new int[frames][];
+                        for (int i = 0; i < frames; i++) {
+                            w.pixels[i] = BufferPool.instance().acquireInts(outWidth * tileRows);
+                        }
+                        w.out = BufferPool.instance().acquireInts(outWidth * tileRows);
+                    }
+                    int y = tile * tileRows;
+                    int n = Math.min(tileRows, outHeight - y);
+                    for (int i = 0; i < frames; i++) {
+                        w.reader.read(i, x0 + offsets[i][0], y0 + offsets[i][1] + y, outWidth, n, w.pixels[i]);
+                    }
+                    merge(w.pixels, frames, reference, w.out, outWidth * n);
+                    sink.write(y, n, w.out);
+                }
+            });
+        } finally {
+            for (Worker w : state) {
+                if (w == null) {
+                    continue;
+                }
+                if (w.reader != null) {
+                    w.reader.close();
+                }
+                if (w.pixels != null) {
+                    for (int[] p : w.pixels) {
+                        BufferPool.instance().releaseInts(p);
+                    }
+                }
+                BufferPool.instance().releaseInts(w.out);
+            }
+        }
+        sink.end();
+        stats.mergeMillis = (System.nanoTime() - start) / 1000000;
+        return stats;
+    }
+
+    /**
+     * average a run of aligned pixels, weighting down the ones which moved from the reference
+     * @param inputs ARGB pixels of each shot
+     * @param count how many shots
+     * @param reference the reference shot
+     * @param out receives the ARGB result
+     * @param length how many pixels
+     */
+    static void merge(int[][] inputs, int count, int reference, int[] out, int length) {
+        int[] ref = inputs[reference];
+        for (int i = 0; i < length; i++) {
+            int c = ref[i];
+            int rr = (c >> 16) & 0xff;
+            int rg = (c >> 8) & 0xff;
+            int rb = c & 0xff;
+            int rl = (rr * 77 + rg * 150 + rb * 29) >> 8;
+            int r = rr << 8;
+            int g = rg << 8;
+            int b = rb << 8;
+            int sum = 256;
+            for (int k = 0; k < count; k++) {
+                if (k == reference) {
+                    continue;
+                }
+                c = inputs[k][i];
+                int cr = (c >> 16) & 0xff;
+                int cg = (c >> 8) & 0xff;
+                int cb = c & 0xff;
+                int w = WEIGHTS[Math.abs(((cr * 77 + cg * 150 + cb * 29) >> 8) - rl)];
+                r += cr * w;
+                g += cg * w;
+                b += cb * w;
+                sum += w;
+            }
+            int half = sum >> 1;
+            out[i] = 0xff000000 | (((r + half) / sum) << 16) | (((g + half) / sum) << 8) | ((b + half) / sum);
+        }
+    }
+
+    /**
+     * the stripe height fitting the budget
+     * @return rows, may be less than 2 if even that doesn't fit
+     */
+    private int rowsWithin(FrameSource source, int frames, int width, int workers) {
+        long perRow = workerBytes(source, frames, width, 1);
+        return (int)Math.min(TILE_ROWS, _memoryBudget / workers / perRow);
+    }
+
+    /**
+     * memory held by a worker
+     * @return bytes
+     */
+    private static long workerBytes(FrameSource source, int frames, int width, int rows) {
+        return (long)(frames + 1) * width * rows * 4 + source.readerBytes(width, rows);
+    }
+
+    /**
+     * find the offset of a shot relative to the reference, coarse to fine
+     * @param source the shots
+     * @param frame the shot to align
+     * @param refLuma the reference luma, for each pass
+     * @param refSize the reference luma size, for each pass
+     * @return {dx, dy} in full resolution pixels
+     */
+    private static int[] align(FrameSource source, int frame, byte[][] refLuma, int[][] refSize) throws IOException {
+        int dx = 0;
+        int dy = 0;
+        int previous = 0;
+        int[] size = new int[2];
+        for (int pass = 0; pass < ALIGN_SAMPLE_SIZES.length; pass++) {
+            int sample = ALIGN_SAMPLE_SIZES[pass];
+            if (previous != 0) {
+                // carry the offset to this scale
+                dx = dx * previous / sample;
+                dy = dy * previous / sample;
+            }
+            byte[] img = source.luma(frame, sample, size);
+            try {
+                if (size[0] != refSize[pass][0] || size[1] != refSize[pass][1]) {
+                    throw new IOException("frames of different sizes");
+                }
+                int[] o = FrameAligner.align(refLuma[pass], img, size[0], size[1], dx, dy, ALIGN_RADIUS[pass]);
+                dx = o[0];
+                dy = o[1];
+            } finally {
+                BufferPool.instance().release(img);
+            }
+            previous = sample;
+        }
+        return new int[] { dx * previous, dy * previous };
+    }
+}
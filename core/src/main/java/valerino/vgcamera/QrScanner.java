@@ -0,0 +1,156 @@
+package valerino.vgcamera;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.ChecksumException;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.FormatException;
+import com.google.zxing.NotFoundException;
+import com.google.zxing.Result;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * decodes QR codes from the Y plane of NV21 frames, looking at a square at the center only.
+ * the source and binarizer are reused across frames (reallocated only if the frame size changes), and the scan
+ * rate adapts: it backs off while nothing is in sight, scans every frame it gets when a code is seen but not read
+ * yet, and never takes more than 1/COST_FACTOR of a core. Android-free, benchmarkable on a desktop jvm (QrBenchmark)
+ */
+public class QrScanner {
+    /**
+     * side of the scanned square, as a fraction of the shorter frame side
+     */
+    public static final float CROP = 0.6f;
+
+    /**
+     * scan interval steps (ms)
+     */
+    private static final long STEP_INTERVAL = 100;
+    private static final long MAX_INTERVAL = 400;
+
+    /**
+     * pause after a code has been read (ms)
+     */
+    private static final long FOUND_INTERVAL = 1000;
+
+    /**
+     * the interval is at least this times the cost of the last scan
+     */
+    private static final int COST_FACTOR = 3;
+
+    /**
+     * smallest crop the binarizer works with
+     */
+    private static final int MIN_CROP = 40;
+
+    private final QRCodeReader _reader = new QRCodeReader();
+    private final Map<DecodeHintType, Object> _hints = new EnumMap<>(DecodeHintType.class);
+    private YPlaneSource _source = null;
+    private LocalThresholdBinarizer _binarizer = null;
+    private int _frameWidth = 0;
+    private int _frameHeight = 0;
+    private long _interval = 0;
+    private long _lastScan = 0;
+    private int _scanned = 0;
+    private int _decoded = 0;
+    private int _seen = 0;
+    private int _skipped = 0;
+    private long _totalCost = 0;
+    private long _maxCost = 0;
+
+    /**
+     * constructor
+     */
+    public QrScanner() {
+        _hints.put(DecodeHintType.POSSIBLE_FORMATS, Collections.singletonList(BarcodeFormat.QR_CODE));
+    }
+
+    /**
+     * scan a frame, if it's time to (according to the adaptive rate)
+     * @param data NV21 (or Y only) data
+     * @param width frame width
+     * @param height frame height
+     * @param timestamp the frame time (ms, any monotonic clock)
+     * @return the decoded text, or null
+     */
+    public String scan(byte[] data, int width, int height, long timestamp) {
+        if (_scanned > 0 && timestamp - _lastScan < _interval) {
+            _skipped++;
+            return null;
+        }
+        _lastScan = timestamp;
+
+        long start = System.nanoTime();
+        String text = null;
+        long interval;
+        try {
+            text = decode(data, width, height);
+            interval = (text != null ? FOUND_INTERVAL : Math.min(MAX_INTERVAL, Math.max(STEP_INTERVAL, _interval * 3 / 2)));
+        } catch (ChecksumException | FormatException e) {
+            // a code is there, but couldn't be read: try again asap
+            _seen++;
+            interval = 0;
+        }
+        long cost = (System.nanoTime() - start) / 1000000;
+        _totalCost += cost;
+        _maxCost = Math.max(_maxCost, cost);
+        _interval = Math.max(interval, cost * COST_FACTOR);
+        return text;
+    }
+
+    /**
+     * decode a frame now
+     * @param data NV21 (or Y only) data
+     * @param width frame width
+     * @param height frame height
+     * @return the decoded text, or null if no code has been found
+     * @throws ChecksumException a code has been found, but it can't be read
+     * @throws FormatException a code has been found, but it can't be read
+     */
+    public String decode(byte[] data, int width, int height) throws ChecksumException, FormatException {
+        if (width != _frameWidth || height != _frameHeight) {
+            int side = (int)(Math.min(width, height) * CROP);
+            if (side < MIN_CROP) {
+                return null;
+            }
+            _source = new YPlaneSource(side, side);
+            _binarizer = new LocalThresholdBinarizer(_source);
+            _frameWidth = width;
+            _frameHeight = height;
+        }
+
+        _scanned++;
+        _source.setFrame(data, width, height);
+        _binarizer.invalidate();
+        try {
+            Result res = _reader.decode(new BinaryBitmap(_binarizer), _hints);
+            _decoded++;
+            return res.getText();
+        } catch (NotFoundException e) {
+            return null;
+        } finally {
+            _reader.reset();
+        }
+    }
+
+    /**
+     * the current scan interval (ms)
+     * @return
+     */
+    public long interval() {
+        return _interval;
+    }
+
+    /**
+     * counters, for logging
+     * @return
+     */
+    public String stats() {
+        return "scanned=" + _scanned + ", decoded=" + _decoded + ", seen but unreadable=" + _seen + ", skipped=" + _skipped +
+                (_scanned > 0 ? ", avg cost=" + _totalCost / _scanned + "ms, max cost=" + _maxCost + "ms" : "") +
+                ", interval=" + _interval + "ms";
+    }
+}
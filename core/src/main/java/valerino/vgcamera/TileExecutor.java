@@ -0,0 +1,112 @@
+package valerino.vgcamera;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * runs the tiles of an image job on all the cores: one worker per core pulls the next tile until none is left, so
+ * uneven tiles still balance out. each worker has a fixed index, to keep per-worker state (decoders, buffers).
+ * Android-free, runs on a desktop jvm too
+ */
+public class TileExecutor {
+    /**
+     * processes a tile
+     */
+    public interface TileTask {
+        /**
+         * process a tile, on a worker thread
+         * @param tile the tile index
+         * @param worker the worker index (0 .. threads() - 1), no two tiles run on the same worker at once
+         * @throws Exception on error, the job is aborted
+         */
+        void run(int tile, int worker) throws Exception;
+    }
+
+    private final ThreadPoolExecutor _workers;
+    private final int _threads;
+
+    /**
+     * constructor
+     * @param name thread name
+     * @param threads how many workers
+     */
+    public TileExecutor(final String name, int threads) {
+        _threads = Math.max(1, threads);
+        _workers = new ThreadPoolExecutor(_threads, _threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, name);
+                // maps to THREAD_PRIORITY_BACKGROUND on Android
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        _workers.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * how many workers
+     * @return
+     */
+    public int threads() {
+        return _threads;
+    }
+
+    /**
+     * process all the tiles, blocking until done
+     * @param tiles how many tiles
+     * @param task the TileTask
+     * @throws Exception the first error thrown by a tile (the remaining tiles are skipped)
+     */
+    public void run(int tiles, TileTask task) throws Exception {
+        run(tiles, _threads, task);
+    }
+
+    /**
+     * process all the tiles on at most the given workers (i.e. to bound the memory held by per-worker state),
+     * blocking until done
+     * @param tiles how many tiles
+     * @param maxWorkers how many workers to use at most
+     * @param task the TileTask
+     * @throws Exception the first error thrown by a tile (the remaining tiles are skipped)
+     */
+    public void run(final int tiles, int maxWorkers, final TileTask task) throws Exception {
+        final AtomicInteger next = new AtomicInteger(0);
+        final AtomicReference<Throwable> error = new AtomicReference<>(null);
+        int workers = Math.max(1, Math.min(Math.min(_threads, maxWorkers), tiles));
+        final CountDownLatch done = new CountDownLatch(workers);
+        for (int w = 0; w < workers; w++) {
+            final int worker = w;
+            _workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int tile;
+                        while (error.get() == null && (tile = next.getAndIncrement()) < tiles) {
+                            task.run(tile, worker);
+                        }
+                    } catch (Throwable e) {
+                        error.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        Throwable e = error.get();
+        if (e instanceof Exception) {
+            throw (Exception) e;
+        }
+        if (e != null) {
+            throw new Exception(e);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package valerino.vgcamera;
+
+import com.google.zxing.LuminanceSource;
+
+/**
+ * a zxing LuminanceSource over the center of the Y plane of NV21 frames (the first width * height bytes).
+ * reused across frames with setFrame(), getMatrix() fills a preallocated array so nothing is allocated per frame.
+ * Android-free, runs on a desktop jvm too
+ */
+public class YPlaneSource extends LuminanceSource {
+    private final byte[] _matrix;
+    private byte[] _frame = null;
+    private int _frameWidth = 0;
+    private int _left = 0;
+    private int _top = 0;
+    private boolean _matrixValid = false;
+
+    /**
+     * constructor
+     * @param cropWidth width of the region looked at
+     * @param cropHeight height of the region looked at
+     */
+    public YPlaneSource(int cropWidth, int cropHeight) {
+        super(cropWidth, cropHeight);
+        _matrix = new byte[cropWidth * cropHeight];
+    }
+
+    /**
+     * point to a new frame, cropped at the center
+     * @param data NV21 (or Y only) data
+     * @param frameWidth frame width, at least the crop width
+     * @param frameHeight frame height, at least the crop height
+     */
+    public void setFrame(byte[] data, int frameWidth, int frameHeight) {
+        _frame = data;
+        _frameWidth = frameWidth;
+        _left = (frameWidth - getWidth()) / 2;
+        _top = (frameHeight - getHeight()) / 2;
+        _matrixValid = false;
+    }
+
+    @Override
+    public byte[] getRow(int y, byte[] row) {
+        int width = getWidth();
+        if (row == null || row.length < width) {
+            row = new byte[width];
+        }
+        System.arraycopy(_frame, (_top + y) * _frameWidth + _left, row, 0, width);
+        return row;
+    }
+
+    @Override
+    public byte[] getMatrix() {
+        if (!_matrixValid) {
+            int width = getWidth();
+            int height = getHeight();
+            int offset = _top * _frameWidth + _left;
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(_frame, offset, _matrix, y * width, width);
+                offset += _frameWidth;
+            }
+            _matrixValid = true;
+        }
+        return _matrix;
+    }
+}
@@ -0,0 +1,99 @@
+package valerino.vgcamera;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * FileIO copy and move, the move fallback (copy when the rename fails, i.e. across filesystems) is forced with a
+ * source which can't be renamed
+ */
+public class FileIOTest {
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    /**
+     * a file which can't be renamed, as if on another filesystem
+     */
+    private static File unrenamable(File f) {
+        return new File(f.getAbsolutePath()) {
+            @Override
+            public boolean renameTo(File dest) {
+                return false;
+            }
+        };
+    }
+
+    private static byte[] random(int size) {
+        byte[] b = new byte[size];
+        new Random(size).nextBytes(b);
+        return b;
+    }
+
+    @Test
+    public void copyIsIdentical() throws Exception {
+        byte[] data = random(3 * 1024 * 1024 + 17);
+        File src = new File(_folder.getRoot(), "src");
+        File dest = new File(_folder.getRoot(), "dest");
+        FileIO.write(src, ByteBuffer.wrap(data));
+
+        assertEquals(data.length, FileIO.copy(src, dest));
+        assertArrayEquals(data, FileIO.read(dest));
+        assertArrayEquals(data, FileIO.read(src));
+    }
+
+    @Test
+    public void moveRenames() throws Exception {
+        byte[] data = random(1000);
+        File src = new File(_folder.getRoot(), "src");
+        File dest = new File(_folder.getRoot(), "dest");
+        FileIO.write(src, ByteBuffer.wrap(data));
+
+        FileIO.move(src, dest);
+        assertFalse(src.exists());
+        assertArrayEquals(data, FileIO.read(dest));
+    }
+
+    @Test
+    public void moveFallsBackToCopy() throws Exception {
+        byte[] data = random(100000);
+        File src = unrenamable(new File(_folder.getRoot(), "src"));
+        File dest = new File(_folder.newFolder("out"), "dest");
+        FileIO.write(src, ByteBuffer.wrap(data));
+        FileIO.write(dest, ByteBuffer.wrap(random(10)));
+
+        // the destination is replaced, the source and the partial file are gone
+        FileIO.move(src, dest);
+        assertArrayEquals(data, FileIO.read(dest));
+        assertFalse(src.exists());
+        assertArrayEquals(new String[] { "dest" }, dest.getParentFile().list());
+    }
+
+    @Test
+    public void moveFailingKeepsTheSource() throws Exception {
+        byte[] data = random(1000);
+        File src = unrenamable(new File(_folder.getRoot(), "src"));
+        File dest = new File(new File(_folder.getRoot(), "missing"), "dest");
+        FileIO.write(src, ByteBuffer.wrap(data));
+
+        try {
+            FileIO.move(src, dest);
+            fail("moved into a missing directory");
+        } catch (IOException e) {
+            // expected
+        }
+        assertArrayEquals(data, FileIO.read(src));
+        assertTrue(!dest.exists() && !new File(dest.getAbsolutePath() + ".part").exists());
+    }
+}
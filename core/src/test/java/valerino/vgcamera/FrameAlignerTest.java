@@ -0,0 +1,97 @@
+package valerino.vgcamera;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * FrameAligner on synthetic luma: a random scene, and crops of it shifted by known amounts
+ */
+public class FrameAlignerTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final int MARGIN = 16;
+
+    /**
+     * a smooth random scene (bilinear value noise), larger than the crops by MARGIN on each side
+     */
+    private static int[] scene(long seed) {
+        int w = WIDTH + MARGIN * 2;
+        int h = HEIGHT + MARGIN * 2;
+        int cell = 8;
+        int gw = w / cell + 2;
+        int gh = h / cell + 2;
+        int[] grid = new int[gw * gh];
+        Random r = new Random(seed);
+        for (int i = 0; i < grid.length; i++) {
+            grid[i] = 30 + r.nextInt(196);
+        }
+        int[] s = new int[w * h];
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int gx = x / cell;
+                int gy = y / cell;
+                int fx = x % cell;
+                int fy = y % cell;
+                int top = grid[gy * gw + gx] * (cell - fx) + grid[gy * gw + gx + 1] * fx;
+                int bottom = grid[(gy + 1) * gw + gx] * (cell - fx) + grid[(gy + 1) * gw + gx + 1] * fx;
+                s[y * w + x] = (top * (cell - fy) + bottom * fy) / (cell * cell);
+            }
+        }
+        return s;
+    }
+
+    /**
+     * a crop of the scene, such as crop(x + dx, y + dy) = crop(0, 0)(x, y)
+     */
+    private static byte[] crop(int[] scene, int dx, int dy, int gain, int bias) {
+        int w = WIDTH + MARGIN * 2;
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int l = scene[(y + MARGIN - dy) * w + x + MARGIN - dx] * gain / 100 + bias;
+                luma[y * WIDTH + x] = (byte)Math.max(0, Math.min(255, l));
+            }
+        }
+        return luma;
+    }
+
+    @Test
+    public void alignFindsTheShift() {
+        int[] scene = scene(1);
+        byte[] ref = crop(scene, 0, 0, 100, 0);
+        byte[] img = crop(scene, 5, -3, 100, 0);
+        assertArrayEquals(new int[] { 5, -3 }, FrameAligner.align(ref, img, WIDTH, HEIGHT, 0, 0, 8));
+    }
+
+    @Test
+    public void alignSearchesAroundTheStartOffset() {
+        int[] scene = scene(2);
+        byte[] ref = crop(scene, 0, 0, 100, 0);
+        byte[] img = crop(scene, -12, 9, 100, 0);
+        assertArrayEquals(new int[] { -12, 9 }, FrameAligner.align(ref, img, WIDTH, HEIGHT, -10, 10, 3));
+    }
+
+    @Test
+    public void alignIgnoresTheExposure() {
+        int[] scene = scene(3);
+        byte[] ref = crop(scene, 0, 0, 100, 0);
+        byte[] brighter = crop(scene, 2, 4, 80, 60);
+        assertArrayEquals(new int[] { 2, 4 }, FrameAligner.align(ref, brighter, WIDTH, HEIGHT, 0, 0, 6));
+    }
+
+    @Test
+    public void toLumaFillsFromTheOffset() {
+        int[] argb = { 0xffffffff, 0xff000000, 0xff808080 };
+        byte[] luma = new byte[5];
+        FrameAligner.toLuma(argb, luma, 2, argb.length);
+        assertEquals(0, luma[0]);
+        assertEquals(0, luma[1]);
+        assertEquals(255, luma[2] & 0xff);
+        assertEquals(0, luma[3] & 0xff);
+        assertEquals(128, luma[4] & 0xff);
+    }
+}
@@ -0,0 +1,82 @@
+package valerino.vgcamera;
+
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.BitMatrix;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * LocalThresholdBinarizer and YPlaneSource on synthetic frames
+ */
+public class LocalThresholdBinarizerTest {
+    private static final int SIDE = 64;
+
+    /**
+     * a dark square on a white sheet, lit from the left twice as much as from the right
+     */
+    private static byte[] litSquare(int left, int top, int side) {
+        byte[] f = new byte[SIDE * SIDE];
+        for (int y = 0; y < SIDE; y++) {
+            for (int x = 0; x < SIDE; x++) {
+                int light = 240 - x * 2;
+                boolean inside = (x >= left && x < left + side && y >= top && y < top + side);
+                f[y * SIDE + x] = (byte)(inside ? light / 5 : light * 9 / 10);
+            }
+        }
+        return f;
+    }
+
+    private static void assertSquare(BitMatrix m, int left, int top, int side) {
+        for (int y = 0; y < SIDE; y++) {
+            for (int x = 0; x < SIDE; x++) {
+                boolean inside = (x >= left && x < left + side && y >= top && y < top + side);
+                assertEquals("(" + x + ", " + y + ")", inside, m.get(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void darkSquareUnderUnevenLight() throws Exception {
+        YPlaneSource source = new YPlaneSource(SIDE, SIDE);
+        source.setFrame(litSquare(20, 13, 27), SIDE, SIDE);
+        LocalThresholdBinarizer binarizer = new LocalThresholdBinarizer(source);
+        BitMatrix m = binarizer.getBlackMatrix();
+        assertSquare(m, 20, 13, 27);
+
+        // cached until invalidated, then the matrix is reused for the next frame
+        source.setFrame(litSquare(30, 24, 22), SIDE, SIDE);
+        assertSame(m, binarizer.getBlackMatrix());
+        assertSquare(m, 20, 13, 27);
+        binarizer.invalidate();
+        assertSame(m, binarizer.getBlackMatrix());
+        assertSquare(m, 30, 24, 22);
+
+        BitArray row = binarizer.getBlackRow(30, null);
+        for (int x = 0; x < SIDE; x++) {
+            assertEquals("x " + x, x >= 30 && x < 52, row.get(x));
+        }
+    }
+
+    @Test
+    public void sourceCropsTheCenterOfTheYPlane() {
+        // 10x8 Y plane, then the chroma
+        byte[] frame = new byte[10 * 8 * 3 / 2];
+        for (int i = 0; i < 10 * 8; i++) {
+            frame[i] = (byte)i;
+        }
+        YPlaneSource source = new YPlaneSource(4, 3);
+        source.setFrame(frame, 10, 8);
+
+        assertArrayEquals(new byte[] { 23, 24, 25, 26 }, source.getRow(0, null));
+        assertArrayEquals(new byte[] { 23, 24, 25, 26, 33, 34, 35, 36, 43, 44, 45, 46 }, source.getMatrix());
+
+        // a new frame refreshes the matrix
+        byte[] next = new byte[frame.length];
+        source.setFrame(next, 10, 8);
+        assertArrayEquals(new byte[12], source.getMatrix());
+    }
+}
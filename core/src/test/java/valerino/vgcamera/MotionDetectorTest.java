@@ -0,0 +1,98 @@
+package valerino.vgcamera;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MotionDetector on synthetic Y frames, a frame every 100ms (no rate limit)
+ */
+public class MotionDetectorTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final long QUIET = 1000;
+
+    private long _time = 0;
+
+    private static byte[] frame(int luma) {
+        byte[] f = new byte[WIDTH * HEIGHT];
+        Arrays.fill(f, (byte)luma);
+        return f;
+    }
+
+    /**
+     * a frame with a square of another brightness
+     */
+    private static byte[] square(int luma, int squareLuma, int side) {
+        byte[] f = frame(luma);
+        for (int y = 0; y < side; y++) {
+            Arrays.fill(f, (HEIGHT - side) / 2 * WIDTH + y * WIDTH + (WIDTH - side) / 2,
+                    (HEIGHT - side) / 2 * WIDTH + y * WIDTH + (WIDTH + side) / 2, (byte)squareLuma);
+        }
+        return f;
+    }
+
+    /**
+     * feed the same frame a few times
+     * @return the events, EVENT_NONE omitted
+     */
+    private String feed(MotionDetector md, byte[] frame, int count) {
+        StringBuilder events = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            int e = md.process(frame, WIDTH, HEIGHT, _time);
+            _time += 100;
+            if (e != MotionDetector.EVENT_NONE) {
+                events.append(e == MotionDetector.EVENT_STARTED ? "started@" : "stopped@").append(i).append(' ');
+            }
+        }
+        return events.toString().trim();
+    }
+
+    private static MotionDetector detector() {
+        return new MotionDetector(0.03f, QUIET, 0, 1f);
+    }
+
+    @Test
+    public void staticSceneIsNotMotion() {
+        MotionDetector md = detector();
+        assertEquals("", feed(md, square(80, 160, 60), 50));
+        assertFalse(md.moving());
+    }
+
+    @Test
+    public void motionStartsAndStops() {
+        MotionDetector md = detector();
+        assertEquals("", feed(md, frame(80), 20));
+
+        // confirmed on the second frame with motion
+        byte[] object = square(80, 200, 100);
+        assertEquals("started@1", feed(md, object, 5));
+        assertTrue(md.moving());
+
+        // stops once nothing moved for QUIET ms, counted from the last frame with the object
+        assertEquals("stopped@" + (QUIET / 100 - 1), feed(md, frame(80), 15));
+        assertFalse(md.moving());
+    }
+
+    @Test
+    public void brightnessChangeIsNotMotion() {
+        MotionDetector md = detector();
+        assertEquals("", feed(md, square(80, 160, 60), 20));
+        assertEquals("", feed(md, square(130, 210, 60), 20));
+        assertFalse(md.moving());
+    }
+
+    @Test
+    public void resetLearnsTheSceneAgain() {
+        MotionDetector md = detector();
+        assertEquals("", feed(md, frame(80), 20));
+
+        // a new scene after reset() is the background, not motion
+        md.reset();
+        assertEquals("", feed(md, square(80, 200, 100), 20));
+    }
+}
@@ -0,0 +1,232 @@
+package valerino.vgcamera;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * NightStacker on synthetic frames: crops of a random scene shifted by known amounts, which must be found again and
+ * merged back into the reference
+ */
+public class NightStackerTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int MARGIN = 32;
+
+    /**
+     * frames held whole, as crops of a grey scene
+     */
+    private static class SceneSource implements NightStacker.FrameSource {
+        private final int[][] _pixels;
+
+        /**
+         * @param seed the scene
+         * @param shifts {dx, dy} of each frame, such as frame(x + dx, y + dy) = frame 0(x, y)
+         */
+        SceneSource(long seed, int[][] shifts) {
+            int w = WIDTH + MARGIN * 2;
+            int h = HEIGHT + MARGIN * 2;
+            int[] scene = scene(seed, w, h);
+            _pixels = new int[shifts.length][WIDTH * HEIGHT];
+            for (int i = 0; i < shifts.length; i++) {
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH; x++) {
+                        int l = scene[(y + MARGIN - shifts[i][1]) * w + x + MARGIN - shifts[i][0]];
+                        _pixels[i][y * WIDTH + x] = 0xff000000 | (l << 16) | (l << 8) | l;
+                    }
+                }
+            }
+        }
+
+        int pixel(int frame, int x, int y) {
+            return _pixels[frame][y * WIDTH + x];
+        }
+
+        @Override
+        public int frames() {
+            return _pixels.length;
+        }
+
+        @Override
+        public int width() {
+            return WIDTH;
+        }
+
+        @Override
+        public int height() {
+            return HEIGHT;
+        }
+
+        @Override
+        public byte[] luma(int frame, int sample, int[] size) {
+            int w = WIDTH / sample;
+            int h = HEIGHT / sample;
+            byte[] luma = BufferPool.instance().acquire(w * h);
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    int sum = 0;
+                    for (int sy = 0; sy < sample; sy++) {
+                        for (int sx = 0; sx < sample; sx++) {
+                            sum += _pixels[frame][(y * sample + sy) * WIDTH + x * sample + sx] & 0xff;
+                        }
+                    }
+                    luma[y * w + x] = (byte)(sum / (sample * sample));
+                }
+            }
+            size[0] = w;
+            size[1] = h;
+            return luma;
+        }
+
+        @Override
+        public NightStacker.Reader open(int width) {
+            return new NightStacker.Reader() {
+                @Override
+                public void read(int frame, int x, int y, int width, int rows, int[] argb) {
+                    for (int r = 0; r < rows; r++) {
+                        System.arraycopy(_pixels[frame], (y + r) * WIDTH + x, argb, r * width, width);
+                    }
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+
+        @Override
+        public long readerBytes(int width, int rows) {
+            return 0;
+        }
+    }
+
+    /**
+     * collects the merged picture
+     */
+    private static class ArraySink implements NightStacker.FrameSink {
+        int[] pixels;
+        int width;
+        boolean ended = false;
+
+        @Override
+        public void begin(int width, int height) {
+            this.width = width;
+            pixels = new int[width * height];
+        }
+
+        @Override
+        public void write(int y, int rows, int[] argb) {
+            System.arraycopy(argb, 0, pixels, y * width, width * rows);
+        }
+
+        @Override
+        public void end() {
+            ended = true;
+        }
+    }
+
+    /**
+     * a random scene (bilinear value noise): large shapes, and fine detail so there are edges to align on
+     */
+    private static int[] scene(long seed, int w, int h) {
+        Random r = new Random(seed);
+        int[] s = new int[w * h];
+        final int[] cells = { 32, 8, 2 };
+        final int[] amplitudes = { 140, 50, 40 };
+        for (int octave = 0; octave < cells.length; octave++) {
+            int cell = cells[octave];
+            int amplitude = amplitudes[octave];
+            int gw = w / cell + 2;
+            int gh = h / cell + 2;
+            int[] grid = new int[gw * gh];
+            for (int i = 0; i < grid.length; i++) {
+                grid[i] = r.nextInt(amplitude);
+            }
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    int gx = x / cell;
+                    int gy = y / cell;
+                    int fx = x % cell;
+                    int fy = y % cell;
+                    int top = grid[gy * gw + gx] * (cell - fx) + grid[gy * gw + gx + 1] * fx;
+                    int bottom = grid[(gy + 1) * gw + gx] * (cell - fx) + grid[(gy + 1) * gw + gx + 1] * fx;
+                    s[y * w + x] += (top * (cell - fy) + bottom * fy) / (cell * cell);
+                }
+            }
+        }
+        for (int i = 0; i < s.length; i++) {
+            s[i] = Math.min(255, s[i] + 16);
+        }
+        return s;
+    }
+
+    /**
+     * check the merge is the reference over the area covered by all the frames
+     */
+    private static void assertMergedIsReference(SceneSource source, NightStacker.Stats stats, ArraySink sink, int left, int top) {
+        assertTrue(sink.ended);
+        for (int y = 0; y < stats.height; y += 7) {
+            for (int x = 0; x < stats.width; x += 5) {
+                assertEquals(source.pixel(0, left + x, top + y), sink.pixels[y * stats.width + x]);
+            }
+        }
+    }
+
+    @Test
+    public void stackFindsTheOffsets() throws Exception {
+        int[][] shifts = { { 0, 0 }, { 7, -4 }, { -5, 9 }, { 2, 3 } };
+        SceneSource source = new SceneSource(1, shifts);
+        ArraySink sink = new ArraySink();
+        NightStacker stacker = new NightStacker(new TileExecutor("test-tile", 2), 16 * 1024 * 1024);
+        NightStacker.Stats stats = stacker.stack(source, 0, sink);
+
+        for (int i = 0; i < shifts.length; i++) {
+            assertArrayEquals("frame " + i, shifts[i], stats.offsets[i]);
+        }
+
+        // cropped to the area covered by all the frames, even sized
+        assertEquals((WIDTH - 5 - 7) & ~1, stats.width);
+        assertEquals((HEIGHT - 4 - 9) & ~1, stats.height);
+        assertMergedIsReference(source, stats, sink, 5, 4);
+    }
+
+    @Test
+    public void stackFitsTheMemoryBudget() throws Exception {
+        int[][] shifts = { { 0, 0 }, { -3, 2 }, { 4, -1 } };
+        SceneSource source = new SceneSource(2, shifts);
+        ArraySink sink = new ArraySink();
+        long budget = 64 * 1024;
+        NightStacker stacker = new NightStacker(new TileExecutor("test-tile", 4), budget);
+        NightStacker.Stats stats = stacker.stack(source, 0, sink);
+
+        assertTrue("memory " + stats.memory, stats.memory <= budget);
+        assertTrue("rows " + stats.rows, stats.rows < 64);
+        for (int i = 0; i < shifts.length; i++) {
+            assertArrayEquals("frame " + i, shifts[i], stats.offsets[i]);
+        }
+        assertMergedIsReference(source, stats, sink, 3, 1);
+    }
+
+    @Test
+    public void mergeAveragesNoiseAndIgnoresMotion() {
+        int[][] inputs = {
+                { 0xff646464, 0xff646464 },
+                { 0xff6e6e6e, 0xffc8c8c8 },
+                { 0xff5a5a5a, 0xffc8c8c8 }
+        };
+        int[] out = new int[2];
+        NightStacker.merge(inputs, 3, 0, out, 2);
+
+        // within the noise level all count the same, far from the reference they don't count at all
+        assertEquals(0xff646464, out[0]);
+        assertEquals(0xff646464, out[1]);
+
+        inputs[2][0] = 0xff6e6e6e;
+        NightStacker.merge(inputs, 3, 0, out, 1);
+        assertEquals(0xff6b6b6b, out[0]);
+    }
+}
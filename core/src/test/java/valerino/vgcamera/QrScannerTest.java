@@ -0,0 +1,46 @@
+package valerino.vgcamera;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * QrScanner rate adaptation, on frames with no code in sight
+ */
+public class QrScannerTest {
+    private static byte[] grey(int width, int height) {
+        byte[] f = new byte[width * height * 3 / 2];
+        Arrays.fill(f, (byte)128);
+        return f;
+    }
+
+    @Test
+    public void tooSmallFramesAreNotScanned() throws Exception {
+        QrScanner qr = new QrScanner();
+        assertNull(qr.decode(grey(32, 32), 32, 32));
+        assertTrue(qr.stats(), qr.stats().startsWith("scanned=0,"));
+    }
+
+    @Test
+    public void nothingInSightBacksOff() {
+        QrScanner qr = new QrScanner();
+        byte[] frame = grey(320, 240);
+        long[] intervals = { 100, 150, 225, 337, 400, 400 };
+        long time = 0;
+        for (long interval : intervals) {
+            assertNull(qr.scan(frame, 320, 240, time));
+            assertEquals(interval, qr.interval());
+
+            // frames in between are skipped, the interval doesn't change
+            assertNull(qr.scan(frame, 320, 240, time + interval - 1));
+            assertEquals(interval, qr.interval());
+            time += interval;
+        }
+        assertTrue(qr.stats(), qr.stats().startsWith("scanned=" + intervals.length + ","));
+        assertTrue(qr.stats(), qr.stats().contains("skipped=" + intervals.length + ","));
+    }
+}